@@ -19,11 +19,20 @@ package com.example.appengine.firetactoe;
 import com.google.api.client.extensions.appengine.http.UrlFetchTransport;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler.BackOffRequired;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
+import com.google.apphosting.api.ApiProxy;
 import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.common.io.BaseEncoding;
@@ -36,8 +45,12 @@ import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Utility functions for communicating with the realtime communication channel using Firebase. In
@@ -54,11 +67,23 @@ public final class FirebaseChannel {
           "https://www.googleapis.com/auth/userinfo.email");
   private static final String IDENTITY_ENDPOINT =
       "https://identitytoolkit.googleapis.com/google.identity.identitytoolkit.v1.IdentityToolkit";
+  // Firebase requests in flight at once from this instance, across all requests.
+  private static final int MAX_IN_FLIGHT = 32;
+  // How long a request keeps being retried before its failure is returned to the caller.
+  private static final int MAX_RETRY_MILLIS = 5000;
+  // Gson instances are thread-safe, and caching type adapters makes reusing one cheaper.
+  private static final Gson GSON = new Gson();
 
   private String firebaseDbUrl;
   private GoogleCredentials credential;
   // Keep this a package-private member variable, so that it can be mocked for unit tests
   HttpTransport httpTransport;
+  // The request factory built for httpTransport, rebuilt if the transport is replaced.
+  private HttpTransport requestFactoryTransport;
+  private HttpRequestFactory requestFactory;
+  private final FirebaseUpdateDispatcher dispatcher =
+      new FirebaseUpdateDispatcher(
+          this::sendChannelUpdate, MAX_IN_FLIGHT, FirebaseChannel::requestThreadFactory);
 
   private static FirebaseChannel instance;
 
@@ -123,22 +148,42 @@ public final class FirebaseChannel {
    * @throws IOException .
    */
   public void sendFirebaseMessage(String channelKey, Game game) throws IOException {
-    // Make requests auth'ed using Application Default Credentials
-    HttpRequestFactory requestFactory =
-        httpTransport.createRequestFactory(new HttpCredentialsAdapter(credential));
+    sendFirebaseMessages(Collections.singletonMap(channelKey, game));
+  }
+
+  /**
+   * Sends each game to its channel in parallel, deleting the channels mapped to null. Returns once
+   * every channel has been updated with its game or a newer state of it: updates to a channel that
+   * is already being updated are coalesced, so only the latest is sent.
+   *
+   * @param games the game to send to each channel key.
+   * @throws IOException if a channel couldn't be updated.
+   */
+  public void sendFirebaseMessages(Map<String, Game> games) throws IOException {
+    Map<String, String> updates = new LinkedHashMap<>();
+    for (Map.Entry<String, Game> game : games.entrySet()) {
+      // Serialized now, so the update has the state of the game at the time of the call.
+      updates.put(game.getKey(), game.getValue() == null ? null : GSON.toJson(game.getValue()));
+    }
+    dispatcher.dispatch(updates);
+  }
+
+  private void sendChannelUpdate(String channelKey, String gameJson) throws IOException {
+    HttpRequestFactory requestFactory = requestFactory();
     GenericUrl url =
         new GenericUrl(String.format("%s/channels/%s.json", firebaseDbUrl, channelKey));
     HttpResponse response = null;
 
     try {
-      if (null == game) {
+      if (null == gameJson) {
         response = requestFactory.buildDeleteRequest(url).execute();
       } else {
-        String gameJson = new Gson().toJson(game);
         response =
             requestFactory
                 .buildPatchRequest(
-                    url, new ByteArrayContent("application/json", gameJson.getBytes()))
+                    url,
+                    new ByteArrayContent(
+                        "application/json", gameJson.getBytes(StandardCharsets.UTF_8)))
                 .execute();
       }
 
@@ -154,6 +199,53 @@ public final class FirebaseChannel {
     }
   }
 
+  // Make requests auth'ed using Application Default Credentials, retrying failures with backoff.
+  private synchronized HttpRequestFactory requestFactory() {
+    if (requestFactory == null || requestFactoryTransport != httpTransport) {
+      requestFactory =
+          httpTransport.createRequestFactory(
+              withRetries(new HttpCredentialsAdapter(credential)));
+      requestFactoryTransport = httpTransport;
+    }
+    return requestFactory;
+  }
+
+  /**
+   * Returns an initializer that applies {@code initializer}, then retries requests that fail with
+   * an I/O error or a server error, backing off exponentially. Responses the initializer handles,
+   * such as a 401 that refreshes the credentials, are retried as before.
+   */
+  static HttpRequestInitializer withRetries(HttpRequestInitializer initializer) {
+    return (HttpRequest request) -> {
+      initializer.initialize(request);
+      HttpUnsuccessfulResponseHandler initialHandler = request.getUnsuccessfulResponseHandler();
+      HttpUnsuccessfulResponseHandler backOffHandler =
+          new HttpBackOffUnsuccessfulResponseHandler(backOff())
+              .setBackOffRequired(BackOffRequired.ON_SERVER_ERROR);
+      request.setUnsuccessfulResponseHandler(
+          (retriedRequest, response, supportsRetry) ->
+              (initialHandler != null
+                      && initialHandler.handleResponse(retriedRequest, response, supportsRetry))
+                  || backOffHandler.handleResponse(retriedRequest, response, supportsRetry));
+      request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(backOff()));
+    };
+  }
+
+  // The default backoff retries for up to 15 minutes, far longer than a move can wait.
+  private static ExponentialBackOff backOff() {
+    return new ExponentialBackOff.Builder().setMaxElapsedTimeMillis(MAX_RETRY_MILLIS).build();
+  }
+
+  /**
+   * App Engine APIs, URL Fetch included, may only be called from threads created for the current
+   * request. Outside of App Engine, such as in tests, any thread will do.
+   */
+  private static ThreadFactory requestThreadFactory() {
+    return ApiProxy.getCurrentEnvironment() != null
+        ? ThreadManager.currentRequestThreadFactory()
+        : Executors.defaultThreadFactory();
+  }
+
   /** Create a secure JWT token for the given userId. */
   public String createFirebaseToken(Game game, String userId) {
     final AppIdentityService appIdentity = AppIdentityServiceFactory.getAppIdentityService();
@@ -175,7 +267,7 @@ public final class FirebaseChannel {
     claims.put("iat", epochTime);
     claims.put("exp", expire);
 
-    String payload = base64.encode(new Gson().toJson(claims).getBytes());
+    String payload = base64.encode(GSON.toJson(claims).getBytes());
     String toSign = String.format("%s.%s", header, payload);
     AppIdentityService.SigningResult result = appIdentity.signForApp(toSign.getBytes());
     return String.format("%s.%s", toSign, base64.encode(result.getSignature()));
@@ -199,7 +291,7 @@ public final class FirebaseChannel {
     HttpRequestFactory requestFactory =
         httpTransport.createRequestFactory(new HttpCredentialsAdapter(credential));
 
-    String json = new Gson().toJson(object);
+    String json = GSON.toJson(object);
     GenericUrl url = new GenericUrl(path);
 
     return requestFactory
@@ -222,7 +314,7 @@ public final class FirebaseChannel {
     HttpRequestFactory requestFactory =
         httpTransport.createRequestFactory(new HttpCredentialsAdapter(credential));
 
-    String json = new Gson().toJson(object);
+    String json = GSON.toJson(object);
     GenericUrl url = new GenericUrl(path);
 
     return requestFactory
@@ -245,7 +337,7 @@ public final class FirebaseChannel {
     HttpRequestFactory requestFactory =
         httpTransport.createRequestFactory(new HttpCredentialsAdapter(credential));
 
-    String json = new Gson().toJson(object);
+    String json = GSON.toJson(object);
     GenericUrl url = new GenericUrl(path);
 
     return requestFactory
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.appengine.firetactoe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends channel updates to Firebase, with the updates of one call in parallel and at most a fixed
+ * number of requests in flight across all calls.
+ *
+ * <p>Only the latest state of a channel matters to its clients, so updates to the same channel
+ * are coalesced: while an update to a channel is in flight, later updates to it wait, and only the
+ * newest of them is sent once it completes. A caller returns once its update, or a newer one, has
+ * been sent.
+ *
+ * <p>Requests are only ever sent from the calling thread and from threads it starts and joins, so
+ * nothing outlives the App Engine request that made the update.
+ */
+class FirebaseUpdateDispatcher {
+
+  /** Sends the JSON state of a channel, or deletes the channel if the JSON is null. */
+  interface Sender {
+    void send(String channelKey, String json) throws IOException;
+  }
+
+  /** The state of a channel that callers are waiting on. Guarded by the dispatcher. */
+  private static class Channel {
+    String latestJson;
+    long latestVersion;
+    // Every update up to this version has been superseded by one that was sent.
+    long sentVersion;
+    boolean sending;
+    int waiters;
+  }
+
+  private final Sender sender;
+  private final Semaphore inFlight;
+  private final Supplier<ThreadFactory> threadFactory;
+  private final AtomicLong versions = new AtomicLong();
+  private final Map<String, Channel> channels = new HashMap<>();
+
+  /**
+   * Creates a dispatcher sending at most {@code maxInFlight} requests at once. The thread factory
+   * is looked up on each call, so it may return one scoped to the current request.
+   */
+  FirebaseUpdateDispatcher(Sender sender, int maxInFlight, Supplier<ThreadFactory> threadFactory) {
+    this.sender = sender;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Sends the given updates, keyed by channel, and returns once each of them or a newer update to
+   * the same channel has been sent. A null value deletes the channel.
+   *
+   * @throws IOException if an update couldn't be sent. The other updates are still waited for.
+   */
+  void dispatch(Map<String, String> updates) throws IOException {
+    List<String> keys = new ArrayList<>(updates.size());
+    List<Long> updateVersions = new ArrayList<>(updates.size());
+    synchronized (this) {
+      for (Map.Entry<String, String> update : updates.entrySet()) {
+        long version = versions.incrementAndGet();
+        Channel channel = channels.get(update.getKey());
+        if (channel == null) {
+          channel = new Channel();
+          // Nobody waits on older updates: they were sent, or their callers got the failure.
+          channel.sentVersion = version - 1;
+          channels.put(update.getKey(), channel);
+        }
+        channel.latestJson = update.getValue();
+        channel.latestVersion = version;
+        channel.waiters++;
+        keys.add(update.getKey());
+        updateVersions.add(version);
+      }
+    }
+
+    // The first update is sent from this thread, the others from threads of their own.
+    List<Thread> threads = new ArrayList<>();
+    IOException[] failures = new IOException[keys.size()];
+    ThreadFactory factory = keys.size() > 1 ? threadFactory.get() : null;
+    for (int i = 1; i < keys.size(); i++) {
+      final int index = i;
+      Thread thread =
+          factory.newThread(
+              () -> failures[index] = awaitSent(keys.get(index), updateVersions.get(index)));
+      thread.start();
+      threads.add(thread);
+    }
+    if (!keys.isEmpty()) {
+      failures[0] = awaitSent(keys.get(0), updateVersions.get(0));
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for Firebase updates", e);
+      }
+    }
+    for (IOException failure : failures) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Returns once the given version of the channel, or a newer one, has been sent, sending it if
+   * no other thread is. Returns the failure if this thread's attempt to send it failed.
+   */
+  private IOException awaitSent(String channelKey, long version) {
+    Channel channel;
+    synchronized (this) {
+      channel = channels.get(channelKey);
+    }
+    try {
+      return sendUntil(channelKey, channel, version);
+    } finally {
+      synchronized (this) {
+        if (--channel.waiters == 0) {
+          channels.remove(channelKey);
+        }
+      }
+    }
+  }
+
+  private IOException sendUntil(String channelKey, Channel channel, long version) {
+    while (true) {
+      String json;
+      long sendingVersion;
+      synchronized (this) {
+        if (channel.sentVersion >= version) {
+          return null;
+        }
+        if (channel.sending) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new IOException("Interrupted waiting for a Firebase update", e);
+          }
+          continue;
+        }
+        channel.sending = true;
+        json = channel.latestJson;
+        sendingVersion = channel.latestVersion;
+      }
+
+      IOException failure = null;
+      boolean sent = false;
+      try {
+        inFlight.acquire();
+        try {
+          sender.send(channelKey, json);
+          sent = true;
+        } finally {
+          inFlight.release();
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = new IOException("Interrupted waiting to send a Firebase update", e);
+      } catch (RuntimeException e) {
+        failure = new IOException(e.getMessage(), e);
+      } finally {
+        synchronized (this) {
+          channel.sending = false;
+          if (sent) {
+            channel.sentVersion = sendingVersion;
+          }
+          notifyAll();
+        }
+      }
+      if (failure != null) {
+        // Callers waiting on the same update try again themselves.
+        return failure;
+      }
+    }
+  }
+}
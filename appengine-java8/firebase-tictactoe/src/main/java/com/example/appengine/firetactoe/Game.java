@@ -21,6 +21,8 @@ import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -137,21 +139,20 @@ public class Game {
     }
   }
 
-  private void sendUpdateToUser(String userId) throws IOException {
-    if (userId != null) {
-      String channelKey = getChannelKey(userId);
-      FirebaseChannel.getInstance().sendFirebaseMessage(channelKey, this);
-    }
-  }
-
   /**
    * sendUpdateToClients.
    *
    * @throws IOException if we had some kind of network issue.
    */
   public void sendUpdateToClients() throws IOException {
-    sendUpdateToUser(userX);
-    sendUpdateToUser(userO);
+    // Both players are updated in parallel.
+    Map<String, Game> updates = new LinkedHashMap<>();
+    for (String userId : new String[] {userX, userO}) {
+      if (userId != null) {
+        updates.put(getChannelKey(userId), this);
+      }
+    }
+    FirebaseChannel.getInstance().sendFirebaseMessages(updates);
   }
   // [END send_updates]
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.appengine.firetactoe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link FirebaseUpdateDispatcher}. */
+@RunWith(JUnit4.class)
+public class FirebaseUpdateDispatcherTest {
+
+  @Test
+  public void dispatch_coalescesUpdatesToTheSameChannel() throws Exception {
+    CountDownLatch firstSendStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstSend = new CountDownLatch(1);
+    List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    FirebaseUpdateDispatcher dispatcher =
+        new FirebaseUpdateDispatcher(
+            (channelKey, json) -> {
+              if (json.equals("0")) {
+                firstSendStarted.countDown();
+                await(releaseFirstSend);
+              }
+              sent.add(json);
+            },
+            8,
+            Executors::defaultThreadFactory);
+
+    Thread first = dispatchInBackground(dispatcher, "0");
+    assertThat(firstSendStarted.await(10, TimeUnit.SECONDS)).isTrue();
+    List<Thread> later = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) {
+      later.add(dispatchInBackground(dispatcher, Integer.toString(i)));
+      // Let each update queue up behind the first before the next.
+      Thread.sleep(50);
+    }
+    releaseFirstSend.countDown();
+    first.join();
+    for (Thread thread : later) {
+      thread.join();
+    }
+
+    assertThat(sent).containsExactly("0", "5").inOrder();
+  }
+
+  @Test
+  public void dispatch_sendsChannelsInParallelWithinTheLimit() throws Exception {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    FirebaseUpdateDispatcher dispatcher =
+        new FirebaseUpdateDispatcher(
+            (channelKey, json) -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              sleep(50);
+              inFlight.decrementAndGet();
+            },
+            3,
+            Executors::defaultThreadFactory);
+
+    Map<String, String> updates = new LinkedHashMap<>();
+    for (int i = 0; i < 9; i++) {
+      updates.put("channel" + i, "{}");
+    }
+    dispatcher.dispatch(updates);
+
+    assertThat(maxInFlight.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void dispatch_throwsFailuresAfterSendingTheOtherChannels() throws Exception {
+    List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    FirebaseUpdateDispatcher dispatcher =
+        new FirebaseUpdateDispatcher(
+            (channelKey, json) -> {
+              if (channelKey.equals("bad")) {
+                throw new RuntimeException("Error code while updating Firebase: 500");
+              }
+              sent.add(channelKey);
+            },
+            8,
+            Executors::defaultThreadFactory);
+
+    Map<String, String> updates = new LinkedHashMap<>();
+    updates.put("bad", "{}");
+    updates.put("good", null);
+    IOException e = assertThrows(IOException.class, () -> dispatcher.dispatch(updates));
+
+    assertThat(e).hasMessageThat().contains("500");
+    assertThat(sent).containsExactly("good");
+  }
+
+  @Test
+  public void withRetries_retriesServerErrors() throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          exchange.sendResponseHeaders(requests.incrementAndGet() < 3 ? 503 : 200, -1);
+          exchange.close();
+        });
+    server.start();
+    try {
+      HttpTransport transport = new NetHttpTransport();
+      HttpResponse response =
+          transport
+              .createRequestFactory(FirebaseChannel.withRetries(request -> {}))
+              .buildDeleteRequest(
+                  new GenericUrl(
+                      "http://localhost:" + server.getAddress().getPort() + "/channels/key.json"))
+              .execute();
+      response.disconnect();
+
+      assertThat(response.getStatusCode()).isEqualTo(200);
+      assertThat(requests.get()).isEqualTo(3);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void withRetries_givesUpAfterAFewSeconds() throws Exception {
+    AtomicInteger requests = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          requests.incrementAndGet();
+          exchange.sendResponseHeaders(503, -1);
+          exchange.close();
+        });
+    server.start();
+    try {
+      HttpTransport transport = new NetHttpTransport();
+      long start = System.nanoTime();
+      HttpResponseException e =
+          assertThrows(
+              HttpResponseException.class,
+              () ->
+                  transport
+                      .createRequestFactory(FirebaseChannel.withRetries(request -> {}))
+                      .buildDeleteRequest(
+                          new GenericUrl(
+                              "http://localhost:"
+                                  + server.getAddress().getPort()
+                                  + "/channels/key.json"))
+                      .execute());
+
+      assertThat(e.getStatusCode()).isEqualTo(503);
+      // Retried, but stopped well before the request's 10 retries, which take close to a minute.
+      assertThat(requests.get()).isAtLeast(2);
+      assertThat(requests.get()).isLessThan(11);
+      assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(15L);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static Thread dispatchInBackground(FirebaseUpdateDispatcher dispatcher, String json) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                dispatcher.dispatch(Collections.singletonMap("channel", json));
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    thread.start();
+    return thread;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.appengine.memcache;
+
+// [START memcache_sharded_counter]
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A counter spread over several memcache keys, so concurrent increments rarely compete for the
+ * same key. Each increment updates one shard with a compare-and-set; reading the counter sums all
+ * shards. When a compare-and-set loses to another client, the increment is retried right away on a
+ * different shard picked at random, instead of waiting to retry the same, contended one. Values are
+ * stored as 8-byte big-endian longs.
+ */
+public class ShardedCounter {
+
+  private final MemcacheService cache;
+  private final List<String> shardKeys;
+  private final int maxAttempts;
+
+  /**
+   * Creates a counter.
+   *
+   * @param cache the memcache service holding the shards
+   * @param name the name of the counter, used as the prefix of the shard keys
+   * @param shards the number of keys to spread increments over
+   * @param maxAttempts how many compare-and-sets an increment tries before giving up
+   */
+  public ShardedCounter(MemcacheService cache, String name, int shards, int maxAttempts) {
+    this.cache = cache;
+    this.maxAttempts = maxAttempts;
+    this.shardKeys = new ArrayList<>(shards);
+    for (int i = 0; i < shards; i++) {
+      shardKeys.add(name + "-shard-" + i);
+    }
+  }
+
+  /**
+   * Adds delta to the counter.
+   *
+   * @return true if the counter was updated, false if every attempt lost to another client
+   */
+  public boolean increment(long delta) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int shard = random.nextInt(shardKeys.size());
+    for (int attempt = 0; attempt < maxAttempts; attempt++) {
+      if (tryIncrement(shardKeys.get(shard), delta)) {
+        return true;
+      }
+      // Another client updated this shard since it was read; move to any other shard.
+      if (shardKeys.size() > 1) {
+        shard = (shard + 1 + random.nextInt(shardKeys.size() - 1)) % shardKeys.size();
+      }
+    }
+    return false;
+  }
+
+  /** Returns the sum of all shards, reading them in one call. */
+  public long getCount() {
+    long count = 0;
+    for (Object value : cache.getAll(shardKeys).values()) {
+      count += decode((byte[]) value);
+    }
+    return count;
+  }
+
+  private boolean tryIncrement(String key, long delta) {
+    IdentifiableValue oldValue = cache.getIdentifiable(key);
+    if (oldValue == null) {
+      // Only one client may create the shard; the others retry.
+      return cache.put(key, encode(delta), null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    long newValue = decode((byte[]) oldValue.getValue()) + delta;
+    return cache.putIfUntouched(key, oldValue, encode(newValue));
+  }
+
+  static byte[] encode(long value) {
+    byte[] bytes = new byte[Long.BYTES];
+    for (int i = Long.BYTES - 1; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  static long decode(byte[] bytes) {
+    long value = 0;
+    for (byte b : bytes) {
+      value = (value << 8) | (b & 0xFF);
+    }
+    return value;
+  }
+}
+// [END memcache_sharded_counter]
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.appengine.memcache;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+Compares the single-key counter the servlet used to have with ShardedCounter, with many threads
+incrementing at once against an in-memory memcache that adds a round trip latency to every call.
+Besides the throughput, the "succeeded" and "failed" counters show how many increments were
+applied and how many were given up after losing every compare-and-set.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class CounterContentionBenchmark {
+
+  @Param({"100"})
+  long latencyMicros;
+
+  // Only used by the sharded counter.
+  @Param({"1", "20"})
+  int shards;
+
+  private MemcacheService cache;
+  private ShardedCounter shardedCounter;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    cache = InMemoryMemcacheService.create(latencyMicros);
+    shardedCounter = new ShardedCounter(cache, "count-concurrent", shards, 10);
+  }
+
+  /** Counts applied and dropped increments per thread. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Outcomes {
+    public long succeeded;
+    public long failed;
+
+    void record(boolean success) {
+      if (success) {
+        succeeded++;
+      } else {
+        failed++;
+      }
+    }
+  }
+
+  @Benchmark
+  public void singleKeyWithSleepBackoff(Outcomes outcomes) throws InterruptedException {
+    outcomes.record(singleKeyIncrement("count-concurrent"));
+  }
+
+  @Benchmark
+  public void sharded(Outcomes outcomes) {
+    outcomes.record(shardedCounter.increment(1));
+  }
+
+  // The increment MemcacheConcurrentServlet used to do: one key, BigInteger encoding and a
+  // sleeping exponential backoff that gives up after 10 tries.
+  private boolean singleKeyIncrement(String key) throws InterruptedException {
+    for (long delayMs = 1; delayMs < 1000; delayMs *= 2) {
+      IdentifiableValue oldValue = cache.getIdentifiable(key);
+      byte[] newValue =
+          oldValue == null
+              ? BigInteger.valueOf(0).toByteArray()
+              : BigInteger.valueOf(new BigInteger((byte[]) oldValue.getValue()).intValue() + 1)
+                  .toByteArray();
+      if (oldValue == null) {
+        cache.put(key, newValue);
+        return true;
+      } else if (cache.putIfUntouched(key, oldValue, newValue)) {
+        return true;
+      }
+      Thread.sleep(delayMs);
+    }
+    return false;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(CounterContentionBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.appengine.memcache;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory stand-in for the parts of {@link MemcacheService} the counters use. Every call waits
+ * for the given latency first, like a round trip to memcache would, which is what leaves room for
+ * other clients to update a key between getIdentifiable and putIfUntouched.
+ */
+class InMemoryMemcacheService {
+
+  private final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+  private final long latencyNanos;
+
+  private InMemoryMemcacheService(long latencyMicros) {
+    this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+  }
+
+  static MemcacheService create(long latencyMicros) {
+    InMemoryMemcacheService service = new InMemoryMemcacheService(latencyMicros);
+    return (MemcacheService)
+        Proxy.newProxyInstance(
+            MemcacheService.class.getClassLoader(),
+            new Class<?>[] {MemcacheService.class},
+            (proxy, method, args) -> {
+              service.roundTrip();
+              switch (method.getName()) {
+                case "getIdentifiable":
+                  return service.entries.get(args[0]);
+                case "getAll":
+                  return service.getAll((Collection<?>) args[0]);
+                case "put":
+                  return service.put(args);
+                case "putIfUntouched":
+                  if (args.length == 3) {
+                    // Entries compare by identity, so this only succeeds if nobody replaced it.
+                    return service.entries.replace(args[0], (Entry) args[1], new Entry(args[2]));
+                  }
+                  break;
+                case "clearAll":
+                  service.entries.clear();
+                  return null;
+                default:
+                  break;
+              }
+              throw new UnsupportedOperationException(method.toString());
+            });
+  }
+
+  private Map<Object, Object> getAll(Collection<?> keys) {
+    Map<Object, Object> values = new HashMap<>();
+    for (Object key : keys) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        values.put(key, entry.value);
+      }
+    }
+    return values;
+  }
+
+  private boolean put(Object[] args) {
+    Entry entry = new Entry(args[1]);
+    if (args.length == 4 && args[3] == SetPolicy.ADD_ONLY_IF_NOT_PRESENT) {
+      return entries.putIfAbsent(args[0], entry) == null;
+    }
+    entries.put(args[0], entry);
+    return true;
+  }
+
+  private void roundTrip() {
+    if (latencyNanos > 0) {
+      LockSupport.parkNanos(latencyNanos);
+    }
+  }
+
+  private static class Entry implements MemcacheService.IdentifiableValue {
+
+    private final Object value;
+
+    Entry(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    public Object getValue() {
+      return value;
+    }
+  }
+}
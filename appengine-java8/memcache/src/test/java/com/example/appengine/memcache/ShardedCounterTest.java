@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.appengine.memcache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedCounterTest {
+
+  private MemcacheService cache;
+  // How many more reads of a shard another client gets to update the shard right after.
+  private final AtomicInteger interferences = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    cache = InMemoryMemcacheService.create(0);
+  }
+
+  @Test
+  public void testIncrementsAreSummedOverShards() {
+    ShardedCounter counter = new ShardedCounter(cache, "count", 4, 3);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(counter.increment(2)).isTrue();
+    }
+
+    assertThat(counter.getCount()).isEqualTo(200);
+  }
+
+  @Test
+  public void testEmptyCounterIsZero() {
+    assertThat(new ShardedCounter(cache, "count", 4, 3).getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLostCompareAndSetIsRetried() {
+    ShardedCounter counter = new ShardedCounter(interfering(), "count", 1, 3);
+    counter.increment(1);
+
+    interferences.set(1);
+    assertThat(counter.increment(1)).isTrue();
+
+    // One from the first increment, one from the other client and one from the retry.
+    assertThat(counter.getCount()).isEqualTo(3);
+    assertThat(interferences.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testLostShardCreationIsRetried() {
+    ShardedCounter counter = new ShardedCounter(interfering(), "count", 1, 3);
+
+    interferences.set(1);
+    assertThat(counter.increment(5)).isTrue();
+
+    assertThat(counter.getCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void testIncrementGivesUpAfterMaxAttempts() {
+    ShardedCounter counter = new ShardedCounter(interfering(), "count", 2, 3);
+    counter.increment(1);
+    counter.increment(1);
+
+    interferences.set(3);
+    assertThat(counter.increment(10)).isFalse();
+
+    // Only the other client's three increments landed.
+    assertThat(counter.getCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void testConcurrentIncrementsAreNotLost() throws Exception {
+    ShardedCounter counter =
+        new ShardedCounter(InMemoryMemcacheService.create(50), "count", 20, 10);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      results.add(
+          pool.submit(
+              () -> {
+                int updated = 0;
+                for (int i = 0; i < 50; i++) {
+                  if (counter.increment(1)) {
+                    updated++;
+                  }
+                }
+                return updated;
+              }));
+    }
+    int updated = 0;
+    for (Future<Integer> result : results) {
+      updated += result.get();
+    }
+    pool.shutdown();
+
+    // Increments that gave up must not have been applied, and the others must all be there.
+    assertThat(updated).isGreaterThan(0);
+    assertThat(counter.getCount()).isEqualTo(updated);
+  }
+
+  /**
+   * Wraps the cache so that, while interferences are left, another client increments a shard by
+   * one between it being read and written, which makes the next compare-and-set (or add) fail.
+   */
+  private MemcacheService interfering() {
+    return (MemcacheService)
+        Proxy.newProxyInstance(
+            MemcacheService.class.getClassLoader(),
+            new Class<?>[] {MemcacheService.class},
+            (proxy, method, args) -> {
+              Object result;
+              try {
+                result = method.invoke(cache, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+              if (method.getName().equals("getIdentifiable")
+                  && interferences.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                String key = (String) args[0];
+                Object value = cache.getAll(Collections.singletonList(key)).get(key);
+                long count = value == null ? 0 : ShardedCounter.decode((byte[]) value);
+                cache.put(key, ShardedCounter.encode(count + 1));
+              }
+              return result;
+            });
+  }
+}
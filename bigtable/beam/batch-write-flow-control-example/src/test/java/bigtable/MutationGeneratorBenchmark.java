@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import bigtable.BatchWriteFlowControlExample.CreateHbaseMutationFn;
+import bigtable.BatchWriteFlowControlExample.CreateMutationFn;
+import bigtable.BatchWriteFlowControlExample.FastCreateHbaseMutationFn;
+import bigtable.BatchWriteFlowControlExample.FastCreateMutationFn;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.transforms.DoFn.OutputReceiver;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+Compares the default and fast mutation generators. Each operation generates one row, so the score
+is rows per second; run with the GC profiler (as main does) to get the bytes allocated per row.
+Several threads are used so contention on the shared SecureRandom shows up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class MutationGeneratorBenchmark {
+
+  @Param({"1", "10"})
+  int colsPerRow;
+
+  @Param({"100", "1024"})
+  int bytesPerCol;
+
+  private CreateMutationFn createMutationFn;
+  private FastCreateMutationFn fastCreateMutationFn;
+  private CreateHbaseMutationFn createHbaseMutationFn;
+  private FastCreateHbaseMutationFn fastCreateHbaseMutationFn;
+  private BlackholeReceiver<Object> receiver;
+  private long rowNumber;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    receiver = new BlackholeReceiver<>(blackhole);
+    createMutationFn = new CreateMutationFn(colsPerRow, bytesPerCol);
+    fastCreateMutationFn = new FastCreateMutationFn(colsPerRow, bytesPerCol);
+    fastCreateMutationFn.setup();
+    createHbaseMutationFn = new CreateHbaseMutationFn(colsPerRow, bytesPerCol);
+    fastCreateHbaseMutationFn = new FastCreateHbaseMutationFn(colsPerRow, bytesPerCol);
+    fastCreateHbaseMutationFn.setup();
+  }
+
+  @Benchmark
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void createMutation() {
+    createMutationFn.processElement(rowNumber++, (OutputReceiver) receiver);
+  }
+
+  @Benchmark
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void fastCreateMutation() {
+    fastCreateMutationFn.processElement(rowNumber++, (OutputReceiver) receiver);
+  }
+
+  @Benchmark
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void createHbaseMutation() {
+    createHbaseMutationFn.processElement(rowNumber++, (OutputReceiver) receiver);
+  }
+
+  @Benchmark
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void fastCreateHbaseMutation() {
+    fastCreateHbaseMutationFn.processElement(rowNumber++, (OutputReceiver) receiver);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(MutationGeneratorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+
+  // Hands every generated row to the blackhole so it isn't optimized away.
+  private static class BlackholeReceiver<T> implements OutputReceiver<T> {
+
+    private final Blackhole blackhole;
+
+    BlackholeReceiver(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void output(T output) {
+      blackhole.consume(output);
+    }
+
+    @Override
+    public void outputWithTimestamp(T output, Instant timestamp) {
+      blackhole.consume(output);
+    }
+  }
+}
@@ -19,33 +19,64 @@ import com.google.cloud.bigtable.data.v2.models.Entry;
 import com.google.cloud.bigtable.data.v2.models.SetCell;
 import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TreeSet;
 import org.apache.beam.runners.dataflow.options.DataflowPipelineOptions;
 import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.coders.BooleanCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.coders.VarLongCoder;
 import org.apache.beam.sdk.io.TextIO;
 import org.apache.beam.sdk.io.gcp.bigtable.BigtableIO;
 import org.apache.beam.sdk.options.Default;
 import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
-import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.state.CombiningState;
+import org.apache.beam.sdk.state.StateSpec;
+import org.apache.beam.sdk.state.StateSpecs;
+import org.apache.beam.sdk.state.TimeDomain;
+import org.apache.beam.sdk.state.Timer;
+import org.apache.beam.sdk.state.TimerSpec;
+import org.apache.beam.sdk.state.TimerSpecs;
+import org.apache.beam.sdk.state.ValueState;
+import org.apache.beam.sdk.transforms.Combine.CombineFn;
 import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.Top;
 import org.apache.beam.sdk.transforms.windowing.AfterFirst;
 import org.apache.beam.sdk.transforms.windowing.AfterPane;
 import org.apache.beam.sdk.transforms.windowing.AfterProcessingTime;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindow;
 import org.apache.beam.sdk.transforms.windowing.GlobalWindows;
 import org.apache.beam.sdk.transforms.windowing.Repeatedly;
 import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
 
 public class SongRank {
 
+  // The number of keys songs are counted under. Each key keeps its own counts, so a few keys per
+  // worker spread the counting without keeping state and timers for every song.
+  static final int RANKING_SHARDS = 16;
+  // The number of songs each key keeps counts for in an update interval.
+  static final int SONGS_PER_SHARD = 10_000;
+
   public static void main(String[] args) {
     BigtableOptions options =
         PipelineOptionsFactory.fromArgs(args).withValidation().as(
@@ -67,19 +98,10 @@ public class SongRank {
         )
         // [END bigtable_cdc_tut_readchangestream]
         .apply("Add key", ParDo.of(new ExtractSongName()))
-        .apply(
-            "Collect listens in 5 second windows",
-            Window.<String>into(new GlobalWindows())
-                .triggering(
-                    Repeatedly.forever(
-                        AfterProcessingTime
-                            .pastFirstElementInPane()
-                            .plusDelayOf(Duration.standardSeconds(10))
-                    ))
-                .discardingFiredPanes())
         // [START bigtable_cdc_tut_countrank]
-        .apply(Count.perElement())
-        .apply("Top songs", Top.of(5, new SongComparator()).withoutDefaults())
+        .apply(
+            "Top songs",
+            new RankSongs(5, Duration.standardSeconds(10), RANKING_SHARDS, SONGS_PER_SHARD))
         // [END bigtable_cdc_tut_countrank]
         // [START bigtable_cdc_tut_output]
         .apply("Print", ParDo.of(new PrintFn()))
@@ -131,11 +153,265 @@ public class SongRank {
   }
   // [END bigtable_cdc_tut_songname]
 
+  /**
+   * Ranks the songs listened to the most in each update interval. Listens are counted in a fixed
+   * number of shards, each keyed by a hash of the song so a song is always counted in the same
+   * shard. A shard keeps the interval's counts in Beam state and, when its timer fires at the end
+   * of the interval, emits only its own top songs for that interval and starts over. Those partial
+   * rankings are then merged into the overall top songs.
+   *
+   * <p>Each shard counts at most a fixed number of songs per interval with the space-saving
+   * algorithm, so memory stays bounded however many songs there are. Counts are exact while a
+   * shard sees no more songs than that in an interval; past it, the least counted song is replaced
+   * by each new one and counts become upper bounds, but any song with more than its share of the
+   * shard's listens is still counted.
+   */
+  static class RankSongs
+      extends PTransform<PCollection<String>, PCollection<List<KV<String, Long>>>> {
+
+    private final int count;
+    private final Duration updateInterval;
+    private final int shards;
+    private final int songsPerShard;
+
+    RankSongs(int count, Duration updateInterval, int shards, int songsPerShard) {
+      this.count = count;
+      this.updateInterval = updateInterval;
+      this.shards = shards;
+      this.songsPerShard = songsPerShard;
+    }
+
+    @Override
+    public PCollection<List<KV<String, Long>>> expand(PCollection<String> songs) {
+      return songs
+          .apply("Count listens per bundle", ParDo.of(new CountPerBundleFn(shards)))
+          .apply(
+              "Count listens per interval",
+              ParDo.of(new IntervalCountFn(updateInterval, count, songsPerShard)))
+          .apply(
+              "Collect the shards' top songs",
+              Window.<KV<String, Long>>into(new GlobalWindows())
+                  .triggering(
+                      Repeatedly.forever(
+                          AfterProcessingTime
+                              .pastFirstElementInPane()
+                              .plusDelayOf(Duration.standardSeconds(1))
+                      ))
+                  .discardingFiredPanes())
+          .apply("Merge top songs", Top.of(count, new SongComparator()).withoutDefaults());
+    }
+  }
+
+  /**
+   * Counts the listens of each song within a bundle and keys the counts by shard, so shards are
+   * updated once per song and bundle instead of once per listen.
+   */
+  static class CountPerBundleFn extends DoFn<String, KV<Integer, KV<String, Long>>> {
+
+    private final int shards;
+    private transient Map<String, Long> counts;
+    private transient Instant firstTimestamp;
+
+    CountPerBundleFn(int shards) {
+      this.shards = shards;
+    }
+
+    @StartBundle
+    public void startBundle() {
+      counts = new HashMap<>();
+      firstTimestamp = null;
+    }
+
+    @ProcessElement
+    public void processElement(@Element String song, @Timestamp Instant timestamp) {
+      counts.merge(song, 1L, Long::sum);
+      if (firstTimestamp == null || timestamp.isBefore(firstTimestamp)) {
+        firstTimestamp = timestamp;
+      }
+    }
+
+    @FinishBundle
+    public void finishBundle(FinishBundleContext c) {
+      // Listens are in the global window, and the earliest timestamp holds back no later data.
+      counts.forEach(
+          (song, listens) ->
+              c.output(
+                  KV.of(Math.floorMod(song.hashCode(), shards), KV.of(song, listens)),
+                  firstTimestamp,
+                  GlobalWindow.INSTANCE));
+    }
+  }
+
+  /**
+   * Keeps a shard's counts for the current update interval, and emits the shard's top songs with
+   * their listens in that interval once the interval ends. Like the pane it replaces, an interval
+   * starts with the first listen after the previous one ended.
+   */
+  static class IntervalCountFn extends DoFn<KV<Integer, KV<String, Long>>, KV<String, Long>> {
+
+    private final Duration updateInterval;
+
+    @StateId("listens")
+    private final StateSpec<CombiningState<KV<String, Long>, SpaceSaving, List<KV<String, Long>>>>
+        listensSpec;
+
+    @StateId("flushScheduled")
+    private final StateSpec<ValueState<Boolean>> flushScheduledSpec =
+        StateSpecs.value(BooleanCoder.of());
+
+    @TimerId("flush")
+    private final TimerSpec flushSpec = TimerSpecs.timer(TimeDomain.PROCESSING_TIME);
+
+    IntervalCountFn(Duration updateInterval, int count, int songsPerShard) {
+      this.updateInterval = updateInterval;
+      this.listensSpec =
+          StateSpecs.combining(new SpaceSavingCoder(), new TopSongsFn(count, songsPerShard));
+    }
+
+    @ProcessElement
+    public void processElement(
+        @Element KV<Integer, KV<String, Long>> shardListens,
+        @StateId("listens")
+            CombiningState<KV<String, Long>, SpaceSaving, List<KV<String, Long>>> listens,
+        @StateId("flushScheduled") ValueState<Boolean> flushScheduled,
+        @TimerId("flush") Timer flush) {
+      listens.add(shardListens.getValue());
+      if (flushScheduled.read() == null) {
+        flush.offset(updateInterval).setRelative();
+        flushScheduled.write(true);
+      }
+    }
+
+    @OnTimer("flush")
+    public void onFlush(
+        @StateId("listens")
+            CombiningState<KV<String, Long>, SpaceSaving, List<KV<String, Long>>> listens,
+        @StateId("flushScheduled") ValueState<Boolean> flushScheduled,
+        OutputReceiver<KV<String, Long>> out) {
+      for (KV<String, Long> song : listens.read()) {
+        out.output(song);
+      }
+      listens.clear();
+      flushScheduled.clear();
+    }
+  }
+
+  /** Counts listens per song in a space-saving sketch and outputs the songs counted the most. */
+  static class TopSongsFn extends CombineFn<KV<String, Long>, SpaceSaving, List<KV<String, Long>>> {
+
+    private final int count;
+    private final int capacity;
+
+    TopSongsFn(int count, int capacity) {
+      this.count = count;
+      this.capacity = capacity;
+    }
+
+    @Override
+    public SpaceSaving createAccumulator() {
+      return new SpaceSaving(capacity);
+    }
+
+    @Override
+    public SpaceSaving addInput(SpaceSaving sketch, KV<String, Long> listens) {
+      sketch.add(listens.getKey(), listens.getValue());
+      return sketch;
+    }
+
+    @Override
+    public SpaceSaving mergeAccumulators(Iterable<SpaceSaving> sketches) {
+      SpaceSaving merged = createAccumulator();
+      for (SpaceSaving sketch : sketches) {
+        for (KV<String, Long> song : sketch.top(capacity)) {
+          merged.add(song.getKey(), song.getValue());
+        }
+      }
+      return merged;
+    }
+
+    @Override
+    public List<KV<String, Long>> extractOutput(SpaceSaving sketch) {
+      return sketch.top(count);
+    }
+  }
+
+  /**
+   * A space-saving sketch: counts for at most a fixed number of songs. Once it is full, a new song
+   * takes the place of the song with the lowest count and starts from that count, so no count is
+   * ever underestimated.
+   */
+  static class SpaceSaving {
+
+    private final int capacity;
+    private final Map<String, KV<String, Long>> counts = new HashMap<>();
+    // The same counts, lowest first, to find the one to replace.
+    private final TreeSet<KV<String, Long>> byCount = new TreeSet<>(new SongComparator());
+
+    SpaceSaving(int capacity) {
+      this.capacity = capacity;
+    }
+
+    void add(String song, long listens) {
+      KV<String, Long> counted = counts.get(song);
+      long previous = 0;
+      if (counted != null) {
+        byCount.remove(counted);
+        previous = counted.getValue();
+      } else if (counts.size() >= capacity) {
+        KV<String, Long> lowest = byCount.pollFirst();
+        counts.remove(lowest.getKey());
+        previous = lowest.getValue();
+      }
+      KV<String, Long> updated = KV.of(song, previous + listens);
+      counts.put(song, updated);
+      byCount.add(updated);
+    }
+
+    /** Returns up to {@code count} songs with the highest counts, highest first. */
+    List<KV<String, Long>> top(int count) {
+      List<KV<String, Long>> top = new ArrayList<>(Math.min(count, counts.size()));
+      Iterator<KV<String, Long>> highestFirst = byCount.descendingIterator();
+      while (top.size() < count && highestFirst.hasNext()) {
+        top.add(highestFirst.next());
+      }
+      return top;
+    }
+  }
+
+  static class SpaceSavingCoder extends CustomCoder<SpaceSaving> {
+
+    private static final Coder<String> SONG_CODER = StringUtf8Coder.of();
+    private static final Coder<Long> COUNT_CODER = VarLongCoder.of();
+    private static final Coder<Integer> SIZE_CODER = VarIntCoder.of();
+
+    @Override
+    public void encode(SpaceSaving sketch, OutputStream out) throws IOException {
+      SIZE_CODER.encode(sketch.capacity, out);
+      SIZE_CODER.encode(sketch.counts.size(), out);
+      for (KV<String, Long> song : sketch.byCount) {
+        SONG_CODER.encode(song.getKey(), out);
+        COUNT_CODER.encode(song.getValue(), out);
+      }
+    }
+
+    @Override
+    public SpaceSaving decode(InputStream in) throws IOException {
+      SpaceSaving sketch = new SpaceSaving(SIZE_CODER.decode(in));
+      int size = SIZE_CODER.decode(in);
+      for (int i = 0; i < size; i++) {
+        sketch.add(SONG_CODER.decode(in), COUNT_CODER.decode(in));
+      }
+      return sketch;
+    }
+  }
+
   private static class SongComparator implements Comparator<KV<String, Long>>, Serializable {
 
     @Override
     public int compare(KV<String, Long> o1, KV<String, Long> o2) {
-      return (int) (o1.getValue() - o2.getValue());
+      int byListens = Long.compare(o1.getValue(), o2.getValue());
+      // Breaks ties by name so the same songs are kept whichever order they arrive in.
+      return byListens != 0 ? byListens : o2.getKey().compareTo(o1.getKey());
     }
   }
 
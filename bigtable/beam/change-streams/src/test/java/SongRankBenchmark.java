@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Function;
+import org.apache.beam.runners.direct.DirectOptions;
+import org.apache.beam.sdk.Pipeline;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.testing.TestStream;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.Top;
+import org.apache.beam.sdk.transforms.windowing.AfterProcessingTime;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindows;
+import org.apache.beam.sdk.transforms.windowing.Repeatedly;
+import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollection;
+import org.joda.time.Duration;
+
+/*
+Compares the throughput of SongRank.RankSongs with counting every pane from scratch using
+Count.perElement and Top.of, which is what SongRank used to do. Both rank the same TestStream of
+listens, skewed towards a few popular songs and released in batches 10 seconds of processing time
+apart, on the direct runner, and print how many rankings they output and the last one.
+
+Pass other pipeline options, like --runner, to compare on another runner.
+
+mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=SongRankBenchmark \
+    -Dexec.args="--listens=100000 --songs=20000"
+*/
+public class SongRankBenchmark {
+
+  private static final Duration UPDATE_INTERVAL = Duration.standardSeconds(10);
+
+  public static void main(String[] args) {
+    int listens = 20_000;
+    int songs = 5_000;
+    int batches = 10;
+    List<String> pipelineArgs = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--listens=")) {
+        listens = Integer.parseInt(arg.substring("--listens=".length()));
+      } else if (arg.startsWith("--songs=")) {
+        songs = Integer.parseInt(arg.substring("--songs=".length()));
+      } else if (arg.startsWith("--batches=")) {
+        batches = Integer.parseInt(arg.substring("--batches=".length()));
+      } else {
+        pipelineArgs.add(arg);
+      }
+    }
+    TestStream<String> stream = listens(listens, songs, batches);
+
+    // Run each once first so the comparison doesn't include class loading and JIT warm up.
+    for (int round = 0; round < 2; round++) {
+      run("Count.perElement + Top.of", pipelineArgs, stream, listens, SongRankBenchmark::perPane);
+      run("RankSongs", pipelineArgs, stream, listens,
+          input ->
+              input.apply(
+                  new SongRank.RankSongs(
+                      5, UPDATE_INTERVAL, SongRank.RANKING_SHARDS, SongRank.SONGS_PER_SHARD)));
+    }
+  }
+
+  private static PCollection<List<KV<String, Long>>> perPane(PCollection<String> listens) {
+    return listens
+        .apply(
+            Window.<String>into(new GlobalWindows())
+                .triggering(
+                    Repeatedly.forever(
+                        AfterProcessingTime.pastFirstElementInPane().plusDelayOf(UPDATE_INTERVAL)))
+                .discardingFiredPanes())
+        .apply(Count.perElement())
+        .apply(Top.of(5, new KV.OrderByValue<String, Long>()).withoutDefaults());
+  }
+
+  private static void run(
+      String name,
+      List<String> pipelineArgs,
+      TestStream<String> stream,
+      int listens,
+      Function<PCollection<String>, PCollection<List<KV<String, Long>>>> rank) {
+    DirectOptions options =
+        PipelineOptionsFactory.fromArgs(pipelineArgs.toArray(new String[0]))
+            .as(DirectOptions.class);
+    // Checking immutability and encodability slows down both pipelines alike.
+    options.setEnforceImmutability(false);
+    options.setEnforceEncodability(false);
+    Pipeline p = Pipeline.create(options);
+    RANKINGS.clear();
+    rank.apply(p.apply(stream)).apply(ParDo.of(new CollectFn()));
+
+    long start = System.nanoTime();
+    p.run().waitUntilFinish();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-26s %8.2f s %12.0f listens/s %4d rankings, last %s%n",
+        name, seconds, listens / seconds, RANKINGS.size(), RANKINGS.peekLast());
+  }
+
+  private static TestStream<String> listens(int listens, int songs, int batches) {
+    Random random = new Random(42);
+    TestStream.Builder<String> stream = TestStream.create(StringUtf8Coder.of());
+    int perBatch = listens / batches;
+    for (int batch = 0; batch < batches; batch++) {
+      String[] batchListens = new String[perBatch];
+      for (int i = 0; i < perBatch; i++) {
+        // Most listens go to a small share of the songs.
+        int song = (int) (songs * Math.pow(random.nextDouble(), 4));
+        batchListens[i] = "song " + song;
+      }
+      stream =
+          stream
+              .addElements(batchListens[0], Arrays.copyOfRange(batchListens, 1, perBatch))
+              .advanceProcessingTime(UPDATE_INTERVAL.plus(Duration.standardSeconds(1)));
+    }
+    return stream.advanceWatermarkToInfinity();
+  }
+
+  // The rankings output by the last run, in the order they were output.
+  private static final ConcurrentLinkedDeque<List<KV<String, Long>>> RANKINGS =
+      new ConcurrentLinkedDeque<>();
+
+  private static class CollectFn extends DoFn<List<KV<String, Long>>, Void> {
+
+    @ProcessElement
+    public void processElement(@Element List<KV<String, Long>> ranking) {
+      RANKINGS.add(ranking);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Arrays;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.values.KV;
+import org.junit.Test;
+
+public class SpaceSavingTest {
+
+  @Test
+  public void testCountsAreExactWithinCapacity() {
+    SongRank.SpaceSaving sketch = new SongRank.SpaceSaving(3);
+    sketch.add("a", 2);
+    sketch.add("b", 5);
+    sketch.add("a", 1);
+    sketch.add("c", 3);
+
+    assertThat(sketch.top(3)).containsExactly(KV.of("b", 5L), KV.of("a", 3L), KV.of("c", 3L))
+        .inOrder();
+    assertThat(sketch.top(1)).containsExactly(KV.of("b", 5L));
+  }
+
+  @Test
+  public void testNewSongReplacesTheLowestCount() {
+    SongRank.SpaceSaving sketch = new SongRank.SpaceSaving(2);
+    sketch.add("a", 10);
+    sketch.add("b", 2);
+    sketch.add("c", 1);
+
+    // c takes b's place and b's count, so its count is an upper bound.
+    assertThat(sketch.top(5)).containsExactly(KV.of("a", 10L), KV.of("c", 3L)).inOrder();
+  }
+
+  @Test
+  public void testFrequentSongIsKeptAmongManyRareOnes() {
+    SongRank.SpaceSaving sketch = new SongRank.SpaceSaving(10);
+    for (int i = 0; i < 1000; i++) {
+      sketch.add("rare " + i, 1);
+      if (i % 5 == 0) {
+        sketch.add("hit", 1);
+      }
+    }
+
+    KV<String, Long> top = sketch.top(1).get(0);
+    assertThat(top.getKey()).isEqualTo("hit");
+    assertThat(top.getValue()).isAtLeast(200L);
+  }
+
+  @Test
+  public void testPartialCountsAreMerged() {
+    SongRank.TopSongsFn topSongs = new SongRank.TopSongsFn(2, 10);
+    SongRank.SpaceSaving first = topSongs.createAccumulator();
+    topSongs.addInput(first, KV.of("a", 4L));
+    topSongs.addInput(first, KV.of("b", 1L));
+    SongRank.SpaceSaving second = topSongs.createAccumulator();
+    topSongs.addInput(second, KV.of("b", 5L));
+    topSongs.addInput(second, KV.of("c", 2L));
+
+    SongRank.SpaceSaving merged = topSongs.mergeAccumulators(Arrays.asList(first, second));
+
+    assertThat(topSongs.extractOutput(merged))
+        .containsExactly(KV.of("b", 6L), KV.of("a", 4L))
+        .inOrder();
+  }
+
+  @Test
+  public void testCoderKeepsCountsAndCapacity() throws Exception {
+    SongRank.SpaceSaving sketch = new SongRank.SpaceSaving(2);
+    sketch.add("a", 3);
+    sketch.add("b", 1);
+
+    SongRank.SpaceSaving decoded =
+        CoderUtils.clone(new SongRank.SpaceSavingCoder(), sketch);
+    decoded.add("c", 1);
+
+    assertThat(decoded.top(5)).containsExactly(KV.of("a", 3L), KV.of("c", 2L)).inOrder();
+  }
+}
@@ -20,6 +20,7 @@ import com.google.cloud.bigtable.beam.AbstractCloudBigtableTableDoFn;
 import com.google.cloud.bigtable.beam.CloudBigtableConfiguration;
 import com.google.cloud.bigtable.beam.CloudBigtableTableConfiguration;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.channels.Channels;
@@ -29,7 +30,11 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import org.apache.beam.runners.dataflow.options.DataflowPipelineOptions;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.io.FileSystems;
@@ -39,16 +44,16 @@ import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
-import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
-import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
 import org.apache.hadoop.hbase.filter.MultiRowRangeFilter.RowRange;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.joda.time.Duration;
@@ -81,16 +86,41 @@ public class ReadData {
 
   public static class ReadFromTableFn extends AbstractCloudBigtableTableDoFn<Long, Void> {
 
-    List<List<Float>> imageData = new ArrayList<>();
+    // The weight of every pixel, stored row by row.
+    float[] imageData;
+    int imageRows;
+    int imageColumns;
     String[] keys;
+    final int readParallelism;
+
+    private transient ExecutorService executor;
+    private transient Table table;
 
     public ReadFromTableFn(CloudBigtableConfiguration config, ReadDataOptions readDataOptions) {
       super(config);
       keys = new String[Math.toIntExact(getNumRows(readDataOptions))];
+      readParallelism = readDataOptions.getReadParallelism();
       downloadImageData(readDataOptions.getFilePath());
       generateRowkeys(getNumRows(readDataOptions));
     }
 
+    @Setup
+    public void setup() {
+      executor = Executors.newFixedThreadPool(readParallelism);
+    }
+
+    @Override
+    public void cleanupConnection() throws IOException {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      if (table != null) {
+        table.close();
+        table = null;
+      }
+      super.cleanupConnection();
+    }
+
     @ProcessElement
     public void processElement(PipelineOptions po) {
       // Determine which column will be drawn based on runtime of job.
@@ -100,6 +130,8 @@ public class ReadData {
 
       ReadDataOptions options = po.as(ReadDataOptions.class);
       long count = 0;
+      long bytes = 0;
+      long startNanos = System.nanoTime();
 
       List<RowRange> ranges = getRangesForTimeIndex(timeOffsetIndex, getNumRows(options));
       if (ranges.size() == 0) {
@@ -107,34 +139,57 @@ public class ReadData {
       }
 
       try {
-        // Scan with a filter that will only return the first key from each row. This filter is used
-        // to more efficiently perform row count operations.
-        Filter rangeFilters = new MultiRowRangeFilter(ranges);
-        FilterList firstKeyFilterWithRanges = new FilterList(
-            rangeFilters,
-            new FirstKeyOnlyFilter(),
-            new KeyOnlyFilter());
-        Scan scan =
-            new Scan()
-                .addFamily(Bytes.toBytes(COLUMN_FAMILY))
-                .setFilter(firstKeyFilterWithRanges);
-
-        Table table = getConnection().getTable(TableName.valueOf(options.getBigtableTableId()));
-        ResultScanner imageData = table.getScanner(scan);
-
-        // Iterate over stream of rows to count them.
-        for (Result row : imageData) {
-          count++;
+        if (table == null) {
+          table = getConnection().getTable(TableName.valueOf(options.getBigtableTableId()));
+        }
+        // Scan every range on its own, in parallel, and add up each range as soon as it is done.
+        CompletionService<long[]> rangeScans = new ExecutorCompletionService<>(executor);
+        for (RowRange range : ranges) {
+          rangeScans.submit(() -> scanRange(range));
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+          long[] rangeCount = rangeScans.take().get();
+          count += rangeCount[0];
+          bytes += rangeCount[1];
         }
       } catch (Exception e) {
         System.out.println("Error reading.");
         e.printStackTrace();
       }
-      System.out.printf("got %d rows\n", count);
+      double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+      System.out.printf(
+          "got %d rows (%d bytes) from %d ranges, %.0f rows/s\n",
+          count, bytes, ranges.size(), count / seconds);
     }
 
     /**
-     * Download the image data as a grid of weights and store them in a 2D array.
+     * Counts the rows of one range, returning the number of rows and the bytes read.
+     */
+    private long[] scanRange(RowRange range) throws IOException {
+      // Scan with a filter that will only return the first key from each row. This filter is used
+      // to more efficiently perform row count operations.
+      Scan scan =
+          new Scan()
+              .withStartRow(range.getStartRow(), range.isStartRowInclusive())
+              .withStopRow(range.getStopRow(), range.isStopRowInclusive())
+              .addFamily(Bytes.toBytes(COLUMN_FAMILY))
+              .setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+      long count = 0;
+      long bytes = 0;
+      try (ResultScanner scanner = table.getScanner(scan)) {
+        // Iterate over stream of rows to count them.
+        for (Result row : scanner) {
+          count++;
+          for (Cell cell : row.rawCells()) {
+            bytes += CellUtil.estimatedSerializedSizeOf(cell);
+          }
+        }
+      }
+      return new long[] {count, bytes};
+    }
+
+    /**
+     * Download the image data as a grid of weights and store them in a flat array.
      */
     private void downloadImageData(String artUrl) {
       try {
@@ -144,12 +199,19 @@ public class ReadData {
         InputStream is = Channels.newInputStream(chan);
         BufferedReader br = new BufferedReader(new InputStreamReader(is));
 
+        List<String[]> lines = new ArrayList<>();
         String line;
         while ((line = br.readLine()) != null) {
-          imageData.add(
-              Arrays.stream(line.split(","))
-                  .map(Float::valueOf)
-                  .collect(Collectors.toList()));
+          lines.add(line.split(","));
+        }
+        imageRows = lines.size();
+        imageColumns = lines.get(0).length;
+        imageData = new float[imageRows * imageColumns];
+        for (int i = 0; i < imageRows; i++) {
+          String[] pixels = lines.get(i);
+          for (int j = 0; j < imageColumns; j++) {
+            imageData[i * imageColumns + j] = Float.parseFloat(pixels[j]);
+          }
         }
       } catch (Exception e) {
         e.printStackTrace();
@@ -182,14 +244,13 @@ public class ReadData {
     private List<RowRange> getRangesForTimeIndex(@Element Integer timeOffsetIndex, long maxInput) {
       List<RowRange> ranges = new ArrayList<>();
 
-      int numRows = imageData.size();
-      int numCols = imageData.get(0).size();
-      int rowHeight = (int) (maxInput / numRows);
-      int columnIndex = timeOffsetIndex % numCols;
+      int rowHeight = (int) (maxInput / imageRows);
+      int columnIndex = timeOffsetIndex % imageColumns;
+      ThreadLocalRandom random = ThreadLocalRandom.current();
 
-      for (int i = 0; i < imageData.size(); i++) {
+      for (int i = 0; i < imageRows; i++) {
         // To generate shading, only scan each pixel with a probability based on it's weight.
-        if (Math.random() <= imageData.get(i).get(columnIndex)) {
+        if (random.nextDouble() <= imageData[i * imageColumns + columnIndex]) {
           // Get the indexes of the rowkeys for the interval.
           long startKeyI = maxInput - (i + 1) * rowHeight;
           long endKeyI = startKeyI + rowHeight;
@@ -245,6 +306,12 @@ public class ReadData {
     String getFilePath();
 
     void setFilePath(String filePath);
+
+    @Description("The number of row ranges each worker scans in parallel.")
+    @Default.Integer(8)
+    int getReadParallelism();
+
+    void setReadParallelism(int readParallelism);
   }
 
   public interface BigtableOptions extends DataflowPipelineOptions {
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import bigtable.WorkloadSpec.KeySpec;
+import java.util.Random;
+
+/**
+ * Picks the index of the row an operation goes to, between 0 and the number of keys. Index 0 is
+ * the most popular key for the skewed distributions; with scrambling, indexes are hashed over the
+ * key space so the popular keys don't all land on the same tablet.
+ */
+abstract class KeyDistribution {
+
+  final long count;
+  private final boolean scramble;
+
+  KeyDistribution(long count, boolean scramble) {
+    this.count = count;
+    this.scramble = scramble;
+  }
+
+  static KeyDistribution of(KeySpec spec) {
+    switch (spec.distribution) {
+      case "uniform":
+        return new Uniform(spec.count);
+      case "zipfian":
+        return new Zipfian(spec.count, spec.zipfianConstant, spec.scramble);
+      case "hotspot":
+        return new Hotspot(
+            spec.count, spec.hotKeyFraction, spec.hotOperationFraction, spec.scramble);
+      default:
+        throw new IllegalArgumentException("Unknown key distribution: " + spec.distribution);
+    }
+  }
+
+  /** Returns the index of the next key. */
+  long next(Random random) {
+    long rank = nextRank(random);
+    return scramble ? Math.floorMod(fnvHash(rank), count) : rank;
+  }
+
+  abstract long nextRank(Random random);
+
+  private static long fnvHash(long value) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < Long.BYTES; i++) {
+      hash ^= value & 0xFF;
+      hash *= 0x100000001B3L;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+  private static long uniform(Random random, long bound) {
+    // Random.nextLong(bound) isn't available in Java 8; a double has enough precision here.
+    return Math.min((long) (random.nextDouble() * bound), bound - 1);
+  }
+
+  static class Uniform extends KeyDistribution {
+
+    Uniform(long count) {
+      super(count, false);
+    }
+
+    @Override
+    long nextRank(Random random) {
+      return uniform(random, count);
+    }
+  }
+
+  /**
+   * Zipfian distribution following "Quickly Generating Billion-Record Synthetic Databases" by Gray
+   * et al., as used by YCSB.
+   */
+  static class Zipfian extends KeyDistribution {
+
+    // Above this many keys the tail of the zeta sum is approximated instead of added up.
+    private static final long EXACT_ZETA_TERMS = 10_000_000;
+
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    Zipfian(long count, double theta, boolean scramble) {
+      super(count, scramble);
+      if (theta <= 0 || theta >= 1) {
+        throw new IllegalArgumentException("zipfianConstant must be between 0 and 1: " + theta);
+      }
+      this.theta = theta;
+      this.zetaN = zeta(count, theta);
+      this.alpha = 1 / (1 - theta);
+      this.eta = (1 - Math.pow(2.0 / count, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    @Override
+    long nextRank(Random random) {
+      double u = random.nextDouble();
+      double uz = u * zetaN;
+      if (uz < 1) {
+        return 0;
+      }
+      if (uz < 1 + Math.pow(0.5, theta)) {
+        return Math.min(1, count - 1);
+      }
+      return Math.min((long) (count * Math.pow(eta * u - eta + 1, alpha)), count - 1);
+    }
+
+    static double zeta(long n, double theta) {
+      long exactTerms = Math.min(n, EXACT_ZETA_TERMS);
+      double sum = 0;
+      for (long i = 1; i <= exactTerms; i++) {
+        sum += 1 / Math.pow(i, theta);
+      }
+      if (n > exactTerms) {
+        // Euler-Maclaurin approximation of the remaining terms.
+        double m = exactTerms;
+        sum += (Math.pow(n, 1 - theta) - Math.pow(m, 1 - theta)) / (1 - theta)
+            + (Math.pow(n, -theta) - Math.pow(m, -theta)) / 2;
+      }
+      return sum;
+    }
+  }
+
+  /** A fraction of the operations go to a small set of hot keys, the rest to all other keys. */
+  static class Hotspot extends KeyDistribution {
+
+    private final long hotKeys;
+    private final double hotOperationFraction;
+
+    Hotspot(long count, double hotKeyFraction, double hotOperationFraction, boolean scramble) {
+      super(count, scramble);
+      if (hotKeyFraction <= 0 || hotKeyFraction > 1) {
+        throw new IllegalArgumentException("hotKeyFraction must be in (0, 1]: " + hotKeyFraction);
+      }
+      this.hotKeys = Math.max(1, (long) (count * hotKeyFraction));
+      this.hotOperationFraction = hotOperationFraction;
+    }
+
+    @Override
+    long nextRank(Random random) {
+      if (hotKeys == count || random.nextDouble() < hotOperationFraction) {
+        return uniform(random, hotKeys);
+      }
+      return hotKeys + uniform(random, count - hotKeys);
+    }
+  }
+}
@@ -16,12 +16,16 @@
 
 package bigtable;
 
+import bigtable.WorkloadOperations.OperationType;
 import com.google.api.services.dataflow.model.Job;
 import com.google.cloud.bigtable.beam.AbstractCloudBigtableTableDoFn;
 import com.google.cloud.bigtable.beam.CloudBigtableConfiguration;
 import com.google.cloud.bigtable.beam.CloudBigtableTableConfiguration;
+import com.google.cloud.bigtable.hbase.BigtableOptionsFactory;
 import java.io.IOException;
+import java.util.Random;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import org.apache.beam.runners.dataflow.DataflowClient;
 import org.apache.beam.runners.dataflow.DataflowPipelineJob;
@@ -48,19 +52,41 @@ public class WorkloadGenerator {
   }
 
   static PipelineResult generateWorkload(BigtableWorkloadOptions options) {
-    CloudBigtableTableConfiguration bigtableTableConfig =
+    CloudBigtableTableConfiguration.Builder configBuilder =
         new CloudBigtableTableConfiguration.Builder()
             .withProjectId(options.getProject())
             .withInstanceId(options.getBigtableInstanceId())
-            .withTableId(options.getBigtableTableId())
-            .build();
+            .withTableId(options.getBigtableTableId());
+    String emulatorHost = System.getenv("BIGTABLE_EMULATOR_HOST");
+    if (emulatorHost != null) {
+      configBuilder.withConfiguration(
+          BigtableOptionsFactory.BIGTABLE_EMULATOR_HOST_KEY, emulatorHost);
+    }
+    CloudBigtableTableConfiguration bigtableTableConfig = configBuilder.build();
 
     Pipeline p = Pipeline.create(options);
 
-    // Initiates a new pipeline every second
-    p.apply(GenerateSequence.from(0).withRate(options.getWorkloadRate(), new Duration(1000)))
-        .apply(ParDo.of(new ReadFromTableFn(bigtableTableConfig)));
-    System.out.println("Beginning to generate read workload.");
+    long durationMinutes = options.getWorkloadDurationMinutes();
+    if (options.getWorkloadSpec() == null) {
+      // Initiates a new pipeline every second
+      p.apply(GenerateSequence.from(0).withRate(options.getWorkloadRate(), new Duration(1000)))
+          .apply(ParDo.of(new ReadFromTableFn(bigtableTableConfig)));
+      System.out.println("Beginning to generate read workload.");
+    } else {
+      WorkloadSpec spec;
+      try {
+        spec = WorkloadSpec.load(options.getWorkloadSpec());
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Unable to read " + options.getWorkloadSpec(), e);
+      }
+      // Each element is one operation, so the sequence rate is the target QPS.
+      p.apply(
+              GenerateSequence.from(0)
+                  .withRate(Math.max(1, Math.round(spec.targetQps)), new Duration(1000)))
+          .apply(ParDo.of(new RunWorkloadFn(bigtableTableConfig, spec)));
+      durationMinutes = TimeUnit.SECONDS.toMinutes(spec.durationSeconds + 59);
+      System.out.println("Beginning to generate workload from " + options.getWorkloadSpec());
+    }
     PipelineResult pipelineResult = p.run();
 
     // Cancel the workload after the scheduled time.
@@ -73,7 +99,7 @@ public class WorkloadGenerator {
         e.printStackTrace();
         System.out.println("Unable to cancel job.");
       }
-    }, options.getWorkloadDurationMinutes(), TimeUnit.MINUTES);
+    }, durationMinutes, TimeUnit.MINUTES);
 
     return pipelineResult;
   }
@@ -104,6 +130,63 @@ public class WorkloadGenerator {
     }
   }
 
+  /**
+   * Executes one operation of a {@link WorkloadSpec} per element, recording its latency. Each
+   * worker prints a latency report every reportIntervalSeconds, and a summary when it shuts down.
+   */
+  public static class RunWorkloadFn extends AbstractCloudBigtableTableDoFn<Long, Void> {
+
+    private final WorkloadSpec spec;
+    private final String tableId;
+    private transient WorkloadOperations operations;
+    private transient WorkloadStats stats;
+    private transient Table table;
+    private transient long nextReportNanos;
+
+    public RunWorkloadFn(CloudBigtableTableConfiguration config, WorkloadSpec spec) {
+      super(config);
+      this.spec = spec;
+      this.tableId = config.getTableId();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+      operations = new WorkloadOperations(spec);
+      stats = new WorkloadStats();
+      table = getConnection().getTable(TableName.valueOf(tableId));
+      nextReportNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(spec.reportIntervalSeconds);
+    }
+
+    @ProcessElement
+    public void processElement() {
+      Random random = ThreadLocalRandom.current();
+      OperationType type = operations.nextType(random);
+      long start = System.nanoTime();
+      try {
+        operations.execute(table, type, random);
+        stats.recordLatency(type, System.nanoTime() - start);
+      } catch (IOException | RuntimeException e) {
+        stats.recordError(type);
+        DOFN_LOG.warn("{} failed", type, e);
+      }
+      if (start >= nextReportNanos) {
+        nextReportNanos = start + TimeUnit.SECONDS.toNanos(spec.reportIntervalSeconds);
+        DOFN_LOG.info("Workload latencies:\n{}", stats.intervalReport());
+      }
+    }
+
+    @Override
+    public void cleanupConnection() throws IOException {
+      if (stats != null) {
+        DOFN_LOG.info("Workload summary:\n{}", stats.summary());
+      }
+      if (table != null) {
+        table.close();
+      }
+      super.cleanupConnection();
+    }
+  }
+
   public interface BigtableWorkloadOptions extends DataflowPipelineOptions {
 
     @Description("The Bigtable instance ID")
@@ -129,5 +212,12 @@ public class WorkloadGenerator {
     Integer getWorkloadDurationMinutes();
 
     void setWorkloadDurationMinutes(Integer workloadDurationMinutes);
+
+    @Description(
+        "A YAML or JSON workload spec with the operation mix, key and value distributions and "
+            + "target QPS. When set, it replaces workloadRate and workloadDurationMinutes.")
+    String getWorkloadSpec();
+
+    void setWorkloadSpec(String workloadSpec);
   }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/** Picks and executes the operations of a workload against a table. Safe to share by threads. */
+class WorkloadOperations {
+
+  enum OperationType {
+    READ,
+    WRITE,
+    SCAN
+  }
+
+  private final WorkloadSpec spec;
+  private final KeyDistribution keys;
+  private final String keyFormat;
+  private final double readThreshold;
+  private final double writeThreshold;
+  private final byte[] family;
+  private final byte[] qualifier;
+  // Values are cut from this buffer, so writing doesn't pay for generating random bytes.
+  private final byte[] valueSource;
+
+  WorkloadOperations(WorkloadSpec spec) {
+    this.spec = spec;
+    this.keys = KeyDistribution.of(spec.keys);
+    // Pad the key indexes so keys sort in the same order as their indexes.
+    this.keyFormat = spec.keys.prefix + "#%0" + String.valueOf(spec.keys.count - 1).length() + "d";
+    double total = spec.mix.read + spec.mix.write + spec.mix.scan;
+    this.readThreshold = spec.mix.read / total;
+    this.writeThreshold = (spec.mix.read + spec.mix.write) / total;
+    this.family = Bytes.toBytes(spec.columnFamily);
+    this.qualifier = Bytes.toBytes(spec.column);
+    int maxValueSize =
+        "uniform".equals(spec.values.distribution) ? spec.values.maxSize : spec.values.size;
+    this.valueSource = new byte[maxValueSize];
+    new Random().nextBytes(valueSource);
+  }
+
+  OperationType nextType(Random random) {
+    double r = random.nextDouble();
+    if (r < readThreshold) {
+      return OperationType.READ;
+    }
+    return r < writeThreshold ? OperationType.WRITE : OperationType.SCAN;
+  }
+
+  void execute(Table table, OperationType type, Random random) throws IOException {
+    byte[] rowKey = Bytes.toBytes(String.format(keyFormat, keys.next(random)));
+    switch (type) {
+      case READ:
+        table.get(new Get(rowKey).addFamily(family));
+        break;
+      case WRITE:
+        table.put(
+            new Put(rowKey)
+                .addColumn(family, qualifier, Arrays.copyOf(valueSource, nextValueSize(random))));
+        break;
+      case SCAN:
+        Scan scan =
+            new Scan()
+                .setStartRow(rowKey)
+                .addFamily(family)
+                .setCaching(spec.scanRows)
+                .setFilter(new PageFilter(spec.scanRows));
+        try (ResultScanner scanner = table.getScanner(scan)) {
+          int rows = 0;
+          while (rows < spec.scanRows && scanner.next() != null) {
+            rows++;
+          }
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown operation " + type);
+    }
+  }
+
+  private int nextValueSize(Random random) {
+    if ("uniform".equals(spec.values.distribution)) {
+      return spec.values.minSize + random.nextInt(spec.values.maxSize - spec.values.minSize + 1);
+    }
+    return spec.values.size;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import bigtable.WorkloadGenerator.BigtableWorkloadOptions;
+import bigtable.WorkloadOperations.OperationType;
+import com.google.cloud.bigtable.hbase.BigtableConfiguration;
+import com.google.cloud.bigtable.hbase.BigtableOptionsFactory;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Table;
+
+/**
+ * Runs a workload spec from a single machine, without Dataflow. Operations are issued open loop:
+ * each one has an intended start time derived from the target QPS, and its latency is measured
+ * from that time rather than from when a thread got to it, so a slow table shows up as higher
+ * latency instead of as a lower request rate.
+ *
+ * <p>Set BIGTABLE_EMULATOR_HOST to run against the Bigtable emulator.
+ */
+public class WorkloadRunner {
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    BigtableWorkloadOptions options =
+        PipelineOptionsFactory.fromArgs(args).withValidation().as(BigtableWorkloadOptions.class);
+    if (options.getWorkloadSpec() == null) {
+      throw new IllegalArgumentException("--workloadSpec is required");
+    }
+    WorkloadSpec spec = WorkloadSpec.load(options.getWorkloadSpec());
+
+    Configuration configuration =
+        BigtableConfiguration.configure(options.getProject(), options.getBigtableInstanceId());
+    String emulatorHost = System.getenv("BIGTABLE_EMULATOR_HOST");
+    if (emulatorHost != null) {
+      configuration.set(BigtableOptionsFactory.BIGTABLE_EMULATOR_HOST_KEY, emulatorHost);
+    }
+    try (Connection connection = BigtableConfiguration.connect(configuration);
+        Table table = connection.getTable(TableName.valueOf(options.getBigtableTableId()))) {
+      WorkloadStats stats = run(spec, table);
+      System.out.print(stats.summary());
+    }
+  }
+
+  static WorkloadStats run(WorkloadSpec spec, Table table) throws InterruptedException {
+    WorkloadOperations operations = new WorkloadOperations(spec);
+    WorkloadStats stats = new WorkloadStats();
+    Semaphore outstanding = new Semaphore(spec.maxOutstanding);
+    ExecutorService workers = Executors.newFixedThreadPool(spec.threads);
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    // A task that throws is never run again, so report the failure and carry on.
+    reporter.scheduleAtFixedRate(
+        () -> {
+          try {
+            System.out.print(stats.intervalReport());
+          } catch (RuntimeException e) {
+            System.err.println("Unable to report latencies: " + e);
+          }
+        },
+        spec.reportIntervalSeconds,
+        spec.reportIntervalSeconds,
+        TimeUnit.SECONDS);
+
+    System.out.printf(
+        "Running %s workload at %.0f QPS for %d seconds.%n",
+        spec.keys.distribution, spec.targetQps, spec.durationSeconds);
+    double nanosPerOperation = TimeUnit.SECONDS.toNanos(1) / spec.targetQps;
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(spec.durationSeconds);
+    for (long i = 0; ; i++) {
+      // Intended times are computed from the start rather than the previous operation, so falling
+      // behind is made up for instead of lowering the rate.
+      long intendedStart = start + (long) (i * nanosPerOperation);
+      if (intendedStart >= end) {
+        break;
+      }
+      long wait = intendedStart - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      if (!outstanding.tryAcquire()) {
+        stats.recordDropped();
+        continue;
+      }
+      workers.execute(
+          () -> {
+            Random random = ThreadLocalRandom.current();
+            OperationType type = operations.nextType(random);
+            try {
+              operations.execute(table, type, random);
+              stats.recordLatency(type, System.nanoTime() - intendedStart);
+            } catch (IOException | RuntimeException e) {
+              stats.recordError(type);
+            } finally {
+              outstanding.release();
+            }
+          });
+    }
+
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+    reporter.shutdownNow();
+    return stats;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import org.apache.beam.sdk.io.FileSystems;
+
+/**
+ * Describes a workload: the mix of operations, how keys and value sizes are distributed, and the
+ * rate to issue operations at. Specs are written in YAML or JSON, for example:
+ *
+ * <pre>
+ * targetQps: 5000
+ * durationSeconds: 600
+ * mix: {read: 0.8, write: 0.15, scan: 0.05}
+ * keys: {distribution: zipfian, count: 10000000, zipfianConstant: 0.99}
+ * values: {distribution: uniform, minSize: 100, maxSize: 10000}
+ * </pre>
+ */
+public class WorkloadSpec implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Operations issued per second, independent of how fast earlier operations complete. */
+  public double targetQps = 1000;
+  public long durationSeconds = 600;
+  /** Threads executing operations when running outside of Dataflow. */
+  public int threads = 64;
+  /** Operations that may be in flight at once before new ones are dropped instead of queued. */
+  public int maxOutstanding = 10000;
+  public long reportIntervalSeconds = 10;
+  public String columnFamily = "cf";
+  public String column = "c";
+  /** Rows returned by each scan, starting at a key picked like any other. */
+  public int scanRows = 100;
+  public OperationMix mix = new OperationMix();
+  public KeySpec keys = new KeySpec();
+  public ValueSpec values = new ValueSpec();
+
+  /** The relative weight of each operation type. */
+  public static class OperationMix implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public double read = 1;
+    public double write = 0;
+    public double scan = 0;
+  }
+
+  /** Which rows operations go to. */
+  public static class KeySpec implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** One of uniform, zipfian or hotspot. */
+    public String distribution = "uniform";
+    /** The number of distinct row keys. */
+    public long count = 1_000_000;
+    public String prefix = "key";
+    /** The skew of the zipfian distribution, between 0 and 1 exclusive. */
+    public double zipfianConstant = 0.99;
+    /** For hotspot, the fraction of keys that are hot. */
+    public double hotKeyFraction = 0.01;
+    /** For hotspot, the fraction of operations that go to the hot keys. */
+    public double hotOperationFraction = 0.9;
+    /**
+     * Whether to spread the popular keys over the whole key space. When false, the most popular
+     * keys are adjacent, so they land on the same tablet.
+     */
+    public boolean scramble = true;
+  }
+
+  /** How large written values are, in bytes. */
+  public static class ValueSpec implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** One of constant or uniform. */
+    public String distribution = "constant";
+    public int size = 1024;
+    public int minSize = 100;
+    public int maxSize = 10000;
+  }
+
+  /** Reads a spec from a local or Cloud Storage path. JSON specs are read as YAML. */
+  public static WorkloadSpec load(String path) throws IOException {
+    ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    try (InputStream is =
+        Channels.newInputStream(
+            FileSystems.open(FileSystems.matchNewResource(path, false /* is_directory */)))) {
+      WorkloadSpec spec = mapper.readValue(is, WorkloadSpec.class);
+      spec.validate();
+      return spec;
+    }
+  }
+
+  void validate() {
+    if (targetQps <= 0) {
+      throw new IllegalArgumentException("targetQps must be positive: " + targetQps);
+    }
+    if (mix.read < 0 || mix.write < 0 || mix.scan < 0 || mix.read + mix.write + mix.scan <= 0) {
+      throw new IllegalArgumentException("The operation mix needs a positive weight");
+    }
+    if (keys.count <= 0) {
+      throw new IllegalArgumentException("keys.count must be positive: " + keys.count);
+    }
+    if (!"constant".equals(values.distribution) && !"uniform".equals(values.distribution)) {
+      throw new IllegalArgumentException("Unknown value distribution: " + values.distribution);
+    }
+    if (values.minSize > values.maxSize) {
+      throw new IllegalArgumentException("values.minSize is larger than values.maxSize");
+    }
+    // Fails on an unknown distribution or invalid distribution parameters.
+    KeyDistribution.of(keys);
+  }
+}
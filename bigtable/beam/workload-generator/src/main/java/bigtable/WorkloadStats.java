@@ -0,0 +1,113 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import bigtable.WorkloadOperations.OperationType;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency histograms and error counts per operation type. Recording is safe from any number of
+ * threads; reports take whatever was recorded since the previous report and also add it to totals
+ * for the final summary.
+ */
+class WorkloadStats {
+
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private final Map<OperationType, Recorder> recorders = new EnumMap<>(OperationType.class);
+  private final Map<OperationType, Histogram> totals = new EnumMap<>(OperationType.class);
+  private final Map<OperationType, AtomicLong> errors = new EnumMap<>(OperationType.class);
+  private final AtomicLong dropped = new AtomicLong();
+  private final long startNanos = System.nanoTime();
+  // The interval histograms of the previous report, reused by the recorder they came from.
+  private final Map<OperationType, Histogram> recycled = new EnumMap<>(OperationType.class);
+  private long lastReportNanos = startNanos;
+
+  WorkloadStats() {
+    for (OperationType type : OperationType.values()) {
+      recorders.put(type, new Recorder(SIGNIFICANT_DIGITS));
+      totals.put(type, new Histogram(SIGNIFICANT_DIGITS));
+      errors.put(type, new AtomicLong());
+    }
+  }
+
+  /** Records the latency of a completed operation, in nanoseconds. */
+  void recordLatency(OperationType type, long latencyNanos) {
+    recorders.get(type).recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+  }
+
+  void recordError(OperationType type) {
+    errors.get(type).incrementAndGet();
+  }
+
+  /** Records an operation that was never issued because too many were already outstanding. */
+  void recordDropped() {
+    dropped.incrementAndGet();
+  }
+
+  /** Returns the operations completed since the previous report, with their latencies. */
+  synchronized String intervalReport() {
+    long now = System.nanoTime();
+    double seconds = (now - lastReportNanos) / 1e9;
+    lastReportNanos = now;
+    StringBuilder report = new StringBuilder();
+    for (OperationType type : OperationType.values()) {
+      Histogram interval = recorders.get(type).getIntervalHistogram(recycled.get(type));
+      totals.get(type).add(interval);
+      if (interval.getTotalCount() > 0) {
+        appendLine(report, type, interval, seconds);
+      }
+      recycled.put(type, interval);
+    }
+    return report.toString();
+  }
+
+  /** Returns the latencies and errors of all operations since the stats were created. */
+  synchronized String summary() {
+    // Picks up anything recorded after the last interval report.
+    intervalReport();
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    StringBuilder report = new StringBuilder();
+    for (OperationType type : OperationType.values()) {
+      appendLine(report, type, totals.get(type), seconds);
+    }
+    report.append(
+        String.format("dropped %d operations over the outstanding limit%n", dropped.get()));
+    return report.toString();
+  }
+
+  private void appendLine(
+      StringBuilder report, OperationType type, Histogram histogram, double seconds) {
+    report.append(
+        String.format(
+            "%-5s %10d ops %10.1f ops/s  p50 %8d us  p99 %8d us  p99.9 %8d us  max %8d us"
+                + "  errors %d%n",
+            type,
+            histogram.getTotalCount(),
+            histogram.getTotalCount() / seconds,
+            histogram.getValueAtPercentile(50),
+            histogram.getValueAtPercentile(99),
+            histogram.getValueAtPercentile(99.9),
+            histogram.getMaxValue(),
+            errors.get(type).get()));
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bigtable;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import bigtable.WorkloadOperations.OperationType;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WorkloadStatsTest {
+
+  @Test
+  public void testIntervalReportsAndSummaryCoverEveryOperationType() {
+    WorkloadStats stats = new WorkloadStats();
+    recordAll(stats, 10);
+
+    String first = stats.intervalReport();
+    assertThat(first).containsMatch("READ\\s+10 ops");
+    assertThat(first).containsMatch("WRITE\\s+10 ops");
+    assertThat(first).containsMatch("SCAN\\s+10 ops");
+
+    // The second report reuses the histograms of the first, each with its own recorder.
+    recordAll(stats, 5);
+    stats.recordError(OperationType.WRITE);
+    stats.recordDropped();
+    String second = stats.intervalReport();
+    assertThat(second).containsMatch("READ\\s+5 ops");
+    assertThat(second).containsMatch("SCAN\\s+5 ops");
+
+    recordAll(stats, 1);
+    String summary = stats.summary();
+    assertThat(summary).containsMatch("READ\\s+16 ops");
+    assertThat(summary).containsMatch("WRITE\\s+16 ops.*errors 1");
+    assertThat(summary).containsMatch("SCAN\\s+16 ops");
+    assertThat(summary).contains("dropped 1 operations");
+  }
+
+  @Test
+  public void testEmptyIntervalsAreLeftOut() {
+    WorkloadStats stats = new WorkloadStats();
+    stats.recordLatency(OperationType.READ, TimeUnit.MILLISECONDS.toNanos(3));
+
+    assertThat(stats.intervalReport()).doesNotContain("WRITE");
+    assertThat(stats.intervalReport()).isEmpty();
+  }
+
+  private static void recordAll(WorkloadStats stats, int count) {
+    for (OperationType type : OperationType.values()) {
+      for (int i = 0; i < count; i++) {
+        stats.recordLatency(type, TimeUnit.MILLISECONDS.toNanos(i + 1));
+      }
+    }
+  }
+}
@@ -14,14 +14,22 @@
  * limitations under the License.
  */
 
+import com.example.bigtable.cache.BigtableRowCache;
+import com.example.bigtable.cache.MemcachedCacheStore;
 import com.google.cloud.bigtable.data.v2.BigtableDataClient;
 import com.google.cloud.bigtable.data.v2.models.Row;
-import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
-import net.spy.memcached.MemcachedClient;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Memcached {
 
+  // Clients are expensive to create, so each cache and its clients live as long as the JVM.
+  private static final Map<List<String>, BigtableRowCache> caches = new ConcurrentHashMap<>();
+
   public static void main(String[] args) {
     memcachedBigtable(System.getProperty("bigtableProjectId"),
         System.getProperty("bigtableInstanceId"),
@@ -38,38 +46,44 @@ public class Memcached {
     // String discoveryEndpoint = "0.0.0.0";
 
     try {
-      MemcachedClient mcc = new MemcachedClient(new InetSocketAddress(discoveryEndpoint, 11211));
-      System.out.println("Connected to Memcached successfully");
+      BigtableRowCache cache = caches.computeIfAbsent(
+          Arrays.asList(projectId, instanceId, tableId, discoveryEndpoint),
+          key -> createCache(projectId, instanceId, tableId, discoveryEndpoint));
 
-      // Get value from cache
       String rowkey = "phone#4c410523#20190501";
       String columnFamily = "stats_summary";
       String column = "os_build";
-      String cacheKey = String.format("%s:%s:%s", rowkey, columnFamily, column);
 
-      Object value = mcc.get(cacheKey);
-
-      if (value != null) {
-        System.out.println("Value fetched from cache: " + value);
+      // Reads the row from the cache, or from Bigtable and adds it to the cache for 30 minutes.
+      long hits = cache.getMetrics().getHits();
+      Row row = cache.get(rowkey);
+      String cellValue = row.getCells(columnFamily, column).get(0).getValue().toStringUtf8();
+      if (cache.getMetrics().getHits() > hits) {
+        System.out.println("Value fetched from cache: " + cellValue);
       } else {
         System.out.println("didn't get value from cache");
-        // Get data from Bigtable source and add to cache for 30 minutes.
-        try (BigtableDataClient dataClient = BigtableDataClient.create(projectId, instanceId)) {
-          Row row = dataClient.readRow(tableId, rowkey);
-          String cellValue = row.getCells(columnFamily, column).get(0).getValue().toStringUtf8();
-          System.out.println("got data from bt " + cellValue);
-          // Set data into memcached server.
-          mcc.set(cacheKey, 30 * 60, cellValue);
-          System.out.println("Value fetched from Bigtable: " + cellValue);
-        } catch (Exception e) {
-          System.out.println("Could not set cache value.");
-          e.printStackTrace();
-        }
+        System.out.println("Value fetched from Bigtable: " + cellValue);
       }
-      mcc.shutdown();
+      System.out.println("Cache metrics: " + cache.getMetrics());
     } catch (Exception e) {
-      System.out.println("Could not get cache value.");
+      System.out.println("Could not get value.");
       e.printStackTrace();
     }
   }
+
+  private static BigtableRowCache createCache(String projectId, String instanceId,
+      String tableId, String discoveryEndpoint) {
+    try {
+      MemcachedCacheStore store = MemcachedCacheStore.connect(discoveryEndpoint, 11211);
+      System.out.println("Connected to Memcached successfully");
+      BigtableDataClient dataClient = BigtableDataClient.create(projectId, instanceId);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        store.close();
+        dataClient.close();
+      }));
+      return new BigtableRowCache(dataClient, tableId, store, 30 * 60, 60);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 }
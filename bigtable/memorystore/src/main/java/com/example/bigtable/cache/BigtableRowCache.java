@@ -0,0 +1,299 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bigtable.cache;
+
+import static com.google.cloud.bigtable.data.v2.models.Filters.FILTERS;
+
+import com.google.cloud.bigtable.data.v2.BigtableDataClient;
+import com.google.cloud.bigtable.data.v2.models.Mutation;
+import com.google.cloud.bigtable.data.v2.models.Query;
+import com.google.cloud.bigtable.data.v2.models.Row;
+import com.google.cloud.bigtable.data.v2.models.RowMutation;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-through, write-through cache of Bigtable rows.
+ *
+ * <p>Lookups of several rows are a single multi-get against the cache, and the rows that missed
+ * are read from Bigtable with a single readRows call. While a row is being read, other lookups of
+ * the same row wait for that read instead of starting their own, so a popular row expiring doesn't
+ * send a burst of reads to Bigtable. Rows that don't exist are cached too, for negativeTtlSeconds.
+ *
+ * <p>Create one instance and share it: it holds no per-call state, and the Bigtable and cache
+ * clients it uses are meant to live as long as the application.
+ */
+public class BigtableRowCache {
+
+  // Longer keys, and keys with spaces or control characters, aren't valid Memcached keys.
+  private static final int MAX_CACHE_KEY_LENGTH = 250;
+
+  /** Reads and writes rows of one table. */
+  interface RowSource {
+
+    /** Returns the rows that exist for the given keys, by key. */
+    Map<String, Row> readRows(List<String> rowKeys);
+
+    void mutateRow(String rowKey, Mutation mutation);
+  }
+
+  private final RowSource source;
+  private final CacheStore store;
+  private final String namespace;
+  private final int ttlSeconds;
+  private final int negativeTtlSeconds;
+  private final ConcurrentMap<String, CompletableFuture<Row>> reads = new ConcurrentHashMap<>();
+  private final CacheMetrics metrics = new CacheMetrics();
+
+  /**
+   * Creates a cache of the latest cell of each column of the rows in a table. A negativeTtlSeconds
+   * of 0 turns off caching of missing rows.
+   */
+  public BigtableRowCache(
+      BigtableDataClient dataClient,
+      String tableId,
+      CacheStore store,
+      int ttlSeconds,
+      int negativeTtlSeconds) {
+    this(bigtableSource(dataClient, tableId), tableId, store, ttlSeconds, negativeTtlSeconds);
+  }
+
+  BigtableRowCache(
+      RowSource source, String tableId, CacheStore store, int ttlSeconds, int negativeTtlSeconds) {
+    if (ttlSeconds <= 0 || negativeTtlSeconds < 0) {
+      throw new IllegalArgumentException(
+          "Invalid TTLs: " + ttlSeconds + ", " + negativeTtlSeconds);
+    }
+    this.source = source;
+    this.store = store;
+    this.namespace = tableId + ":";
+    this.ttlSeconds = ttlSeconds;
+    this.negativeTtlSeconds = negativeTtlSeconds;
+  }
+
+  private static RowSource bigtableSource(BigtableDataClient dataClient, String tableId) {
+    return new RowSource() {
+      @Override
+      public Map<String, Row> readRows(List<String> rowKeys) {
+        Query query = Query.create(tableId).filter(FILTERS.limit().cellsPerColumn(1));
+        for (String rowKey : rowKeys) {
+          query.rowKey(rowKey);
+        }
+        Map<String, Row> rows = new HashMap<>();
+        for (Row row : dataClient.readRows(query)) {
+          rows.put(row.getKey().toStringUtf8(), row);
+        }
+        return rows;
+      }
+
+      @Override
+      public void mutateRow(String rowKey, Mutation mutation) {
+        dataClient.mutateRow(RowMutation.create(tableId, rowKey, mutation));
+      }
+    };
+  }
+
+  /** Returns a row, or null if it doesn't exist. */
+  public Row get(String rowKey) {
+    return getAll(Collections.singletonList(rowKey)).get(rowKey);
+  }
+
+  /** Returns the rows that exist for the given keys, by key. */
+  public Map<String, Row> getAll(Collection<String> rowKeys) {
+    Map<String, String> cacheKeys = new LinkedHashMap<>();
+    for (String rowKey : rowKeys) {
+      cacheKeys.put(rowKey, cacheKey(rowKey));
+    }
+    long start = System.nanoTime();
+    Map<String, Object> cached = lookup(cacheKeys.values());
+    long lookupNanos = System.nanoTime() - start;
+
+    Map<String, Row> rows = new HashMap<>();
+    List<String> misses = new ArrayList<>();
+    int hits = 0;
+    int negativeHits = 0;
+    for (Map.Entry<String, String> entry : cacheKeys.entrySet()) {
+      Object value = cached.get(entry.getValue());
+      if (!(value instanceof CachedRow)) {
+        misses.add(entry.getKey());
+      } else if (((CachedRow) value).row == null) {
+        negativeHits++;
+      } else {
+        hits++;
+        rows.put(entry.getKey(), ((CachedRow) value).row);
+      }
+    }
+    metrics.recordCacheLookup(lookupNanos, hits, negativeHits, misses.size());
+    if (!misses.isEmpty()) {
+      rows.putAll(load(misses));
+    }
+    return rows;
+  }
+
+  /**
+   * Writes a mutation to Bigtable, then reads the row back and caches it, so the next lookup of
+   * the row is a hit. Costs an extra read per write; prefer {@link #invalidate} for rows that are
+   * written more often than they are read.
+   */
+  public void mutateRow(String rowKey, Mutation mutation) {
+    source.mutateRow(rowKey, mutation);
+    Row row = source.readRows(Collections.singletonList(rowKey)).get(rowKey);
+    put(rowKey, row);
+  }
+
+  /** Removes a row from the cache, for example after writing it without going through here. */
+  public void invalidate(String rowKey) {
+    try {
+      store.delete(cacheKey(rowKey));
+    } catch (RuntimeException e) {
+      metrics.recordCacheError();
+    }
+  }
+
+  public CacheMetrics getMetrics() {
+    return metrics;
+  }
+
+  private Map<String, Object> lookup(Collection<String> keys) {
+    try {
+      return store.getAll(keys);
+    } catch (RuntimeException e) {
+      // Fall back to Bigtable rather than failing while the cache is unavailable.
+      metrics.recordCacheError();
+      return Collections.emptyMap();
+    }
+  }
+
+  private Map<String, Row> load(List<String> rowKeys) {
+    Map<String, CompletableFuture<Row>> pending = new LinkedHashMap<>();
+    List<String> toRead = new ArrayList<>();
+    for (String rowKey : rowKeys) {
+      CompletableFuture<Row> read = new CompletableFuture<>();
+      CompletableFuture<Row> inProgress = reads.putIfAbsent(rowKey, read);
+      if (inProgress == null) {
+        toRead.add(rowKey);
+      } else {
+        metrics.recordCoalescedMiss();
+        read = inProgress;
+      }
+      pending.put(rowKey, read);
+    }
+    if (!toRead.isEmpty()) {
+      read(toRead);
+    }
+
+    Map<String, Row> rows = new HashMap<>();
+    for (Map.Entry<String, CompletableFuture<Row>> entry : pending.entrySet()) {
+      Row row;
+      try {
+        row = entry.getValue().join();
+      } catch (CompletionException e) {
+        // Rethrow the failure of a read started by another lookup as if it were our own.
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+      if (row != null) {
+        rows.put(entry.getKey(), row);
+      }
+    }
+    return rows;
+  }
+
+  private void read(List<String> rowKeys) {
+    long start = System.nanoTime();
+    Map<String, Row> rows;
+    try {
+      rows = source.readRows(rowKeys);
+    } catch (RuntimeException e) {
+      for (String rowKey : rowKeys) {
+        reads.remove(rowKey).completeExceptionally(e);
+      }
+      throw e;
+    }
+    metrics.recordBigtableRead(System.nanoTime() - start, rowKeys.size());
+    for (String rowKey : rowKeys) {
+      Row row = rows.get(rowKey);
+      // Cache the row before letting go of the read, so later lookups find one or the other.
+      put(rowKey, row);
+      reads.remove(rowKey).complete(row);
+    }
+  }
+
+  private void put(String rowKey, Row row) {
+    if (row == null && negativeTtlSeconds == 0) {
+      return;
+    }
+    try {
+      int ttl = row == null ? negativeTtlSeconds : ttlSeconds;
+      store.set(cacheKey(rowKey), ttl, new CachedRow(row));
+    } catch (RuntimeException e) {
+      metrics.recordCacheError();
+    }
+  }
+
+  String cacheKey(String rowKey) {
+    String key = namespace + rowKey;
+    if (key.length() <= MAX_CACHE_KEY_LENGTH && isPrintableAscii(key)) {
+      return key;
+    }
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(rowKey.getBytes(StandardCharsets.UTF_8));
+      return namespace + "#" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean isPrintableAscii(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c <= ' ' || c > '~') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** What is stored in the cache: a row, or null for a row that doesn't exist. */
+  static class CachedRow implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final Row row;
+
+    CachedRow(Row row) {
+      this.row = row;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bigtable.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters describing how well a {@link BigtableRowCache} is doing. */
+public class CacheMetrics {
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalescedMisses = new LongAdder();
+  private final LongAdder rowsRead = new LongAdder();
+  private final LongAdder cacheErrors = new LongAdder();
+  private final LongAdder cacheLookups = new LongAdder();
+  private final LongAdder cacheLookupNanos = new LongAdder();
+  private final LongAdder bigtableReads = new LongAdder();
+  private final LongAdder bigtableReadNanos = new LongAdder();
+
+  void recordCacheLookup(long nanos, int hitCount, int negativeHitCount, int missCount) {
+    cacheLookups.increment();
+    cacheLookupNanos.add(nanos);
+    hits.add(hitCount);
+    negativeHits.add(negativeHitCount);
+    misses.add(missCount);
+  }
+
+  void recordCoalescedMiss() {
+    coalescedMisses.increment();
+  }
+
+  void recordBigtableRead(long nanos, int rows) {
+    bigtableReads.increment();
+    bigtableReadNanos.add(nanos);
+    rowsRead.add(rows);
+  }
+
+  void recordCacheError() {
+    cacheErrors.increment();
+  }
+
+  /** Rows found in the cache. */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** Rows the cache remembered as not existing in Bigtable. */
+  public long getNegativeHits() {
+    return negativeHits.sum();
+  }
+
+  /** Rows that weren't in the cache, whether or not they were then read from Bigtable. */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** Misses that waited for a read already in progress for the same row instead of starting one. */
+  public long getCoalescedMisses() {
+    return coalescedMisses.sum();
+  }
+
+  /** Rows requested from Bigtable, including ones that turned out not to exist. */
+  public long getRowsRead() {
+    return rowsRead.sum();
+  }
+
+  /** Cache lookups that failed and were treated as misses. */
+  public long getCacheErrors() {
+    return cacheErrors.sum();
+  }
+
+  public double getHitRatio() {
+    long found = getHits() + getNegativeHits();
+    long total = found + getMisses();
+    return total == 0 ? 0 : (double) found / total;
+  }
+
+  public double getAverageCacheLookupMillis() {
+    return averageMillis(cacheLookupNanos, cacheLookups);
+  }
+
+  public double getAverageBigtableReadMillis() {
+    return averageMillis(bigtableReadNanos, bigtableReads);
+  }
+
+  private static double averageMillis(LongAdder nanos, LongAdder count) {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) nanos.sum() / n / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "hits=%d negativeHits=%d misses=%d coalescedMisses=%d rowsRead=%d cacheErrors=%d "
+            + "hitRatio=%.3f cacheLookupMs=%.2f bigtableReadMs=%.2f",
+        getHits(),
+        getNegativeHits(),
+        getMisses(),
+        getCoalescedMisses(),
+        getRowsRead(),
+        getCacheErrors(),
+        getHitRatio(),
+        getAverageCacheLookupMillis(),
+        getAverageBigtableReadMillis());
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bigtable.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The operations {@link BigtableRowCache} needs from a cache server. Implementations must be safe
+ * to use from multiple threads and should treat an unreachable server as a miss rather than
+ * blocking callers for long.
+ */
+public interface CacheStore {
+
+  /** Returns the values found for the given keys; keys that aren't cached are left out. */
+  Map<String, Object> getAll(Collection<String> keys);
+
+  /** Stores a value, without waiting for the server to acknowledge it. */
+  void set(String key, int ttlSeconds, Object value);
+
+  void delete(String key);
+}
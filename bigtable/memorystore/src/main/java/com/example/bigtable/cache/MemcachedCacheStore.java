@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bigtable.cache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
+import net.spy.memcached.MemcachedClient;
+
+/**
+ * A {@link CacheStore} backed by Memcached, for example a Memorystore for Memcached instance.
+ * Lookups of several keys are sent as a single multi-get.
+ */
+public class MemcachedCacheStore implements CacheStore, AutoCloseable {
+
+  private final MemcachedClient client;
+
+  public MemcachedCacheStore(MemcachedClient client) {
+    this.client = client;
+  }
+
+  public static MemcachedCacheStore connect(String host, int port) throws IOException {
+    return new MemcachedCacheStore(new MemcachedClient(new InetSocketAddress(host, port)));
+  }
+
+  @Override
+  public Map<String, Object> getAll(Collection<String> keys) {
+    return client.getBulk(keys);
+  }
+
+  @Override
+  public void set(String key, int ttlSeconds, Object value) {
+    client.set(key, ttlSeconds, value);
+  }
+
+  @Override
+  public void delete(String key) {
+    client.delete(key);
+  }
+
+  @Override
+  public void close() {
+    client.shutdown();
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bigtable.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.bigtable.data.v2.models.Mutation;
+import com.google.cloud.bigtable.data.v2.models.Row;
+import com.google.cloud.bigtable.data.v2.models.RowCell;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BigtableRowCacheTest {
+
+  private static final String TABLE_ID = "mobile-time-series";
+  private static final String COLUMN_FAMILY_NAME = "stats_summary";
+
+  private FakeRowSource source;
+  private InMemoryCacheStore store;
+  private BigtableRowCache cache;
+
+  @Before
+  public void setUp() {
+    source = new FakeRowSource();
+    source.put("phone#4c410523#20190501", "PQ2A.190405.003");
+    source.put("phone#4c410523#20190502", "PQ2A.190405.004");
+    store = new InMemoryCacheStore();
+    cache = new BigtableRowCache(source, TABLE_ID, store, 1800, 60);
+  }
+
+  @Test
+  public void readsThroughOnMissAndHitsAfterwards() {
+    assertThat(osBuild(cache.get("phone#4c410523#20190501"))).isEqualTo("PQ2A.190405.003");
+    assertThat(osBuild(cache.get("phone#4c410523#20190501"))).isEqualTo("PQ2A.190405.003");
+
+    assertThat(source.reads).hasSize(1);
+    assertThat(cache.getMetrics().getMisses()).isEqualTo(1);
+    assertThat(cache.getMetrics().getHits()).isEqualTo(1);
+    assertThat(store.ttls).containsExactly(TABLE_ID + ":phone#4c410523#20190501", 1800);
+  }
+
+  @Test
+  public void readsAllMissesInOneRequest() {
+    cache.get("phone#4c410523#20190501");
+
+    Map<String, Row> rows =
+        cache.getAll(
+            Arrays.asList(
+                "phone#4c410523#20190501", "phone#4c410523#20190502", "phone#missing"));
+
+    assertThat(rows.keySet())
+        .containsExactly("phone#4c410523#20190501", "phone#4c410523#20190502");
+    assertThat(source.reads)
+        .containsExactly(
+            Collections.singletonList("phone#4c410523#20190501"),
+            Arrays.asList("phone#4c410523#20190502", "phone#missing"))
+        .inOrder();
+  }
+
+  @Test
+  public void cachesMissingRows() {
+    assertThat(cache.get("phone#missing")).isNull();
+    assertThat(cache.get("phone#missing")).isNull();
+
+    assertThat(source.reads).hasSize(1);
+    assertThat(cache.getMetrics().getNegativeHits()).isEqualTo(1);
+    assertThat(store.ttls).containsEntry(TABLE_ID + ":phone#missing", 60);
+  }
+
+  @Test
+  public void concurrentMissesShareOneRead() throws Exception {
+    source.readStarted = new CountDownLatch(1);
+    source.releaseRead = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Row>> results = new ArrayList<>();
+      results.add(executor.submit(() -> cache.get("phone#4c410523#20190501")));
+      assertThat(source.readStarted.await(10, TimeUnit.SECONDS)).isTrue();
+      for (int i = 0; i < 7; i++) {
+        results.add(executor.submit(() -> cache.get("phone#4c410523#20190501")));
+      }
+      // Let the waiting lookups reach the read in progress before it finishes.
+      while (cache.getMetrics().getCoalescedMisses() < 7) {
+        Thread.sleep(1);
+      }
+      source.releaseRead.countDown();
+
+      for (Future<Row> result : results) {
+        assertThat(osBuild(result.get(10, TimeUnit.SECONDS))).isEqualTo("PQ2A.190405.003");
+      }
+      assertThat(source.reads).hasSize(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void failedReadIsNotCached() {
+    source.failure = new IllegalStateException("UNAVAILABLE");
+    assertThrows(IllegalStateException.class, () -> cache.get("phone#4c410523#20190501"));
+
+    source.failure = null;
+    assertThat(osBuild(cache.get("phone#4c410523#20190501"))).isEqualTo("PQ2A.190405.003");
+    assertThat(source.reads).hasSize(2);
+  }
+
+  @Test
+  public void fallsBackToBigtableWhenCacheIsUnavailable() {
+    store.unavailable = true;
+
+    assertThat(osBuild(cache.get("phone#4c410523#20190501"))).isEqualTo("PQ2A.190405.003");
+    assertThat(cache.getMetrics().getCacheErrors()).isEqualTo(2);
+  }
+
+  @Test
+  public void mutateRowUpdatesCache() {
+    cache.get("phone#4c410523#20190501");
+
+    source.nextWrite = "PQ2A.190406.000";
+    cache.mutateRow(
+        "phone#4c410523#20190501",
+        Mutation.create().setCell(COLUMN_FAMILY_NAME, "os_build", "PQ2A.190406.000"));
+
+    assertThat(source.writes).containsExactly("phone#4c410523#20190501");
+    assertThat(osBuild(cache.get("phone#4c410523#20190501"))).isEqualTo("PQ2A.190406.000");
+    assertThat(cache.getMetrics().getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void hashesKeysMemcachedCannotStore() {
+    String cacheKey = cache.cacheKey("phone with spaces");
+
+    assertThat(cacheKey).startsWith(TABLE_ID + ":#");
+    assertThat(cacheKey).doesNotContain(" ");
+    assertThat(cache.cacheKey(String.join("", Collections.nCopies(300, "a"))).length())
+        .isLessThan(250);
+  }
+
+  private static String osBuild(Row row) {
+    return row.getCells(COLUMN_FAMILY_NAME, "os_build").get(0).getValue().toStringUtf8();
+  }
+
+  /** Stands in for a Bigtable table holding the latest os_build of each row. */
+  private static class FakeRowSource implements BigtableRowCache.RowSource {
+
+    final Map<String, String> osBuilds = new ConcurrentHashMap<>();
+    final List<List<String>> reads = Collections.synchronizedList(new ArrayList<>());
+    final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+    volatile String nextWrite;
+    volatile RuntimeException failure;
+    volatile CountDownLatch readStarted;
+    volatile CountDownLatch releaseRead;
+
+    void put(String rowKey, String osBuild) {
+      osBuilds.put(rowKey, osBuild);
+    }
+
+    @Override
+    public Map<String, Row> readRows(List<String> rowKeys) {
+      reads.add(new ArrayList<>(rowKeys));
+      if (readStarted != null) {
+        readStarted.countDown();
+        try {
+          releaseRead.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(e);
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      Map<String, Row> rows = new HashMap<>();
+      for (String rowKey : rowKeys) {
+        String osBuild = osBuilds.get(rowKey);
+        if (osBuild != null) {
+          RowCell cell =
+              RowCell.create(
+                  COLUMN_FAMILY_NAME,
+                  ByteString.copyFromUtf8("os_build"),
+                  0,
+                  Collections.emptyList(),
+                  ByteString.copyFromUtf8(osBuild));
+          rows.put(
+              rowKey,
+              Row.create(ByteString.copyFromUtf8(rowKey), Collections.singletonList(cell)));
+        }
+      }
+      return rows;
+    }
+
+    @Override
+    public void mutateRow(String rowKey, Mutation mutation) {
+      // Mutations can't be inspected, so tests say what the write sets os_build to.
+      writes.add(rowKey);
+      osBuilds.put(rowKey, nextWrite);
+    }
+  }
+}
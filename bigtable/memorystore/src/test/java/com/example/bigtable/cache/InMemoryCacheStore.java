@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bigtable.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link CacheStore} standing in for Memcached. Values are serialized like the Memcached client
+ * does, so anything that couldn't be cached for real fails here too. TTLs are recorded but not
+ * enforced.
+ */
+class InMemoryCacheStore implements CacheStore {
+
+  final Map<String, byte[]> values = new ConcurrentHashMap<>();
+  final Map<String, Integer> ttls = new ConcurrentHashMap<>();
+  volatile boolean unavailable;
+
+  @Override
+  public Map<String, Object> getAll(Collection<String> keys) {
+    checkAvailable();
+    Map<String, Object> found = new HashMap<>();
+    for (String key : keys) {
+      byte[] value = values.get(key);
+      if (value != null) {
+        found.put(key, deserialize(value));
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public void set(String key, int ttlSeconds, Object value) {
+    checkAvailable();
+    values.put(key, serialize(value));
+    ttls.put(key, ttlSeconds);
+  }
+
+  @Override
+  public void delete(String key) {
+    checkAvailable();
+    values.remove(key);
+  }
+
+  private void checkAvailable() {
+    if (unavailable) {
+      throw new IllegalStateException("Cache unavailable");
+    }
+  }
+
+  private static byte[] serialize(Object value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] value) {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value))) {
+      return in.readObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bigtable.fraud.beam;
+
+import bigtable.fraud.beam.utils.AggregatedData;
+import bigtable.fraud.beam.utils.CustomerProfile;
+import bigtable.fraud.beam.utils.TransactionDetails;
+import com.google.cloud.bigtable.beam.AbstractCloudBigtableTableDoFn;
+import com.google.cloud.bigtable.beam.CloudBigtableConfiguration;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Reads the transaction history for a batch of customers with a single
+ * multi-get, and outputs an AggregatedData object per transaction in the
+ * order the transactions arrived.
+ *
+ * Transactions are buffered within a bundle until either
+ * CBTReadBatchSize transactions are waiting or the oldest one has waited
+ * CBTReadMaxLatencyMillis. Whatever is left is read when the bundle
+ * finishes. Results are output when the bundle finishes too, each with its
+ * own transaction's timestamp and window: output from processElement can't
+ * be earlier than the current element, which would re-stamp the earlier
+ * transactions of a batch. Customer profiles rarely change, so they are kept
+ * in a per-worker LRU cache; a cache hit only reads the "history" column
+ * family.
+ */
+public class BatchedReadFromTableFn
+    extends
+    AbstractCloudBigtableTableDoFn<TransactionDetails, AggregatedData> {
+
+  /**
+   * a Logger object to help logging details.
+   */
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+      BatchedReadFromTableFn.class);
+
+  /**
+   * The column family holding the transaction history.
+   */
+  private static final byte[] HISTORY_FAMILY = Bytes.toBytes("history");
+
+  /**
+   * Customer profiles shared by every instance of this DoFn on a worker.
+   */
+  private static Cache<String, CustomerProfile> profileCache;
+
+  /**
+   * The worker-wide customer profile cache.
+   */
+  private transient Cache<String, CustomerProfile> cache;
+
+  /**
+   * The table read from, opened once per bundle.
+   */
+  private transient Table table;
+
+  /**
+   * The transactions waiting to be read.
+   */
+  private transient List<BufferedTransaction> buffer;
+
+  /**
+   * The transactions read in this bundle, waiting to be output.
+   */
+  private transient List<BufferedTransaction> read;
+
+  /**
+   * The time (ms) when the oldest buffered transaction arrived.
+   */
+  private transient long oldestBufferedMillis;
+
+  /**
+   * The maximum number of buffered transactions.
+   */
+  private transient int batchSize;
+
+  /**
+   * The maximum time (ms) a transaction can stay buffered.
+   */
+  private transient long maxLatencyMillis;
+
+  /**
+   * @param config the CloudBigtableConfiguration used in reading from Cloud
+   * Bigtable.
+   */
+  public BatchedReadFromTableFn(final CloudBigtableConfiguration config) {
+    super(config);
+  }
+
+  /**
+   * Returns the worker-wide profile cache, creating it on first use.
+   *
+   * @param options the pipeline options holding the cache settings.
+   * @return the customer profile cache.
+   */
+  private static synchronized Cache<String, CustomerProfile> getProfileCache(
+      final FraudDetectionOptions options) {
+    if (profileCache == null) {
+      profileCache = CacheBuilder.newBuilder()
+          .maximumSize(options.getCustomerProfileCacheSize())
+          .expireAfterWrite(options.getCustomerProfileCacheTtlSeconds(),
+              TimeUnit.SECONDS)
+          .build();
+    }
+    return profileCache;
+  }
+
+  /**
+   * @param c the context used to open the table and read the batch
+   * settings.
+   */
+  @StartBundle
+  public void startBundle(final StartBundleContext c) throws IOException {
+    FraudDetectionOptions options = c.getPipelineOptions()
+        .as(FraudDetectionOptions.class);
+    batchSize = Math.max(1, options.getCBTReadBatchSize());
+    maxLatencyMillis = options.getCBTReadMaxLatencyMillis();
+    cache = getProfileCache(options);
+    table = getConnection().getTable(
+        TableName.valueOf(options.getCBTTableId()));
+    buffer = new ArrayList<>(batchSize);
+    read = new ArrayList<>();
+  }
+
+  /**
+   * @param c the process context holding the incoming transaction.
+   * @param window the window of the incoming transaction.
+   */
+  @ProcessElement
+  public void processElement(
+      final DoFn<TransactionDetails, AggregatedData>.ProcessContext c,
+      final BoundedWindow window) throws IOException {
+    if (buffer.isEmpty()) {
+      oldestBufferedMillis = System.currentTimeMillis();
+    }
+    buffer.add(new BufferedTransaction(c.element(), c.timestamp(), window));
+
+    if (buffer.size() >= batchSize
+        || System.currentTimeMillis() - oldestBufferedMillis
+        >= maxLatencyMillis) {
+      readBuffer();
+    }
+  }
+
+  /**
+   * @param c the context used to output the transactions read.
+   */
+  @FinishBundle
+  public void finishBundle(final FinishBundleContext c) throws IOException {
+    try {
+      if (!buffer.isEmpty()) {
+        readBuffer();
+      }
+      for (BufferedTransaction transaction : read) {
+        c.output(transaction.result, transaction.timestamp,
+            transaction.window);
+      }
+      read.clear();
+    } finally {
+      table.close();
+      table = null;
+    }
+  }
+
+  /**
+   * Reads the buffered transactions with one multi-get, keeping their
+   * results for finishBundle.
+   */
+  private void readBuffer() throws IOException {
+    List<BufferedTransaction> batch = buffer;
+    buffer = new ArrayList<>(batchSize);
+    List<AggregatedData> results = readBatch(table, cache, transactions(batch));
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).result = results.get(i);
+    }
+    read.addAll(batch);
+  }
+
+  /**
+   * @param batch the buffered transactions.
+   * @return the transactions of the batch, in order.
+   */
+  private static List<TransactionDetails> transactions(
+      final List<BufferedTransaction> batch) {
+    List<TransactionDetails> transactions = new ArrayList<>(batch.size());
+    for (BufferedTransaction buffered : batch) {
+      transactions.add(buffered.transaction);
+    }
+    return transactions;
+  }
+
+  /**
+   * Reads a batch of customers from Cloud Bigtable with a single multi-get.
+   *
+   * @param table the table to read from.
+   * @param cache the customer profile cache.
+   * @param transactions the transactions to read the customers of.
+   * @return the aggregated data, in the same order as the transactions.
+   */
+  static List<AggregatedData> readBatch(final Table table,
+      final Cache<String, CustomerProfile> cache,
+      final List<TransactionDetails> transactions) throws IOException {
+    List<Get> gets = new ArrayList<>(transactions.size());
+    CustomerProfile[] cachedProfiles =
+        new CustomerProfile[transactions.size()];
+    for (int i = 0; i < transactions.size(); i++) {
+      String customerID = transactions.get(i).getCustomerID();
+      Get get = new Get(Bytes.toBytes(customerID));
+      cachedProfiles[i] = cache.getIfPresent(customerID);
+      if (cachedProfiles[i] != null) {
+        // The profile is already known, only the history is needed.
+        get.addFamily(HISTORY_FAMILY);
+      }
+      gets.add(get);
+    }
+
+    LOGGER.info("Reading CBT for " + gets.size() + " customers");
+    Result[] rows = table.get(gets);
+
+    List<AggregatedData> results = new ArrayList<>(transactions.size());
+    for (int i = 0; i < transactions.size(); i++) {
+      TransactionDetails transactionDetails = transactions.get(i);
+      Result row = rows[i];
+      // The row is empty when nothing was found, such as the history of a
+      // customer without transactions yet when the profile is cached.
+      Preconditions.checkState(row.isEmpty()
+              || Bytes.equals(row.getRow(), gets.get(i).getRow()),
+          "Read another row for customer %s",
+          transactionDetails.getCustomerID());
+
+      CustomerProfile customerProfile = cachedProfiles[i];
+      if (customerProfile == null) {
+        Preconditions.checkArgument(!row.isEmpty(),
+            "No profile found for customer %s",
+            transactionDetails.getCustomerID());
+        customerProfile = new CustomerProfile(row);
+        cache.put(transactionDetails.getCustomerID(), customerProfile);
+      }
+      results.add(
+          new AggregatedData(customerProfile, transactionDetails, row));
+    }
+    return results;
+  }
+
+  /**
+   * A transaction waiting to be read or output, along with where it has to
+   * be output.
+   */
+  private static final class BufferedTransaction {
+
+    /**
+     * The incoming transaction.
+     */
+    private final TransactionDetails transaction;
+    /**
+     * The incoming transaction timestamp.
+     */
+    private final Instant timestamp;
+    /**
+     * The incoming transaction window.
+     */
+    private final BoundedWindow window;
+    /**
+     * The aggregated data, once the transaction is read.
+     */
+    private AggregatedData result;
+
+    /**
+     * @param iTransaction the incoming transaction.
+     * @param iTimestamp the incoming transaction timestamp.
+     * @param iWindow the incoming transaction window.
+     */
+    private BufferedTransaction(final TransactionDetails iTransaction,
+        final Instant iTimestamp, final BoundedWindow iWindow) {
+      this.transaction = iTransaction;
+      this.timestamp = iTimestamp;
+      this.window = iWindow;
+    }
+  }
+}
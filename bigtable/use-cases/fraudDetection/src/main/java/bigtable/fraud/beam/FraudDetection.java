@@ -16,36 +16,36 @@
 package bigtable.fraud.beam;
 
 import bigtable.fraud.beam.utils.AggregatedData;
-import bigtable.fraud.beam.utils.CustomerProfile;
+import bigtable.fraud.beam.utils.LocalPredictionServiceStub;
 import bigtable.fraud.beam.utils.RowDetails;
 import bigtable.fraud.beam.utils.TransactionDetails;
 import bigtable.fraud.beam.utils.WriteCBTHelper;
+import com.google.api.core.ApiFuture;
 import com.google.cloud.aiplatform.v1.EndpointName;
 import com.google.cloud.aiplatform.v1.PredictRequest;
 import com.google.cloud.aiplatform.v1.PredictResponse;
 import com.google.cloud.aiplatform.v1.PredictionServiceClient;
 import com.google.cloud.aiplatform.v1.PredictionServiceSettings;
-import com.google.cloud.bigtable.beam.AbstractCloudBigtableTableDoFn;
-import com.google.cloud.bigtable.beam.CloudBigtableConfiguration;
+import com.google.cloud.aiplatform.v1.stub.PredictionServiceStub;
 import com.google.cloud.bigtable.beam.CloudBigtableIO;
 import com.google.cloud.bigtable.beam.CloudBigtableScanConfiguration;
 import com.google.common.base.Preconditions;
-import com.google.protobuf.ListValue;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Value;
-import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.io.gcp.pubsub.PubsubIO;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
 import org.apache.beam.sdk.values.PCollection;
-import org.apache.hadoop.hbase.TableName;
-import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.client.Table;
-import org.apache.hadoop.hbase.util.Bytes;
+import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -84,76 +84,133 @@ public final class FraudDetection {
         }
       };
 
-  // Reads the transaction history for that customer, and outputs an
-  // AggregatedData object.
-  public static class ReadFromTableFn
-      extends
-      AbstractCloudBigtableTableDoFn<TransactionDetails, AggregatedData> {
+  // Queries the ML model for a batch of transactions at a time. Transactions
+  // are packed into one prediction request until MLBatchSize of them are
+  // waiting or the oldest has waited MLMaxLingerMillis. Requests are sent
+  // asynchronously, at most MLMaxInFlightRequests at a time per worker, and
+  // the predictions are fanned back out to their transactions when the bundle
+  // finishes. A batch that fails is sent again one transaction per request;
+  // if that fails too, the bundle fails and the runner retries it.
+  public static final class QueryMlModelFn
+      extends DoFn<AggregatedData, RowDetails> {
 
     /**
-     * @param config the CloudBigtableConfiguration used in reading from Cloud
-     * Bigtable.
+     * Limits the prediction requests in flight on this worker.
      */
-    public ReadFromTableFn(final CloudBigtableConfiguration config) {
-      super(config);
-    }
+    private static Semaphore inFlightPermits;
 
     /**
-     * @param c the process context that converts a TransactionDetails into an
-     * AggregatedData object.
+     * The region of the ML model.
      */
-    @ProcessElement
-    public void processElement(
-        final DoFn<TransactionDetails, AggregatedData>.ProcessContext c)
-        throws IOException {
-      try {
-        FraudDetectionOptions options = c.getPipelineOptions()
-            .as(FraudDetectionOptions.class);
-        TransactionDetails transactionDetails = c.element();
-        LOGGER.info("Reading CBT for customerID = "
-            + transactionDetails.getCustomerID());
+    private String mlRegion;
 
-        // Read the cells for that customer ID.
-        Table table = getConnection().getTable(
-            TableName.valueOf(options.getCBTTableId()));
-        Result row = table.get(
-            new Get(Bytes.toBytes(transactionDetails.getCustomerID())));
+    /**
+     * Answer predictions locally instead of querying Vertex AI.
+     */
+    private boolean stubMode;
 
-        Preconditions.checkArgument(new String(row.getRow()).equals(
-            transactionDetails.getCustomerID()));
+    /**
+     * The fraud probability the local stub returns.
+     */
+    private double stubFraudProbability;
 
-        CustomerProfile customerProfile = new CustomerProfile(row);
+    /**
+     * The simulated round trip (ms) of a local stub request.
+     */
+    private long stubLatencyMillis;
 
-        // Generate an AggregatedData object.
-        AggregatedData aggregatedData =
-            new AggregatedData(customerProfile, transactionDetails, row);
+    /**
+     * The stub answering predictions, if not Vertex AI.
+     */
+    private transient PredictionServiceStub stub;
 
-        c.output(aggregatedData);
-      } catch (Exception e) {
-        LOGGER.error("Failed to read from Cloud Bigtable {}", c.element(), e);
-        throw e;
-      }
-    }
-  }
+    /**
+     * The client that sends requests to the ML model, and receive responses.
+     */
+    private transient PredictionServiceClient predictionServiceClient;
 
-  public static final class QueryMlModelFn
-      extends DoFn<AggregatedData, RowDetails> {
+    /**
+     * The ML model endpoint name.
+     */
+    private transient String endpoint;
 
     /**
-     * The region of the ML model.
+     * The transactions waiting to be sent to the ML model.
      */
-    private String mlRegion;
+    private transient List<PendingPrediction> buffer;
 
     /**
-     * The client that sends requests to the ML model, and receive responses.
+     * The time (ms) when the oldest buffered transaction arrived.
+     */
+    private transient long oldestBufferedMillis;
+
+    /**
+     * The requests sent in this bundle, waiting for their predictions.
+     */
+    private transient List<PredictionBatch> inFlight;
+
+    /**
+     * The maximum number of instances in a prediction request.
+     */
+    private transient int batchSize;
+
+    /**
+     * The maximum time (ms) a transaction can stay buffered.
      */
-    private PredictionServiceClient predictionServiceClient;
+    private transient long maxLingerMillis;
 
     /**
      * @param region the MLRegion that will be used.
      */
     public QueryMlModelFn(final String region) {
+      this(region, false);
+    }
+
+    /**
+     * @param region the MLRegion that will be used.
+     * @param useStub true to answer predictions with a local stub.
+     */
+    public QueryMlModelFn(final String region, final boolean useStub) {
+      this(region, useStub, 0d, 0L);
+    }
+
+    /**
+     * @param region the MLRegion that will be used.
+     * @param useStub true to answer predictions with a local stub.
+     * @param iStubFraudProbability the fraud probability the stub returns.
+     * @param iStubLatencyMillis the simulated round trip of a stub request.
+     */
+    public QueryMlModelFn(final String region, final boolean useStub,
+        final double iStubFraudProbability, final long iStubLatencyMillis) {
       mlRegion = region;
+      stubMode = useStub;
+      stubFraudProbability = iStubFraudProbability;
+      stubLatencyMillis = iStubLatencyMillis;
+    }
+
+    /**
+     * Answers predictions with the given stub, which is not serialized, so
+     * this is only for running the DoFn directly.
+     *
+     * @param iStub the stub answering predictions.
+     */
+    QueryMlModelFn(final PredictionServiceStub iStub) {
+      this(null, true);
+      stub = iStub;
+    }
+
+    /**
+     * Returns the worker-wide in-flight request permits.
+     *
+     * @param maxInFlight the number of permits to create on first use.
+     * @return the in-flight request permits.
+     */
+    private static synchronized Semaphore getInFlightPermits(
+        final int maxInFlight) {
+      if (inFlightPermits == null) {
+        inFlightPermits = new Semaphore(Math.max(1, maxInFlight));
+      }
+      return inFlightPermits;
     }
 
     /**
@@ -161,6 +218,14 @@ public final class FraudDetection {
      */
     @DoFn.Setup
     public void setup() throws IOException {
+      if (stubMode) {
+        if (stub == null) {
+          stub = new LocalPredictionServiceStub(stubFraudProbability,
+              stubLatencyMillis);
+        }
+        predictionServiceClient = PredictionServiceClient.create(stub);
+        return;
+      }
       PredictionServiceSettings predictionServiceSettings =
           PredictionServiceSettings.newBuilder()
               .setEndpoint(mlRegion + "-aiplatform.googleapis.com:443")
@@ -170,58 +235,229 @@ public final class FraudDetection {
     }
 
     /**
-     * @param c the process context that converts queries the ML Model.
+     * Closes the ML model client.
+     */
+    @DoFn.Teardown
+    public void teardown() {
+      if (predictionServiceClient != null) {
+        predictionServiceClient.close();
+      }
+    }
+
+    /**
+     * @param c the context used to read the batch settings.
+     */
+    @StartBundle
+    public void startBundle(final StartBundleContext c) {
+      FraudDetectionOptions options = c.getPipelineOptions()
+          .as(FraudDetectionOptions.class);
+      endpoint = EndpointName.of(options.getProjectID(),
+          options.getMLRegion(), options.getMLEndpoint()).toString();
+      batchSize = Math.max(1, options.getMLBatchSize());
+      maxLingerMillis = options.getMLMaxLingerMillis();
+      getInFlightPermits(options.getMLMaxInFlightRequests());
+      buffer = new ArrayList<>(batchSize);
+      inFlight = new ArrayList<>();
+    }
+
+    /**
+     * @param c the process context holding the transaction to query.
+     * @param window the window of the incoming transaction.
      */
     @ProcessElement
     public void processElement(
-        final DoFn<AggregatedData, RowDetails>.ProcessContext c) {
-      try {
-        // Get pipeline options.
-        FraudDetectionOptions options = c.getPipelineOptions()
-            .as(FraudDetectionOptions.class);
-        String payload = c.element().getMLFeatures();
-        String endpointID = options.getMLEndpoint();
-        String projectID = options.getProjectID();
-
-        LOGGER.info(
-            "Querying the ML model for these features: " + c.element()
-                .getMLFeatures());
-
-        EndpointName endpointName =
-            EndpointName.of(projectID, options.getMLRegion(), endpointID);
-
-        ListValue.Builder listValue = ListValue.newBuilder();
-        JsonFormat.parser().merge(payload, listValue);
-        List<Value> instanceList = listValue.getValuesList();
-
-        // Send a prediction request and receive a response.
-        PredictRequest predictRequest =
-            PredictRequest.newBuilder()
-                .setEndpoint(endpointName.toString())
-                .addAllInstances(instanceList)
-                .build();
-
-        PredictResponse predictResponse = predictionServiceClient.predict(
-            predictRequest);
-        double fraudProbability =
-            predictResponse
-                .getPredictionsList()
-                .get(0)
-                .getListValue()
-                .getValues(0)
-                .getNumberValue();
-
-        LOGGER.info("fraudProbability = " + fraudProbability);
-
-        if (fraudProbability >= FRAUD_PROBABILITY_THRESHOLD) {
-          c.element().getTransactionDetails().setIsFraud("1");
-        } else {
-          c.element().getTransactionDetails().setIsFraud("0");
+        final DoFn<AggregatedData, RowDetails>.ProcessContext c,
+        final BoundedWindow window) throws InterruptedException {
+      if (buffer.isEmpty()) {
+        oldestBufferedMillis = System.currentTimeMillis();
+      }
+      buffer.add(new PendingPrediction(c.element(), c.timestamp(), window));
+      if (buffer.size() >= batchSize
+          || System.currentTimeMillis() - oldestBufferedMillis
+          >= maxLingerMillis) {
+        sendBatch();
+      }
+    }
+
+    /**
+     * @param c the context used to output the predicted transactions.
+     * @throws ExecutionException if a transaction can't be predicted even on
+     *     its own, failing the bundle so that the runner retries it.
+     */
+    @FinishBundle
+    public void finishBundle(final FinishBundleContext c)
+        throws InterruptedException, ExecutionException {
+      if (!buffer.isEmpty()) {
+        sendBatch();
+      }
+      for (PredictionBatch batch : inFlight) {
+        List<Double> fraudProbabilities;
+        try {
+          fraudProbabilities = fraudProbabilities(
+              batch.elements.size(), batch.response.get());
+        } catch (ExecutionException | IllegalStateException e) {
+          LOGGER.warn("Failed to query the ML model for {} transactions, "
+              + "querying them one at a time", batch.elements.size(), e);
+          fraudProbabilities = queryOneAtATime(batch.elements);
         }
+        for (int i = 0; i < batch.elements.size(); i++) {
+          PendingPrediction pending = batch.elements.get(i);
+          if (fraudProbabilities.get(i) >= FRAUD_PROBABILITY_THRESHOLD) {
+            pending.data.getTransactionDetails().setIsFraud("1");
+          } else {
+            pending.data.getTransactionDetails().setIsFraud("0");
+          }
+          c.output(pending.data.getTransactionDetails(), pending.timestamp,
+              pending.window);
+        }
+      }
+      inFlight.clear();
+    }
 
-        c.output(c.element().getTransactionDetails());
-      } catch (Exception e) {
-        LOGGER.error("Failed to query the ML model {}", c.element(), e);
+    /**
+     * Reads the fraud probability of each transaction of a batch from the
+     * ML model's response.
+     *
+     * @param transactions the number of transactions sent in the request.
+     * @param response the ML model's response.
+     * @return the fraud probabilities, in the same order as the transactions.
+     * @throws IllegalStateException if the response doesn't hold exactly one
+     *     prediction per transaction.
+     */
+    static List<Double> fraudProbabilities(final int transactions,
+        final PredictResponse response) {
+      List<Value> predictions = response.getPredictionsList();
+      Preconditions.checkState(predictions.size() == transactions,
+          "The ML model returned %s predictions for %s transactions",
+          predictions.size(), transactions);
+      List<Double> fraudProbabilities = new ArrayList<>(transactions);
+      for (Value prediction : predictions) {
+        fraudProbabilities.add(
+            prediction.getListValue().getValues(0).getNumberValue());
+      }
+      return fraudProbabilities;
+    }
+
+    /**
+     * Sends the buffered transactions in one prediction request.
+     */
+    private void sendBatch() throws InterruptedException {
+      List<PendingPrediction> elements = buffer;
+      buffer = new ArrayList<>(batchSize);
+      inFlight.add(new PredictionBatch(elements, predict(elements)));
+    }
+
+    /**
+     * Sends each transaction in its own prediction request, all at once, and
+     * waits for their predictions.
+     *
+     * @param elements the transactions to predict.
+     * @return the fraud probabilities, in the same order as the transactions.
+     * @throws ExecutionException if a request fails.
+     * @throws IllegalStateException if a response doesn't hold exactly one
+     *     prediction.
+     */
+    private List<Double> queryOneAtATime(
+        final List<PendingPrediction> elements)
+        throws InterruptedException, ExecutionException {
+      List<ApiFuture<PredictResponse>> responses =
+          new ArrayList<>(elements.size());
+      for (PendingPrediction pending : elements) {
+        responses.add(predict(Collections.singletonList(pending)));
+      }
+      List<Double> fraudProbabilities = new ArrayList<>(elements.size());
+      for (ApiFuture<PredictResponse> response : responses) {
+        fraudProbabilities.addAll(fraudProbabilities(1, response.get()));
+      }
+      return fraudProbabilities;
+    }
+
+    /**
+     * Sends the transactions in one prediction request, waiting for a free
+     * in-flight slot first.
+     *
+     * @param elements the transactions to predict.
+     * @return the ML model's response.
+     */
+    private ApiFuture<PredictResponse> predict(
+        final List<PendingPrediction> elements) throws InterruptedException {
+      PredictRequest.Builder predictRequest =
+          PredictRequest.newBuilder().setEndpoint(endpoint);
+      for (PendingPrediction pending : elements) {
+        predictRequest.addInstances(pending.data.getMLInstance());
+      }
+      LOGGER.info("Querying the ML model for " + elements.size()
+          + " transactions");
+
+      inFlightPermits.acquire();
+      ApiFuture<PredictResponse> response;
+      try {
+        response = predictionServiceClient.predictCallable()
+            .futureCall(predictRequest.build());
+      } catch (RuntimeException e) {
+        inFlightPermits.release();
+        throw e;
+      }
+      response.addListener(inFlightPermits::release,
+          MoreExecutors.directExecutor());
+      return response;
+    }
+
+    /**
+     * A transaction waiting for its prediction, along with where it has to
+     * be output.
+     */
+    private static final class PendingPrediction {
+
+      /**
+       * The transaction's aggregated data.
+       */
+      private final AggregatedData data;
+      /**
+       * The incoming transaction timestamp.
+       */
+      private final Instant timestamp;
+      /**
+       * The incoming transaction window.
+       */
+      private final BoundedWindow window;
+
+      /**
+       * @param iData the transaction's aggregated data.
+       * @param iTimestamp the incoming transaction timestamp.
+       * @param iWindow the incoming transaction window.
+       */
+      private PendingPrediction(final AggregatedData iData,
+          final Instant iTimestamp, final BoundedWindow iWindow) {
+        this.data = iData;
+        this.timestamp = iTimestamp;
+        this.window = iWindow;
+      }
+    }
+
+    /**
+     * A prediction request that was sent, and the transactions it holds in
+     * instance order.
+     */
+    private static final class PredictionBatch {
+
+      /**
+       * The transactions, in the same order as the request instances.
+       */
+      private final List<PendingPrediction> elements;
+      /**
+       * The pending prediction response.
+       */
+      private final ApiFuture<PredictResponse> response;
+
+      /**
+       * @param iElements the transactions sent.
+       * @param iResponse the pending prediction response.
+       */
+      private PredictionBatch(final List<PendingPrediction> iElements,
+          final ApiFuture<PredictResponse> iResponse) {
+        this.elements = iElements;
+        this.response = iResponse;
       }
     }
   }
@@ -253,9 +489,12 @@ public final class FraudDetection {
                 PubsubIO.readStrings().fromTopic(options.getInputTopic()))
             .apply("Preprocess Input", ParDo.of(PREPROCESS_INPUT))
             .apply("Read from Cloud Bigtable",
-                ParDo.of(new ReadFromTableFn(config)))
+                ParDo.of(new BatchedReadFromTableFn(config)))
             .apply("Query ML Model",
-                ParDo.of(new QueryMlModelFn(options.getMLRegion())));
+                ParDo.of(new QueryMlModelFn(options.getMLRegion(),
+                    options.getMLStubMode(),
+                    options.getMLStubFraudProbability(),
+                    options.getMLStubLatencyMillis())));
 
     modelOutput
         .apply(
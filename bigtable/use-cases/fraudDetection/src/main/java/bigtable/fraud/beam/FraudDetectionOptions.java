@@ -16,6 +16,7 @@
 package bigtable.fraud.beam;
 
 import org.apache.beam.runners.dataflow.options.DataflowPipelineOptions;
+import org.apache.beam.sdk.options.Default;
 import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.Validation.Required;
 
@@ -114,5 +115,133 @@ public interface FraudDetectionOptions extends DataflowPipelineOptions {
    * @param randomUUID a random string to make the job name unique.
    */
   void setRandomUUID(String randomUUID);
-}
 
+  /**
+   * @return the maximum number of customer lookups sent in one multi-get.
+   */
+  @Description("The maximum number of customer rows read from CBT in a "
+      + "single multi-get.")
+  @Default.Integer(100)
+  int getCBTReadBatchSize();
+
+  /**
+   * @param batchSize the maximum number of rows per multi-get.
+   */
+  void setCBTReadBatchSize(int batchSize);
+
+  /**
+   * @return how long a lookup may wait for its batch to fill.
+   */
+  @Description("The maximum time in milliseconds a transaction waits for "
+      + "its CBT read batch to fill before it is sent.")
+  @Default.Long(20L)
+  long getCBTReadMaxLatencyMillis();
+
+  /**
+   * @param maxLatencyMillis the maximum batching delay in milliseconds.
+   */
+  void setCBTReadMaxLatencyMillis(long maxLatencyMillis);
+
+  /**
+   * @return the number of customer profiles cached on each worker.
+   */
+  @Description("The number of customer profiles cached on each worker.")
+  @Default.Long(100000L)
+  long getCustomerProfileCacheSize();
+
+  /**
+   * @param cacheSize the maximum number of cached customer profiles.
+   */
+  void setCustomerProfileCacheSize(long cacheSize);
+
+  /**
+   * @return how long a cached customer profile stays valid.
+   */
+  @Description("How long in seconds a cached customer profile is used "
+      + "before it is read from CBT again.")
+  @Default.Long(300L)
+  long getCustomerProfileCacheTtlSeconds();
+
+  /**
+   * @param ttlSeconds the customer profile cache TTL in seconds.
+   */
+  void setCustomerProfileCacheTtlSeconds(long ttlSeconds);
+
+  /**
+   * @return the maximum number of instances sent in one prediction request.
+   */
+  @Description("The maximum number of transactions sent to the ML model in "
+      + "a single prediction request.")
+  @Default.Integer(32)
+  int getMLBatchSize();
+
+  /**
+   * @param batchSize the maximum number of instances per request.
+   */
+  void setMLBatchSize(int batchSize);
+
+  /**
+   * @return how long a transaction may wait for its prediction batch to fill.
+   */
+  @Description("The maximum time in milliseconds a transaction waits for "
+      + "its prediction batch to fill before it is sent.")
+  @Default.Long(20L)
+  long getMLMaxLingerMillis();
+
+  /**
+   * @param maxLingerMillis the maximum batching delay in milliseconds.
+   */
+  void setMLMaxLingerMillis(long maxLingerMillis);
+
+  /**
+   * @return the maximum number of prediction requests in flight per worker.
+   */
+  @Description("The maximum number of prediction requests in flight on "
+      + "each worker.")
+  @Default.Integer(8)
+  int getMLMaxInFlightRequests();
+
+  /**
+   * @param maxInFlight the maximum number of in-flight requests.
+   */
+  void setMLMaxInFlightRequests(int maxInFlight);
+
+  /**
+   * @return whether predictions come from a local stub instead of Vertex AI.
+   */
+  @Description("Answer predictions with a local stub instead of querying "
+      + "the Vertex AI endpoint. Used for testing and benchmarking.")
+  @Default.Boolean(false)
+  boolean getMLStubMode();
+
+  /**
+   * @param stubMode true to use the local prediction stub.
+   */
+  void setMLStubMode(boolean stubMode);
+
+  /**
+   * @return the fraud probability the local prediction stub returns.
+   */
+  @Description("The fraud probability the local prediction stub returns for "
+      + "every transaction.")
+  @Default.Double(0d)
+  double getMLStubFraudProbability();
+
+  /**
+   * @param fraudProbability the fraud probability the stub returns.
+   */
+  void setMLStubFraudProbability(double fraudProbability);
+
+  /**
+   * @return the simulated round trip (ms) of a local prediction stub request.
+   */
+  @Description("The time in milliseconds the local prediction stub takes to "
+      + "answer a request, standing in for the round trip to Vertex AI.")
+  @Default.Long(0L)
+  long getMLStubLatencyMillis();
+
+  /**
+   * @param latencyMillis the simulated round trip of a stub request.
+   */
+  void setMLStubLatencyMillis(long latencyMillis);
+}
@@ -15,6 +15,8 @@
  */
 package bigtable.fraud.beam.utils;
 
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
 import java.util.ArrayList;
 import org.apache.beam.sdk.coders.DefaultCoder;
 import org.apache.beam.sdk.extensions.avro.coders.AvroCoder;
@@ -68,8 +70,13 @@ public final class AggregatedData {
     this.customerProfile = iCustomerProfile;
     this.transactionDetails = iTransactionDetails;
 
-    // Get last transaction.
-    TransactionDetails lastTransaction = new TransactionDetails(row);
+    // Get last transaction. A customer without transactions yet has no
+    // history to aggregate, and the row read may then be empty.
+    TransactionDetails lastTransaction =
+        row.isEmpty() ? null : new TransactionDetails(row);
+    if (lastTransaction == null || lastTransaction.getMerchantLat() == null) {
+      return;
+    }
     String lastTransactionLat = lastTransaction.getMerchantLat();
     String lastTransactionLong = lastTransaction.getMerchantLong();
     long lastTransactionTime = lastTransaction.getTimestampMillisecond();
@@ -155,6 +162,30 @@ public final class AggregatedData {
    * @return a feature vector.
    */
   public String getMLFeatures() {
+    // Convert it to the format that the ML model accepts.
+    return "[[" + UtilFunctions.arrayListToCommasString(getMLFeatureList())
+        + "]]";
+  }
+
+  /**
+   * Generates the feature vector as a single ML model prediction instance,
+   * without going through a JSON string.
+   *
+   * @return a prediction instance holding the feature vector.
+   */
+  public Value getMLInstance() {
+    ListValue.Builder instance = ListValue.newBuilder();
+    for (String feature : getMLFeatureList()) {
+      instance.addValues(
+          Value.newBuilder().setNumberValue(Double.parseDouble(feature)));
+    }
+    return Value.newBuilder().setListValue(instance).build();
+  }
+
+  /**
+   * @return the features used by the machine learning model, in order.
+   */
+  private ArrayList<String> getMLFeatureList() {
     ArrayList<String> mlFeatures = new ArrayList<>();
 
     mlFeatures.add(String.valueOf(lastTransactionMinutesDiff));
@@ -166,8 +197,6 @@ public final class AggregatedData {
     mlFeatures.add(customerProfile.getCcNumber());
     mlFeatures.add(String.valueOf(transactionDetails.getTransactionAmount()));
     mlFeatures.add(String.valueOf(transactionDetails.getMerchantID()));
-
-    // Convert it to the format that the ML model accepts.
-    return "[[" + UtilFunctions.arrayListToCommasString(mlFeatures) + "]]";
+    return mlFeatures;
   }
 }
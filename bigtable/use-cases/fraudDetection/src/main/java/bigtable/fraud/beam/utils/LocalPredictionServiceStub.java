@@ -0,0 +1,210 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bigtable.fraud.beam.utils;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.aiplatform.v1.PredictRequest;
+import com.google.cloud.aiplatform.v1.PredictResponse;
+import com.google.cloud.aiplatform.v1.stub.PredictionServiceStub;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/*
+ * A PredictionServiceStub that answers predict calls locally so the
+ * fraud-detection pipeline can be tested and benchmarked without a Vertex AI
+ * endpoint. Every instance gets the same fraud probability, or one computed
+ * from the instance, and each request can be delayed to mimic the endpoint's
+ * round trip. A request fails if computing any of its probabilities throws.
+ */
+public final class LocalPredictionServiceStub extends PredictionServiceStub {
+
+  /**
+   * Computes the fraud probability returned for an instance.
+   */
+  private final ToDoubleFunction<Value> fraudProbability;
+  /**
+   * The simulated round trip of a request in milliseconds.
+   */
+  private final long latencyMillis;
+  /**
+   * Completes delayed responses.
+   */
+  private final ScheduledExecutorService scheduler;
+  /**
+   * The number of predict requests received.
+   */
+  private final AtomicLong requestCount = new AtomicLong();
+  /**
+   * The number of instances predicted.
+   */
+  private final AtomicLong instanceCount = new AtomicLong();
+  /**
+   * The number of instances in each request, in the order received.
+   */
+  private final List<Integer> requestSizes = new ArrayList<>();
+  /**
+   * The number of requests not answered yet.
+   */
+  private final AtomicInteger concurrentRequests = new AtomicInteger();
+  /**
+   * The highest number of requests not answered at the same time.
+   */
+  private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+  /**
+   * @param iFraudProbability the probability returned for every instance.
+   * @param iLatencyMillis the simulated round trip of a request.
+   */
+  public LocalPredictionServiceStub(final double iFraudProbability,
+      final long iLatencyMillis) {
+    this(instance -> iFraudProbability, iLatencyMillis);
+  }
+
+  /**
+   * @param iFraudProbability computes the probability returned for an
+   * instance.
+   * @param iLatencyMillis the simulated round trip of a request.
+   */
+  public LocalPredictionServiceStub(
+      final ToDoubleFunction<Value> iFraudProbability,
+      final long iLatencyMillis) {
+    this.fraudProbability = iFraudProbability;
+    this.latencyMillis = iLatencyMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "local-prediction-stub");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return the number of predict requests received.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return the number of instances predicted.
+   */
+  public long getInstanceCount() {
+    return instanceCount.get();
+  }
+
+  /**
+   * @return the number of instances in each request, in the order received.
+   */
+  public synchronized List<Integer> getRequestSizes() {
+    return new ArrayList<>(requestSizes);
+  }
+
+  /**
+   * @return the highest number of requests in flight at the same time.
+   */
+  public int getMaxConcurrentRequests() {
+    return maxConcurrentRequests.get();
+  }
+
+  @Override
+  public UnaryCallable<PredictRequest, PredictResponse> predictCallable() {
+    return new UnaryCallable<PredictRequest, PredictResponse>() {
+      @Override
+      public ApiFuture<PredictResponse> futureCall(
+          final PredictRequest request, final ApiCallContext context) {
+        requestCount.incrementAndGet();
+        instanceCount.addAndGet(request.getInstancesCount());
+        synchronized (LocalPredictionServiceStub.this) {
+          requestSizes.add(request.getInstancesCount());
+        }
+        maxConcurrentRequests.accumulateAndGet(
+            concurrentRequests.incrementAndGet(), Math::max);
+
+        SettableApiFuture<PredictResponse> future = SettableApiFuture.create();
+        Runnable answer = () -> {
+          concurrentRequests.decrementAndGet();
+          try {
+            future.set(predict(request));
+          } catch (RuntimeException e) {
+            future.setException(e);
+          }
+        };
+        if (latencyMillis <= 0) {
+          answer.run();
+        } else {
+          scheduler.schedule(answer, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+        return future;
+      }
+    };
+  }
+
+  /**
+   * @param request the predict request.
+   * @return one prediction per instance, shaped like the real model output.
+   */
+  private PredictResponse predict(final PredictRequest request) {
+    PredictResponse.Builder response = PredictResponse.newBuilder();
+    for (Value instance : request.getInstancesList()) {
+      response.addPredictions(Value.newBuilder()
+          .setListValue(ListValue.newBuilder().addValues(
+              Value.newBuilder().setNumberValue(
+                  fraudProbability.applyAsDouble(instance)))));
+    }
+    return response.build();
+  }
+
+  @Override
+  public void close() {
+    shutdown();
+  }
+
+  @Override
+  public void shutdown() {
+    scheduler.shutdown();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return scheduler.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return scheduler.isTerminated();
+  }
+
+  @Override
+  public void shutdownNow() {
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public boolean awaitTermination(final long duration, final TimeUnit unit)
+      throws InterruptedException {
+    return scheduler.awaitTermination(duration, unit);
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bigtable.fraud.beam;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import bigtable.fraud.beam.utils.AggregatedData;
+import bigtable.fraud.beam.utils.CustomerProfile;
+import bigtable.fraud.beam.utils.TransactionDetails;
+import com.google.cloud.bigtable.hbase.adapters.read.RowCell;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.Value;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchedReadFromTableFnTest {
+
+  private static final String PROFILE = "customer_profile";
+  private static final String HISTORY = "history";
+
+  /**
+   * The cells of every row in the table, by row key, in the order read.
+   */
+  private final Map<String, List<Cell>> rows = new HashMap<>();
+  /**
+   * The gets of every multi-get sent to the table.
+   */
+  private final List<List<Get>> reads = new ArrayList<>();
+  private Cache<String, CustomerProfile> cache;
+  private Table table;
+
+  @Before
+  public void setUp() {
+    cache = CacheBuilder.newBuilder().build();
+    table = (Table) Proxy.newProxyInstance(
+        getClass().getClassLoader(),
+        new Class<?>[] {Table.class},
+        (proxy, method, args) -> {
+          if (!method.getName().equals("get")
+              || !(args[0] instanceof List)) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          @SuppressWarnings("unchecked")
+          List<Get> gets = (List<Get>) args[0];
+          reads.add(gets);
+          Result[] results = new Result[gets.size()];
+          for (int i = 0; i < gets.size(); i++) {
+            results[i] = read(gets.get(i));
+          }
+          return results;
+        });
+
+    addProfile("1");
+    addTransaction("1", 1_000_000L, "40.0", "-74.0");
+    addProfile("2");
+  }
+
+  @Test
+  public void testReadsCustomersInOneBatchAndCachesTheirProfiles()
+      throws Exception {
+    List<AggregatedData> results = BatchedReadFromTableFn.readBatch(
+        table, cache, Arrays.asList(transaction("1"), transaction("2")));
+
+    assertThat(results).hasSize(2);
+    assertThat(reads).hasSize(1);
+    assertThat(reads.get(0)).hasSize(2);
+    assertThat(cache.getIfPresent("1").getCcNumber()).isEqualTo("4111");
+    assertThat(cache.getIfPresent("2")).isNotNull();
+    // The customer's last transaction was 1000 minutes earlier.
+    assertThat(features(results.get(0)).get(0)).isEqualTo(1000d);
+
+    // Once cached, only the history is read.
+    results = BatchedReadFromTableFn.readBatch(
+        table, cache, Collections.singletonList(transaction("1")));
+    assertThat(families(reads.get(1).get(0))).containsExactly(HISTORY);
+    assertThat(features(results.get(0)).get(0)).isEqualTo(1000d);
+    assertThat(features(results.get(0)).get(5)).isEqualTo(1d);
+  }
+
+  @Test
+  public void testCustomerWithoutHistoryHasNothingToAggregate()
+      throws Exception {
+    // The first read fetches the profile, the second only the empty history.
+    for (int attempt = 0; attempt < 2; attempt++) {
+      List<AggregatedData> results = BatchedReadFromTableFn.readBatch(
+          table, cache, Collections.singletonList(transaction("2")));
+
+      List<Double> features = features(results.get(0));
+      assertThat(features.subList(0, 5)).containsExactly(0d, 0d, 0d, 0d, 0d);
+      assertThat(features.get(5)).isEqualTo(2d);
+    }
+    assertThat(families(reads.get(1).get(0))).containsExactly(HISTORY);
+  }
+
+  @Test
+  public void testUnknownCustomerFailsWithItsId() {
+    IllegalArgumentException e = assertThrows(
+        IllegalArgumentException.class,
+        () -> BatchedReadFromTableFn.readBatch(
+            table, cache, Collections.singletonList(transaction("3"))));
+
+    assertThat(e).hasMessageThat().contains("3");
+  }
+
+  private Result read(final Get get) {
+    List<Cell> cells = new ArrayList<>();
+    for (Cell cell : rows.getOrDefault(
+        Bytes.toString(get.getRow()), Collections.emptyList())) {
+      if (!get.hasFamilies() || get.getFamilyMap().containsKey(
+          Arrays.copyOfRange(cell.getFamilyArray(), cell.getFamilyOffset(),
+              cell.getFamilyOffset() + cell.getFamilyLength()))) {
+        cells.add(cell);
+      }
+    }
+    return Result.create(cells);
+  }
+
+  private void addProfile(final String customerID) {
+    add(customerID, PROFILE, 0, "accountNumber", "123", "ccNumber", "4111",
+        "dob", "1990-01-01", "firstName", "Jane", "lastName", "Doe");
+  }
+
+  private void addTransaction(final String customerID, final long timestamp,
+      final String lat, final String lon) {
+    add(customerID, HISTORY, timestamp, "isFraud", "0", "merchantID", "7",
+        "merchantLat", lat, "merchantLong", lon, "transactionAmount", "10.0",
+        "transactionID", "t" + timestamp);
+  }
+
+  private void add(final String customerID, final String family,
+      final long timestamp, final String... columnsAndValues) {
+    List<Cell> cells =
+        rows.computeIfAbsent(customerID, key -> new ArrayList<>());
+    for (int i = 0; i < columnsAndValues.length; i += 2) {
+      cells.add(new RowCell(Bytes.toBytes(customerID), Bytes.toBytes(family),
+          Bytes.toBytes(columnsAndValues[i]), timestamp,
+          Bytes.toBytes(columnsAndValues[i + 1])));
+    }
+  }
+
+  private static TransactionDetails transaction(final String customerID) {
+    // Made 1000 minutes after the customer's first transaction, if any.
+    return new TransactionDetails(customerID
+        + ", TimestampMilliseconds=61000000, t2, 20.0, 8, -74.0, 40.0, 0");
+  }
+
+  private static List<String> families(final Get get) {
+    List<String> families = new ArrayList<>();
+    for (byte[] family : get.getFamilyMap().keySet()) {
+      families.add(Bytes.toString(family));
+    }
+    return families;
+  }
+
+  private static List<Double> features(final AggregatedData data) {
+    List<Double> features = new ArrayList<>();
+    for (Value value : data.getMLInstance().getListValue().getValuesList()) {
+      features.add(value.getNumberValue());
+    }
+    return features;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bigtable.fraud.beam;
+
+import bigtable.fraud.beam.FraudDetection.QueryMlModelFn;
+import bigtable.fraud.beam.utils.AggregatedData;
+import bigtable.fraud.beam.utils.LocalPredictionServiceStub;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindow;
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+Measures transactions scored per second by QueryMlModelFn against a local
+model that takes 10ms to answer each request, without a pipeline or Vertex AI.
+Every operation runs one bundle of transactions. A batch size of 1 with 1
+request in flight is how the DoFn used to query the model, one transaction at
+a time. Each parameter combination runs in its own JVM, as the in-flight
+permits are shared by the whole JVM. Run with
+mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+  -Dexec.args="-cp %classpath bigtable.fraud.beam.QueryMlModelFnBenchmark"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryMlModelFnBenchmark {
+
+  private static final int TRANSACTIONS_PER_BUNDLE = 256;
+  private static final long MODEL_LATENCY_MILLIS = 10L;
+
+  @Param({"1", "32"})
+  int batchSize;
+
+  @Param({"1", "8"})
+  int maxInFlightRequests;
+
+  private QueryMlModelFnRunner runner;
+  private List<AggregatedData> transactions;
+
+  @Setup
+  public void setup() throws Exception {
+    FraudDetectionOptions options = QueryMlModelFnRunner.options();
+    options.setMLBatchSize(batchSize);
+    options.setMLMaxLingerMillis(60_000L);
+    options.setMLMaxInFlightRequests(maxInFlightRequests);
+    runner = new QueryMlModelFnRunner(new QueryMlModelFn(
+        new LocalPredictionServiceStub(0.05d, MODEL_LATENCY_MILLIS)),
+        options);
+    transactions = new ArrayList<>(TRANSACTIONS_PER_BUNDLE);
+    for (int i = 0; i < TRANSACTIONS_PER_BUNDLE; i++) {
+      transactions.add(QueryMlModelFnRunner.transaction(i, 10d + i));
+    }
+  }
+
+  @TearDown
+  public void teardown() {
+    runner.teardown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TRANSACTIONS_PER_BUNDLE)
+  public int scoreBundle() throws Exception {
+    runner.startBundle();
+    for (int i = 0; i < transactions.size(); i++) {
+      runner.process(transactions.get(i), new Instant(i),
+          GlobalWindow.INSTANCE);
+    }
+    runner.finishBundle();
+    int scored = runner.getOutputs().size();
+    runner.getOutputs().clear();
+    return scored;
+  }
+
+  public static void main(final String[] args)
+      throws RunnerException, CommandLineOptionException {
+    new Runner(
+        new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .include(QueryMlModelFnBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build())
+        .run();
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bigtable.fraud.beam;
+
+import bigtable.fraud.beam.FraudDetection.QueryMlModelFn;
+import bigtable.fraud.beam.utils.AggregatedData;
+import bigtable.fraud.beam.utils.CustomerProfile;
+import bigtable.fraud.beam.utils.RowDetails;
+import bigtable.fraud.beam.utils.TransactionDetails;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.values.PCollectionView;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.hadoop.hbase.client.Result;
+import org.joda.time.Instant;
+
+/**
+ * Runs a QueryMlModelFn the way a runner would, one bundle at a time,
+ * without a pipeline, so tests and benchmarks control when each element
+ * arrives and can look at the stub it queries.
+ */
+final class QueryMlModelFnRunner {
+
+  /**
+   * The DoFn being run.
+   */
+  private final QueryMlModelFn fn;
+  /**
+   * The options the DoFn reads its settings from.
+   */
+  private final FraudDetectionOptions options;
+  /**
+   * Everything output so far.
+   */
+  private final List<Output> outputs = new ArrayList<>();
+
+  /**
+   * Sets up the DoFn.
+   *
+   * @param iFn the DoFn to run.
+   * @param iOptions the options the DoFn reads its settings from.
+   */
+  QueryMlModelFnRunner(final QueryMlModelFn iFn,
+      final FraudDetectionOptions iOptions) throws IOException {
+    this.fn = iFn;
+    this.options = iOptions;
+    fn.setup();
+  }
+
+  /**
+   * @return options with the ML endpoint the DoFn needs set.
+   */
+  static FraudDetectionOptions options() {
+    FraudDetectionOptions options =
+        PipelineOptionsFactory.as(FraudDetectionOptions.class);
+    options.setProjectID("project");
+    options.setMLRegion("region");
+    options.setMLEndpoint("endpoint");
+    return options;
+  }
+
+  /**
+   * @param customerID the numeric customer id, which is an ML feature.
+   * @param amount the transaction amount, which is an ML feature.
+   * @return the aggregated data of a customer without transaction history.
+   */
+  static AggregatedData transaction(final int customerID,
+      final double amount) {
+    return new AggregatedData(
+        new CustomerProfile(customerID + ", 4111, Jane, Doe, 1990-01-01, 123"),
+        new TransactionDetails(customerID + ", t" + customerID + ", "
+            + amount + ", 7, -74.0, 40.0, 0"),
+        Result.create(Collections.emptyList()));
+  }
+
+  /**
+   * Starts a bundle.
+   */
+  void startBundle() {
+    fn.startBundle(fn.new StartBundleContext() {
+      @Override
+      public PipelineOptions getPipelineOptions() {
+        return options;
+      }
+    });
+  }
+
+  /**
+   * Processes one element.
+   *
+   * @param data the element.
+   * @param timestamp the element's timestamp.
+   * @param window the element's window.
+   */
+  void process(final AggregatedData data, final Instant timestamp,
+      final BoundedWindow window) throws InterruptedException {
+    fn.processElement(fn.new ProcessContext() {
+      @Override
+      public AggregatedData element() {
+        return data;
+      }
+
+      @Override
+      public <T> T sideInput(final PCollectionView<T> view) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Instant timestamp() {
+        return timestamp;
+      }
+
+      @Override
+      public PaneInfo pane() {
+        return PaneInfo.NO_FIRING;
+      }
+
+      @Override
+      public PipelineOptions getPipelineOptions() {
+        return options;
+      }
+
+      @Override
+      public void output(final RowDetails output) {
+        outputWithTimestamp(output, timestamp);
+      }
+
+      @Override
+      public void outputWithTimestamp(final RowDetails output,
+          final Instant outputTimestamp) {
+        outputs.add(new Output(output, outputTimestamp, window));
+      }
+
+      @Override
+      public void outputWindowedValue(final RowDetails output,
+          final Instant outputTimestamp,
+          final Collection<? extends BoundedWindow> windows,
+          final PaneInfo paneInfo) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public <T> void output(final TupleTag<T> tag, final T output) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public <T> void outputWithTimestamp(final TupleTag<T> tag,
+          final T output, final Instant outputTimestamp) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public <T> void outputWindowedValue(final TupleTag<T> tag,
+          final T output, final Instant outputTimestamp,
+          final Collection<? extends BoundedWindow> windows,
+          final PaneInfo paneInfo) {
+        throw new UnsupportedOperationException();
+      }
+    }, window);
+  }
+
+  /**
+   * Finishes the bundle.
+   */
+  void finishBundle() throws InterruptedException, ExecutionException {
+    fn.finishBundle(fn.new FinishBundleContext() {
+      @Override
+      public PipelineOptions getPipelineOptions() {
+        return options;
+      }
+
+      @Override
+      public void output(final RowDetails output, final Instant timestamp,
+          final BoundedWindow window) {
+        outputs.add(new Output(output, timestamp, window));
+      }
+
+      @Override
+      public <T> void output(final TupleTag<T> tag, final T output,
+          final Instant timestamp, final BoundedWindow window) {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+
+  /**
+   * Tears down the DoFn.
+   */
+  void teardown() {
+    fn.teardown();
+  }
+
+  /**
+   * @return everything output so far, in order.
+   */
+  List<Output> getOutputs() {
+    return outputs;
+  }
+
+  /**
+   * An element output by the DoFn, along with where it was output.
+   */
+  static final class Output {
+
+    /**
+     * The output transaction.
+     */
+    private final TransactionDetails transaction;
+    /**
+     * The output timestamp.
+     */
+    private final Instant timestamp;
+    /**
+     * The output window.
+     */
+    private final BoundedWindow window;
+
+    /**
+     * @param iTransaction the output transaction.
+     * @param iTimestamp the output timestamp.
+     * @param iWindow the output window.
+     */
+    private Output(final RowDetails iTransaction, final Instant iTimestamp,
+        final BoundedWindow iWindow) {
+      this.transaction = (TransactionDetails) iTransaction;
+      this.timestamp = iTimestamp;
+      this.window = iWindow;
+    }
+
+    TransactionDetails getTransaction() {
+      return transaction;
+    }
+
+    Instant getTimestamp() {
+      return timestamp;
+    }
+
+    BoundedWindow getWindow() {
+      return window;
+    }
+  }
+}
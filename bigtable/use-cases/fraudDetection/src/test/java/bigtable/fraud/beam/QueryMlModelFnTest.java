@@ -0,0 +1,293 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bigtable.fraud.beam;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import bigtable.fraud.beam.FraudDetection.QueryMlModelFn;
+import bigtable.fraud.beam.QueryMlModelFnRunner.Output;
+import bigtable.fraud.beam.utils.LocalPredictionServiceStub;
+import com.google.cloud.aiplatform.v1.PredictRequest;
+import com.google.cloud.aiplatform.v1.PredictResponse;
+import com.google.cloud.aiplatform.v1.PredictionServiceClient;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.GlobalWindow;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryMlModelFnTest {
+
+  /**
+   * The index of the transaction amount among the ML features.
+   */
+  private static final int AMOUNT_FEATURE = 7;
+  /**
+   * The in-flight permits are shared by the whole JVM and created once, so
+   * every test runs with this many.
+   */
+  private static final int MAX_IN_FLIGHT = 2;
+
+  /**
+   * Answers every instance with a fraud probability of 0.25, after 10ms.
+   */
+  private LocalPredictionServiceStub stub;
+  private PredictionServiceClient client;
+
+  @Before
+  public void setUp() {
+    stub = new LocalPredictionServiceStub(0.25d, 10L);
+    client = PredictionServiceClient.create(stub);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  @Test
+  public void testBatchIsPredictedInOneRequest() throws Exception {
+    PredictResponse response = client.predictCallable()
+        .futureCall(request(3))
+        .get(5, TimeUnit.SECONDS);
+
+    assertThat(QueryMlModelFn.fraudProbabilities(3, response))
+        .containsExactly(0.25d, 0.25d, 0.25d);
+    assertThat(stub.getRequestCount()).isEqualTo(1);
+    assertThat(stub.getInstanceCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testResponseWithTooFewPredictionsFailsTheBatch()
+      throws Exception {
+    PredictResponse response = client.predictCallable()
+        .futureCall(request(2))
+        .get(5, TimeUnit.SECONDS);
+
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> QueryMlModelFn.fraudProbabilities(3, response));
+
+    assertThat(e).hasMessageThat()
+        .isEqualTo("The ML model returned 2 predictions for 3 transactions");
+  }
+
+  @Test
+  public void testResponseWithTooManyPredictionsFailsTheBatch()
+      throws Exception {
+    PredictResponse response = client.predictCallable()
+        .futureCall(request(4))
+        .get(5, TimeUnit.SECONDS);
+
+    assertThrows(IllegalStateException.class,
+        () -> QueryMlModelFn.fraudProbabilities(3, response));
+  }
+
+  @Test
+  public void testTransactionsArePackedUpToTheBatchSize() throws Exception {
+    LocalPredictionServiceStub packingStub =
+        new LocalPredictionServiceStub(0d, 0L);
+    QueryMlModelFnRunner runner = runner(packingStub, 4, 60_000L);
+
+    runner.startBundle();
+    for (int i = 0; i < 10; i++) {
+      runner.process(QueryMlModelFnRunner.transaction(i, 10d),
+          new Instant(i), GlobalWindow.INSTANCE);
+    }
+    runner.finishBundle();
+    runner.teardown();
+
+    // Full batches are sent as they fill up, the rest when the bundle ends.
+    assertThat(packingStub.getRequestSizes()).containsExactly(4, 4, 2)
+        .inOrder();
+    assertThat(runner.getOutputs()).hasSize(10);
+  }
+
+  @Test
+  public void testBatchIsSentOnceItsOldestTransactionHasLingered()
+      throws Exception {
+    LocalPredictionServiceStub lingerStub =
+        new LocalPredictionServiceStub(0d, 0L);
+    QueryMlModelFnRunner runner = runner(lingerStub, 100, 50L);
+
+    runner.startBundle();
+    runner.process(QueryMlModelFnRunner.transaction(1, 10d),
+        new Instant(1), GlobalWindow.INSTANCE);
+    assertThat(lingerStub.getRequestCount()).isEqualTo(0);
+    Thread.sleep(100);
+    // The first transaction has waited longer than the linger time, so the
+    // next one to arrive sends them both.
+    runner.process(QueryMlModelFnRunner.transaction(2, 10d),
+        new Instant(2), GlobalWindow.INSTANCE);
+    assertThat(lingerStub.getRequestSizes()).containsExactly(2);
+    runner.process(QueryMlModelFnRunner.transaction(3, 10d),
+        new Instant(3), GlobalWindow.INSTANCE);
+    runner.finishBundle();
+    runner.teardown();
+
+    assertThat(lingerStub.getRequestSizes()).containsExactly(2, 1).inOrder();
+  }
+
+  @Test
+  public void testRequestsInFlightAreBounded() throws Exception {
+    LocalPredictionServiceStub slowStub =
+        new LocalPredictionServiceStub(0d, 50L);
+    QueryMlModelFnRunner runner = runner(slowStub, 1, 60_000L);
+
+    runner.startBundle();
+    for (int i = 0; i < 6; i++) {
+      runner.process(QueryMlModelFnRunner.transaction(i, 10d),
+          new Instant(i), GlobalWindow.INSTANCE);
+    }
+    runner.finishBundle();
+    runner.teardown();
+
+    assertThat(slowStub.getRequestCount()).isEqualTo(6);
+    assertThat(slowStub.getMaxConcurrentRequests()).isEqualTo(MAX_IN_FLIGHT);
+    assertThat(runner.getOutputs()).hasSize(6);
+  }
+
+  @Test
+  public void testPredictionsGoToTheirOwnTransactionTimestampAndWindow()
+      throws Exception {
+    // Transactions of 100 or more are predicted to be fraudulent.
+    LocalPredictionServiceStub mappingStub = new LocalPredictionServiceStub(
+        instance -> amount(instance) >= 100d ? 0.9d : 0d, 10L);
+    QueryMlModelFnRunner runner = runner(mappingStub, 3, 60_000L);
+    List<BoundedWindow> windows = Arrays.asList(
+        new IntervalWindow(new Instant(0), new Instant(1000)),
+        new IntervalWindow(new Instant(1000), new Instant(2000)));
+
+    runner.startBundle();
+    for (int i = 0; i < 8; i++) {
+      double amount = i % 3 == 0 ? 500d : 10d;
+      runner.process(QueryMlModelFnRunner.transaction(i, amount),
+          new Instant(i * 250L), windows.get(i / 4));
+    }
+    runner.finishBundle();
+    runner.teardown();
+
+    assertThat(mappingStub.getRequestSizes()).containsExactly(3, 3, 2)
+        .inOrder();
+    List<Output> outputs = runner.getOutputs();
+    assertThat(outputs).hasSize(8);
+    for (Output output : outputs) {
+      int customer =
+          Integer.parseInt(output.getTransaction().getCustomerID());
+      assertThat(output.getTransaction().isFraud())
+          .isEqualTo(customer % 3 == 0);
+      assertThat(output.getTimestamp())
+          .isEqualTo(new Instant(customer * 250L));
+      assertThat(output.getWindow()).isEqualTo(windows.get(customer / 4));
+    }
+  }
+
+  @Test
+  public void testFailedBatchIsQueriedOneTransactionAtATime()
+      throws Exception {
+    // The first request fails, every later one succeeds.
+    AtomicBoolean failed = new AtomicBoolean();
+    LocalPredictionServiceStub flakyStub = new LocalPredictionServiceStub(
+        instance -> {
+          if (failed.compareAndSet(false, true)) {
+            throw new IllegalStateException("Model unavailable");
+          }
+          return amount(instance) >= 100d ? 0.9d : 0d;
+        }, 0L);
+    QueryMlModelFnRunner runner = runner(flakyStub, 3, 60_000L);
+
+    runner.startBundle();
+    for (int i = 0; i < 3; i++) {
+      double amount = i == 1 ? 500d : 10d;
+      runner.process(QueryMlModelFnRunner.transaction(i, amount),
+          new Instant(i), GlobalWindow.INSTANCE);
+    }
+    runner.finishBundle();
+    runner.teardown();
+
+    assertThat(flakyStub.getRequestSizes()).containsExactly(3, 1, 1, 1)
+        .inOrder();
+    List<Boolean> fraud = new ArrayList<>();
+    for (Output output : runner.getOutputs()) {
+      fraud.add(output.getTransaction().isFraud());
+    }
+    assertThat(fraud).containsExactly(false, true, false).inOrder();
+  }
+
+  @Test
+  public void testTransactionThatCanNotBePredictedFailsTheBundle()
+      throws Exception {
+    LocalPredictionServiceStub failingStub = new LocalPredictionServiceStub(
+        instance -> {
+          if (amount(instance) == 666d) {
+            throw new IllegalStateException("Model unavailable");
+          }
+          return 0d;
+        }, 0L);
+    QueryMlModelFnRunner runner = runner(failingStub, 3, 60_000L);
+
+    runner.startBundle();
+    runner.process(QueryMlModelFnRunner.transaction(1, 10d), new Instant(1),
+        GlobalWindow.INSTANCE);
+    runner.process(QueryMlModelFnRunner.transaction(2, 666d), new Instant(2),
+        GlobalWindow.INSTANCE);
+
+    // Rather than dropping the transactions, the runner retries the bundle.
+    ExecutionException e =
+        assertThrows(ExecutionException.class, runner::finishBundle);
+    runner.teardown();
+
+    assertThat(e).hasCauseThat().hasMessageThat()
+        .isEqualTo("Model unavailable");
+    assertThat(runner.getOutputs()).isEmpty();
+  }
+
+  private static QueryMlModelFnRunner runner(
+      final LocalPredictionServiceStub predictionStub, final int batchSize,
+      final long maxLingerMillis) throws Exception {
+    FraudDetectionOptions options = QueryMlModelFnRunner.options();
+    options.setMLBatchSize(batchSize);
+    options.setMLMaxLingerMillis(maxLingerMillis);
+    options.setMLMaxInFlightRequests(MAX_IN_FLIGHT);
+    return new QueryMlModelFnRunner(new QueryMlModelFn(predictionStub),
+        options);
+  }
+
+  private static double amount(final Value instance) {
+    return instance.getListValue().getValues(AMOUNT_FEATURE).getNumberValue();
+  }
+
+  private static PredictRequest request(final int instances) {
+    PredictRequest.Builder request = PredictRequest.newBuilder()
+        .setEndpoint("projects/p/locations/l/endpoints/e");
+    for (int i = 0; i < instances; i++) {
+      request.addInstances(Value.newBuilder().setListValue(
+          ListValue.newBuilder().addValues(
+              Value.newBuilder().setNumberValue(i))));
+    }
+    return request.build();
+  }
+}
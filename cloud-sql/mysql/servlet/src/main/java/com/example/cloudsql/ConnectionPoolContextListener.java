@@ -31,9 +31,40 @@ import javax.sql.DataSource;
 @WebListener("Creates a connection pool that is stored in the Servlet's context for later use.")
 public class ConnectionPoolContextListener implements ServletContextListener {
 
+  // The page is served from an in-memory tally unless CACHE_VOTE_TALLY is set to false.
+  private static final boolean CACHE_VOTE_TALLY =
+      !"false".equalsIgnoreCase(System.getenv("CACHE_VOTE_TALLY"));
+  private static final long VOTE_TALLY_RECONCILE_SECONDS =
+      getEnvOrDefault("VOTE_TALLY_RECONCILE_SECONDS", 30);
+  // When BATCH_VOTE_WRITES is true, votes are queued and inserted in batches by a VoteWriter.
+  private static final boolean BATCH_VOTE_WRITES =
+      "true".equalsIgnoreCase(System.getenv("BATCH_VOTE_WRITES"));
+  private static final long VOTE_QUEUE_CAPACITY = getEnvOrDefault("VOTE_QUEUE_CAPACITY", 1000);
+  private static final long VOTE_BATCH_SIZE = getEnvOrDefault("VOTE_BATCH_SIZE", 100);
+  private static final long VOTE_BATCH_DELAY_MILLIS =
+      getEnvOrDefault("VOTE_BATCH_DELAY_MILLIS", 10);
+
+  private static long getEnvOrDefault(String name, long defaultValue) {
+    String value = System.getenv(name);
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+
   @Override
   public void contextDestroyed(ServletContextEvent event) {
     // This function is called when the Servlet is destroyed.
+    VoteWriter voteWriter = (VoteWriter) event.getServletContext().getAttribute("vote-writer");
+    if (voteWriter != null) {
+      try {
+        // Write the votes still queued while the pool is open.
+        voteWriter.close();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    VoteTally tally = (VoteTally) event.getServletContext().getAttribute("vote-tally");
+    if (tally != null) {
+      tally.close();
+    }
     HikariDataSource pool = (HikariDataSource) event.getServletContext().getAttribute("my-pool");
     if (pool != null) {
       pool.close();
@@ -64,5 +95,25 @@ public class ConnectionPoolContextListener implements ServletContextListener {
               + "in the README and try again.",
           ex);
     }
+    if (CACHE_VOTE_TALLY && servletContext.getAttribute("vote-tally") == null) {
+      try {
+        servletContext.setAttribute(
+            "vote-tally", new VoteTally(pool, VOTE_TALLY_RECONCILE_SECONDS));
+      } catch (SQLException ex) {
+        throw new RuntimeException(
+            "Unable to load the vote tally from the database. Please double check the steps"
+                + " in the README and try again.",
+            ex);
+      }
+    }
+    if (BATCH_VOTE_WRITES && servletContext.getAttribute("vote-writer") == null) {
+      servletContext.setAttribute(
+          "vote-writer",
+          new VoteWriter(
+              pool,
+              (int) VOTE_QUEUE_CAPACITY,
+              (int) VOTE_BATCH_SIZE,
+              VOTE_BATCH_DELAY_MILLIS));
+    }
   }
 }
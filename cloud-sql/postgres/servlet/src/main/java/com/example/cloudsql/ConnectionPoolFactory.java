@@ -52,6 +52,9 @@ public class ConnectionPoolFactory {
     // terminations.
     config.setMaxLifetime(1800000); // 30 minutes
     // [END cloud_sql_postgres_servlet_lifetime]
+
+    // Lets the driver send a batch of inserts, such as the one VoteWriter writes, as one statement.
+    config.addDataSourceProperty("reWriteBatchedInserts", "true");
     return config;
   }
 }
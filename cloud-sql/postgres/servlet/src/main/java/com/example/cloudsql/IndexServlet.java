@@ -27,6 +27,10 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -44,6 +48,8 @@ import javax.sql.DataSource;
 public class IndexServlet extends HttpServlet {
 
   private static final Logger LOGGER = Logger.getLogger(IndexServlet.class.getName());
+  // How long a request waits for its vote to be committed by the VoteWriter.
+  private static final long VOTE_COMMIT_TIMEOUT_SECONDS = 10;
 
   public TemplateData getTemplateData(DataSource pool) throws ServletException {
     try {
@@ -59,8 +65,10 @@ public class IndexServlet extends HttpServlet {
     // Extract the pool from the Servlet Context, reusing the one that was created
     // in the ContextListener when the application was started
     DataSource pool = (DataSource) req.getServletContext().getAttribute("my-pool");
+    // When the tally is kept in memory, rendering the page doesn't need a connection at all.
+    VoteTally tally = (VoteTally) req.getServletContext().getAttribute("vote-tally");
 
-    TemplateData templateData = getTemplateData(pool);
+    TemplateData templateData = tally != null ? tally.getTemplateData() : getTemplateData(pool);
 
     // Add variables and render the page
     req.setAttribute("tabCount", templateData.tabCount);
@@ -97,6 +105,12 @@ public class IndexServlet extends HttpServlet {
       return;
     }
 
+    VoteWriter voteWriter = (VoteWriter) req.getServletContext().getAttribute("vote-writer");
+    if (voteWriter != null) {
+      castBatchedVote(voteWriter, team, now, req, resp);
+      return;
+    }
+
     // Reuse the pool that was created in the ContextListener when the Servlet started.
     DataSource pool = (DataSource) req.getServletContext().getAttribute("my-pool");
     // [START cloud_sql_postgres_servlet_connection]
@@ -105,13 +119,22 @@ public class IndexServlet extends HttpServlet {
     try (Connection conn = pool.getConnection()) {
 
       // PreparedStatements can be more efficient and project against injections.
-      String stmt = "INSERT INTO votes (time_cast, candidate) VALUES (?, ?);";
-      try (PreparedStatement voteStmt = conn.prepareStatement(stmt);) {
+      // No trailing semicolon, so the driver can add the RETURNING clause for vote_id.
+      String stmt = "INSERT INTO votes (time_cast, candidate) VALUES (?, ?)";
+      try (PreparedStatement voteStmt = conn.prepareStatement(stmt, new String[] {"vote_id"});) {
         voteStmt.setTimestamp(1, now);
         voteStmt.setString(2, team);
 
         // Finally, execute the statement. If it fails, an error will be thrown.
         voteStmt.execute();
+        // [START_EXCLUDE]
+        VoteTally tally = (VoteTally) req.getServletContext().getAttribute("vote-tally");
+        if (tally != null) {
+          ResultSet voteId = voteStmt.getGeneratedKeys();
+          voteId.next();
+          tally.recordVote(team, now, voteId.getLong(1));
+        }
+        // [END_EXCLUDE]
       }
     } catch (SQLException ex) {
       // If something goes wrong, handle the error in this section. This might involve retrying or
@@ -130,4 +153,43 @@ public class IndexServlet extends HttpServlet {
     resp.setStatus(200);
     resp.getWriter().printf("Vote successfully cast for '%s' at time %s!%n", team, now);
   }
+
+  // Queues the vote for the VoteWriter, which inserts it along with others in one batch, and waits
+  // until that batch is committed.
+  private void castBatchedVote(
+      VoteWriter voteWriter,
+      String team,
+      Timestamp now,
+      HttpServletRequest req,
+      HttpServletResponse resp)
+      throws IOException {
+    CompletableFuture<Long> committed = voteWriter.submit(team, now);
+    if (committed == null) {
+      resp.setStatus(503);
+      resp.getWriter().write("Too many votes are waiting to be written. Please try again later.");
+      return;
+    }
+    long voteId;
+    try {
+      voteId = committed.get(VOTE_COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException | TimeoutException | InterruptedException ex) {
+      if (ex instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      LOGGER.log(Level.WARNING, "Error while attempting to submit vote.", ex);
+      resp.setStatus(500);
+      resp.getWriter()
+          .write(
+              "Unable to successfully cast vote! Please check the application "
+                  + "logs for more details.");
+      return;
+    }
+    VoteTally tally = (VoteTally) req.getServletContext().getAttribute("vote-tally");
+    if (tally != null) {
+      tally.recordVote(team, now, voteId);
+    }
+
+    resp.setStatus(200);
+    resp.getWriter().printf("Vote successfully cast for '%s' at time %s!%n", team, now);
+  }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudsql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Writes votes in batches. Votes are queued by the request threads and a single writer thread
+ * inserts them with one batched statement per transaction, so a burst of votes takes one pooled
+ * connection instead of one each. A batch is written once it is full or once the oldest vote in it
+ * has waited for the maximum delay, and the future of every vote completes with its vote_id when
+ * its batch commits.
+ */
+public class VoteWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(VoteWriter.class.getName());
+
+  private final DataSource pool;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final BlockingQueue<PendingVote> queue;
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  private final AtomicLong votesWritten = new AtomicLong();
+  private final AtomicLong batchesWritten = new AtomicLong();
+  private final AtomicLong batchesFailed = new AtomicLong();
+  private final AtomicLong totalFlushNanos = new AtomicLong();
+  private volatile long lastFlushNanos;
+
+  public VoteWriter(DataSource pool, int queueCapacity, int maxBatchSize, long maxDelayMillis) {
+    this.pool = pool;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.writer = new Thread(this::run, "vote-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues a vote, returning a future that completes with its vote_id once it is committed. Returns
+   * null if the queue is full, so the caller can shed load instead of waiting, or if the writer is
+   * closed.
+   */
+  public CompletableFuture<Long> submit(String team, Timestamp timeCast) {
+    PendingVote vote = new PendingVote(team, timeCast);
+    if (!running || !queue.offer(vote)) {
+      return null;
+    }
+    // The writer may have been closed and stopped since it was checked. The vote is then taken
+    // back, unless the writer already took it and will complete it.
+    if (!running && queue.remove(vote)) {
+      return null;
+    }
+    return vote.committed;
+  }
+
+  /** Returns the number of votes waiting to be written. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getVotesWritten() {
+    return votesWritten.get();
+  }
+
+  public long getBatchesWritten() {
+    return batchesWritten.get();
+  }
+
+  public long getBatchesFailed() {
+    return batchesFailed.get();
+  }
+
+  /** Returns how long the last batch took to write and commit, in milliseconds. */
+  public double getLastFlushMillis() {
+    return lastFlushNanos / 1e6;
+  }
+
+  /** Returns how long a batch took to write and commit on average, in milliseconds. */
+  public double getAverageFlushMillis() {
+    long batches = batchesWritten.get() + batchesFailed.get();
+    return batches == 0 ? 0 : totalFlushNanos.get() / 1e6 / batches;
+  }
+
+  /** Writes the votes already queued and stops the writer. */
+  public void close() throws InterruptedException {
+    running = false;
+    writer.join(TimeUnit.SECONDS.toMillis(30));
+  }
+
+  private void run() {
+    try {
+      writeBatches();
+    } finally {
+      // Fail the votes that can no longer be written rather than leave their requests waiting.
+      List<PendingVote> unwritten = new ArrayList<>();
+      queue.drainTo(unwritten);
+      for (PendingVote vote : unwritten) {
+        vote.committed.completeExceptionally(new IllegalStateException("Vote writer is closed."));
+      }
+    }
+  }
+
+  private void writeBatches() {
+    List<PendingVote> batch = new ArrayList<>(maxBatchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingVote first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        // Keep collecting until the batch is full or the first vote has waited long enough.
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+          queue.drainTo(batch, maxBatchSize - batch.size());
+          long remaining = deadline - System.nanoTime();
+          if (batch.size() == maxBatchSize || remaining <= 0) {
+            break;
+          }
+          PendingVote next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // Write whatever was collected and stop.
+        running = false;
+        queue.drainTo(batch);
+      }
+      if (!batch.isEmpty()) {
+        flush(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private void flush(List<PendingVote> batch) {
+    long start = System.nanoTime();
+    try (Connection conn = pool.getConnection()) {
+      conn.setAutoCommit(false);
+      // No trailing semicolon, so the driver can rewrite the batch into a multi-row insert.
+      String stmt = "INSERT INTO votes (time_cast, candidate) VALUES (?, ?)";
+      try (PreparedStatement voteStmt = conn.prepareStatement(stmt, new String[] {"vote_id"})) {
+        for (PendingVote vote : batch) {
+          voteStmt.setTimestamp(1, vote.timeCast);
+          voteStmt.setString(2, vote.team);
+          voteStmt.addBatch();
+        }
+        voteStmt.executeBatch();
+        // The keys come back in the order the votes were added to the batch.
+        ResultSet voteIds = voteStmt.getGeneratedKeys();
+        for (PendingVote vote : batch) {
+          if (!voteIds.next()) {
+            throw new SQLException("The batch of votes returned fewer vote ids than votes.");
+          }
+          vote.voteId = voteIds.getLong(1);
+        }
+        conn.commit();
+      } catch (SQLException | RuntimeException ex) {
+        conn.rollback();
+        throw ex;
+      } finally {
+        // The connection goes back to the pool, which expects it in autocommit mode.
+        conn.setAutoCommit(true);
+      }
+      record(start, batchesWritten);
+      votesWritten.addAndGet(batch.size());
+      for (PendingVote vote : batch) {
+        vote.committed.complete(vote.voteId);
+      }
+    } catch (SQLException | RuntimeException ex) {
+      // Any error fails only this batch; the writer goes on with the next.
+      record(start, batchesFailed);
+      LOGGER.log(Level.WARNING, "Error while attempting to write a batch of votes.", ex);
+      for (PendingVote vote : batch) {
+        vote.committed.completeExceptionally(ex);
+      }
+    }
+  }
+
+  private void record(long start, AtomicLong batches) {
+    lastFlushNanos = System.nanoTime() - start;
+    totalFlushNanos.addAndGet(lastFlushNanos);
+    batches.incrementAndGet();
+  }
+
+  private static class PendingVote {
+
+    private final String team;
+    private final Timestamp timeCast;
+    private final CompletableFuture<Long> committed = new CompletableFuture<>();
+    private long voteId;
+
+    private PendingVote(String team, Timestamp timeCast) {
+      this.team = team;
+      this.timeCast = timeCast;
+    }
+  }
+}
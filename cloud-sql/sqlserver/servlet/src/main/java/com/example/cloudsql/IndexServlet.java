@@ -19,9 +19,15 @@ package com.example.cloudsql;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
@@ -36,6 +42,8 @@ import javax.sql.DataSource;
 public class IndexServlet extends HttpServlet {
 
   private static final Logger LOGGER = Logger.getLogger(IndexServlet.class.getName());
+  // How long a request waits for its vote to be committed by the VoteWriter.
+  private static final long VOTE_COMMIT_TIMEOUT_SECONDS = 10;
 
   public TemplateData getTemplateData(DataSource pool) throws ServletException {
     try {
@@ -51,8 +59,10 @@ public class IndexServlet extends HttpServlet {
     // Extract the pool from the Servlet Context, reusing the one that was created
     // in the ContextListener when the application was started
     DataSource pool = (DataSource) req.getServletContext().getAttribute("my-pool");
+    // When the tally is kept in memory, rendering the page doesn't need a connection at all.
+    VoteTally tally = (VoteTally) req.getServletContext().getAttribute("vote-tally");
 
-    TemplateData templateData = getTemplateData(pool);
+    TemplateData templateData = tally != null ? tally.getTemplateData() : getTemplateData(pool);
 
     // Add variables and render the page
     req.setAttribute("tabCount", templateData.tabCount);
@@ -73,6 +83,12 @@ public class IndexServlet extends HttpServlet {
       return;
     }
 
+    VoteWriter voteWriter = (VoteWriter) req.getServletContext().getAttribute("vote-writer");
+    if (voteWriter != null) {
+      castBatchedVote(voteWriter, team, now, req, resp);
+      return;
+    }
+
     // Reuse the pool that was created in the ContextListener when the Servlet started.
     DataSource pool = (DataSource) req.getServletContext().getAttribute("my-pool");
     // [START cloud_sql_sqlserver_servlet_connection]
@@ -82,12 +98,21 @@ public class IndexServlet extends HttpServlet {
 
       // PreparedStatements can be more efficient and project against injections.
       PreparedStatement voteStmt = conn.prepareStatement(
-          "INSERT INTO votes (time_cast, candidate) VALUES (?, ?);");
+          "INSERT INTO votes (time_cast, candidate) VALUES (?, ?);",
+          Statement.RETURN_GENERATED_KEYS);
       voteStmt.setTimestamp(1, now);
       voteStmt.setString(2, team);
 
       // Finally, execute the statement. If it fails, an error will be thrown.
       voteStmt.execute();
+      // [START_EXCLUDE]
+      VoteTally tally = (VoteTally) req.getServletContext().getAttribute("vote-tally");
+      if (tally != null) {
+        ResultSet voteId = voteStmt.getGeneratedKeys();
+        voteId.next();
+        tally.recordVote(team, now, voteId.getLong(1));
+      }
+      // [END_EXCLUDE]
 
     } catch (SQLException ex) {
       // If something goes wrong, handle the error in this section. This might involve retrying or
@@ -105,4 +130,40 @@ public class IndexServlet extends HttpServlet {
     resp.getWriter().printf("Vote successfully cast for '%s' at time %s!\n", team, now);
   }
 
+  // Queues the vote for the VoteWriter, which inserts it along with others in one batch, and waits
+  // until that batch is committed.
+  private void castBatchedVote(
+      VoteWriter voteWriter,
+      String team,
+      Timestamp now,
+      HttpServletRequest req,
+      HttpServletResponse resp)
+      throws IOException {
+    CompletableFuture<Long> committed = voteWriter.submit(team, now);
+    if (committed == null) {
+      resp.setStatus(503);
+      resp.getWriter().write("Too many votes are waiting to be written. Please try again later.");
+      return;
+    }
+    long voteId;
+    try {
+      voteId = committed.get(VOTE_COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException | TimeoutException | InterruptedException ex) {
+      if (ex instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      LOGGER.log(Level.WARNING, "Error while attempting to submit vote.", ex);
+      resp.setStatus(500);
+      resp.getWriter().write("Unable to successfully cast vote! Please check the application "
+          + "logs for more details.");
+      return;
+    }
+    VoteTally tally = (VoteTally) req.getServletContext().getAttribute("vote-tally");
+    if (tally != null) {
+      tally.recordVote(team, now, voteId);
+    }
+
+    resp.setStatus(200);
+    resp.getWriter().printf("Vote successfully cast for '%s' at time %s!\n", team, now);
+  }
 }
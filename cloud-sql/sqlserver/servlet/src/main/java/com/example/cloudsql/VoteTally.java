@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudsql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Keeps the vote counts and the most recent votes in memory, so the page can be rendered without
+ * taking a connection from the pool. Votes cast on this instance are added as they are recorded.
+ * The tally is reconciled with the database in the background, which picks up votes cast on other
+ * instances and corrects any drift.
+ */
+public class VoteTally {
+
+  private static final Logger LOGGER = Logger.getLogger(VoteTally.class.getName());
+  // Matches the number of votes the recent votes query returns.
+  private static final int RECENT_VOTES = 5;
+
+  private final DataSource pool;
+  private final ScheduledExecutorService reconciler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "vote-tally-reconciler");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private int tabCount;
+  private int spaceCount;
+  // The most recent vote first.
+  private final Deque<Vote> recentVotes = new ArrayDeque<>(RECENT_VOTES);
+  // Only one reconcile reads the database at a time.
+  private final Object reconcileLock = new Object();
+  // The votes recorded since the running reconcile started reading the database, or null.
+  private List<RecordedVote> votesSinceSnapshot;
+
+  /** Loads the tally from the database and reconciles it again every interval. */
+  public VoteTally(DataSource pool, long reconcileIntervalSeconds) throws SQLException {
+    this.pool = pool;
+    reconcile();
+    reconciler.scheduleWithFixedDelay(
+        () -> {
+          try {
+            reconcile();
+          } catch (SQLException ex) {
+            // Keep serving the last known tally; the next run will try again.
+            LOGGER.log(Level.WARNING, "Unable to reconcile the vote tally.", ex);
+          }
+        },
+        reconcileIntervalSeconds,
+        reconcileIntervalSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Replaces the tally with the counts and recent votes currently in the database. The snapshot
+   * only counts votes up to the highest vote_id it saw, so votes recorded while the database is
+   * read are added back on top exactly when their vote_id is above that.
+   *
+   * <p>A vote whose insert had been given its vote_id but was not committed yet when the counts
+   * were read is left out until the next reconcile.
+   */
+  public void reconcile() throws SQLException {
+    synchronized (reconcileLock) {
+      synchronized (this) {
+        votesSinceSnapshot = new ArrayList<>();
+      }
+      try {
+        long lastVoteId;
+        TemplateData templateData;
+        try (Connection conn = pool.getConnection()) {
+          lastVoteId = readLastVoteId(conn);
+          templateData = readTemplateData(conn, lastVoteId);
+        }
+        synchronized (this) {
+          tabCount = templateData.tabCount;
+          spaceCount = templateData.spaceCount;
+          recentVotes.clear();
+          recentVotes.addAll(templateData.recentVotes);
+          for (RecordedVote recorded : votesSinceSnapshot) {
+            if (recorded.voteId > lastVoteId) {
+              add(recorded.vote);
+            }
+          }
+        }
+      } finally {
+        synchronized (this) {
+          votesSinceSnapshot = null;
+        }
+      }
+    }
+  }
+
+  /** Adds a vote that was committed to the database with the given vote_id. */
+  public synchronized void recordVote(String team, Timestamp timeCast, long voteId) {
+    Vote vote = new Vote(team, timeCast);
+    add(vote);
+    if (votesSinceSnapshot != null) {
+      votesSinceSnapshot.add(new RecordedVote(vote, voteId));
+    }
+  }
+
+  private void add(Vote vote) {
+    if ("TABS".equals(vote.getCandidate())) {
+      tabCount++;
+    } else {
+      spaceCount++;
+    }
+    if (recentVotes.size() == RECENT_VOTES) {
+      recentVotes.removeLast();
+    }
+    recentVotes.addFirst(vote);
+  }
+
+  private static long readLastVoteId(Connection conn) throws SQLException {
+    try (PreparedStatement lastIdStmt = conn.prepareStatement("SELECT MAX(vote_id) FROM votes")) {
+      ResultSet lastIdResult = lastIdStmt.executeQuery();
+      // MAX is NULL, read as 0, while there are no votes.
+      return lastIdResult.next() ? lastIdResult.getLong(1) : 0;
+    }
+  }
+
+  // Reads the counts and recent votes like TemplateData does, up to lastVoteId only.
+  private static TemplateData readTemplateData(Connection conn, long lastVoteId)
+      throws SQLException {
+    List<Vote> recentVotes = new ArrayList<>();
+    String stmt1 =
+        "SELECT TOP(5) candidate, time_cast FROM votes WHERE vote_id <= ? ORDER BY time_cast DESC";
+    try (PreparedStatement voteStmt = conn.prepareStatement(stmt1)) {
+      voteStmt.setLong(1, lastVoteId);
+      ResultSet voteResults = voteStmt.executeQuery();
+      while (voteResults.next()) {
+        recentVotes.add(new Vote(voteResults.getString(1).trim(), voteResults.getTimestamp(2)));
+      }
+    }
+
+    String stmt2 = "SELECT COUNT(vote_id) FROM votes WHERE candidate=? AND vote_id <= ?";
+    try (PreparedStatement voteCountStmt = conn.prepareStatement(stmt2)) {
+      voteCountStmt.setLong(2, lastVoteId);
+      int tabCount = count(voteCountStmt, "TABS");
+      int spaceCount = count(voteCountStmt, "SPACES");
+      return new TemplateData(tabCount, spaceCount, recentVotes);
+    }
+  }
+
+  private static int count(PreparedStatement voteCountStmt, String candidate) throws SQLException {
+    voteCountStmt.setString(1, candidate);
+    ResultSet countResult = voteCountStmt.executeQuery();
+    return countResult.next() ? countResult.getInt(1) : 0;
+  }
+
+  /** Returns a copy of the current tally. */
+  public synchronized TemplateData getTemplateData() {
+    return new TemplateData(tabCount, spaceCount, new ArrayList<>(recentVotes));
+  }
+
+  /** Stops reconciling with the database. */
+  public void close() {
+    reconciler.shutdownNow();
+  }
+
+  private static class RecordedVote {
+
+    private final Vote vote;
+    private final long voteId;
+
+    private RecordedVote(Vote vote, long voteId) {
+      this.vote = vote;
+      this.voteId = voteId;
+    }
+  }
+}
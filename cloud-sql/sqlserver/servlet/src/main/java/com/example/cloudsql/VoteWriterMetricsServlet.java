@@ -0,0 +1,46 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudsql;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet(name = "VoteWriterMetrics", value = "/metrics")
+public class VoteWriterMetricsServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    VoteWriter voteWriter = (VoteWriter) req.getServletContext().getAttribute("vote-writer");
+    resp.setContentType("text/plain");
+    if (voteWriter == null) {
+      resp.setStatus(404);
+      resp.getWriter().write("Batched vote writes are not enabled.");
+      return;
+    }
+    PrintWriter writer = resp.getWriter();
+    writer.printf("queue_depth %d%n", voteWriter.getQueueDepth());
+    writer.printf("votes_written %d%n", voteWriter.getVotesWritten());
+    writer.printf("batches_written %d%n", voteWriter.getBatchesWritten());
+    writer.printf("batches_failed %d%n", voteWriter.getBatchesFailed());
+    writer.printf("last_flush_millis %.3f%n", voteWriter.getLastFlushMillis());
+    writer.printf("average_flush_millis %.3f%n", voteWriter.getAverageFlushMillis());
+  }
+}
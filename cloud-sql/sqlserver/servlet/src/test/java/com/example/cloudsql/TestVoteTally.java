@@ -0,0 +1,208 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudsql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestVoteTally {
+
+  private final Timestamp earlier = new Timestamp(1_000_000L);
+  private final Timestamp now = new Timestamp(2_000_123L);
+  // The same time, as a column with a coarser precision returns it.
+  private final Timestamp nowInDatabase = new Timestamp(2_000_000L);
+  // What the database holds.
+  private long lastVoteId = 15;
+  private int tabCount = 10;
+  private int spaceCount = 5;
+  private final List<Vote> recentVotes = new ArrayList<>();
+  // Run while the database is read, as if on another request.
+  private Runnable duringRead = () -> { };
+  private VoteTally tally;
+
+  @Before
+  public void setUp() throws SQLException {
+    recentVotes.add(new Vote("SPACES", earlier));
+    DataSource pool = mock(DataSource.class);
+    when(pool.getConnection()).thenAnswer(call -> connection());
+    tally = new VoteTally(pool, 3600);
+  }
+
+  @After
+  public void tearDown() {
+    tally.close();
+  }
+
+  @Test
+  public void testTallyIsReplacedByTheDatabase() throws SQLException {
+    tally.recordVote("TABS", now, 16);
+    assertThat(tally.getTemplateData().tabCount).isEqualTo(11);
+
+    // The vote never made it to the database, so reconciling drops it.
+    tally.reconcile();
+
+    TemplateData data = tally.getTemplateData();
+    assertThat(data.tabCount).isEqualTo(10);
+    assertThat(data.spaceCount).isEqualTo(5);
+    assertThat(data.recentVotes).hasSize(1);
+  }
+
+  @Test
+  public void testVotesRecordedWhileReadingAreKept() throws SQLException {
+    duringRead = () -> tally.recordVote("TABS", now, 16);
+
+    tally.reconcile();
+
+    TemplateData data = tally.getTemplateData();
+    assertThat(data.tabCount).isEqualTo(11);
+    assertThat(data.spaceCount).isEqualTo(5);
+    assertThat(data.recentVotes).hasSize(2);
+    assertThat(data.recentVotes.get(0).getTimeCast()).isEqualTo(now);
+  }
+
+  @Test
+  public void testVotesRecordedWhileReadingAreNotCountedTwice() throws SQLException {
+    // The vote is committed before the read, so the snapshot already has it, with its time cast
+    // rounded by the column.
+    lastVoteId = 16;
+    tabCount++;
+    recentVotes.add(0, new Vote("TABS", nowInDatabase));
+    duringRead = () -> tally.recordVote("TABS", now, 16);
+
+    tally.reconcile();
+
+    TemplateData data = tally.getTemplateData();
+    assertThat(data.tabCount).isEqualTo(11);
+    assertThat(data.recentVotes).hasSize(2);
+  }
+
+  @Test
+  public void testMoreVotesThanAreShownAreNotCountedTwice() throws SQLException {
+    // Eight votes are committed before the read, more than the five recent votes it returns.
+    lastVoteId = 23;
+    tabCount += 8;
+    for (int i = 0; i < 8; i++) {
+      recentVotes.add(0, new Vote("TABS", nowInDatabase));
+    }
+    duringRead =
+        () -> {
+          for (int i = 0; i < 8; i++) {
+            tally.recordVote("TABS", now, 16 + i);
+          }
+        };
+
+    tally.reconcile();
+
+    assertThat(tally.getTemplateData().tabCount).isEqualTo(18);
+  }
+
+  @Test
+  public void testOnlyVotesAfterTheSnapshotAreAddedBack() throws SQLException {
+    // Of the votes recorded while reading, only the first was committed before the read.
+    lastVoteId = 16;
+    spaceCount++;
+    recentVotes.add(0, new Vote("SPACES", nowInDatabase));
+    duringRead =
+        () -> {
+          tally.recordVote("SPACES", now, 16);
+          tally.recordVote("TABS", now, 17);
+          tally.recordVote("TABS", now, 18);
+        };
+
+    tally.reconcile();
+
+    TemplateData data = tally.getTemplateData();
+    assertThat(data.tabCount).isEqualTo(12);
+    assertThat(data.spaceCount).isEqualTo(6);
+    assertThat(data.recentVotes).hasSize(4);
+  }
+
+  // A connection that reads the last vote_id, counts and recent votes the test set.
+  private Connection connection() throws SQLException {
+    Runnable read = duringRead;
+    duringRead = () -> { };
+    read.run();
+
+    List<Vote> votes = new ArrayList<>(recentVotes.subList(0, Math.min(5, recentVotes.size())));
+    long lastId = lastVoteId;
+    int tabs = tabCount;
+    int spaces = spaceCount;
+    Connection conn = mock(Connection.class);
+
+    PreparedStatement lastIdStmt = mock(PreparedStatement.class);
+    ResultSet lastIdResult = mock(ResultSet.class);
+    when(lastIdResult.next()).thenReturn(true);
+    when(lastIdResult.getLong(1)).thenReturn(lastId);
+    when(lastIdStmt.executeQuery()).thenReturn(lastIdResult);
+
+    PreparedStatement voteStmt = mock(PreparedStatement.class);
+    ResultSet voteResults = mock(ResultSet.class);
+    Iterator<Vote> rows = votes.iterator();
+    AtomicReference<Vote> row = new AtomicReference<>();
+    when(voteResults.next())
+        .thenAnswer(
+            call -> {
+              if (!rows.hasNext()) {
+                return false;
+              }
+              row.set(rows.next());
+              return true;
+            });
+    when(voteResults.getString(1)).thenAnswer(call -> row.get().getCandidate());
+    when(voteResults.getTimestamp(2)).thenAnswer(call -> row.get().getTimeCast());
+    when(voteStmt.executeQuery()).thenReturn(voteResults);
+
+    PreparedStatement voteCountStmt = mock(PreparedStatement.class);
+    AtomicReference<String> candidate = new AtomicReference<>();
+    doAnswer(call -> {
+      candidate.set(call.getArgument(1));
+      return null;
+    }).when(voteCountStmt).setString(anyInt(), anyString());
+    when(voteCountStmt.executeQuery())
+        .thenAnswer(
+            call -> {
+              ResultSet count = mock(ResultSet.class);
+              when(count.next()).thenReturn(true);
+              when(count.getInt(1)).thenReturn("TABS".equals(candidate.get()) ? tabs : spaces);
+              return count;
+            });
+
+    when(conn.prepareStatement(contains("MAX"))).thenReturn(lastIdStmt);
+    when(conn.prepareStatement(contains("COUNT"))).thenReturn(voteCountStmt);
+    when(conn.prepareStatement(contains("time_cast"))).thenReturn(voteStmt);
+    return conn;
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudsql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestVoteWriter {
+
+  private final Timestamp now = new Timestamp(System.currentTimeMillis());
+  private Connection conn;
+  private PreparedStatement voteStmt;
+  // The candidates of the votes in the insert being prepared.
+  private final List<String> insertedTeams = new ArrayList<>();
+  private final AtomicLong lastVoteId = new AtomicLong();
+  private VoteWriter writer;
+
+  @Before
+  public void setUp() throws SQLException {
+    conn = mock(Connection.class);
+    voteStmt = mock(PreparedStatement.class);
+    when(conn.prepareStatement(anyString()))
+        .thenAnswer(
+            call -> {
+              insertedTeams.clear();
+              return voteStmt;
+            });
+    doAnswer(call -> insertedTeams.add(call.getArgument(1)))
+        .when(voteStmt)
+        .setString(anyInt(), anyString());
+    when(voteStmt.executeQuery()).thenAnswer(call -> inserted());
+    DataSource pool = mock(DataSource.class);
+    when(pool.getConnection()).thenReturn(conn);
+    writer = new VoteWriter(pool, 1000, 10, 50);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    writer.close();
+  }
+
+  @Test
+  public void testVotesAreCommittedTogether() throws Exception {
+    List<CompletableFuture<Long>> votes = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      votes.add(writer.submit("TABS", now));
+    }
+
+    List<Long> voteIds = new ArrayList<>();
+    for (CompletableFuture<Long> vote : votes) {
+      voteIds.add(vote.get(5, TimeUnit.SECONDS));
+    }
+
+    verify(voteStmt, times(5)).setString(anyInt(), anyString());
+    verify(voteStmt, times(1)).executeQuery();
+    verify(conn, times(1)).commit();
+    assertThat(writer.getVotesWritten()).isEqualTo(5);
+    assertThat(writer.getBatchesWritten()).isEqualTo(1);
+    assertThat(voteIds).containsExactly(1L, 2L, 3L, 4L, 5L);
+  }
+
+  @Test
+  public void testBatchWithoutAVoteIdForEveryVoteFails() throws Exception {
+    when(voteStmt.executeQuery()).thenReturn(mock(ResultSet.class));
+
+    ExecutionException error =
+        assertThrows(
+            ExecutionException.class, () -> writer.submit("TABS", now).get(5, TimeUnit.SECONDS));
+
+    assertThat(error).hasCauseThat().isInstanceOf(SQLException.class);
+    verify(conn, times(1)).rollback();
+    verify(conn, times(0)).commit();
+  }
+
+  @Test
+  public void testFailedBatchFailsItsVotesAndWritingGoesOn() throws Exception {
+    when(voteStmt.executeQuery())
+        .thenThrow(new SQLException("Deadlock found"))
+        .thenThrow(new IllegalStateException("Connection is closed"))
+        .thenAnswer(call -> inserted());
+
+    ExecutionException sqlError =
+        assertThrows(
+            ExecutionException.class, () -> writer.submit("TABS", now).get(5, TimeUnit.SECONDS));
+    ExecutionException runtimeError =
+        assertThrows(
+            ExecutionException.class, () -> writer.submit("TABS", now).get(5, TimeUnit.SECONDS));
+    writer.submit("SPACES", now).get(5, TimeUnit.SECONDS);
+
+    assertThat(sqlError).hasCauseThat().isInstanceOf(SQLException.class);
+    assertThat(runtimeError).hasCauseThat().isInstanceOf(IllegalStateException.class);
+    verify(conn, times(2)).rollback();
+    assertThat(writer.getBatchesFailed()).isEqualTo(2);
+    assertThat(writer.getVotesWritten()).isEqualTo(1);
+  }
+
+  @Test
+  public void testQueuedVotesAreWrittenOnClose() throws Exception {
+    List<CompletableFuture<Long>> votes = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      votes.add(writer.submit("SPACES", now));
+    }
+
+    writer.close();
+
+    for (CompletableFuture<Long> vote : votes) {
+      assertThat(vote.isDone()).isTrue();
+      vote.get();
+    }
+    assertThat(writer.getVotesWritten()).isEqualTo(25);
+    assertThat(writer.submit("SPACES", now)).isNull();
+  }
+
+  @Test
+  public void testVotesSubmittedWhileClosingAreAllCompleted() throws Exception {
+    int threads = 8;
+    CountDownLatch started = new CountDownLatch(threads);
+    List<List<CompletableFuture<Long>>> submitted = new ArrayList<>();
+    List<Thread> voters = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      List<CompletableFuture<Long>> votes = new ArrayList<>();
+      submitted.add(votes);
+      Thread voter =
+          new Thread(
+              () -> {
+                started.countDown();
+                for (int j = 0; j < 10_000; j++) {
+                  CompletableFuture<Long> vote = writer.submit("TABS", now);
+                  if (vote != null) {
+                    votes.add(vote);
+                  }
+                }
+              });
+      voter.start();
+      voters.add(voter);
+    }
+    started.await();
+
+    writer.close();
+    for (Thread voter : voters) {
+      voter.join();
+    }
+
+    // Every vote accepted was either written or failed, none is left waiting.
+    for (List<CompletableFuture<Long>> votes : submitted) {
+      for (CompletableFuture<Long> vote : votes) {
+        assertThat(vote.isDone()).isTrue();
+      }
+    }
+  }
+
+  // The OUTPUT rows of the insert being prepared, with the next vote_ids.
+  private ResultSet inserted() throws SQLException {
+    ResultSet rows = mock(ResultSet.class);
+    Iterator<String> teams = new ArrayList<>(insertedTeams).iterator();
+    AtomicReference<String> team = new AtomicReference<>();
+    AtomicLong voteId = new AtomicLong();
+    when(rows.next())
+        .thenAnswer(
+            call -> {
+              if (!teams.hasNext()) {
+                return false;
+              }
+              team.set(teams.next());
+              voteId.set(lastVoteId.incrementAndGet());
+              return true;
+            });
+    when(rows.getLong(1)).thenAnswer(call -> voteId.get());
+    when(rows.getString(2)).thenAnswer(call -> team.get());
+    return rows;
+  }
+}
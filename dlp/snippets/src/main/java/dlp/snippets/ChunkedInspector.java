@@ -0,0 +1,457 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_chunked_inspector]
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.ContentLocation;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.Location;
+import com.google.privacy.dlp.v2.LocationName;
+import com.google.privacy.dlp.v2.Range;
+import com.google.privacy.dlp.v2.RecordLocation;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Table.Row;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Inspects and de-identifies content that is too large for a single request, by splitting it into
+ * chunks and sending up to a fixed number of them at once on a shared client.
+ *
+ * <p>Text is read from a {@link Reader} and split on line or word boundaries, with neighbouring
+ * chunks overlapping so that a finding cut in two by one chunk boundary is found whole in the other
+ * chunk. Each finding is reported once, by the chunk owning the part of the overlap it starts in,
+ * with offsets relative to the whole text. Tables are split by rows. Results are passed on in
+ * order, as soon as the chunk and those before it complete, so memory use depends on the chunk size
+ * and the number of chunks in flight, not on the size of the content.
+ */
+public class ChunkedInspector {
+
+  // The content of a request is limited to 0.5 MB; leave room for the rest of the request.
+  public static final int DEFAULT_MAX_CHUNK_BYTES = 400 * 1024;
+  // Findings up to half as long as the overlap are always found whole in one of the chunks.
+  public static final int DEFAULT_OVERLAP_CHARS = 2048;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+  // Tables in a request are limited to 50,000 cells.
+  private static final int MAX_TABLE_CELLS = 50_000;
+
+  private final DlpServiceClient dlp;
+  private final String parent;
+  private final InspectConfig inspectConfig;
+  private final int maxChunkBytes;
+  private final int overlapChars;
+  private final int maxInFlight;
+
+  public ChunkedInspector(DlpServiceClient dlp, String projectId, InspectConfig inspectConfig) {
+    this(
+        dlp,
+        projectId,
+        inspectConfig,
+        DEFAULT_MAX_CHUNK_BYTES,
+        DEFAULT_OVERLAP_CHARS,
+        DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Creates an inspector sending chunks of up to {@code maxChunkBytes} of UTF-8 text or serialized
+   * table rows, with {@code overlapChars} characters of text overlap between chunks, and up to
+   * {@code maxInFlight} requests at once. The client isn't closed by the inspector.
+   */
+  public ChunkedInspector(
+      DlpServiceClient dlp,
+      String projectId,
+      InspectConfig inspectConfig,
+      int maxChunkBytes,
+      int overlapChars,
+      int maxInFlight) {
+    // A chunk is cut at a line break in its second half, and holds at least a character for every
+    // 3 bytes, so this leaves every chunk something new past the overlap.
+    if (overlapChars < 0 || overlapChars >= maxChunkBytes / 8) {
+      throw new IllegalArgumentException("overlapChars must be less than maxChunkBytes / 8");
+    }
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.dlp = dlp;
+    this.parent = LocationName.of(projectId, "global").toString();
+    this.inspectConfig = inspectConfig;
+    this.maxChunkBytes = maxChunkBytes;
+    this.overlapChars = overlapChars;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Inspects all of the text from the reader, passing each finding to {@code findings} in the order
+   * of the chunks, with its byte and codepoint ranges relative to the start of the text.
+   */
+  public void inspectText(Reader reader, Consumer<Finding> findings) throws IOException {
+    TextChunker chunker = new TextChunker(reader);
+    run(
+        chunker::next,
+        chunk ->
+            dlp.inspectContentCallable()
+                .futureCall(inspectRequest(ContentItem.newBuilder().setValue(chunk.text))),
+        (chunk, response) -> {
+          for (Finding finding : response.getResult().getFindingsList()) {
+            long start = finding.getLocation().getCodepointRange().getStart();
+            // Findings in the overlap with a neighbouring chunk are reported by one of the two.
+            if (start >= chunk.ownedFrom && start < chunk.ownedUntil) {
+              findings.accept(shiftText(finding, chunk));
+            }
+          }
+        });
+  }
+
+  /**
+   * Inspects the table, passing each finding to {@code findings} in the order of the chunks, with
+   * its row index relative to the whole table.
+   */
+  public void inspectTable(Table table, Consumer<Finding> findings) throws IOException {
+    TableChunker chunker = new TableChunker(table);
+    run(
+        chunker::next,
+        chunk ->
+            dlp.inspectContentCallable()
+                .futureCall(inspectRequest(ContentItem.newBuilder().setTable(chunk.table))),
+        (chunk, response) -> {
+          for (Finding finding : response.getResult().getFindingsList()) {
+            findings.accept(shiftRows(finding, chunk.firstRow));
+          }
+        });
+  }
+
+  /** De-identifies the table, returning the de-identified rows in their original order. */
+  public Table deidentifyTable(Table table, DeidentifyConfig deidentifyConfig)
+      throws IOException {
+    Table.Builder deidentified = Table.newBuilder().addAllHeaders(table.getHeadersList());
+    TableChunker chunker = new TableChunker(table);
+    run(
+        chunker::next,
+        chunk ->
+            dlp.deidentifyContentCallable()
+                .futureCall(
+                    DeidentifyContentRequest.newBuilder()
+                        .setParent(parent)
+                        .setItem(ContentItem.newBuilder().setTable(chunk.table))
+                        .setDeidentifyConfig(deidentifyConfig)
+                        .setInspectConfig(inspectConfig)
+                        .build()),
+        (TableChunk chunk, DeidentifyContentResponse response) ->
+            deidentified.addAllRows(response.getItem().getTable().getRowsList()));
+    return deidentified.build();
+  }
+
+  private InspectContentRequest inspectRequest(ContentItem.Builder item) {
+    return InspectContentRequest.newBuilder()
+        .setParent(parent)
+        .setItem(item)
+        .setInspectConfig(inspectConfig)
+        .build();
+  }
+
+  private interface ChunkSource<C> {
+    // Returns the next chunk, or null if there are no more.
+    C next() throws IOException;
+  }
+
+  private interface ResultHandler<C, R> {
+    void handle(C chunk, R result) throws IOException;
+  }
+
+  /**
+   * Sends a request for each chunk, with up to maxInFlight requests in flight, and handles the
+   * results in the order of the chunks. Stops at the first failure, cancelling the other requests.
+   */
+  private <C, R> void run(
+      ChunkSource<C> chunks, Function<C, ApiFuture<R>> send, ResultHandler<C, R> handler)
+      throws IOException {
+    ArrayDeque<C> pendingChunks = new ArrayDeque<>();
+    ArrayDeque<ApiFuture<R>> pendingResults = new ArrayDeque<>();
+    try {
+      C chunk = chunks.next();
+      while (chunk != null || !pendingChunks.isEmpty()) {
+        if (chunk != null && pendingChunks.size() < maxInFlight) {
+          pendingChunks.add(chunk);
+          pendingResults.add(send.apply(chunk));
+          chunk = chunks.next();
+        } else {
+          handler.handle(pendingChunks.poll(), pendingResults.poll().get());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a chunk to be processed");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      for (ApiFuture<R> result : pendingResults) {
+        result.cancel(true);
+      }
+    }
+  }
+
+  private static Finding shiftText(Finding finding, TextChunk chunk) {
+    Location location = finding.getLocation();
+    return finding.toBuilder()
+        .setLocation(
+            location.toBuilder()
+                .setByteRange(shift(location.getByteRange(), chunk.startByte))
+                .setCodepointRange(shift(location.getCodepointRange(), chunk.startCodepoint)))
+        .build();
+  }
+
+  private static Range shift(Range range, long offset) {
+    return Range.newBuilder()
+        .setStart(range.getStart() + offset)
+        .setEnd(range.getEnd() + offset)
+        .build();
+  }
+
+  private static Finding shiftRows(Finding finding, long firstRow) {
+    if (firstRow == 0) {
+      return finding;
+    }
+    Location.Builder location = finding.getLocation().toBuilder();
+    for (ContentLocation.Builder content : location.getContentLocationsBuilderList()) {
+      if (content.hasRecordLocation() && content.getRecordLocation().hasTableLocation()) {
+        RecordLocation.Builder record = content.getRecordLocationBuilder();
+        record
+            .getTableLocationBuilder()
+            .setRowIndex(record.getTableLocation().getRowIndex() + firstRow);
+      }
+    }
+    return finding.toBuilder().setLocation(location).build();
+  }
+
+  // Returns the number of bytes the characters take up in UTF-8.
+  static long utf8Length(CharSequence text, int from, int to) {
+    long bytes = 0;
+    for (int i = from; i < to; i++) {
+      bytes += utf8Length(text.charAt(i));
+    }
+    return bytes;
+  }
+
+  // Counts a surrogate pair, which takes up 4 bytes, against its high surrogate.
+  private static int utf8Length(char c) {
+    if (c < 0x80) {
+      return 1;
+    } else if (c < 0x800) {
+      return 2;
+    } else if (Character.isHighSurrogate(c)) {
+      return 4;
+    } else if (Character.isLowSurrogate(c)) {
+      return 0;
+    }
+    return 3;
+  }
+
+  /** A chunk of text, and the codepoints of it whose findings it reports. */
+  static final class TextChunk {
+    final String text;
+    final long startByte;
+    final long startCodepoint;
+    // Codepoint offsets in the chunk.
+    final long ownedFrom;
+    final long ownedUntil;
+
+    TextChunk(String text, long startByte, long startCodepoint, long ownedFrom, long ownedUntil) {
+      this.text = text;
+      this.startByte = startByte;
+      this.startCodepoint = startCodepoint;
+      this.ownedFrom = ownedFrom;
+      this.ownedUntil = ownedUntil;
+    }
+  }
+
+  /**
+   * Splits text into chunks of at most maxChunkBytes in UTF-8. Only the current chunk is held in
+   * memory.
+   */
+  final class TextChunker {
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private boolean endOfText;
+    // The text of the next chunk read so far, starting with the overlap with the previous chunk.
+    private StringBuilder window = new StringBuilder();
+    private long windowBytes;
+    private long windowStartByte;
+    private long windowStartCodepoint;
+    private long windowOwnedFrom;
+    // The number of characters at the start of the window that were in the previous chunk.
+    private int overlap;
+
+    TextChunker(Reader reader) {
+      this.reader = reader;
+    }
+
+    TextChunk next() throws IOException {
+      fillWindow();
+      if (window.length() == overlap) {
+        // Everything read was in the previous chunk.
+        return null;
+      }
+      if (endOfText) {
+        TextChunk chunk =
+            new TextChunk(
+                window.toString(),
+                windowStartByte,
+                windowStartCodepoint,
+                windowOwnedFrom,
+                Long.MAX_VALUE);
+        overlap = window.length();
+        return chunk;
+      }
+
+      int cut = cutPoint();
+      int nextStart = nextChunkStart(cut);
+      String text = window.substring(0, cut);
+      // The overlap is split in two: findings starting in its first half are reported by this
+      // chunk, and the others by the next one.
+      int middle = nextStart + (cut - nextStart) / 2;
+      long ownedUntil = Character.codePointCount(text, 0, middle);
+      TextChunk chunk =
+          new TextChunk(text, windowStartByte, windowStartCodepoint, windowOwnedFrom, ownedUntil);
+
+      windowStartByte += utf8Length(window, 0, nextStart);
+      long nextStartCodepoint = Character.codePointCount(text, 0, nextStart);
+      windowStartCodepoint += nextStartCodepoint;
+      windowOwnedFrom = ownedUntil - nextStartCodepoint;
+      window = new StringBuilder(window.length()).append(window, nextStart, window.length());
+      windowBytes = utf8Length(window, 0, window.length());
+      overlap = cut - nextStart;
+      return chunk;
+    }
+
+    private void fillWindow() throws IOException {
+      while (!endOfText) {
+        if (position == limit) {
+          limit = reader.read(buffer);
+          position = 0;
+          if (limit < 0) {
+            limit = 0;
+            endOfText = true;
+            return;
+          }
+          continue;
+        }
+        int bytes = utf8Length(buffer[position]);
+        if (windowBytes + bytes > maxChunkBytes) {
+          return;
+        }
+        window.append(buffer[position++]);
+        windowBytes += bytes;
+      }
+    }
+
+    // Returns where to end the chunk: after the last line break in the second half of the window,
+    // or else after the last whitespace there, or else at the end of the window.
+    private int cutPoint() {
+      int half = window.length() / 2;
+      for (int i = window.length() - 1; i >= half; i--) {
+        if (window.charAt(i) == '\n') {
+          return i + 1;
+        }
+      }
+      for (int i = window.length() - 1; i >= half; i--) {
+        if (Character.isWhitespace(window.charAt(i))) {
+          return i + 1;
+        }
+      }
+      int cut = window.length();
+      return Character.isHighSurrogate(window.charAt(cut - 1)) ? cut - 1 : cut;
+    }
+
+    // Returns where the next chunk starts: overlapChars before the cut, moved forward past the
+    // next whitespace so the next chunk doesn't start in the middle of a word.
+    private int nextChunkStart(int cut) {
+      int start = Math.max(0, cut - overlapChars);
+      for (int i = start; i < cut; i++) {
+        if (Character.isWhitespace(window.charAt(i))) {
+          return i + 1;
+        }
+      }
+      return Character.isLowSurrogate(window.charAt(start)) ? start + 1 : start;
+    }
+  }
+
+  /** A chunk of rows of a table. */
+  static final class TableChunk {
+    final Table table;
+    final long firstRow;
+
+    TableChunk(Table table, long firstRow) {
+      this.table = table;
+      this.firstRow = firstRow;
+    }
+  }
+
+  /** Splits a table into chunks of rows of at most maxChunkBytes and 50,000 cells. */
+  final class TableChunker {
+    private final Table table;
+    private final int headersBytes;
+    private final int maxRows;
+    private int nextRow;
+
+    TableChunker(Table table) {
+      this.table = table;
+      this.headersBytes = table.toBuilder().clearRows().build().getSerializedSize();
+      this.maxRows = MAX_TABLE_CELLS / Math.max(1, table.getHeadersCount());
+    }
+
+    TableChunk next() {
+      if (nextRow == table.getRowsCount()) {
+        return null;
+      }
+      Table.Builder chunk = Table.newBuilder().addAllHeaders(table.getHeadersList());
+      int firstRow = nextRow;
+      long bytes = headersBytes;
+      while (nextRow < table.getRowsCount() && nextRow - firstRow < maxRows) {
+        Row row = table.getRows(nextRow);
+        // Each row also takes a tag and a length prefix.
+        long rowBytes = row.getSerializedSize() + 6;
+        if (nextRow > firstRow && bytes + rowBytes > maxChunkBytes) {
+          break;
+        }
+        chunk.addRows(row);
+        bytes += rowBytes;
+        nextRow++;
+      }
+      return new TableChunk(chunk.build(), firstRow);
+    }
+  }
+}
+// [END dlp_chunked_inspector]
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_job_completion_dispatcher]
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.ApiService;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.privacy.dlp.v2.DlpJob;
+import com.google.privacy.dlp.v2.GetDlpJobRequest;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.ManagedChannelBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Waits for DLP jobs to complete, using the notifications their {@code PublishToPubSub} action
+ * publishes when they do.
+ *
+ * <p>All the jobs awaited on a subscription share one subscriber, which routes each notification
+ * by its {@code DlpJobName} attribute to the job waiting for it, so any number of jobs can be
+ * awaited at once. The subscriber only runs while some job is awaited. Every notification is
+ * acknowledged, and those for jobs nobody is waiting for yet are remembered, since a job can
+ * complete before its creator starts waiting for it. So the subscription should only receive the
+ * notifications of jobs created by this process; give each process its own subscription to the
+ * topic.
+ *
+ * <p>When the {@code PUBSUB_EMULATOR_HOST} environment variable is set, the subscriber connects to
+ * the Pub/Sub emulator at that address instead.
+ */
+public class DlpJobCompletionDispatcher implements MessageReceiver {
+
+  // The attribute holding the name of the completed job in a notification.
+  static final String JOB_NAME_ATTRIBUTE = "DlpJobName";
+  // How many completions of jobs nobody is waiting for are remembered.
+  static final int MAX_UNCLAIMED = 1024;
+
+  private static final Map<ProjectSubscriptionName, DlpJobCompletionDispatcher> DISPATCHERS =
+      new ConcurrentHashMap<>();
+
+  private final Function<MessageReceiver, Subscriber> subscriberFactory;
+  // The following are guarded by this.
+  private final Map<String, SettableApiFuture<String>> pending = new HashMap<>();
+  private final Set<String> unclaimed = new LinkedHashSet<>();
+  private Subscriber subscriber;
+
+  DlpJobCompletionDispatcher(Function<MessageReceiver, Subscriber> subscriberFactory) {
+    this.subscriberFactory = subscriberFactory;
+  }
+
+  /** Returns the dispatcher shared by all the jobs awaited on the subscription. */
+  public static DlpJobCompletionDispatcher forSubscription(ProjectSubscriptionName subscription) {
+    return DISPATCHERS.computeIfAbsent(
+        subscription,
+        name -> new DlpJobCompletionDispatcher(subscriberFactory(name)));
+  }
+
+  private static Function<MessageReceiver, Subscriber> subscriberFactory(
+      ProjectSubscriptionName subscription) {
+    String emulatorHost = System.getenv("PUBSUB_EMULATOR_HOST");
+    if (emulatorHost == null || emulatorHost.isEmpty()) {
+      return receiver -> Subscriber.newBuilder(subscription, receiver).build();
+    }
+    // The channel lives as long as the dispatcher, that is as long as the process.
+    FixedTransportChannelProvider channelProvider =
+        FixedTransportChannelProvider.create(
+            GrpcTransportChannel.create(
+                ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build()));
+    return receiver ->
+        Subscriber.newBuilder(subscription, receiver)
+            .setChannelProvider(channelProvider)
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build();
+  }
+
+  /**
+   * Returns a future completed with the job name when the job completes, whether it succeeded or
+   * not. The future fails if the subscriber does, and cancelling it stops waiting for the job.
+   */
+  public ApiFuture<String> awaitCompletion(String jobName) {
+    SettableApiFuture<String> done;
+    synchronized (this) {
+      done = pending.get(jobName);
+      if (done != null) {
+        return done;
+      }
+      done = SettableApiFuture.create();
+      if (unclaimed.remove(jobName)) {
+        done.set(jobName);
+        return done;
+      }
+      pending.put(jobName, done);
+      if (subscriber == null) {
+        subscriber = startSubscriber();
+      }
+    }
+    SettableApiFuture<String> registered = done;
+    done.addListener(() -> forget(jobName, registered), MoreExecutors.directExecutor());
+    return done;
+  }
+
+  /** Returns a future for the job as it is once it has completed. */
+  public ApiFuture<DlpJob> awaitJob(DlpServiceClient dlp, String jobName) {
+    return ApiFutures.transformAsync(
+        awaitCompletion(jobName),
+        name -> dlp.getDlpJobCallable().futureCall(
+            GetDlpJobRequest.newBuilder().setName(name).build()),
+        MoreExecutors.directExecutor());
+  }
+
+  /** Returns the number of jobs being waited for. */
+  public synchronized int getPendingJobs() {
+    return pending.size();
+  }
+
+  @Override
+  public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+    String jobName = message.getAttributesMap().get(JOB_NAME_ATTRIBUTE);
+    SettableApiFuture<String> done = null;
+    if (jobName != null) {
+      synchronized (this) {
+        done = pending.remove(jobName);
+        if (done == null && unclaimed.add(jobName) && unclaimed.size() > MAX_UNCLAIMED) {
+          unclaimed.remove(unclaimed.iterator().next());
+        }
+      }
+    }
+    // Nacking notifications meant for other jobs would only have them redelivered over and over.
+    consumer.ack();
+    if (done != null) {
+      done.set(jobName);
+    }
+  }
+
+  private Subscriber startSubscriber() {
+    Subscriber started = subscriberFactory.apply(this);
+    started.addListener(
+        new ApiService.Listener() {
+          @Override
+          public void failed(ApiService.State from, Throwable failure) {
+            subscriberFailed(started, failure);
+          }
+        },
+        MoreExecutors.directExecutor());
+    started.startAsync();
+    return started;
+  }
+
+  private void subscriberFailed(Subscriber failed, Throwable failure) {
+    List<SettableApiFuture<String>> failing;
+    synchronized (this) {
+      if (subscriber != failed) {
+        return;
+      }
+      subscriber = null;
+      failing = new ArrayList<>(pending.values());
+      pending.clear();
+    }
+    for (SettableApiFuture<String> done : failing) {
+      done.setException(failure);
+    }
+  }
+
+  private void forget(String jobName, SettableApiFuture<String> done) {
+    Subscriber idle = null;
+    synchronized (this) {
+      pending.remove(jobName, done);
+      if (pending.isEmpty()) {
+        idle = subscriber;
+        subscriber = null;
+      }
+    }
+    // Outstanding acknowledgements are still sent as the subscriber stops.
+    if (idle != null) {
+      idle.stopAsync();
+    }
+  }
+}
+// [END dlp_job_completion_dispatcher]
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_inspect_file_in_chunks]
+
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InspectTextFileInChunks {
+
+  public static void main(String[] args) throws Exception {
+    // TODO(developer): Replace these variables before running the sample.
+    String projectId = "your-project-id";
+    String filePath = "path/to/file.txt";
+    inspectTextFileInChunks(projectId, filePath);
+  }
+
+  // Inspects the specified text file, which may be larger than a single request allows.
+  public static void inspectTextFileInChunks(String projectId, String filePath)
+      throws IOException {
+    // Initialize client that will be used to send requests. This client only needs to be created
+    // once, and can be reused for multiple requests. After completing all of your requests, call
+    // the "close" method on the client to safely clean up any remaining background resources.
+    try (DlpServiceClient dlp = DlpServiceClient.create()) {
+      // Specify the type of info the inspection will look for.
+      List<InfoType> infoTypes = new ArrayList<>();
+      // See https://cloud.google.com/dlp/docs/infotypes-reference for complete list of info types
+      for (String typeName : new String[] {"PHONE_NUMBER", "EMAIL_ADDRESS", "CREDIT_CARD_NUMBER"}) {
+        infoTypes.add(InfoType.newBuilder().setName(typeName).build());
+      }
+
+      // Construct the configuration for the Inspect requests.
+      InspectConfig config =
+          InspectConfig.newBuilder().addAllInfoTypes(infoTypes).setIncludeQuote(true).build();
+
+      // The file is read and inspected a chunk at a time, with several chunks inspected at once
+      // (see ChunkedInspector.java).
+      ChunkedInspector inspector = new ChunkedInspector(dlp, projectId, config);
+      AtomicLong findings = new AtomicLong();
+      try (Reader reader = Files.newBufferedReader(Paths.get(filePath), StandardCharsets.UTF_8)) {
+        inspector.inspectText(
+            reader,
+            f -> {
+              findings.incrementAndGet();
+              System.out.println("\tQuote: " + f.getQuote());
+              System.out.println("\tInfo type: " + f.getInfoType().getName());
+              System.out.println("\tLikelihood: " + f.getLikelihood());
+              System.out.println("\tByte offset: " + f.getLocation().getByteRange().getStart());
+            });
+      }
+      System.out.println("Findings: " + findings.get());
+    }
+  }
+}
+// [END dlp_inspect_file_in_chunks]
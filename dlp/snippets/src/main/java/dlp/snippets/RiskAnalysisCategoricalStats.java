@@ -18,14 +18,10 @@ package dlp.snippets;
 
 // [START dlp_categorical_stats]
 
-import com.google.api.core.SettableApiFuture;
+import com.google.api.core.ApiFuture;
 import com.google.cloud.dlp.v2.DlpServiceClient;
-import com.google.cloud.pubsub.v1.AckReplyConsumer;
-import com.google.cloud.pubsub.v1.MessageReceiver;
-import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.privacy.dlp.v2.Action;
 import com.google.privacy.dlp.v2.Action.PublishToPubSub;
-import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.CategoricalStatsResult;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.CategoricalStatsResult.CategoricalStatsHistogramBucket;
 import com.google.privacy.dlp.v2.BigQueryTable;
 import com.google.privacy.dlp.v2.CreateDlpJobRequest;
@@ -39,9 +35,7 @@ import com.google.privacy.dlp.v2.RiskAnalysisJobConfig;
 import com.google.privacy.dlp.v2.ValueFrequency;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.ProjectTopicName;
-import com.google.pubsub.v1.PubsubMessage;
 import java.io.IOException;
-import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -107,29 +101,22 @@ class RiskAnalysisCategoricalStats {
       // Send the request to the API using the client
       DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
 
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
+      // Listen on the job completion status, through a Pub/Sub subscriber shared with any other
+      // jobs awaited on the same subscription (see DlpJobCompletionDispatcher.java)
       ProjectSubscriptionName subscriptionName =
           ProjectSubscriptionName.of(projectId, subscriptionId);
-
-      MessageReceiver messageHandler =
-          (PubsubMessage pubsubMessage, AckReplyConsumer ackReplyConsumer) -> {
-            handleMessage(dlpJob, done, pubsubMessage, ackReplyConsumer);
-          };
-      Subscriber subscriber = Subscriber.newBuilder(subscriptionName, messageHandler).build();
-      subscriber.startAsync();
+      ApiFuture<String> done =
+          DlpJobCompletionDispatcher.forSubscription(subscriptionName)
+              .awaitCompletion(dlpJob.getName());
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
         done.get(15, TimeUnit.MINUTES);
       } catch (TimeoutException e) {
+        done.cancel(false);
         System.out.println("Job was not completed after 15 minutes.");
         return;
-      } finally {
-        subscriber.stopAsync();
-        subscriber.awaitTerminated();
       }
 
       // Build a request to get the completed job
@@ -141,39 +128,24 @@ class RiskAnalysisCategoricalStats {
       System.out.println("Job status: " + completedJob.getState());
       System.out.println("Job name: " + dlpJob.getName());
 
-      // Get the result and parse through and process the information
-      CategoricalStatsResult result = completedJob.getRiskDetails().getCategoricalStatsResult();
-      List<CategoricalStatsHistogramBucket> histogramBucketList =
-          result.getValueFrequencyHistogramBucketsList();
-
-      for (CategoricalStatsHistogramBucket bucket : histogramBucketList) {
-        long mostCommonFrequency = bucket.getValueFrequencyUpperBound();
-        System.out.printf("Most common value occurs %d time(s).\n", mostCommonFrequency);
-
-        long leastCommonFrequency = bucket.getValueFrequencyLowerBound();
-        System.out.printf("Least common value occurs %d time(s).\n", leastCommonFrequency);
-
-        for (ValueFrequency valueFrequency : bucket.getBucketValuesList()) {
-          System.out.printf(
-              "Value %s occurs %d time(s).\n",
-              valueFrequency.getValue().toString(), valueFrequency.getCount());
-        }
-      }
+      // Stream through the histogram buckets of the result and process the information (see
+      // RiskAnalysisHistograms.java)
+      RiskAnalysisHistograms.categoricalStats(completedJob)
+          .forEach(RiskAnalysisCategoricalStats::printBucket);
     }
   }
 
-  // handleMessage injects the job and settableFuture into the message reciever interface
-  private static void handleMessage(
-      DlpJob job,
-      SettableApiFuture<Boolean> done,
-      PubsubMessage pubsubMessage,
-      AckReplyConsumer ackReplyConsumer) {
-    String messageAttribute = pubsubMessage.getAttributesMap().get("DlpJobName");
-    if (job.getName().equals(messageAttribute)) {
-      done.set(true);
-      ackReplyConsumer.ack();
-    } else {
-      ackReplyConsumer.nack();
+  private static void printBucket(CategoricalStatsHistogramBucket bucket) {
+    long mostCommonFrequency = bucket.getValueFrequencyUpperBound();
+    System.out.printf("Most common value occurs %d time(s).\n", mostCommonFrequency);
+
+    long leastCommonFrequency = bucket.getValueFrequencyLowerBound();
+    System.out.printf("Least common value occurs %d time(s).\n", leastCommonFrequency);
+
+    for (ValueFrequency valueFrequency : bucket.getBucketValuesList()) {
+      System.out.printf(
+          "Value %s occurs %d time(s).\n",
+          valueFrequency.getValue().toString(), valueFrequency.getCount());
     }
   }
 }
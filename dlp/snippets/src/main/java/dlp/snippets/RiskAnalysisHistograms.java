@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+// [START dlp_risk_analysis_histograms]
+
+import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails;
+import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.CategoricalStatsResult.CategoricalStatsHistogramBucket;
+import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.KAnonymityResult.KAnonymityHistogramBucket;
+import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.KMapEstimationResult.KMapEstimationHistogramBucket;
+import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.LDiversityResult.LDiversityHistogramBucket;
+import com.google.privacy.dlp.v2.DlpJob;
+import java.util.stream.Stream;
+
+/**
+ * Streams the histogram buckets of completed risk analysis jobs, so that callers can filter,
+ * aggregate or forward them rather than print them.
+ */
+@SuppressWarnings("checkstyle:AbbreviationAsWordInName")
+public final class RiskAnalysisHistograms {
+
+  private RiskAnalysisHistograms() {}
+
+  public static Stream<CategoricalStatsHistogramBucket> categoricalStats(DlpJob job) {
+    AnalyzeDataSourceRiskDetails details = details(job);
+    requireResult(job, details.hasCategoricalStatsResult(), "categorical stats");
+    return details.getCategoricalStatsResult().getValueFrequencyHistogramBucketsList().stream();
+  }
+
+  public static Stream<KAnonymityHistogramBucket> kAnonymity(DlpJob job) {
+    AnalyzeDataSourceRiskDetails details = details(job);
+    requireResult(job, details.hasKAnonymityResult(), "k-anonymity");
+    return details.getKAnonymityResult().getEquivalenceClassHistogramBucketsList().stream();
+  }
+
+  public static Stream<LDiversityHistogramBucket> lDiversity(DlpJob job) {
+    AnalyzeDataSourceRiskDetails details = details(job);
+    requireResult(job, details.hasLDiversityResult(), "l-diversity");
+    return details.getLDiversityResult().getSensitiveValueFrequencyHistogramBucketsList().stream();
+  }
+
+  public static Stream<KMapEstimationHistogramBucket> kMap(DlpJob job) {
+    AnalyzeDataSourceRiskDetails details = details(job);
+    requireResult(job, details.hasKMapEstimationResult(), "k-map");
+    return details.getKMapEstimationResult().getKMapEstimationHistogramList().stream();
+  }
+
+  private static AnalyzeDataSourceRiskDetails details(DlpJob job) {
+    if (job.getState() != DlpJob.JobState.DONE) {
+      throw new IllegalArgumentException(
+          String.format("Job %s has not succeeded: %s", job.getName(), job.getState()));
+    }
+    return job.getRiskDetails();
+  }
+
+  private static void requireResult(DlpJob job, boolean present, String metric) {
+    if (!present) {
+      throw new IllegalArgumentException(
+          String.format("Job %s has no %s result", job.getName(), metric));
+    }
+  }
+}
+// [END dlp_risk_analysis_histograms]
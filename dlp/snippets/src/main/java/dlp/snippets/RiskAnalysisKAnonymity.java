@@ -18,14 +18,10 @@ package dlp.snippets;
 
 // [START dlp_k_anonymity]
 
-import com.google.api.core.SettableApiFuture;
+import com.google.api.core.ApiFuture;
 import com.google.cloud.dlp.v2.DlpServiceClient;
-import com.google.cloud.pubsub.v1.AckReplyConsumer;
-import com.google.cloud.pubsub.v1.MessageReceiver;
-import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.privacy.dlp.v2.Action;
 import com.google.privacy.dlp.v2.Action.PublishToPubSub;
-import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.KAnonymityResult;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.KAnonymityResult.KAnonymityEquivalenceClass;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.KAnonymityResult.KAnonymityHistogramBucket;
 import com.google.privacy.dlp.v2.BigQueryTable;
@@ -40,7 +36,6 @@ import com.google.privacy.dlp.v2.RiskAnalysisJobConfig;
 import com.google.privacy.dlp.v2.Value;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.ProjectTopicName;
-import com.google.pubsub.v1.PubsubMessage;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
@@ -115,29 +110,22 @@ class RiskAnalysisKAnonymity {
       // Send the request to the API using the client
       DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
 
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
+      // Listen on the job completion status, through a Pub/Sub subscriber shared with any other
+      // jobs awaited on the same subscription (see DlpJobCompletionDispatcher.java)
       ProjectSubscriptionName subscriptionName =
           ProjectSubscriptionName.of(projectId, subscriptionId);
-
-      MessageReceiver messageHandler =
-          (PubsubMessage pubsubMessage, AckReplyConsumer ackReplyConsumer) -> {
-            handleMessage(dlpJob, done, pubsubMessage, ackReplyConsumer);
-          };
-      Subscriber subscriber = Subscriber.newBuilder(subscriptionName, messageHandler).build();
-      subscriber.startAsync();
+      ApiFuture<String> done =
+          DlpJobCompletionDispatcher.forSubscription(subscriptionName)
+              .awaitCompletion(dlpJob.getName());
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
         done.get(15, TimeUnit.MINUTES);
       } catch (TimeoutException e) {
+        done.cancel(false);
         System.out.println("Job was not completed after 15 minutes.");
         return;
-      } finally {
-        subscriber.stopAsync();
-        subscriber.awaitTerminated();
       }
 
       // Build a request to get the completed job
@@ -149,40 +137,26 @@ class RiskAnalysisKAnonymity {
       System.out.println("Job status: " + completedJob.getState());
       System.out.println("Job name: " + dlpJob.getName());
 
-      // Get the result and parse through and process the information
-      KAnonymityResult kanonymityResult = completedJob.getRiskDetails().getKAnonymityResult();
-      List<KAnonymityHistogramBucket> histogramBucketList =
-          kanonymityResult.getEquivalenceClassHistogramBucketsList();
-      for (KAnonymityHistogramBucket result : histogramBucketList) {
-        System.out.printf(
-            "Bucket size range: [%d, %d]\n",
-            result.getEquivalenceClassSizeLowerBound(), result.getEquivalenceClassSizeUpperBound());
-
-        for (KAnonymityEquivalenceClass bucket : result.getBucketValuesList()) {
-          List<String> quasiIdValues =
-              bucket.getQuasiIdsValuesList().stream()
-                  .map(Value::toString)
-                  .collect(Collectors.toList());
-
-          System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
-          System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
-        }
-      }
+      // Stream through the histogram buckets of the result and process the information (see
+      // RiskAnalysisHistograms.java)
+      RiskAnalysisHistograms.kAnonymity(completedJob)
+          .forEach(RiskAnalysisKAnonymity::printBucket);
     }
   }
 
-  // handleMessage injects the job and settableFuture into the message reciever interface
-  private static void handleMessage(
-      DlpJob job,
-      SettableApiFuture<Boolean> done,
-      PubsubMessage pubsubMessage,
-      AckReplyConsumer ackReplyConsumer) {
-    String messageAttribute = pubsubMessage.getAttributesMap().get("DlpJobName");
-    if (job.getName().equals(messageAttribute)) {
-      done.set(true);
-      ackReplyConsumer.ack();
-    } else {
-      ackReplyConsumer.nack();
+  private static void printBucket(KAnonymityHistogramBucket result) {
+    System.out.printf(
+        "Bucket size range: [%d, %d]\n",
+        result.getEquivalenceClassSizeLowerBound(), result.getEquivalenceClassSizeUpperBound());
+
+    for (KAnonymityEquivalenceClass bucket : result.getBucketValuesList()) {
+      List<String> quasiIdValues =
+          bucket.getQuasiIdsValuesList().stream()
+              .map(Value::toString)
+              .collect(Collectors.toList());
+
+      System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
+      System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
     }
   }
 }
@@ -18,15 +18,11 @@ package dlp.snippets;
 
 // [START dlp_l_diversity]
 
-import com.google.api.core.SettableApiFuture;
+import com.google.api.core.ApiFuture;
 import com.google.cloud.dlp.v2.DlpServiceClient;
 import com.google.cloud.dlp.v2.DlpServiceSettings;
-import com.google.cloud.pubsub.v1.AckReplyConsumer;
-import com.google.cloud.pubsub.v1.MessageReceiver;
-import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.privacy.dlp.v2.Action;
 import com.google.privacy.dlp.v2.Action.PublishToPubSub;
-import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.LDiversityResult;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.LDiversityResult.LDiversityEquivalenceClass;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.LDiversityResult.LDiversityHistogramBucket;
 import com.google.privacy.dlp.v2.BigQueryTable;
@@ -42,7 +38,6 @@ import com.google.privacy.dlp.v2.Value;
 import com.google.privacy.dlp.v2.ValueFrequency;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.ProjectTopicName;
-import com.google.pubsub.v1.PubsubMessage;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
@@ -136,29 +131,22 @@ class RiskAnalysisLDiversity {
       // Send the request to the API using the client
       DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
 
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
+      // Listen on the job completion status, through a Pub/Sub subscriber shared with any other
+      // jobs awaited on the same subscription (see DlpJobCompletionDispatcher.java)
       ProjectSubscriptionName subscriptionName =
           ProjectSubscriptionName.of(projectId, subscriptionId);
-
-      MessageReceiver messageHandler =
-          (PubsubMessage pubsubMessage, AckReplyConsumer ackReplyConsumer) -> {
-            handleMessage(dlpJob, done, pubsubMessage, ackReplyConsumer);
-          };
-      Subscriber subscriber = Subscriber.newBuilder(subscriptionName, messageHandler).build();
-      subscriber.startAsync();
+      ApiFuture<String> done =
+          DlpJobCompletionDispatcher.forSubscription(subscriptionName)
+              .awaitCompletion(dlpJob.getName());
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
         done.get(15, TimeUnit.MINUTES);
       } catch (TimeoutException e) {
+        done.cancel(false);
         System.out.println("Job was not completed after 15 minutes.");
         return;
-      } finally {
-        subscriber.stopAsync();
-        subscriber.awaitTerminated();
       }
 
       // Build a request to get the completed job
@@ -170,42 +158,28 @@ class RiskAnalysisLDiversity {
       System.out.println("Job status: " + completedJob.getState());
       System.out.println("Job name: " + dlpJob.getName());
 
-      // Get the result and parse through and process the information
-      LDiversityResult ldiversityResult = completedJob.getRiskDetails().getLDiversityResult();
-      List<LDiversityHistogramBucket> histogramBucketList =
-          ldiversityResult.getSensitiveValueFrequencyHistogramBucketsList();
-      for (LDiversityHistogramBucket result : histogramBucketList) {
-        for (LDiversityEquivalenceClass bucket : result.getBucketValuesList()) {
-          List<String> quasiIdValues =
-              bucket.getQuasiIdsValuesList().stream()
-                  .map(Value::toString)
-                  .collect(Collectors.toList());
-
-          System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
-          System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
-
-          for (ValueFrequency valueFrequency : bucket.getTopSensitiveValuesList()) {
-            System.out.printf(
-                "\t\tSensitive value %s occurs %d time(s).\n",
-                valueFrequency.getValue().toString(), valueFrequency.getCount());
-          }
-        }
-      }
+      // Stream through the histogram buckets of the result and process the information (see
+      // RiskAnalysisHistograms.java)
+      RiskAnalysisHistograms.lDiversity(completedJob)
+          .forEach(RiskAnalysisLDiversity::printBucket);
     }
   }
 
-  // handleMessage injects the job and settableFuture into the message reciever interface
-  private static void handleMessage(
-      DlpJob job,
-      SettableApiFuture<Boolean> done,
-      PubsubMessage pubsubMessage,
-      AckReplyConsumer ackReplyConsumer) {
-    String messageAttribute = pubsubMessage.getAttributesMap().get("DlpJobName");
-    if (job.getName().equals(messageAttribute)) {
-      done.set(true);
-      ackReplyConsumer.ack();
-    } else {
-      ackReplyConsumer.nack();
+  private static void printBucket(LDiversityHistogramBucket result) {
+    for (LDiversityEquivalenceClass bucket : result.getBucketValuesList()) {
+      List<String> quasiIdValues =
+          bucket.getQuasiIdsValuesList().stream()
+              .map(Value::toString)
+              .collect(Collectors.toList());
+
+      System.out.println("\tQuasi-ID values: " + String.join(", ", quasiIdValues));
+      System.out.println("\tClass size: " + bucket.getEquivalenceClassSize());
+
+      for (ValueFrequency valueFrequency : bucket.getTopSensitiveValuesList()) {
+        System.out.printf(
+            "\t\tSensitive value %s occurs %d time(s).\n",
+            valueFrequency.getValue().toString(), valueFrequency.getCount());
+      }
     }
   }
 }
@@ -18,11 +18,8 @@ package dlp.snippets;
 
 // [START dlp_numerical_stats]
 
-import com.google.api.core.SettableApiFuture;
+import com.google.api.core.ApiFuture;
 import com.google.cloud.dlp.v2.DlpServiceClient;
-import com.google.cloud.pubsub.v1.AckReplyConsumer;
-import com.google.cloud.pubsub.v1.MessageReceiver;
-import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.privacy.dlp.v2.Action;
 import com.google.privacy.dlp.v2.Action.PublishToPubSub;
 import com.google.privacy.dlp.v2.AnalyzeDataSourceRiskDetails.NumericalStatsResult;
@@ -38,7 +35,6 @@ import com.google.privacy.dlp.v2.RiskAnalysisJobConfig;
 import com.google.privacy.dlp.v2.Value;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.ProjectTopicName;
-import com.google.pubsub.v1.PubsubMessage;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -106,29 +102,22 @@ class RiskAnalysisNumericalStats {
       // Send the request to the API using the client
       DlpJob dlpJob = dlpServiceClient.createDlpJob(createDlpJobRequest);
 
-      // Set up a Pub/Sub subscriber to listen on the job completion status
-      final SettableApiFuture<Boolean> done = SettableApiFuture.create();
-
+      // Listen on the job completion status, through a Pub/Sub subscriber shared with any other
+      // jobs awaited on the same subscription (see DlpJobCompletionDispatcher.java)
       ProjectSubscriptionName subscriptionName =
           ProjectSubscriptionName.of(projectId, subscriptionId);
-
-      MessageReceiver messageHandler =
-          (PubsubMessage pubsubMessage, AckReplyConsumer ackReplyConsumer) -> {
-            handleMessage(dlpJob, done, pubsubMessage, ackReplyConsumer);
-          };
-      Subscriber subscriber = Subscriber.newBuilder(subscriptionName, messageHandler).build();
-      subscriber.startAsync();
+      ApiFuture<String> done =
+          DlpJobCompletionDispatcher.forSubscription(subscriptionName)
+              .awaitCompletion(dlpJob.getName());
 
       // Wait for job completion semi-synchronously
       // For long jobs, consider using a truly asynchronous execution model such as Cloud Functions
       try {
         done.get(15, TimeUnit.MINUTES);
       } catch (TimeoutException e) {
+        done.cancel(false);
         System.out.println("Job was not completed after 15 minutes.");
         return;
-      } finally {
-        subscriber.stopAsync();
-        subscriber.awaitTerminated();
       }
 
       // Build a request to get the completed job
@@ -158,20 +147,5 @@ class RiskAnalysisNumericalStats {
       }
     }
   }
-
-  // handleMessage injects the job and settableFuture into the message reciever interface
-  private static void handleMessage(
-      DlpJob job,
-      SettableApiFuture<Boolean> done,
-      PubsubMessage pubsubMessage,
-      AckReplyConsumer ackReplyConsumer) {
-    String messageAttribute = pubsubMessage.getAttributesMap().get("DlpJobName");
-    if (job.getName().equals(messageAttribute)) {
-      done.set(true);
-      ackReplyConsumer.ack();
-    } else {
-      ackReplyConsumer.nack();
-    }
-  }
 }
 // [END dlp_numerical_stats]
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.ContentLocation;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
+import com.google.privacy.dlp.v2.InspectResult;
+import com.google.privacy.dlp.v2.Location;
+import com.google.privacy.dlp.v2.Range;
+import com.google.privacy.dlp.v2.RecordLocation;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Table.Row;
+import com.google.privacy.dlp.v2.TableLocation;
+import com.google.privacy.dlp.v2.Value;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ChunkedInspector}, against a fake service that finds email addresses. */
+@RunWith(JUnit4.class)
+public class ChunkedInspectorTests {
+
+  private static final Pattern EMAIL = Pattern.compile("[a-z]+@example\\.com");
+  private static final InspectConfig CONFIG =
+      InspectConfig.newBuilder()
+          .addInfoTypes(InfoType.newBuilder().setName("EMAIL_ADDRESS"))
+          .build();
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private ExecutorService executor;
+  private DlpServiceClient dlp;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(8);
+    dlp = mock(DlpServiceClient.class);
+    when(dlp.inspectContentCallable())
+        .thenReturn(new FakeCallable<>(ChunkedInspectorTests::inspect));
+    when(dlp.deidentifyContentCallable())
+        .thenReturn(new FakeCallable<>(ChunkedInspectorTests::deidentify));
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testInspectTextReportsEachFindingOnceWithFileOffsets() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 400; i++) {
+      // Multi-byte characters make byte and codepoint offsets differ.
+      text.append(i % 3 == 0 ? "café 😀 " : "plain words ");
+      text.append(i % 7 == 0 ? "\n" : "");
+      text.append("user").append((char) ('a' + i % 26)).append("@example.com ");
+    }
+    List<Finding> expected = inspect(request(text.toString())).getResult().getFindingsList();
+
+    ChunkedInspector inspector = new ChunkedInspector(dlp, "project", CONFIG, 1024, 64, 4);
+    List<Finding> findings = new ArrayList<>();
+    inspector.inspectText(new StringReader(text.toString()), findings::add);
+
+    assertThat(findings).containsExactlyElementsIn(expected).inOrder();
+    assertThat(requests.get()).isGreaterThan(10);
+    assertThat(maxInFlight.get()).isAtMost(4);
+  }
+
+  @Test
+  public void testInspectTextFindsMatchesSplitByChunkBoundaries() throws Exception {
+    // No whitespace to cut at, so chunks are cut in the middle of addresses.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      text.append("xx").append("user@example.com");
+    }
+    List<Finding> expected = inspect(request(text.toString())).getResult().getFindingsList();
+
+    ChunkedInspector inspector = new ChunkedInspector(dlp, "project", CONFIG, 512, 40, 2);
+    List<Finding> findings = new ArrayList<>();
+    inspector.inspectText(new StringReader(text.toString()), findings::add);
+
+    assertThat(findings).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void testInspectEmptyText() throws Exception {
+    ChunkedInspector inspector = new ChunkedInspector(dlp, "project", CONFIG);
+    List<Finding> findings = new ArrayList<>();
+    inspector.inspectText(new StringReader(""), findings::add);
+
+    assertThat(findings).isEmpty();
+    assertThat(requests.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInspectTableReportsRowsOfTheWholeTable() throws Exception {
+    Table table = table(500);
+
+    ChunkedInspector inspector = new ChunkedInspector(dlp, "project", CONFIG, 2048, 0, 3);
+    List<Long> rows = new ArrayList<>();
+    inspector.inspectTable(
+        table,
+        finding ->
+            rows.add(
+                finding
+                    .getLocation()
+                    .getContentLocations(0)
+                    .getRecordLocation()
+                    .getTableLocation()
+                    .getRowIndex()));
+
+    List<Long> expected = new ArrayList<>();
+    for (long i = 0; i < 500; i += 5) {
+      expected.add(i);
+    }
+    assertThat(rows).containsExactlyElementsIn(expected).inOrder();
+    assertThat(requests.get()).isGreaterThan(5);
+    assertThat(maxInFlight.get()).isAtMost(3);
+  }
+
+  @Test
+  public void testDeidentifyTableKeepsRowOrder() throws Exception {
+    Table table = table(500);
+
+    ChunkedInspector inspector = new ChunkedInspector(dlp, "project", CONFIG, 2048, 0, 3);
+    Table deidentified = inspector.deidentifyTable(table, DeidentifyConfig.getDefaultInstance());
+
+    assertThat(deidentified.getHeadersList()).isEqualTo(table.getHeadersList());
+    assertThat(deidentified.getRowsCount()).isEqualTo(500);
+    for (int i = 0; i < 500; i++) {
+      assertThat(deidentified.getRows(i).getValues(0).getStringValue()).isEqualTo("row" + i);
+      assertThat(deidentified.getRows(i).getValues(1).getStringValue())
+          .doesNotContain("@example.com");
+    }
+  }
+
+  @Test
+  public void testFailedChunkFailsTheInspection() {
+    when(dlp.inspectContentCallable())
+        .thenReturn(
+            new FakeCallable<InspectContentRequest, InspectContentResponse>(
+                request -> {
+                  throw new IllegalStateException("quota exceeded");
+                }));
+
+    ChunkedInspector inspector = new ChunkedInspector(dlp, "project", CONFIG, 1024, 64, 4);
+    IllegalStateException e =
+        assertThrows(
+            IllegalStateException.class,
+            () -> inspector.inspectTable(table(100), finding -> {}));
+    assertThat(e).hasMessageThat().contains("quota exceeded");
+  }
+
+  private static Table table(int rows) {
+    Table.Builder table =
+        Table.newBuilder()
+            .addHeaders(FieldId.newBuilder().setName("id"))
+            .addHeaders(FieldId.newBuilder().setName("contact"));
+    for (int i = 0; i < rows; i++) {
+      table.addRows(
+          Row.newBuilder()
+              .addValues(Value.newBuilder().setStringValue("row" + i))
+              .addValues(
+                  Value.newBuilder()
+                      .setStringValue(i % 5 == 0 ? "user@example.com" : "nobody")));
+    }
+    return table.build();
+  }
+
+  private static InspectContentRequest request(String text) {
+    return InspectContentRequest.newBuilder()
+        .setItem(ContentItem.newBuilder().setValue(text))
+        .build();
+  }
+
+  private static InspectContentResponse inspect(InspectContentRequest request) {
+    InspectResult.Builder result = InspectResult.newBuilder();
+    ContentItem item = request.getItem();
+    if (item.hasTable()) {
+      for (int row = 0; row < item.getTable().getRowsCount(); row++) {
+        for (Value value : item.getTable().getRows(row).getValuesList()) {
+          if (EMAIL.matcher(value.getStringValue()).find()) {
+            result.addFindings(
+                Finding.newBuilder()
+                    .setInfoType(InfoType.newBuilder().setName("EMAIL_ADDRESS"))
+                    .setLocation(
+                        Location.newBuilder()
+                            .addContentLocations(
+                                ContentLocation.newBuilder()
+                                    .setRecordLocation(
+                                        RecordLocation.newBuilder()
+                                            .setTableLocation(
+                                                TableLocation.newBuilder().setRowIndex(row))))));
+          }
+        }
+      }
+    } else {
+      String text = item.getValue();
+      Matcher matcher = EMAIL.matcher(text);
+      while (matcher.find()) {
+        result.addFindings(
+            Finding.newBuilder()
+                .setQuote(matcher.group())
+                .setInfoType(InfoType.newBuilder().setName("EMAIL_ADDRESS"))
+                .setLocation(
+                    Location.newBuilder()
+                        .setByteRange(
+                            Range.newBuilder()
+                                .setStart(utf8Length(text.substring(0, matcher.start())))
+                                .setEnd(utf8Length(text.substring(0, matcher.end()))))
+                        .setCodepointRange(
+                            Range.newBuilder()
+                                .setStart(text.codePointCount(0, matcher.start()))
+                                .setEnd(text.codePointCount(0, matcher.end())))));
+      }
+    }
+    return InspectContentResponse.newBuilder().setResult(result).build();
+  }
+
+  private static DeidentifyContentResponse deidentify(DeidentifyContentRequest request) {
+    Table.Builder table = request.getItem().getTable().toBuilder();
+    for (Row.Builder row : table.getRowsBuilderList()) {
+      for (Value.Builder value : row.getValuesBuilderList()) {
+        value.setStringValue(
+            EMAIL.matcher(value.getStringValue()).replaceAll("[EMAIL_ADDRESS]"));
+      }
+    }
+    return DeidentifyContentResponse.newBuilder()
+        .setItem(ContentItem.newBuilder().setTable(table))
+        .build();
+  }
+
+  private static long utf8Length(String text) {
+    return text.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /** Answers requests on another thread, keeping track of how many are in flight. */
+  private class FakeCallable<RequestT, ResponseT> extends UnaryCallable<RequestT, ResponseT> {
+    private final Function<RequestT, ResponseT> service;
+
+    FakeCallable(Function<RequestT, ResponseT> service) {
+      this.service = service;
+    }
+
+    @Override
+    public ApiFuture<ResponseT> futureCall(RequestT request, ApiCallContext context) {
+      requests.incrementAndGet();
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      SettableApiFuture<ResponseT> response = SettableApiFuture.create();
+      executor.execute(
+          () -> {
+            try {
+              Thread.sleep(1);
+              response.set(service.apply(request));
+            } catch (Exception e) {
+              response.setException(e);
+            } finally {
+              inFlight.decrementAndGet();
+            }
+          });
+      return ApiFutures.transform(response, r -> r, Runnable::run);
+    }
+  }
+}
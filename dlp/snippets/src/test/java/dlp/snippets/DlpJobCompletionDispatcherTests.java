@@ -0,0 +1,226 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dlp.snippets;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.ApiService;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.privacy.dlp.v2.DlpJob;
+import com.google.privacy.dlp.v2.GetDlpJobRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/** Tests for {@link DlpJobCompletionDispatcher}, delivering notifications to it directly. */
+@RunWith(JUnit4.class)
+public class DlpJobCompletionDispatcherTests {
+
+  private final List<Subscriber> subscribers = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger acks = new AtomicInteger();
+  private final AckReplyConsumer consumer =
+      new AckReplyConsumer() {
+        @Override
+        public void ack() {
+          acks.incrementAndGet();
+        }
+
+        @Override
+        public void nack() {
+          throw new AssertionError("notifications should not be nacked");
+        }
+      };
+  private ExecutorService executor;
+  private DlpJobCompletionDispatcher dispatcher;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(8);
+    dispatcher =
+        new DlpJobCompletionDispatcher(
+            receiver -> {
+              Subscriber subscriber = mock(Subscriber.class);
+              subscribers.add(subscriber);
+              return subscriber;
+            });
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testJobsAwaitedAtOnceShareOneSubscriber() throws Exception {
+    List<ApiFuture<String>> done = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      done.add(dispatcher.awaitCompletion(jobName(i)));
+    }
+    assertThat(dispatcher.getPendingJobs()).isEqualTo(100);
+
+    // Notifications arrive in any order, from several threads.
+    List<Future<?>> delivered = new ArrayList<>();
+    for (int i = 99; i >= 0; i--) {
+      String jobName = jobName(i);
+      delivered.add(
+          executor.submit(() -> dispatcher.receiveMessage(notification(jobName), consumer)));
+    }
+    for (Future<?> future : delivered) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(done.get(i).get(10, TimeUnit.SECONDS)).isEqualTo(jobName(i));
+    }
+    assertThat(acks.get()).isEqualTo(100);
+    assertThat(dispatcher.getPendingJobs()).isEqualTo(0);
+    assertThat(subscribers).hasSize(1);
+    verify(subscribers.get(0)).startAsync();
+    // The subscriber stops once no job is awaited.
+    verify(subscribers.get(0)).stopAsync();
+  }
+
+  @Test
+  public void testNotificationsForOtherJobsAreAcknowledged() throws Exception {
+    ApiFuture<String> done = dispatcher.awaitCompletion(jobName(1));
+
+    dispatcher.receiveMessage(notification(jobName(2)), consumer);
+    dispatcher.receiveMessage(PubsubMessage.getDefaultInstance(), consumer);
+
+    assertThat(acks.get()).isEqualTo(2);
+    assertThat(done.isDone()).isFalse();
+    verify(subscribers.get(0), never()).stopAsync();
+  }
+
+  @Test
+  public void testJobCompletedBeforeBeingAwaited() throws Exception {
+    ApiFuture<String> first = dispatcher.awaitCompletion(jobName(1));
+    dispatcher.receiveMessage(notification(jobName(2)), consumer);
+    dispatcher.receiveMessage(notification(jobName(1)), consumer);
+    assertThat(first.get()).isEqualTo(jobName(1));
+
+    ApiFuture<String> second = dispatcher.awaitCompletion(jobName(2));
+
+    assertThat(second.isDone()).isTrue();
+    assertThat(second.get()).isEqualTo(jobName(2));
+    assertThat(subscribers).hasSize(1);
+  }
+
+  @Test
+  public void testOnlyRecentUnclaimedCompletionsAreRemembered() throws Exception {
+    dispatcher.awaitCompletion(jobName(-1));
+    for (int i = 0; i <= DlpJobCompletionDispatcher.MAX_UNCLAIMED; i++) {
+      dispatcher.receiveMessage(notification(jobName(i)), consumer);
+    }
+
+    int newest = DlpJobCompletionDispatcher.MAX_UNCLAIMED;
+    assertThat(dispatcher.awaitCompletion(jobName(newest)).isDone()).isTrue();
+    assertThat(dispatcher.awaitCompletion(jobName(0)).isDone()).isFalse();
+  }
+
+  @Test
+  public void testCancelledWaitsAreForgotten() throws Exception {
+    ApiFuture<String> done = dispatcher.awaitCompletion(jobName(1));
+
+    done.cancel(false);
+
+    assertThat(dispatcher.getPendingJobs()).isEqualTo(0);
+    verify(subscribers.get(0)).stopAsync();
+    // A later wait starts another subscriber.
+    dispatcher.awaitCompletion(jobName(2));
+    assertThat(subscribers).hasSize(2);
+  }
+
+  @Test
+  public void testSubscriberFailureFailsTheWaits() throws Exception {
+    ApiFuture<String> first = dispatcher.awaitCompletion(jobName(1));
+    ApiFuture<String> second = dispatcher.awaitCompletion(jobName(2));
+    ArgumentCaptor<ApiService.Listener> listener =
+        ArgumentCaptor.forClass(ApiService.Listener.class);
+    verify(subscribers.get(0)).addListener(listener.capture(), any());
+
+    listener.getValue().failed(ApiService.State.RUNNING, new IllegalStateException("NOT_FOUND"));
+
+    for (ApiFuture<String> done : Arrays.asList(first, second)) {
+      ExecutionException e = assertThrows(ExecutionException.class, done::get);
+      assertThat(e).hasCauseThat().hasMessageThat().isEqualTo("NOT_FOUND");
+    }
+    assertThat(dispatcher.getPendingJobs()).isEqualTo(0);
+    dispatcher.awaitCompletion(jobName(3));
+    assertThat(subscribers).hasSize(2);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testAwaitJobGetsTheCompletedJob() throws Exception {
+    DlpJob job =
+        DlpJob.newBuilder().setName(jobName(1)).setState(DlpJob.JobState.DONE).build();
+    DlpServiceClient dlp = mock(DlpServiceClient.class);
+    UnaryCallable<GetDlpJobRequest, DlpJob> getDlpJob = mock(UnaryCallable.class);
+    when(dlp.getDlpJobCallable()).thenReturn(getDlpJob);
+    when(getDlpJob.futureCall(GetDlpJobRequest.newBuilder().setName(jobName(1)).build()))
+        .thenReturn(ApiFutures.immediateFuture(job));
+
+    ApiFuture<DlpJob> completed = dispatcher.awaitJob(dlp, jobName(1));
+    assertThat(completed.isDone()).isFalse();
+    CountDownLatch received = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          dispatcher.receiveMessage(notification(jobName(1)), consumer);
+          received.countDown();
+        });
+
+    assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(completed.get(10, TimeUnit.SECONDS)).isEqualTo(job);
+  }
+
+  private static String jobName(int i) {
+    return "projects/project_id/locations/global/dlpJobs/job_" + i;
+  }
+
+  private static PubsubMessage notification(String jobName) {
+    return PubsubMessage.newBuilder()
+        .putAttributes(DlpJobCompletionDispatcher.JOB_NAME_ATTRIBUTE, jobName)
+        .build();
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.flexible.websocket.jettynative;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Sends messages to every connected WebSocket session without blocking the caller.
+ *
+ * <p>Each session has a bounded queue of outgoing messages. Messages are written asynchronously,
+ * one batch at a time: the next batch is only written once the previous one has been flushed, so a
+ * slow client can't make the server buffer an unbounded amount of data for it. When a session's
+ * queue is full, the {@link DropPolicy} decides what gives. Queued messages are written with
+ * batching on and flushed with the last of them, so a burst of small messages goes out in a few
+ * network writes rather than one per message.
+ */
+public class BroadcastHub {
+
+  /** What to do with a message for a session whose queue is full. */
+  public enum DropPolicy {
+    /** Drops the oldest queued message, so the client gets the latest messages. */
+    DROP_OLDEST,
+    /** Drops the new message. */
+    DROP_NEWEST,
+    /** Closes the session, so the client can reconnect and catch up. */
+    CLOSE
+  }
+
+  static final int DEFAULT_MAX_QUEUED_MESSAGES = 1024;
+  static final int DEFAULT_MAX_BATCH_MESSAGES = 64;
+
+  private static final BroadcastHub INSTANCE =
+      new BroadcastHub(
+          DEFAULT_MAX_QUEUED_MESSAGES, DEFAULT_MAX_BATCH_MESSAGES, DropPolicy.DROP_OLDEST);
+
+  private final Logger logger = Logger.getLogger(BroadcastHub.class.getName());
+  private final int maxQueuedMessages;
+  private final int maxBatchMessages;
+  private final DropPolicy dropPolicy;
+  private final Map<Session, Outbound> sessions = new ConcurrentHashMap<>();
+  private final LongAdder droppedMessages = new LongAdder();
+
+  /**
+   * Creates a hub queueing up to {@code maxQueuedMessages} messages per session and writing up to
+   * {@code maxBatchMessages} of them at a time.
+   */
+  public BroadcastHub(int maxQueuedMessages, int maxBatchMessages, DropPolicy dropPolicy) {
+    this.maxQueuedMessages = maxQueuedMessages;
+    this.maxBatchMessages = maxBatchMessages;
+    this.dropPolicy = dropPolicy;
+  }
+
+  /** Returns the hub shared by the sockets of the /echo endpoint. */
+  public static BroadcastHub getInstance() {
+    return INSTANCE;
+  }
+
+  public void register(Session session) {
+    sessions.put(session, new Outbound(session));
+  }
+
+  public void unregister(Session session) {
+    Outbound outbound = sessions.remove(session);
+    if (outbound != null) {
+      outbound.close();
+    }
+  }
+
+  /** Queues the message for every registered session. */
+  public void broadcast(String message) {
+    for (Outbound outbound : sessions.values()) {
+      outbound.offer(message);
+    }
+  }
+
+  /** Queues the message for one registered session. */
+  public void send(Session session, String message) {
+    Outbound outbound = sessions.get(session);
+    if (outbound != null) {
+      outbound.offer(message);
+    }
+  }
+
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  /** Returns the number of messages dropped because a session's queue was full. */
+  public long getDroppedMessages() {
+    return droppedMessages.sum();
+  }
+
+  /** The outgoing messages of one session. */
+  private final class Outbound implements WriteCallback {
+    private final Session session;
+    private final RemoteEndpoint remote;
+    // Guarded by this.
+    private final ArrayDeque<String> queue = new ArrayDeque<>();
+    private boolean writing;
+    private boolean inWriteBatch;
+    private int pendingWrites;
+    private boolean closed;
+
+    Outbound(Session session) {
+      this.session = session;
+      this.remote = session.getRemote();
+    }
+
+    void offer(String message) {
+      boolean closeSession = false;
+      boolean startWriting;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (queue.size() >= maxQueuedMessages) {
+          droppedMessages.increment();
+          switch (dropPolicy) {
+            case DROP_NEWEST:
+              return;
+            case CLOSE:
+              closeSession = true;
+              break;
+            default:
+              queue.poll();
+          }
+        }
+        if (!closeSession) {
+          queue.add(message);
+        }
+        startWriting = !closeSession && !writing;
+        writing |= startWriting;
+      }
+      if (closeSession) {
+        unregister(session);
+        session.close(StatusCode.TRY_AGAIN_LATER, "Client is too slow");
+      } else if (startWriting) {
+        writeQueued();
+      }
+    }
+
+    void close() {
+      synchronized (this) {
+        closed = true;
+        queue.clear();
+      }
+    }
+
+    /**
+     * Writes queued messages one batch at a time until the queue is empty, or until a batch is
+     * still being flushed; the callback of its last write then carries on.
+     */
+    private void writeQueued() {
+      while (true) {
+        List<String> batch;
+        synchronized (this) {
+          if (closed || queue.isEmpty()) {
+            writing = false;
+            return;
+          }
+          batch = new ArrayList<>(Math.min(queue.size(), maxBatchMessages));
+          while (batch.size() < maxBatchMessages && !queue.isEmpty()) {
+            batch.add(queue.poll());
+          }
+          pendingWrites = batch.size();
+          inWriteBatch = true;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          // Only this thread writes to the session until the batch is flushed, so switching the
+          // batch mode between writes is safe. Writing the last frame without batching flushes.
+          remote.setBatchMode(i < batch.size() - 1 ? BatchMode.ON : BatchMode.OFF);
+          remote.sendString(batch.get(i), this);
+        }
+        synchronized (this) {
+          inWriteBatch = false;
+          if (pendingWrites > 0) {
+            return;
+          }
+        }
+        // The whole batch was flushed while writing it.
+      }
+    }
+
+    @Override
+    public void writeSuccess() {
+      synchronized (this) {
+        // While the batch is being written, writeQueued() continues itself once it's done.
+        if (--pendingWrites > 0 || inWriteBatch) {
+          return;
+        }
+      }
+      writeQueued();
+    }
+
+    @Override
+    public void writeFailed(Throwable cause) {
+      logger.fine("Error writing to " + session + ": " + cause.getMessage());
+      synchronized (this) {
+        pendingWrites--;
+      }
+      unregister(session);
+      session.close(StatusCode.SERVER_ERROR, "Write failed");
+    }
+  }
+}
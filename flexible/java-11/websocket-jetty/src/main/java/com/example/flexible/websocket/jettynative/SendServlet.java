@@ -19,9 +19,10 @@ package com.example.flexible.websocket.jettynative;
 import com.google.common.base.Preconditions;
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -50,15 +51,38 @@ public class SendServlet extends HttpServlet {
   private static final String GOOGLE_CLOUD_PROJECT_ENV_VAR = "GOOGLE_CLOUD_PROJECT";
   // GAE_SERVICE environment variable is set to the GCP service name.
   private static final String GAE_SERVICE_ENV_VAR = "GAE_SERVICE";
+  private static final long CONNECT_TIMEOUT_SECONDS = 10;
+  private static final long SEND_TIMEOUT_SECONDS = 10;
 
   private final HttpClient httpClient;
   private final WebSocketClient webSocketClient;
-  private final ClientSocket clientSocket;
+  // One session is kept open and shared by every request. The server broadcasts each message to
+  // every session, so more sessions would receive, and store, every message more than once.
+  private Session session;
 
   public SendServlet() {
     this.httpClient = createHttpClient();
     this.webSocketClient = createWebSocketClient();
-    this.clientSocket = new ClientSocket();
+  }
+
+  @Override
+  public void init() throws ServletException {
+    try {
+      httpClient.start();
+      webSocketClient.start();
+    } catch (Exception e) {
+      throw new ServletException("Error starting web socket client", e);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    try {
+      webSocketClient.stop();
+      httpClient.stop();
+    } catch (Exception e) {
+      logger.warning("Error stopping web socket client: " + e.getMessage());
+    }
   }
 
   @Override
@@ -92,30 +116,38 @@ public class SendServlet extends HttpServlet {
   }
 
   private void sendMessageOverWebSocket(String message) throws Exception {
-    if (!httpClient.isRunning()) {
-      try {
-        httpClient.start();
-      } catch (URISyntaxException e) {
-        e.printStackTrace();
-      }
+    Session session = getSession();
+    try {
+      session.getRemote().sendStringByFuture(message).get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      // The session may have been closed by the server or the network since it was last used.
+      // Retry once on a new session.
+      logger.fine("Error sending message, reconnecting: " + e.getCause());
+      closeSession(session);
+      getSession()
+          .getRemote()
+          .sendStringByFuture(message)
+          .get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     }
-    if (!webSocketClient.isRunning()) {
-      try {
-        webSocketClient.start();
-      } catch (URISyntaxException e) {
-        e.printStackTrace();
-      }
+  }
+
+  // Returns the open session, connecting a new one if there is none.
+  private synchronized Session getSession() throws Exception {
+    if (session == null || !session.isOpen()) {
+      ClientUpgradeRequest request = new ClientUpgradeRequest();
+      session =
+          webSocketClient
+              .connect(new ClientSocket(), new URI(getWebSocketAddress()), request)
+              .get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    return session;
+  }
+
+  private synchronized void closeSession(Session closed) {
+    if (session == closed) {
+      session = null;
     }
-    ClientUpgradeRequest request = new ClientUpgradeRequest();
-    // Attempt connection
-    Future<Session> future =
-        webSocketClient.connect(clientSocket, new URI(getWebSocketAddress()), request);
-    // Wait for Connect
-    Session session = future.get();
-    // Send a message
-    session.getRemote().sendString(message);
-    // Close session
-    session.close();
+    closed.close();
   }
 
   /**
@@ -16,7 +16,6 @@
 
 package com.example.flexible.websocket.jettynative;
 
-import java.io.IOException;
 import java.util.logging.Logger;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
@@ -26,33 +25,44 @@ import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 
 /*
- * Server-side WebSocket : echoes received message back to client.
+ * Server-side WebSocket : broadcasts received messages to every connected client, the sender
+ * included, through the shared BroadcastHub.
  */
 @WebSocket(maxTextMessageSize = 64 * 1024)
 public class ServerSocket {
   private Logger logger = Logger.getLogger(SendServlet.class.getName());
+  private final BroadcastHub hub;
   private Session session;
 
+  public ServerSocket() {
+    this(BroadcastHub.getInstance());
+  }
+
+  public ServerSocket(BroadcastHub hub) {
+    this.hub = hub;
+  }
+
   @OnWebSocketConnect
   public void onWebSocketConnect(Session session) {
     this.session = session;
+    hub.register(session);
     logger.fine("Socket Connected: " + session);
   }
 
   @OnWebSocketMessage
   public void onWebSocketText(String message) {
     logger.fine("Received message: " + message);
-    try {
-      // echo message back to client
-      this.session.getRemote().sendString(message);
-    } catch (IOException e) {
-      logger.severe("Error echoing message: " + e.getMessage());
-    }
+    // Queued for each client and written asynchronously, so a slow client never blocks this
+    // thread or the other clients.
+    hub.broadcast(message);
   }
 
   @OnWebSocketClose
   public void onWebSocketClose(int statusCode, String reason) {
     logger.fine("Socket Closed: [" + statusCode + "] " + reason);
+    if (session != null) {
+      hub.unregister(session);
+    }
   }
 
   @OnWebSocketError
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.flexible.websocket.jettynative;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.example.flexible.websocket.jettynative.BroadcastHub.DropPolicy;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Test;
+
+public class BroadcastHubTest {
+
+  @Test
+  public void testBroadcastBatchesAndFlushesWithTheLastMessage() {
+    BroadcastHub hub = new BroadcastHub(16, 2, DropPolicy.DROP_OLDEST);
+    FakeSession first = new FakeSession(true);
+    FakeSession second = new FakeSession(true);
+    hub.register(first.session);
+    hub.register(second.session);
+
+    hub.broadcast("a");
+    hub.broadcast("b");
+
+    assertEquals(Arrays.asList("a", "b"), first.sent);
+    assertEquals(Arrays.asList("a", "b"), second.sent);
+    // Each message was written on its own, so each was flushed.
+    assertEquals(Arrays.asList(BatchMode.OFF, BatchMode.OFF), first.batchModes);
+  }
+
+  @Test
+  public void testQueuedMessagesAreWrittenInBatches() {
+    BroadcastHub hub = new BroadcastHub(16, 3, DropPolicy.DROP_OLDEST);
+    FakeSession client = new FakeSession(false);
+    hub.register(client.session);
+
+    for (int i = 0; i < 5; i++) {
+      hub.broadcast("m" + i);
+    }
+    // Nothing else is written while the first message is being flushed.
+    assertEquals(Arrays.asList("m0"), client.sent);
+    client.completeWrites();
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), client.sent);
+    assertEquals(
+        Arrays.asList(BatchMode.OFF, BatchMode.ON, BatchMode.ON, BatchMode.OFF),
+        client.batchModes);
+    client.completeWrites();
+
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), client.sent);
+  }
+
+  @Test
+  public void testDropOldestKeepsTheLatestMessages() {
+    BroadcastHub hub = new BroadcastHub(2, 8, DropPolicy.DROP_OLDEST);
+    FakeSession slow = new FakeSession(false);
+    FakeSession fast = new FakeSession(true);
+    hub.register(slow.session);
+    hub.register(fast.session);
+
+    for (int i = 0; i < 5; i++) {
+      hub.broadcast("m" + i);
+    }
+    slow.completeWrites();
+
+    assertEquals(Arrays.asList("m0", "m3", "m4"), slow.sent);
+    assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), fast.sent);
+    assertEquals(2, hub.getDroppedMessages());
+  }
+
+  @Test
+  public void testDropNewestKeepsTheQueuedMessages() {
+    BroadcastHub hub = new BroadcastHub(2, 8, DropPolicy.DROP_NEWEST);
+    FakeSession slow = new FakeSession(false);
+    hub.register(slow.session);
+
+    for (int i = 0; i < 5; i++) {
+      hub.broadcast("m" + i);
+    }
+    slow.completeWrites();
+
+    assertEquals(Arrays.asList("m0", "m1", "m2"), slow.sent);
+    assertEquals(2, hub.getDroppedMessages());
+  }
+
+  @Test
+  public void testClosePolicyDisconnectsSlowClients() {
+    BroadcastHub hub = new BroadcastHub(2, 8, DropPolicy.CLOSE);
+    FakeSession slow = new FakeSession(false);
+    hub.register(slow.session);
+
+    for (int i = 0; i < 4; i++) {
+      hub.broadcast("m" + i);
+    }
+
+    assertEquals(StatusCode.TRY_AGAIN_LATER, slow.closeStatus);
+    assertEquals(0, hub.getSessionCount());
+    slow.completeWrites();
+    assertEquals(Arrays.asList("m0"), slow.sent);
+  }
+
+  @Test
+  public void testFailedWritesUnregisterTheSession() {
+    BroadcastHub hub = new BroadcastHub(16, 8, DropPolicy.DROP_OLDEST);
+    FakeSession client = new FakeSession(false);
+    hub.register(client.session);
+
+    hub.broadcast("m0");
+    hub.broadcast("m1");
+    client.failWrites();
+    hub.broadcast("m2");
+
+    assertTrue(client.pending.isEmpty());
+    assertEquals(Arrays.asList("m0"), client.sent);
+    assertEquals(0, hub.getSessionCount());
+    assertTrue(client.closeStatus != 0);
+  }
+
+  /** A session whose writes complete immediately, or when the test completes them. */
+  private static class FakeSession {
+    final List<String> sent = new ArrayList<>();
+    final List<BatchMode> batchModes = new ArrayList<>();
+    final List<WriteCallback> pending = new ArrayList<>();
+    final boolean completeImmediately;
+    final Session session;
+    BatchMode batchMode = BatchMode.AUTO;
+    int closeStatus;
+
+    FakeSession(boolean completeImmediately) {
+      this.completeImmediately = completeImmediately;
+      RemoteEndpoint remote =
+          (RemoteEndpoint)
+              Proxy.newProxyInstance(
+                  RemoteEndpoint.class.getClassLoader(),
+                  new Class<?>[] {RemoteEndpoint.class},
+                  (proxy, method, args) -> {
+                    switch (method.getName()) {
+                      case "setBatchMode":
+                        batchMode = (BatchMode) args[0];
+                        return null;
+                      case "sendString":
+                        sent.add((String) args[0]);
+                        batchModes.add(batchMode);
+                        WriteCallback callback = (WriteCallback) args[1];
+                        if (completeImmediately) {
+                          callback.writeSuccess();
+                        } else {
+                          pending.add(callback);
+                        }
+                        return null;
+                      default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                  });
+      this.session =
+          (Session)
+              Proxy.newProxyInstance(
+                  Session.class.getClassLoader(),
+                  new Class<?>[] {Session.class},
+                  (proxy, method, args) -> {
+                    switch (method.getName()) {
+                      case "getRemote":
+                        return remote;
+                      case "close":
+                        closeStatus = args != null && args.length == 2 ? (int) args[0] : -1;
+                        return null;
+                      case "hashCode":
+                        return System.identityHashCode(proxy);
+                      case "equals":
+                        return proxy == args[0];
+                      case "toString":
+                        return "FakeSession";
+                      default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                  });
+    }
+
+    void completeWrites() {
+      List<WriteCallback> callbacks = new ArrayList<>(pending);
+      pending.clear();
+      callbacks.forEach(WriteCallback::writeSuccess);
+    }
+
+    void failWrites() {
+      List<WriteCallback> callbacks = new ArrayList<>(pending);
+      pending.clear();
+      callbacks.forEach(callback -> callback.writeFailed(new IllegalStateException("closed")));
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.flexible.websocket.jettynative;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+/*
+ * Load generator for the /echo broadcast endpoint. Starts the endpoint on a local port, connects
+ * many clients to it, has a few of them publish timestamped messages, and reports how many
+ * messages per second were delivered to the clients and the latency from publish to delivery.
+ *
+ * It is not a unit test, since it takes a while and its results depend on the machine. Run it
+ * with:
+ *
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *   -Dexec.args="-cp %classpath -Dclients=2000 \
+ *   com.example.flexible.websocket.jettynative.BroadcastLoadGenerator"
+ *
+ * The system properties clients, publishers, messages (per publisher), size (bytes per message)
+ * and intervalMicros (between the messages of a publisher) configure the load.
+ */
+public class BroadcastLoadGenerator {
+
+  public static void main(String[] args) throws Exception {
+    int clients = Integer.getInteger("clients", 2000);
+    int publishers = Integer.getInteger("publishers", 10);
+    int messages = Integer.getInteger("messages", 100);
+    int size = Integer.getInteger("size", 64);
+    long intervalMicros = Long.getLong("intervalMicros", 1000);
+
+    Server server = new Server(0);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(new ServletHolder(new EchoServlet()), "/echo");
+    server.setHandler(context);
+    server.start();
+    int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+
+    // Every client is a connection to the same destination.
+    HttpClient httpClient = new HttpClient();
+    httpClient.setMaxConnectionsPerDestination(clients);
+    httpClient.setMaxRequestsQueuedPerDestination(clients);
+    httpClient.start();
+    WebSocketClient webSocketClient = new WebSocketClient(httpClient);
+    webSocketClient.start();
+    try {
+      URI uri = new URI("ws://127.0.0.1:" + port + "/echo");
+      List<Receiver> receivers = new ArrayList<>(clients);
+      List<Future<Session>> connecting = new ArrayList<>(clients);
+      for (int i = 0; i < clients; i++) {
+        Receiver receiver = new Receiver(publishers * messages);
+        receivers.add(receiver);
+        connecting.add(webSocketClient.connect(receiver, uri));
+      }
+      List<Session> sessions = new ArrayList<>(clients);
+      for (Future<Session> future : connecting) {
+        sessions.add(future.get(30, TimeUnit.SECONDS));
+      }
+      while (BroadcastHub.getInstance().getSessionCount() < clients) {
+        Thread.sleep(10);
+      }
+      System.out.printf("Connected %d clients%n", clients);
+
+      long start = System.nanoTime();
+      List<Thread> publisherThreads = new ArrayList<>(publishers);
+      for (int p = 0; p < publishers; p++) {
+        Session session = sessions.get(p);
+        Thread thread = new Thread(() -> publish(session, messages, size, intervalMicros));
+        thread.start();
+        publisherThreads.add(thread);
+      }
+      for (Thread thread : publisherThreads) {
+        thread.join();
+      }
+
+      // Wait until every message was either delivered or dropped, or nothing has been delivered
+      // for a while.
+      long expected = (long) clients * publishers * messages;
+      long lastDelivered = -1;
+      long lastProgress = System.nanoTime();
+      while (true) {
+        long delivered = Receiver.DELIVERED.sum();
+        if (delivered + BroadcastHub.getInstance().getDroppedMessages() >= expected) {
+          break;
+        }
+        if (delivered != lastDelivered) {
+          lastDelivered = delivered;
+          lastProgress = System.nanoTime();
+        } else if (System.nanoTime() - lastProgress > TimeUnit.SECONDS.toNanos(10)) {
+          System.out.println("Gave up waiting for the remaining messages");
+          break;
+        }
+        Thread.sleep(10);
+      }
+      long elapsed = Receiver.lastDelivery() - start;
+
+      long[] latencies = Receiver.latencies(receivers);
+      Arrays.sort(latencies);
+      System.out.printf(
+          "Delivered %d of %d messages (%d dropped) in %.2f s: %.0f messages/s%n",
+          latencies.length,
+          expected,
+          BroadcastHub.getInstance().getDroppedMessages(),
+          elapsed / 1e9,
+          latencies.length / (elapsed / 1e9));
+      System.out.printf(
+          "Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+          percentile(latencies, 0.5),
+          percentile(latencies, 0.9),
+          percentile(latencies, 0.99),
+          percentile(latencies, 0.999),
+          percentile(latencies, 1));
+    } finally {
+      webSocketClient.stop();
+      httpClient.stop();
+      server.stop();
+    }
+  }
+
+  private static void publish(Session session, int messages, int size, long intervalMicros) {
+    StringBuilder padding = new StringBuilder();
+    while (padding.length() < size) {
+      padding.append('x');
+    }
+    try {
+      for (int i = 0; i < messages; i++) {
+        String timestamp = System.nanoTime() + ":";
+        String message = timestamp + padding.substring(Math.min(timestamp.length(), size));
+        session.getRemote().sendStringByFuture(message);
+        TimeUnit.MICROSECONDS.sleep(intervalMicros);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static double percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return Double.NaN;
+    }
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+
+  /** Records the latency of every message delivered to one client. */
+  public static class Receiver extends WebSocketAdapter {
+    static final LongAdder DELIVERED = new LongAdder();
+    private static volatile long lastDeliveryNanos;
+
+    private long[] latencies;
+    private int count;
+
+    Receiver(int expectedMessages) {
+      this.latencies = new long[expectedMessages];
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+      long now = System.nanoTime();
+      long sent = Long.parseLong(message.substring(0, message.indexOf(':')));
+      // Messages of one connection are delivered one at a time.
+      synchronized (this) {
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, count * 2 + 1);
+        }
+        latencies[count++] = now - sent;
+      }
+      lastDeliveryNanos = now;
+      DELIVERED.increment();
+    }
+
+    static long lastDelivery() {
+      return lastDeliveryNanos;
+    }
+
+    static long[] latencies(List<Receiver> receivers) {
+      int total = 0;
+      for (Receiver receiver : receivers) {
+        synchronized (receiver) {
+          total += receiver.count;
+        }
+      }
+      long[] all = new long[total];
+      int offset = 0;
+      for (Receiver receiver : receivers) {
+        synchronized (receiver) {
+          int count = Math.min(receiver.count, total - offset);
+          System.arraycopy(receiver.latencies, 0, all, offset, count);
+          offset += count;
+        }
+      }
+      return all;
+    }
+  }
+}
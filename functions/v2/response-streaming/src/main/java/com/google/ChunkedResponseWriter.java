@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.functions;
+
+// [START functions_response_streaming_chunked_writer]
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects records of a streamed response in a buffer and writes them to the client in chunks, once
+ * enough characters have been buffered or enough time has passed since the last chunk. Writing
+ * each record on its own would cost a network write per record.
+ *
+ * <p>Once writing to the client fails, usually because it disconnected, {@link #isDisconnected}
+ * returns true and the response should be abandoned.
+ */
+class ChunkedResponseWriter {
+
+  private final Writer out;
+  private final int flushChars;
+  private final long flushIntervalNanos;
+  // Reused for every chunk.
+  private final StringWriter buffer = new StringWriter();
+
+  private final long startNanos = System.nanoTime();
+  private long lastFlushNanos = startNanos;
+  private long firstChunkNanos = -1;
+  private long bufferedRecords;
+  private long records;
+  private long chars;
+  private long chunks;
+  private boolean disconnected;
+
+  ChunkedResponseWriter(Writer out, int flushChars, long flushIntervalMillis) {
+    this.out = out;
+    this.flushChars = flushChars;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+  }
+
+  /** The buffer to write the next record to. */
+  Writer buffer() {
+    return buffer;
+  }
+
+  /**
+   * Marks the end of a record, and sends the buffer if it is large or old enough. Returns false if
+   * the client is gone.
+   */
+  boolean endRecord() {
+    buffer.write('\n');
+    bufferedRecords++;
+    if (buffer.getBuffer().length() >= flushChars
+        || System.nanoTime() - lastFlushNanos >= flushIntervalNanos) {
+      return flush();
+    }
+    return !disconnected;
+  }
+
+  /** Sends whatever is buffered. Returns false if the client is gone. */
+  boolean flush() {
+    StringBuffer chunk = buffer.getBuffer();
+    if (disconnected || chunk.length() == 0) {
+      return !disconnected;
+    }
+    try {
+      out.append(chunk);
+      out.flush();
+    } catch (IOException e) {
+      disconnected = true;
+      return false;
+    }
+    long now = System.nanoTime();
+    if (firstChunkNanos < 0) {
+      firstChunkNanos = now - startNanos;
+    }
+    lastFlushNanos = now;
+    records += bufferedRecords;
+    bufferedRecords = 0;
+    chars += chunk.length();
+    chunks++;
+    chunk.setLength(0);
+    return true;
+  }
+
+  boolean isDisconnected() {
+    return disconnected;
+  }
+
+  /** Returns the time to the first chunk, and the number and rate of records sent. */
+  String summary() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return String.format(
+        "Streamed %d rows (%d characters) in %d chunks%s; first chunk after %d ms, %.0f rows/s",
+        records,
+        chars,
+        chunks,
+        disconnected ? " before the client disconnected" : "",
+        firstChunkNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstChunkNanos),
+        records / seconds);
+  }
+
+  long getRecords() {
+    return records;
+  }
+
+  long getChunks() {
+    return chunks;
+  }
+}
+// [END functions_response_streaming_chunked_writer]
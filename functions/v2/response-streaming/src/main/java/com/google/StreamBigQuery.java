@@ -20,15 +20,34 @@ package com.example.functions;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobInfo;
 import com.google.cloud.bigquery.QueryJobConfiguration;
 import com.google.cloud.bigquery.TableResult;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
-import java.io.BufferedWriter;
+import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
 
 public class StreamBigQuery implements HttpFunction {
+
+  // Initialize client that will be used to send requests.
+  // This client only needs to be created once,
+  // and can be reused for multiple requests.
+  private static final BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
+
+  // Rows fetched from BigQuery per request.
+  private static final long PAGE_SIZE = 10_000;
+  // Rows are sent to the client once this many characters are buffered, or this much time has
+  // passed since rows were last sent.
+  private static final int FLUSH_CHARS = 64 * 1024;
+  private static final long FLUSH_INTERVAL_MILLIS = 250;
+
   @Override
   public void service(HttpRequest request, HttpResponse response) {
     String query = "SELECT abstract FROM `bigquery-public-data.breathe.bioasq` LIMIT 1000";
@@ -37,26 +56,73 @@ public class StreamBigQuery implements HttpFunction {
 
   public static void streamQueryResult(String query, HttpResponse response) {
     try {
-      BufferedWriter writer = response.getWriter();
-      // Initialize client that will be used to send requests.
-      // This client only needs to be created once,
-      // and can be reused for multiple requests.
-      BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
-      TableResult results = bigquery.query(QueryJobConfiguration.of(query));
-
-      results.iterateAll().forEach(
-          row -> row.forEach(val -> {
-            try {
-              writer.write(val.getValue().toString() + "\n");
-              writer.flush();
-              System.out.println("Successfully flushed row");
-            } catch (IOException e) {
-              System.out.println("Could not get rows: " + e.toString());
-            }
-          }));
+      Job job = bigquery.create(JobInfo.of(QueryJobConfiguration.of(query))).waitFor();
+      if (job.getStatus().getError() != null) {
+        System.out.println("Query not performed: " + job.getStatus().getError());
+        return;
+      }
+      TableResult page = job.getQueryResults(BigQuery.QueryResultsOption.pageSize(PAGE_SIZE));
+
+      // Each row is sent as a line of JSON (NDJSON), written to the client in chunks (see
+      // ChunkedResponseWriter.java).
+      response.setContentType("application/x-ndjson");
+      ChunkedResponseWriter writer =
+          new ChunkedResponseWriter(response.getWriter(), FLUSH_CHARS, FLUSH_INTERVAL_MILLIS);
+      JsonWriter json = new JsonWriter(writer.buffer());
+      // Allows writing one JSON object per row to the same writer.
+      json.setLenient(true);
+      FieldList fields = page.getSchema().getFields();
+      while (page != null) {
+        for (FieldValueList row : page.getValues()) {
+          writeRecord(json, fields, row);
+          if (!writer.endRecord()) {
+            break;
+          }
+        }
+        // Send what we have rather than keep it while the next page is fetched.
+        if (!writer.flush()) {
+          break;
+        }
+        page = page.hasNextPage() ? page.getNextPage() : null;
+      }
+      System.out.println(writer.summary());
     } catch (BigQueryException | InterruptedException | IOException e) {
       System.out.println("Query not performed: " + e.toString());
     }
   }
+
+  private static void writeRecord(JsonWriter json, FieldList fields, FieldValueList values)
+      throws IOException {
+    json.beginObject();
+    for (int i = 0; i < fields.size(); i++) {
+      json.name(fields.get(i).getName());
+      writeValue(json, fields.get(i), values.get(i));
+    }
+    json.endObject();
+  }
+
+  private static void writeValue(JsonWriter json, Field field, FieldValue value)
+      throws IOException {
+    if (value.isNull()) {
+      json.nullValue();
+      return;
+    }
+    switch (value.getAttribute()) {
+      case REPEATED:
+        json.beginArray();
+        for (FieldValue element : value.getRepeatedValue()) {
+          writeValue(json, field, element);
+        }
+        json.endArray();
+        break;
+      case RECORD:
+        writeRecord(json, field.getSubFields(), value.getRecordValue());
+        break;
+      default:
+        // BigQuery returns every scalar as a string.
+        json.value(value.getStringValue());
+        break;
+    }
+  }
 }
-// [END functions_response_streaming]
\ No newline at end of file
+// [END functions_response_streaming]
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ChunkedResponseWriterTest {
+
+  @Test
+  public void buffersUntilEnoughCharacters() throws IOException {
+    StringWriter out = new StringWriter();
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(out, 10, Long.MAX_VALUE);
+
+    writer.buffer().write("{\"a\":1}");
+    assertThat(writer.endRecord()).isTrue();
+    assertThat(out.toString()).isEmpty();
+
+    writer.buffer().write("{\"a\":2}");
+    assertThat(writer.endRecord()).isTrue();
+    assertThat(out.toString()).isEqualTo("{\"a\":1}\n{\"a\":2}\n");
+    assertThat(writer.getChunks()).isEqualTo(1);
+  }
+
+  @Test
+  public void flushesWhenIntervalHasPassed() throws IOException {
+    StringWriter out = new StringWriter();
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(out, Integer.MAX_VALUE, 0);
+
+    writer.buffer().write("{\"a\":1}");
+    writer.endRecord();
+
+    assertThat(out.toString()).isEqualTo("{\"a\":1}\n");
+  }
+
+  @Test
+  public void flushSendsTheRest() throws IOException {
+    StringWriter out = new StringWriter();
+    ChunkedResponseWriter writer = new ChunkedResponseWriter(out, 1024, Long.MAX_VALUE);
+    writer.buffer().write("{\"a\":1}");
+    writer.endRecord();
+
+    assertThat(writer.flush()).isTrue();
+    assertThat(writer.flush()).isTrue();
+
+    assertThat(out.toString()).isEqualTo("{\"a\":1}\n");
+    assertThat(writer.getChunks()).isEqualTo(1);
+    assertThat(writer.getRecords()).isEqualTo(1);
+    assertThat(writer.summary()).startsWith("Streamed 1 rows (8 characters) in 1 chunks;");
+  }
+
+  @Test
+  public void stopsWhenClientDisconnects() throws IOException {
+    ChunkedResponseWriter writer =
+        new ChunkedResponseWriter(new DisconnectedWriter(), 1, Long.MAX_VALUE);
+
+    writer.buffer().write("{\"a\":1}");
+
+    assertThat(writer.endRecord()).isFalse();
+    assertThat(writer.isDisconnected()).isTrue();
+    assertThat(writer.flush()).isFalse();
+    assertThat(writer.getRecords()).isEqualTo(0);
+    assertThat(writer.summary()).contains("before the client disconnected");
+  }
+
+  private static class DisconnectedWriter extends Writer {
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      throw new IOException("Broken pipe");
+    }
+
+    @Override
+    public void flush() throws IOException {
+      throw new IOException("Broken pipe");
+    }
+
+    @Override
+    public void close() throws IOException {}
+  }
+}
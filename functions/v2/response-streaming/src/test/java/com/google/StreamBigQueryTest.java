@@ -66,6 +66,6 @@ public class StreamBigQueryTest {
   public void functionsStreamBiqQuery_shouldStreamResponse() {
     String query = "SELECT abstract FROM `bigquery-public-data.breathe.bioasq` LIMIT 1000";
     StreamBigQuery.streamQueryResult(query, response);
-    assertThat(bout.toString()).contains("Successfully flushed row");
+    assertThat(bout.toString()).contains("Streamed 1000 rows");
   }
 }
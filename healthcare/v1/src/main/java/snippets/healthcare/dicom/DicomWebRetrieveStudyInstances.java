@@ -0,0 +1,46 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare.dicom;
+
+// [START healthcare_dicomweb_retrieve_study_instances]
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class DicomWebRetrieveStudyInstances {
+  private static final String DICOM_NAME = "projects/%s/locations/%s/datasets/%s/dicomStores/%s";
+
+  public static void dicomWebRetrieveStudyInstances(
+      String dicomStoreName, String studyId, String outputDirectory) throws IOException {
+    // String dicomStoreName =
+    //    String.format(
+    //        DICOM_NAME, "your-project-id", "your-region-id", "your-dataset-id", "your-dicom-id");
+    // String studyId = "your-study-id";
+    // String outputDirectory = "study";
+
+    // The transfer splits the multipart response as it arrives, writing each DICOM instance of
+    // the study to its own file. Create it once and reuse it for all your requests. See
+    // DicomWebTransfer.java and MultipartRelatedReader.java.
+    try (DicomWebTransfer transfer = DicomWebTransfer.create(dicomStoreName)) {
+      List<Path> instances = transfer.retrieveStudy(studyId, Paths.get(outputDirectory));
+      System.out.printf(
+          "%d DICOM instances written to directory %s\n", instances.size(), outputDirectory);
+    }
+  }
+}
+// [END healthcare_dicomweb_retrieve_study_instances]
@@ -28,8 +28,6 @@ import com.google.auth.oauth2.GoogleCredentials;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.Collections;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -38,7 +36,8 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.HttpClients;
 
 public class DicomWebStoreInstance {
@@ -59,15 +58,13 @@ public class DicomWebStoreInstance {
     HttpClient httpClient = HttpClients.createDefault();
     String uri = String.format("%sv1/%s/dicomWeb/studies", client.getRootUrl(), dicomStoreName);
     URIBuilder uriBuilder = new URIBuilder(uri).setParameter("access_token", getAccessToken());
-    // Load the data from file representing the study.
-    File f = new File(filePath);
-    byte[] dicomBytes = Files.readAllBytes(Paths.get(filePath));
-    ByteArrayEntity requestEntity = new ByteArrayEntity(dicomBytes);
+    // Stream the data from the file representing the study, rather than loading it into memory.
+    FileEntity requestEntity =
+        new FileEntity(new File(filePath), ContentType.create("application/dicom"));
 
     HttpUriRequest request =
         RequestBuilder.post(uriBuilder.build())
             .setEntity(requestEntity)
-            .addHeader("Content-Type", "application/dicom")
             .build();
 
     // Execute the request and process the results.
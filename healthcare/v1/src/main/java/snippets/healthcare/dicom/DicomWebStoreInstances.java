@@ -0,0 +1,57 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare.dicom;
+
+// [START healthcare_dicomweb_store_instances]
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class DicomWebStoreInstances {
+  private static final String DICOM_NAME = "projects/%s/locations/%s/datasets/%s/dicomStores/%s";
+
+  public static void dicomWebStoreInstances(String dicomStoreName, String directory)
+      throws IOException {
+    // String dicomStoreName =
+    //    String.format(
+    //        DICOM_NAME, "your-project-id", "your-region-id", "your-dataset-id", "your-dicom-id");
+    // String directory = "path/to/study";
+
+    // Find the DICOM files of the study.
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(Paths.get(directory))) {
+      files =
+          paths
+              .filter(path -> path.toString().endsWith(".dcm"))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+
+    // The transfer streams each file as it is uploaded, and uploads several files at once on a
+    // shared pool of connections. Create it once and reuse it for all your requests. See
+    // DicomWebTransfer.java.
+    try (DicomWebTransfer transfer = DicomWebTransfer.create(dicomStoreName)) {
+      transfer.storeInstances(files);
+    }
+    System.out.printf("%d DICOM instances stored.\n", files.size());
+  }
+}
+// [END healthcare_dicomweb_store_instances]
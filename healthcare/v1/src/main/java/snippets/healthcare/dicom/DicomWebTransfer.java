@@ -0,0 +1,252 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare.dicom;
+
+// [START healthcare_dicomweb_transfer]
+import com.google.api.services.healthcare.v1.CloudHealthcare;
+import com.google.api.services.healthcare.v1.CloudHealthcareScopes;
+import com.google.auth.oauth2.GoogleCredentials;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Stores and retrieves DICOM instances of a DICOM store through the DICOMweb API, for studies too
+ * large to hold in memory.
+ *
+ * <p>Instances are streamed from their files as they are uploaded, several at once up to a fixed
+ * number, on a pool of connections kept open between requests. Retrieved studies are split into
+ * their instances as the response arrives, each written to its own file. The access token is
+ * cached and only refreshed when it is about to expire. A transfer is meant to be shared, and
+ * closed once no longer needed.
+ */
+public class DicomWebTransfer implements Closeable {
+
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+  // Accept instances in their stored transfer syntax, rather than have them transcoded.
+  static final String ACCEPT_STUDY =
+      "multipart/related; type=\"application/dicom\"; transfer-syntax=*";
+  private static final ContentType APPLICATION_DICOM = ContentType.create("application/dicom");
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  private final String studiesUri;
+  private final URI rootUri;
+  private final GoogleCredentials credentials;
+  private final CloseableHttpClient httpClient;
+  private final ExecutorService executor;
+
+  /**
+   * Creates a transfer for the DICOM store, authenticated with Application Default Credentials.
+   */
+  public static DicomWebTransfer create(String dicomStoreName) throws IOException {
+    GoogleCredentials credentials =
+        GoogleCredentials.getApplicationDefault()
+            .createScoped(Collections.singleton(CloudHealthcareScopes.CLOUD_PLATFORM));
+    return new DicomWebTransfer(
+        CloudHealthcare.DEFAULT_ROOT_URL,
+        dicomStoreName,
+        credentials,
+        DEFAULT_MAX_CONCURRENT_REQUESTS);
+  }
+
+  /**
+   * Creates a transfer for the DICOM store of the API at {@code rootUrl}, sending up to
+   * {@code maxConcurrentRequests} requests at once.
+   */
+  public DicomWebTransfer(
+      String rootUrl,
+      String dicomStoreName,
+      GoogleCredentials credentials,
+      int maxConcurrentRequests) {
+    if (maxConcurrentRequests < 1) {
+      throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+    }
+    this.rootUri = URI.create(rootUrl);
+    this.studiesUri = String.format("%sv1/%s/dicomWeb/studies", rootUrl, dicomStoreName);
+    this.credentials = credentials;
+
+    PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    connections.setMaxTotal(maxConcurrentRequests);
+    connections.setDefaultMaxPerRoute(maxConcurrentRequests);
+    this.httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connections)
+            .setDefaultRequestConfig(
+                RequestConfig.custom()
+                    .setConnectTimeout(TIMEOUT_MILLIS)
+                    .setSocketTimeout(TIMEOUT_MILLIS)
+                    .build())
+            .build();
+
+    AtomicInteger threads = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            maxConcurrentRequests,
+            runnable -> {
+              Thread thread = new Thread(runnable, "dicomweb-" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Stores the DICOM instance in the file, and returns the response describing it. */
+  public String storeInstance(Path file) throws IOException {
+    HttpPost request = new HttpPost(studiesUri);
+    request.setEntity(new FileEntity(file.toFile(), APPLICATION_DICOM));
+    try (CloseableHttpResponse response = execute(request)) {
+      return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Stores the DICOM instances in the files, several at once, and returns the responses in the
+   * order of the files. If any of them can't be stored, those not yet stored are abandoned.
+   */
+  public List<String> storeInstances(List<Path> files) throws IOException {
+    List<Future<String>> stored = new ArrayList<>(files.size());
+    for (Path file : files) {
+      stored.add(executor.submit(() -> storeInstance(file)));
+    }
+    return await(stored);
+  }
+
+  /**
+   * Retrieves all the instances of the study, writing each to its own file in {@code directory} as
+   * it arrives, and returns the files in the order of the response.
+   */
+  public List<Path> retrieveStudy(String studyUid, Path directory) throws IOException {
+    HttpGet request = new HttpGet(studiesUri + "/" + studyUid);
+    request.setHeader(HttpHeaders.ACCEPT, ACCEPT_STUDY);
+    Files.createDirectories(directory);
+    List<Path> instances = new ArrayList<>();
+    try (CloseableHttpResponse response = execute(request)) {
+      HttpEntity entity = response.getEntity();
+      String boundary =
+          MultipartRelatedReader.boundary(
+              entity.getContentType() == null ? null : entity.getContentType().getValue());
+      try (InputStream in = entity.getContent()) {
+        MultipartRelatedReader reader = new MultipartRelatedReader(in, boundary);
+        while (reader.nextPart()) {
+          Path instance = directory.resolve(String.format("instance-%05d.dcm", instances.size()));
+          try (OutputStream out = Files.newOutputStream(instance)) {
+            reader.transferPartTo(out);
+          }
+          instances.add(instance);
+        }
+      }
+    }
+    return instances;
+  }
+
+  /** Retrieves the studies, several at once, each into a directory named after it. */
+  public List<List<Path>> retrieveStudies(List<String> studyUids, Path directory)
+      throws IOException {
+    List<Future<List<Path>>> retrieved = new ArrayList<>(studyUids.size());
+    for (String studyUid : studyUids) {
+      retrieved.add(executor.submit(() -> retrieveStudy(studyUid, directory.resolve(studyUid))));
+    }
+    return await(retrieved);
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    httpClient.close();
+  }
+
+  // Sends the request with the current access token, and fails unless the response is a success.
+  private CloseableHttpResponse execute(HttpRequestBase request) throws IOException {
+    for (Map.Entry<String, List<String>> header :
+        credentials.getRequestMetadata(rootUri).entrySet()) {
+      for (String value : header.getValue()) {
+        request.addHeader(header.getKey(), value);
+      }
+    }
+    CloseableHttpResponse response = httpClient.execute(request);
+    int status = response.getStatusLine().getStatusCode();
+    if (status != HttpStatus.SC_OK) {
+      try {
+        String body =
+            response.getEntity() == null
+                ? ""
+                : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        throw new IOException(
+            String.format(
+                "%s %s failed: %s\n%s",
+                request.getMethod(), request.getURI(), response.getStatusLine(), body));
+      } finally {
+        response.close();
+      }
+    }
+    return response;
+  }
+
+  private static <T> List<T> await(List<Future<T>> futures) throws IOException {
+    List<T> results = new ArrayList<>(futures.size());
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for DICOMweb requests");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+}
+// [END healthcare_dicomweb_transfer]
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare.dicom;
+
+// [START healthcare_dicomweb_multipart_related_reader]
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.http.HeaderElement;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicHeaderValueParser;
+
+/**
+ * Reads the parts of a {@code multipart/related} body, such as a DICOMweb study or series, one at
+ * a time as they arrive. The body of each part is copied to an output stream without being held in
+ * memory, so parts of any size can be read with a buffer of a fixed size.
+ *
+ * <pre>{@code
+ * MultipartRelatedReader reader = new MultipartRelatedReader(in, boundary);
+ * while (reader.nextPart()) {
+ *   reader.transferPartTo(out);
+ * }
+ * }</pre>
+ */
+public class MultipartRelatedReader {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_HEADER_LINE = 8 * 1024;
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private final InputStream in;
+  // The line break before a boundary belongs to the boundary.
+  private final byte[] delimiter;
+  private final byte[] buffer;
+  private int position;
+  private int limit;
+  private boolean started;
+  private boolean inPart;
+  private boolean finished;
+  private Map<String, String> headers = Map.of();
+
+  public MultipartRelatedReader(InputStream in, String boundary) {
+    this.in = in;
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+    this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+    // The first boundary may not follow a line break; act as if it did.
+    System.arraycopy(CRLF, 0, buffer, 0, CRLF.length);
+    this.limit = CRLF.length;
+  }
+
+  /**
+   * Returns the boundary of a {@code multipart/related} content type, for example from the
+   * {@code Content-Type} of a response.
+   *
+   * @throws IOException if the content type isn't multipart or has no boundary.
+   */
+  public static String boundary(String contentType) throws IOException {
+    if (contentType != null) {
+      HeaderElement[] elements = BasicHeaderValueParser.parseElements(contentType, null);
+      if (elements.length > 0
+          && elements[0].getName().toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+        NameValuePair boundary = elements[0].getParameterByName("boundary");
+        if (boundary != null && !boundary.getValue().isEmpty()) {
+          return boundary.getValue();
+        }
+      }
+    }
+    throw new IOException("Not a multipart content type: " + contentType);
+  }
+
+  /**
+   * Moves to the next part, skipping whatever is left of the current one, and reads its headers.
+   * Returns false once the closing boundary has been read.
+   */
+  public boolean nextPart() throws IOException {
+    if (finished) {
+      return false;
+    }
+    if (!started || inPart) {
+      // Skip the preamble before the first part, or the rest of the current part.
+      transferPartTo(OutputStream.nullOutputStream());
+      started = true;
+    }
+    if (startsWith("--")) {
+      finished = true;
+      return false;
+    }
+    headers = readHeaders();
+    inPart = true;
+    return true;
+  }
+
+  /** Returns the headers of the current part, with lower case names. */
+  public Map<String, String> headers() {
+    return headers;
+  }
+
+  /** Copies the body of the current part to {@code out}, and returns its length in bytes. */
+  public long transferPartTo(OutputStream out) throws IOException {
+    long transferred = 0;
+    while (true) {
+      int found = indexOfDelimiter();
+      if (found >= 0) {
+        out.write(buffer, position, found - position);
+        transferred += found - position;
+        position = found + delimiter.length;
+        inPart = false;
+        return transferred;
+      }
+      // Everything but a possible start of the delimiter at the end can be passed on.
+      int safe = Math.max(position, limit - delimiter.length + 1);
+      out.write(buffer, position, safe - position);
+      transferred += safe - position;
+      position = safe;
+      if (fill() < 0) {
+        throw new EOFException("Multipart body ended before its closing boundary");
+      }
+    }
+  }
+
+  private Map<String, String> readHeaders() throws IOException {
+    // Skip the transport padding and the line break after the boundary.
+    readLine();
+    Map<String, String> partHeaders = new LinkedHashMap<>();
+    for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        partHeaders.put(
+            line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+            line.substring(colon + 1).trim());
+      }
+    }
+    return partHeaders;
+  }
+
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      if (position == limit && fill() < 0) {
+        throw new EOFException("Multipart body ended in the headers of a part");
+      }
+      byte b = buffer[position++];
+      if (b == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      if (line.length() == MAX_HEADER_LINE) {
+        throw new IOException("Multipart header line is too long");
+      }
+      line.append((char) (b & 0xff));
+    }
+  }
+
+  private boolean startsWith(String prefix) throws IOException {
+    while (limit - position < prefix.length()) {
+      if (fill() < 0) {
+        throw new EOFException("Multipart body ended after a boundary");
+      }
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (buffer[position + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int indexOfDelimiter() {
+    byte first = delimiter[0];
+    int last = limit - delimiter.length;
+    outer:
+    for (int i = position; i <= last; i++) {
+      if (buffer[i] != first) {
+        continue;
+      }
+      for (int j = 1; j < delimiter.length; j++) {
+        if (buffer[i + j] != delimiter[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  // Moves the unread bytes to the start of the buffer and reads more after them, taking whatever
+  // has already arrived so that parts are passed on in large writes rather than one per chunk.
+  private int fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    int read = in.read(buffer, limit, buffer.length - limit);
+    if (read < 0) {
+      return read;
+    }
+    limit += read;
+    while (limit < buffer.length && in.available() > 0) {
+      int more = in.read(buffer, limit, buffer.length - limit);
+      if (more <= 0) {
+        break;
+      }
+      limit += more;
+      read += more;
+    }
+    return read;
+  }
+}
+// [END healthcare_dicomweb_multipart_related_reader]
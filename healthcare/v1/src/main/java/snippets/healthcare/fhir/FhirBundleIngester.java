@@ -0,0 +1,680 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare.fhir;
+
+// [START healthcare_fhir_bundle_ingester]
+import com.google.api.services.healthcare.v1.CloudHealthcare;
+import com.google.api.services.healthcare.v1.CloudHealthcareScopes;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Loads FHIR resources from NDJSON, one resource per line as written by a bulk export, into a FHIR
+ * store by packing them into batch or transaction bundles.
+ *
+ * <p>Each bundle holds up to a fixed number of entries and bytes. Up to a fixed number of bundles
+ * are sent at once on a pool of connections kept open between requests, and reading stops while
+ * they are all in flight, so memory use doesn't depend on the size of the input. The access token
+ * is cached and only refreshed when it is about to expire.
+ *
+ * <p>Resources with an {@code id} are written with {@code PUT}, keeping their id, and the others
+ * are created with {@code POST}. Resources from a bulk export always have ids, and creating a
+ * resource with {@code PUT} requires the FHIR store to have {@code enableUpdateCreate} set, which
+ * is off by default; on such a store every resource fails. Either enable it on the store, or call
+ * {@link Builder#setKeepIds} with {@code false} to strip the ids and create every resource with
+ * {@code POST}, which gives them new ids, so references between them no longer resolve.
+ *
+ * <p>Bundles are sent in parallel, so resources are written in no particular order, across files
+ * as well as within them. A resource can be written before the resources it references; if the
+ * store enforces referential integrity ({@code disableReferentialIntegrity} unset), load the
+ * referenced resources first, with one ingest call per file in dependency order, or disable the
+ * check for the load.
+ *
+ * <p>When a batch response reports that some entries failed with a
+ * transient error, only those entries are sent again, in a smaller bundle, after a backoff. A
+ * transaction fails or succeeds as a whole, so a transaction is retried whole. Entries rejected by
+ * the store are counted as failed and the load carries on; if the store can't be reached after all
+ * attempts, the load stops with an exception. Retrying a {@code POST} may create the resource
+ * twice if the first attempt was applied despite the error, so give resources ids where that
+ * matters.
+ *
+ * <p>An ingester is meant to be shared, and closed once no longer needed.
+ */
+public class FhirBundleIngester implements Closeable {
+
+  /** The type of the bundles the resources are sent in. */
+  public enum BundleType {
+    /** Entries succeed or fail independently. */
+    BATCH("batch"),
+    /** Entries succeed or fail together. */
+    TRANSACTION("transaction");
+
+    private final String code;
+
+    BundleType(String code) {
+      this.code = code;
+    }
+  }
+
+  public static final int DEFAULT_MAX_BUNDLE_ENTRIES = 500;
+  // Well below the limit on the size of a request, which also applies to the response.
+  public static final int DEFAULT_MAX_BUNDLE_BYTES = 4 * 1024 * 1024;
+  public static final int DEFAULT_MAX_BUNDLES_IN_FLIGHT = 8;
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  public static final Duration DEFAULT_INITIAL_RETRY_DELAY = Duration.ofSeconds(1);
+  // The errors kept for the result; the rest are only counted.
+  private static final int MAX_ERRORS = 100;
+  private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(32);
+  private static final ContentType FHIR_JSON =
+      ContentType.create("application/fhir+json", StandardCharsets.UTF_8);
+  private static final int TIMEOUT_MILLIS = 60000;
+  // The bytes of a bundle besides its resources, and of an entry besides its resource.
+  private static final int BUNDLE_OVERHEAD_BYTES = 64;
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  private final String fhirUri;
+  private final URI rootUri;
+  private final GoogleCredentials credentials;
+  private final BundleType bundleType;
+  private final boolean keepIds;
+  private final int maxBundleEntries;
+  private final int maxBundleBytes;
+  private final int maxBundlesInFlight;
+  private final int maxAttempts;
+  private final Duration initialRetryDelay;
+  private final CloseableHttpClient httpClient;
+  private final ExecutorService executor;
+
+  /**
+   * Creates an ingester for the FHIR store sending batch bundles, authenticated with Application
+   * Default Credentials.
+   */
+  public static FhirBundleIngester create(String fhirStoreName) throws IOException {
+    return newBuilder(fhirStoreName).build();
+  }
+
+  public static Builder newBuilder(String fhirStoreName) {
+    return new Builder(fhirStoreName);
+  }
+
+  private FhirBundleIngester(Builder builder, GoogleCredentials credentials) {
+    this.rootUri = URI.create(builder.rootUrl);
+    this.fhirUri = String.format("%sv1/%s/fhir", builder.rootUrl, builder.fhirStoreName);
+    this.credentials = credentials;
+    this.bundleType = builder.bundleType;
+    this.keepIds = builder.keepIds;
+    this.maxBundleEntries = builder.maxBundleEntries;
+    this.maxBundleBytes = builder.maxBundleBytes;
+    this.maxBundlesInFlight = builder.maxBundlesInFlight;
+    this.maxAttempts = builder.maxAttempts;
+    this.initialRetryDelay = builder.initialRetryDelay;
+
+    PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    connections.setMaxTotal(maxBundlesInFlight);
+    connections.setDefaultMaxPerRoute(maxBundlesInFlight);
+    this.httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connections)
+            .setDefaultRequestConfig(
+                RequestConfig.custom()
+                    .setConnectTimeout(TIMEOUT_MILLIS)
+                    .setSocketTimeout(TIMEOUT_MILLIS)
+                    .build())
+            .build();
+
+    AtomicInteger threads = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            maxBundlesInFlight,
+            runnable -> {
+              Thread thread = new Thread(runnable, "fhir-ingest-" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Loads the resources of the NDJSON files, one file after another. */
+  public Result ingest(List<Path> ndjsonFiles) throws IOException {
+    Ingestion ingestion = new Ingestion();
+    for (Path file : ndjsonFiles) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        ingestion.read(file.getFileName().toString(), reader);
+      } catch (IOException | RuntimeException e) {
+        ingestion.abandon();
+        throw e;
+      }
+    }
+    return ingestion.finish();
+  }
+
+  /** Loads the resources read from the NDJSON reader, which isn't closed. */
+  public Result ingest(Reader ndjson) throws IOException {
+    Ingestion ingestion = new Ingestion();
+    try {
+      ingestion.read("line", new BufferedReader(ndjson));
+    } catch (IOException | RuntimeException e) {
+      ingestion.abandon();
+      throw e;
+    }
+    return ingestion.finish();
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    httpClient.close();
+  }
+
+  /** The outcome of loading resources. */
+  public static final class Result {
+    private final long resources;
+    private final long failed;
+    private final long bundles;
+    private final long retriedEntries;
+    private final Duration elapsed;
+    private final List<String> errors;
+
+    Result(
+        long resources,
+        long failed,
+        long bundles,
+        long retriedEntries,
+        Duration elapsed,
+        List<String> errors) {
+      this.resources = resources;
+      this.failed = failed;
+      this.bundles = bundles;
+      this.retriedEntries = retriedEntries;
+      this.elapsed = elapsed;
+      this.errors = errors;
+    }
+
+    /** Returns the number of resources written to the store. */
+    public long getResources() {
+      return resources;
+    }
+
+    /** Returns the number of resources that couldn't be read or were rejected by the store. */
+    public long getFailed() {
+      return failed;
+    }
+
+    /** Returns the number of bundles sent, counting each attempt. */
+    public long getBundles() {
+      return bundles;
+    }
+
+    /** Returns the number of entries sent again after a transient error. */
+    public long getRetriedEntries() {
+      return retriedEntries;
+    }
+
+    public Duration getElapsed() {
+      return elapsed;
+    }
+
+    public double getResourcesPerSecond() {
+      long nanos = elapsed.toNanos();
+      return nanos == 0 ? 0 : resources * 1e9 / nanos;
+    }
+
+    /**
+     * Returns why resources failed, naming the line they were read from, for the first few
+     * failures.
+     */
+    public List<String> getErrors() {
+      return errors;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d resources written, %d failed, in %d bundles (%d entries retried) in %.1f s:"
+              + " %.0f resources/s",
+          resources,
+          failed,
+          bundles,
+          retriedEntries,
+          elapsed.toNanos() / 1e9,
+          getResourcesPerSecond());
+    }
+  }
+
+  // A resource to write, and where it was read from.
+  private static final class Entry {
+    final String source;
+    final String resource;
+    final String method;
+    final String url;
+    final int bytes;
+
+    Entry(String source, String resource, String method, String url) {
+      this.source = source;
+      this.resource = resource;
+      this.method = method;
+      this.url = url;
+      // Resources are mostly ASCII, so the length is close to the encoded size.
+      this.bytes = resource.length() + url.length() + ENTRY_OVERHEAD_BYTES;
+    }
+  }
+
+  // The state of one call to ingest, whose bundles share the window of bundles in flight.
+  private final class Ingestion {
+    final long start = System.nanoTime();
+    final Semaphore window = new Semaphore(maxBundlesInFlight);
+    final AtomicLong resources = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong bundles = new AtomicLong();
+    final AtomicLong retriedEntries = new AtomicLong();
+    final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    void read(String name, BufferedReader reader) throws IOException {
+      List<Entry> bundle = new ArrayList<>();
+      int bundleBytes = BUNDLE_OVERHEAD_BYTES;
+      long lineNumber = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lineNumber++;
+        if (line.isBlank()) {
+          continue;
+        }
+        Entry entry = parse(name + ":" + lineNumber, line);
+        if (entry == null) {
+          continue;
+        }
+        if (!bundle.isEmpty()
+            && (bundle.size() == maxBundleEntries || bundleBytes + entry.bytes > maxBundleBytes)) {
+          submit(bundle);
+          bundle = new ArrayList<>();
+          bundleBytes = BUNDLE_OVERHEAD_BYTES;
+        }
+        bundle.add(entry);
+        bundleBytes += entry.bytes;
+      }
+      if (!bundle.isEmpty()) {
+        submit(bundle);
+      }
+    }
+
+    Entry parse(String source, String line) {
+      try {
+        JsonObject resource = JsonParser.parseString(line).getAsJsonObject();
+        JsonElement resourceType = resource.get("resourceType");
+        if (resourceType == null || !resourceType.isJsonPrimitive()) {
+          fail(source, "no resourceType");
+          return null;
+        }
+        JsonElement id = resource.get("id");
+        if (id != null && id.isJsonPrimitive()) {
+          if (keepIds) {
+            return new Entry(
+                source, line, "PUT", resourceType.getAsString() + "/" + id.getAsString());
+          }
+          resource.remove("id");
+          return new Entry(source, resource.toString(), "POST", resourceType.getAsString());
+        }
+        return new Entry(source, line, "POST", resourceType.getAsString());
+      } catch (JsonParseException | IllegalStateException e) {
+        fail(source, "not a JSON object: " + e.getMessage());
+        return null;
+      }
+    }
+
+    void submit(List<Entry> bundle) throws IOException {
+      throwIfFailed();
+      try {
+        window.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to send a FHIR bundle");
+      }
+      try {
+        executor.execute(
+            () -> {
+              try {
+                send(bundle);
+              } catch (IOException e) {
+                failure.compareAndSet(null, e);
+              } catch (InterruptedException e) {
+                failure.compareAndSet(
+                    null, new InterruptedIOException("Interrupted sending a FHIR bundle"));
+              } catch (RuntimeException e) {
+                failure.compareAndSet(null, new IOException(e));
+              } finally {
+                window.release();
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        window.release();
+        throw new IOException("The ingester is closed", e);
+      }
+    }
+
+    // Sends the entries until each succeeds or fails for good, retrying transient failures.
+    void send(List<Entry> bundle) throws IOException, InterruptedException {
+      List<Entry> pending = bundle;
+      for (int attempt = 1; ; attempt++) {
+        if (failure.get() != null) {
+          // Another bundle couldn't be sent, so the load is stopping.
+          return;
+        }
+        if (attempt > 1) {
+          retriedEntries.addAndGet(pending.size());
+          Thread.sleep(retryDelay(attempt));
+        }
+        bundles.incrementAndGet();
+        int status;
+        String body;
+        try {
+          HttpPost request = new HttpPost(fhirUri);
+          request.setHeader(HttpHeaders.ACCEPT, "application/fhir+json; charset=utf-8");
+          request.setEntity(new ByteArrayEntity(bundleJson(pending), FHIR_JSON));
+          try (CloseableHttpResponse response = execute(request)) {
+            status = response.getStatusLine().getStatusCode();
+            body =
+                response.getEntity() == null
+                    ? ""
+                    : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+          }
+        } catch (IOException e) {
+          if (attempt == maxAttempts) {
+            throw e;
+          }
+          continue;
+        }
+
+        if (status != HttpStatus.SC_OK) {
+          if (!isTransient(status)) {
+            for (Entry entry : pending) {
+              fail(entry.source, status + " " + body);
+            }
+            return;
+          }
+          if (attempt == maxAttempts) {
+            throw new IOException(
+                String.format(
+                    "POST %s failed after %d attempts: %d\n%s", fhirUri, attempt, status, body));
+          }
+          continue;
+        }
+
+        List<Entry> retry = new ArrayList<>();
+        JsonArray results = responseEntries(body, pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+          Entry entry = pending.get(i);
+          JsonObject result =
+              results == null ? null : results.get(i).getAsJsonObject().getAsJsonObject("response");
+          int entryStatus = result == null ? HttpStatus.SC_OK : entryStatus(result);
+          if (entryStatus >= 200 && entryStatus < 300) {
+            resources.incrementAndGet();
+          } else if (isTransient(entryStatus) && attempt < maxAttempts) {
+            retry.add(entry);
+          } else {
+            JsonElement outcome = result.get("outcome");
+            fail(entry.source, entryStatus + " " + (outcome == null ? "" : outcome));
+          }
+        }
+        if (retry.isEmpty()) {
+          return;
+        }
+        pending = retry;
+      }
+    }
+
+    Result finish() throws IOException {
+      try {
+        window.acquire(maxBundlesInFlight);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for FHIR bundles");
+      }
+      throwIfFailed();
+      return new Result(
+          resources.get(),
+          failed.get(),
+          bundles.get(),
+          retriedEntries.get(),
+          Duration.ofNanos(System.nanoTime() - start),
+          List.copyOf(errors));
+    }
+
+    // Stops the bundles in flight from being retried, and waits for them.
+    void abandon() {
+      failure.compareAndSet(null, new IOException("The load was abandoned"));
+      window.acquireUninterruptibly(maxBundlesInFlight);
+    }
+
+    void throwIfFailed() throws IOException {
+      IOException e = failure.get();
+      if (e != null) {
+        throw e;
+      }
+    }
+
+    void fail(String source, String error) {
+      failed.incrementAndGet();
+      synchronized (errors) {
+        if (errors.size() < MAX_ERRORS) {
+          errors.add(source + ": " + error);
+        }
+      }
+    }
+
+    long retryDelay(int attempt) {
+      long delay =
+          Math.min(
+              MAX_RETRY_DELAY.toMillis(), initialRetryDelay.toMillis() << Math.min(attempt - 2, 20));
+      // Spread out the retries of bundles that failed together.
+      return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+  }
+
+  private byte[] bundleJson(List<Entry> entries) {
+    StringBuilder json = new StringBuilder(BUNDLE_OVERHEAD_BYTES);
+    json.append("{\"resourceType\":\"Bundle\",\"type\":\"").append(bundleType.code);
+    json.append("\",\"entry\":[");
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      if (i > 0) {
+        json.append(',');
+      }
+      // The resource was parsed as it was read, so it can be copied in as it is.
+      json.append("{\"resource\":").append(entry.resource);
+      json.append(",\"request\":{\"method\":\"").append(entry.method);
+      json.append("\",\"url\":").append(new JsonPrimitive(entry.url)).append("}}");
+    }
+    return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Returns the entries of a batch response, or null if they don't need to be checked.
+  private JsonArray responseEntries(String body, int expected) throws IOException {
+    if (bundleType == BundleType.TRANSACTION) {
+      // A transaction that didn't fail applied all of its entries.
+      return null;
+    }
+    try {
+      JsonArray entries = JsonParser.parseString(body).getAsJsonObject().getAsJsonArray("entry");
+      if (entries == null || entries.size() != expected) {
+        throw new IOException(
+            String.format(
+                "Expected %d entries in the batch response, got %d",
+                expected, entries == null ? 0 : entries.size()));
+      }
+      return entries;
+    } catch (JsonParseException | IllegalStateException e) {
+      throw new IOException("Malformed batch response", e);
+    }
+  }
+
+  // The status of an entry of a batch response is a code followed by its description.
+  private static int entryStatus(JsonObject response) {
+    JsonElement status = response.get("status");
+    if (status == null) {
+      return 0;
+    }
+    String text = status.getAsString().trim();
+    int end = text.indexOf(' ');
+    try {
+      return Integer.parseInt(end < 0 ? text : text.substring(0, end));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static boolean isTransient(int status) {
+    return status == 429 || status == HttpStatus.SC_INTERNAL_SERVER_ERROR
+        || status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+        || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+  }
+
+  // Sends the request with the current access token.
+  private CloseableHttpResponse execute(HttpPost request) throws IOException {
+    for (Map.Entry<String, List<String>> header :
+        credentials.getRequestMetadata(rootUri).entrySet()) {
+      for (String value : header.getValue()) {
+        request.addHeader(header.getKey(), value);
+      }
+    }
+    return httpClient.execute(request);
+  }
+
+  /** Configures an ingester. */
+  public static final class Builder {
+    private final String fhirStoreName;
+    private String rootUrl = CloudHealthcare.DEFAULT_ROOT_URL;
+    private GoogleCredentials credentials;
+    private BundleType bundleType = BundleType.BATCH;
+    private boolean keepIds = true;
+    private int maxBundleEntries = DEFAULT_MAX_BUNDLE_ENTRIES;
+    private int maxBundleBytes = DEFAULT_MAX_BUNDLE_BYTES;
+    private int maxBundlesInFlight = DEFAULT_MAX_BUNDLES_IN_FLIGHT;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private Duration initialRetryDelay = DEFAULT_INITIAL_RETRY_DELAY;
+
+    private Builder(String fhirStoreName) {
+      this.fhirStoreName = fhirStoreName;
+    }
+
+    /** Sets the root URL of the API, such as that of a local emulator. */
+    public Builder setRootUrl(String rootUrl) {
+      this.rootUrl = rootUrl;
+      return this;
+    }
+
+    /** Sets the credentials; Application Default Credentials are used if not set. */
+    public Builder setCredentials(GoogleCredentials credentials) {
+      this.credentials = credentials;
+      return this;
+    }
+
+    public Builder setBundleType(BundleType bundleType) {
+      this.bundleType = bundleType;
+      return this;
+    }
+
+    /**
+     * Sets whether resources keep their ids, written with {@code PUT}, which needs {@code
+     * enableUpdateCreate} on the store. Otherwise ids are stripped and every resource is created
+     * with {@code POST}. Ids are kept by default.
+     */
+    public Builder setKeepIds(boolean keepIds) {
+      this.keepIds = keepIds;
+      return this;
+    }
+
+    public Builder setMaxBundleEntries(int maxBundleEntries) {
+      this.maxBundleEntries = maxBundleEntries;
+      return this;
+    }
+
+    /** Sets the size that bundles are kept under, unless a single resource is larger. */
+    public Builder setMaxBundleBytes(int maxBundleBytes) {
+      this.maxBundleBytes = maxBundleBytes;
+      return this;
+    }
+
+    public Builder setMaxBundlesInFlight(int maxBundlesInFlight) {
+      this.maxBundlesInFlight = maxBundlesInFlight;
+      return this;
+    }
+
+    /** Sets how many times a bundle or entry is sent before its failure is final. */
+    public Builder setMaxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /** Sets the delay before the first retry, which doubles with each retry after it. */
+    public Builder setInitialRetryDelay(Duration initialRetryDelay) {
+      this.initialRetryDelay = initialRetryDelay;
+      return this;
+    }
+
+    public FhirBundleIngester build() throws IOException {
+      if (maxBundleEntries < 1 || maxBundlesInFlight < 1 || maxAttempts < 1) {
+        throw new IllegalArgumentException(
+            "maxBundleEntries, maxBundlesInFlight and maxAttempts must be at least 1");
+      }
+      GoogleCredentials ingestCredentials = credentials;
+      if (ingestCredentials == null) {
+        ingestCredentials =
+            GoogleCredentials.getApplicationDefault()
+                .createScoped(Collections.singleton(CloudHealthcareScopes.CLOUD_PLATFORM));
+      }
+      return new FhirBundleIngester(this, ingestCredentials);
+    }
+  }
+}
+// [END healthcare_fhir_bundle_ingester]
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare.fhir;
+
+// [START healthcare_fhir_ingest_ndjson]
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FhirStoreIngestNdjson {
+  private static final String FHIR_NAME = "projects/%s/locations/%s/datasets/%s/fhirStores/%s";
+
+  public static void fhirStoreIngestNdjson(String fhirStoreName, List<String> ndjsonFiles)
+      throws IOException {
+    // String fhirStoreName =
+    //    String.format(
+    //        FHIR_NAME, "your-project-id", "your-region-id", "your-dataset-id", "your-fhir-id");
+    // List<String> ndjsonFiles = List.of("Patient.ndjson", "Observation.ndjson");
+
+    List<Path> files = new ArrayList<>();
+    for (String ndjsonFile : ndjsonFiles) {
+      files.add(Paths.get(ndjsonFile));
+    }
+
+    // The ingester packs the resources into batch bundles and sends several at once, on
+    // connections kept open between them. See FhirBundleIngester.java.
+    // Resources from a bulk export have ids, which are kept by writing them with PUT. That needs
+    // enableUpdateCreate set on the FHIR store; it is off by default. The bundles are written in
+    // no particular order, so if the store enforces referential integrity, ingest the files that
+    // others reference first, in their own calls.
+    try (FhirBundleIngester ingester = FhirBundleIngester.create(fhirStoreName)) {
+      FhirBundleIngester.Result result = ingester.ingest(files);
+      System.out.println("FHIR resources ingested: " + result);
+      for (String error : result.getErrors()) {
+        System.err.println(error);
+      }
+    }
+  }
+}
+// [END healthcare_fhir_ingest_ndjson]
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local DICOMweb endpoint for tests and benchmarks. It discards stored instances, counting their
+ * bytes, and answers study retrievals with generated instances.
+ */
+class DicomWebStub implements AutoCloseable {
+  static final String DICOM_STORE =
+      "projects/project/locations/location/datasets/dataset/dicomStores/store";
+  static final String BOUNDARY = "dicomweb-stub-boundary";
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final ConcurrentHashMap<String, byte[]> INSTANCES = new ConcurrentHashMap<>();
+
+  static {
+    // Otherwise small responses on a kept alive connection wait for delayed acknowledgements.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  final AtomicInteger stored = new AtomicInteger();
+  final AtomicLong storedBytes = new AtomicLong();
+  final AtomicInteger maxInFlight = new AtomicInteger();
+  final List<String> authorizations = new CopyOnWriteArrayList<>();
+  final List<String> contentTypes = new CopyOnWriteArrayList<>();
+  final List<String> accepts = new CopyOnWriteArrayList<>();
+  // The sizes of the instances of each study.
+  final ConcurrentHashMap<String, int[]> studies = new ConcurrentHashMap<>();
+  volatile int failStatus;
+  volatile long latencyMillis;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  DicomWebStub() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/v1/" + DICOM_STORE + "/dicomWeb/studies", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  String rootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  /** Returns the content of an instance of a study served by the stub. */
+  static byte[] instance(String studyUid, int index, int size) {
+    return INSTANCES.computeIfAbsent(
+        studyUid + "/" + index + "/" + size, key -> generate(studyUid, index, size));
+  }
+
+  private static byte[] generate(String studyUid, int index, int size) {
+    byte[] content = new byte[size];
+    new Random(studyUid.hashCode() * 31L + index).nextBytes(content);
+    // Line breaks and dashes like those of a boundary must be kept as they are.
+    byte[] lookalike = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1))
+        .getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i + lookalike.length < size; i += 997) {
+      System.arraycopy(lookalike, 0, content, i, lookalike.length);
+      // Make sure the random byte after it doesn't complete the boundary.
+      content[i + lookalike.length] = '.';
+    }
+    return content;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    try {
+      authorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      if (failStatus != 0) {
+        drain(exchange.getRequestBody());
+        byte[] error = "{\"error\": \"stub failure\"}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(failStatus, error.length);
+        exchange.getResponseBody().write(error);
+      } else if ("POST".equals(exchange.getRequestMethod())) {
+        contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+        storedBytes.addAndGet(drain(exchange.getRequestBody()));
+        stored.incrementAndGet();
+        byte[] body = "{\"00081199\": {}}".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/dicom+json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+      } else {
+        accepts.add(exchange.getRequestHeaders().getFirst("Accept"));
+        String path = exchange.getRequestURI().getPath();
+        String studyUid = path.substring(path.lastIndexOf('/') + 1);
+        sendStudy(exchange, studyUid, studies.getOrDefault(studyUid, new int[0]));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      inFlight.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  private static void sendStudy(HttpExchange exchange, String studyUid, int[] sizes)
+      throws IOException {
+    exchange.getResponseHeaders().set(
+        "Content-Type",
+        "multipart/related; type=\"application/dicom\"; boundary=" + BOUNDARY);
+    // Chunked, as the service streams studies.
+    exchange.sendResponseHeaders(200, 0);
+    try (OutputStream out = exchange.getResponseBody()) {
+      for (int i = 0; i < sizes.length; i++) {
+        out.write(
+            ("--" + BOUNDARY + "\r\nContent-Type: application/dicom; transfer-syntax=*\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.write(instance(studyUid, i, sizes[i]));
+        out.write(CRLF);
+      }
+      out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  private static long drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long total = 0;
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      total += read;
+    }
+    return total;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import snippets.healthcare.dicom.DicomWebTransfer;
+
+/*
+Transfers a study of 32 instances to and from a local DICOMweb stub, which can add latency to
+each request to stand in for the distance to the service. Compares uploading the way
+DicomWebStoreInstance used to, reading each file into memory and creating a client per instance,
+with the shared DicomWebTransfer storing instances one at a time and eight at once; and
+downloading the study into one multipart file with splitting it into its instances as it arrives.
+The GC profiler shows the bytes allocated per study, which grow with the instance size when the
+files are read into memory. Run it with:
+
+mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+  -Dexec.args="-cp %classpath snippets.healthcare.DicomWebTransferBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DicomWebTransferBenchmark {
+
+  private static final int INSTANCES = 32;
+  private static final String STUDY = "1.2.840.1";
+
+  @Param({"256", "4096"})
+  int instanceKib;
+
+  @Param({"0", "10"})
+  long latencyMillis;
+
+  private DicomWebStub stub;
+  private DicomWebTransfer transfer;
+  private Path directory;
+  private List<Path> files;
+  private String studiesUri;
+
+  @Setup
+  public void setup() throws IOException {
+    stub = new DicomWebStub();
+    stub.latencyMillis = latencyMillis;
+    int[] sizes = new int[INSTANCES];
+    Arrays.fill(sizes, instanceKib * 1024);
+    stub.studies.put(STUDY, sizes);
+    GoogleCredentials credentials =
+        GoogleCredentials.create(new AccessToken("token", new Date(Long.MAX_VALUE)));
+    transfer =
+        new DicomWebTransfer(
+            stub.rootUrl(),
+            DicomWebStub.DICOM_STORE,
+            credentials,
+            DicomWebTransfer.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    studiesUri = stub.rootUrl() + "v1/" + DicomWebStub.DICOM_STORE + "/dicomWeb/studies";
+
+    directory = Files.createTempDirectory("dicomweb-benchmark");
+    files = new ArrayList<>();
+    for (int i = 0; i < INSTANCES; i++) {
+      Path file = directory.resolve("upload-" + i + ".dcm");
+      Files.write(file, DicomWebStub.instance("upload", i, instanceKib * 1024));
+      files.add(file);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    transfer.close();
+    stub.close();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Benchmark
+  public void perCallUpload() throws IOException {
+    for (Path file : files) {
+      try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+        HttpPost request = new HttpPost(studiesUri);
+        request.setEntity(new ByteArrayEntity(Files.readAllBytes(file)));
+        request.addHeader("Content-Type", "application/dicom");
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+          EntityUtils.consume(response.getEntity());
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public void sharedUpload() throws IOException {
+    for (Path file : files) {
+      transfer.storeInstance(file);
+    }
+  }
+
+  @Benchmark
+  public List<String> parallelUpload() throws IOException {
+    return transfer.storeInstances(files);
+  }
+
+  @Benchmark
+  public void downloadToOneFile() throws IOException {
+    HttpGet request = new HttpGet(studiesUri + "/" + STUDY);
+    try (CloseableHttpClient httpClient = HttpClients.createDefault();
+        CloseableHttpResponse response = httpClient.execute(request);
+        OutputStream out = Files.newOutputStream(directory.resolve("study.multipart"))) {
+      response.getEntity().writeTo(out);
+    }
+  }
+
+  @Benchmark
+  public List<Path> downloadSplit() throws IOException {
+    return transfer.retrieveStudy(STUDY, directory.resolve("study"));
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(DicomWebTransferBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import snippets.healthcare.dicom.DicomWebTransfer;
+import snippets.healthcare.dicom.MultipartRelatedReader;
+
+/** Tests for {@link DicomWebTransfer}, against a local DICOMweb endpoint. */
+@RunWith(JUnit4.class)
+public class DicomWebTransferTests {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final CountingCredentials credentials = new CountingCredentials();
+  private DicomWebStub stub;
+  private DicomWebTransfer transfer;
+
+  @Before
+  public void setUp() throws IOException {
+    stub = new DicomWebStub();
+    transfer = new DicomWebTransfer(stub.rootUrl(), DicomWebStub.DICOM_STORE, credentials, 3);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    transfer.close();
+    stub.close();
+  }
+
+  @Test
+  public void testStoreInstancesSharesConnectionsAndToken() throws Exception {
+    stub.latencyMillis = 20;
+    List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Path file = folder.newFile("instance" + i + ".dcm").toPath();
+      Files.write(file, DicomWebStub.instance("upload", i, 256 * 1024));
+      files.add(file);
+    }
+
+    List<String> responses = transfer.storeInstances(files);
+
+    assertThat(responses).hasSize(20);
+    assertThat(stub.stored.get()).isEqualTo(20);
+    assertThat(stub.storedBytes.get()).isEqualTo(20L * 256 * 1024);
+    assertThat(stub.maxInFlight.get()).isAtMost(3);
+    assertThat(stub.maxInFlight.get()).isAtLeast(2);
+    assertThat(stub.contentTypes).containsExactlyElementsIn(nCopies(20, "application/dicom"));
+    // The token was fetched once, and sent in a header rather than in the URL.
+    assertThat(credentials.refreshes.get()).isEqualTo(1);
+    assertThat(stub.authorizations).containsExactlyElementsIn(nCopies(20, "Bearer token-1"));
+  }
+
+  @Test
+  public void testRetrieveStudyWritesEachInstanceToItsOwnFile() throws Exception {
+    int[] sizes = {0, 1, 100_000, 3 * 65536 + 17, 2 << 20, 5000};
+    stub.studies.put("1.2.3", sizes);
+
+    List<Path> instances = transfer.retrieveStudy("1.2.3", folder.getRoot().toPath());
+
+    assertThat(instances).hasSize(sizes.length);
+    for (int i = 0; i < sizes.length; i++) {
+      assertArrayEquals(
+          DicomWebStub.instance("1.2.3", i, sizes[i]), Files.readAllBytes(instances.get(i)));
+    }
+    assertThat(stub.accepts)
+        .containsExactly("multipart/related; type=\"application/dicom\"; transfer-syntax=*");
+  }
+
+  @Test
+  public void testRetrieveStudies() throws Exception {
+    stub.studies.put("1.1", new int[] {10, 20});
+    stub.studies.put("2.2", new int[] {30});
+
+    List<List<Path>> studies =
+        transfer.retrieveStudies(List.of("1.1", "2.2"), folder.getRoot().toPath());
+
+    assertThat(studies.get(0)).hasSize(2);
+    assertThat(studies.get(1)).hasSize(1);
+    assertThat(studies.get(1).get(0).getParent().getFileName().toString()).isEqualTo("2.2");
+    assertThat(Files.size(studies.get(1).get(0))).isEqualTo(30);
+  }
+
+  @Test
+  public void testFailedRequestFails() throws Exception {
+    stub.failStatus = 409;
+    Path file = folder.newFile("instance.dcm").toPath();
+
+    IOException e =
+        assertThrows(IOException.class, () -> transfer.storeInstances(List.of(file, file)));
+    assertThat(e).hasMessageThat().contains("409");
+    assertThat(e).hasMessageThat().contains("stub failure");
+  }
+
+  @Test
+  public void testReaderHandlesPreambleHeadersAndSmallReads() throws Exception {
+    String body =
+        "preamble\r\n--b\r\nContent-Type: application/dicom\r\nContent-Location: a\r\n\r\n"
+            + "first\r\n-b\r\n--\r\n--b  \r\n\r\nsecond\r\n--b--\r\nepilogue";
+    MultipartRelatedReader reader =
+        new MultipartRelatedReader(new OneByteInputStream(bytes(body)), "b");
+
+    assertThat(reader.nextPart()).isTrue();
+    assertThat(reader.headers()).containsEntry("content-type", "application/dicom");
+    assertThat(reader.headers()).containsEntry("content-location", "a");
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    assertThat(reader.transferPartTo(first)).isEqualTo(first.size());
+    assertThat(first.toString(StandardCharsets.US_ASCII)).isEqualTo("first\r\n-b\r\n--");
+    assertThat(reader.nextPart()).isTrue();
+    assertThat(reader.headers()).isEmpty();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    reader.transferPartTo(second);
+    assertThat(second.toString(StandardCharsets.US_ASCII)).isEqualTo("second");
+    assertThat(reader.nextPart()).isFalse();
+    assertThat(reader.nextPart()).isFalse();
+  }
+
+  @Test
+  public void testReaderSkipsUnreadParts() throws Exception {
+    String body = "--b\r\n\r\none\r\n--b\r\n\r\ntwo\r\n--b--";
+    MultipartRelatedReader reader = new MultipartRelatedReader(stream(body), "b");
+
+    assertThat(reader.nextPart()).isTrue();
+    assertThat(reader.nextPart()).isTrue();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    reader.transferPartTo(out);
+    assertThat(out.toString(StandardCharsets.US_ASCII)).isEqualTo("two");
+    assertThat(reader.nextPart()).isFalse();
+  }
+
+  @Test
+  public void testReaderFailsOnTruncatedBody() throws Exception {
+    MultipartRelatedReader reader =
+        new MultipartRelatedReader(stream("--b\r\n\r\nsome of the instance"), "b");
+
+    assertThat(reader.nextPart()).isTrue();
+    assertThrows(EOFException.class, () -> reader.transferPartTo(new ByteArrayOutputStream()));
+  }
+
+  @Test
+  public void testBoundary() throws Exception {
+    assertThat(
+            MultipartRelatedReader.boundary(
+                "multipart/related; type=\"application/dicom\"; boundary=\"a b:c\""))
+        .isEqualTo("a b:c");
+    assertThat(MultipartRelatedReader.boundary("Multipart/Related;boundary=xyz"))
+        .isEqualTo("xyz");
+    assertThrows(IOException.class, () -> MultipartRelatedReader.boundary("application/json"));
+    assertThrows(IOException.class, () -> MultipartRelatedReader.boundary(null));
+  }
+
+  private static List<String> nCopies(int n, String value) {
+    return Collections.nCopies(n, value);
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static InputStream stream(String text) {
+    return new ByteArrayInputStream(bytes(text));
+  }
+
+  /** Returns a byte at a time, like a slow connection. */
+  private static class OneByteInputStream extends FilterInputStream {
+    OneByteInputStream(byte[] content) {
+      super(new ByteArrayInputStream(content));
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 1));
+    }
+  }
+
+  /** Hands out tokens valid for an hour, counting how many were asked for. */
+  private static class CountingCredentials extends GoogleCredentials {
+    final AtomicInteger refreshes = new AtomicInteger();
+
+    @Override
+    public AccessToken refreshAccessToken() {
+      return new AccessToken(
+          "token-" + refreshes.incrementAndGet(),
+          new Date(System.currentTimeMillis() + 3_600_000));
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import snippets.healthcare.fhir.FhirBundleIngester;
+
+/*
+Loads 1000 resources into a local FHIR stub, which can add latency to each request to stand in for
+the distance to the service. Compares creating each resource with its own request and client, as
+FhirResourceCreate does, with FhirBundleIngester packing them into batch bundles of up to
+bundleEntries resources and sending up to eight bundles at once. Run it with:
+
+mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+  -Dexec.args="-cp %classpath snippets.healthcare.FhirBundleIngesterBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FhirBundleIngesterBenchmark {
+
+  private static final int RESOURCES = 1000;
+
+  @Param({"50", "500"})
+  int bundleEntries;
+
+  @Param({"0", "10"})
+  long latencyMillis;
+
+  private FhirStub stub;
+  private FhirBundleIngester ingester;
+  private String ndjson;
+  private String patientUri;
+
+  @Setup
+  public void setup() throws IOException {
+    stub = new FhirStub();
+    stub.latencyMillis = latencyMillis;
+    stub.enableUpdateCreate = true;
+    ingester =
+        FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE)
+            .setRootUrl(stub.rootUrl())
+            .setCredentials(
+                GoogleCredentials.create(new AccessToken("token", new Date(Long.MAX_VALUE))))
+            .setMaxBundleEntries(bundleEntries)
+            .build();
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < RESOURCES; i++) {
+      lines.append(FhirStub.resource("Patient", "p" + i, 500)).append('\n');
+    }
+    ndjson = lines.toString();
+    patientUri = stub.rootUrl() + "v1/" + FhirStub.FHIR_STORE + "/fhir/Patient";
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    ingester.close();
+    stub.close();
+  }
+
+  @Benchmark
+  public void perResourceCreate() throws IOException {
+    for (String resource : ndjson.split("\n")) {
+      try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+        HttpPost request = new HttpPost(patientUri);
+        request.setEntity(new StringEntity(resource));
+        request.addHeader("Content-Type", "application/fhir+json");
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+          EntityUtils.consume(response.getEntity());
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public FhirBundleIngester.Result bundledIngest() throws IOException {
+    return ingester.ingest(new StringReader(ndjson));
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(FhirBundleIngesterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
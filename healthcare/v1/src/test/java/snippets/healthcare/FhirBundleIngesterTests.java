@@ -0,0 +1,299 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import snippets.healthcare.fhir.FhirBundleIngester;
+import snippets.healthcare.fhir.FhirBundleIngester.BundleType;
+
+/** Tests for {@link FhirBundleIngester}, against a local FHIR endpoint. */
+@RunWith(JUnit4.class)
+public class FhirBundleIngesterTests {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final CountingCredentials credentials = new CountingCredentials();
+  private final List<FhirBundleIngester> ingesters = new ArrayList<>();
+  private FhirStub stub;
+
+  @Before
+  public void setUp() throws IOException {
+    stub = new FhirStub();
+    // The resources of most tests have ids, which are kept.
+    stub.enableUpdateCreate = true;
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (FhirBundleIngester ingester : ingesters) {
+      ingester.close();
+    }
+    stub.close();
+  }
+
+  @Test
+  public void testPacksResourcesIntoBundlesSentAtOnce() throws Exception {
+    stub.latencyMillis = 20;
+    FhirBundleIngester ingester =
+        ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE).setMaxBundleEntries(100));
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < 1050; i++) {
+      ndjson.append(FhirStub.resource("Patient", "p" + i, 200)).append('\n');
+    }
+    // Resources without an id are created.
+    ndjson.append('\n').append(FhirStub.resource("Observation", null, 200)).append('\n');
+
+    FhirBundleIngester.Result result = ingester.ingest(new StringReader(ndjson.toString()));
+
+    assertThat(result.getResources()).isEqualTo(1051);
+    assertThat(result.getFailed()).isEqualTo(0);
+    assertThat(result.getBundles()).isEqualTo(11);
+    assertThat(result.getResourcesPerSecond()).isGreaterThan(0.0);
+    assertThat(stub.resources).hasSize(1051);
+    assertThat(stub.resources).contains("Patient/p1049");
+    assertThat(stub.created.get()).isEqualTo(1);
+    for (List<String> bundle : stub.bundles) {
+      assertThat(bundle.size()).isAtMost(100);
+    }
+    assertThat(stub.maxInFlight.get()).isAtMost(3);
+    assertThat(stub.maxInFlight.get()).isGreaterThan(1);
+    assertThat(credentials.refreshes.get()).isEqualTo(1);
+    assertThat(stub.authorizations)
+        .containsExactlyElementsIn(Collections.nCopies(11, "Bearer token-1"));
+  }
+
+  @Test
+  public void testBundlesAreKeptUnderTheSizeLimit() throws Exception {
+    FhirBundleIngester ingester =
+        ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE).setMaxBundleBytes(10_000));
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      ndjson.append(FhirStub.resource("Patient", "p" + i, 1000)).append('\n');
+    }
+    // A resource larger than the limit is sent on its own.
+    ndjson.append(FhirStub.resource("Patient", "large", 20_000)).append('\n');
+
+    FhirBundleIngester.Result result = ingester.ingest(new StringReader(ndjson.toString()));
+
+    assertThat(result.getResources()).isEqualTo(101);
+    assertThat(stub.bundles.size()).isGreaterThan(10);
+    int largest = 0;
+    for (int i = 0; i < stub.bundles.size(); i++) {
+      if (stub.bundles.get(i).contains("large")) {
+        assertThat(stub.bundles.get(i)).containsExactly("large");
+      } else {
+        largest = Math.max(largest, stub.bundleBytes.get(i));
+      }
+    }
+    assertThat(largest).isAtMost(10_000);
+    assertThat(largest).isGreaterThan(7_000);
+  }
+
+  @Test
+  public void testOnlyFailedEntriesAreRetried() throws Exception {
+    FhirBundleIngester ingester = ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE));
+    String ndjson =
+        String.join(
+            "\n",
+            FhirStub.resource("Patient", "p1", 100),
+            FhirStub.resource("Patient", "flaky1", 100),
+            FhirStub.resource("Patient", "p2", 100),
+            FhirStub.resource("Patient", "flaky2", 100));
+
+    FhirBundleIngester.Result result = ingester.ingest(new StringReader(ndjson));
+
+    assertThat(result.getResources()).isEqualTo(4);
+    assertThat(result.getRetriedEntries()).isEqualTo(2);
+    assertThat(stub.bundles)
+        .containsExactly(
+            Arrays.asList("p1", "flaky1", "p2", "flaky2"), Arrays.asList("flaky1", "flaky2"))
+        .inOrder();
+  }
+
+  @Test
+  public void testRejectedResourcesAreReportedAndTheRestWritten() throws Exception {
+    FhirBundleIngester ingester = ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE));
+    String ndjson =
+        String.join(
+            "\n",
+            FhirStub.resource("Patient", "p1", 100),
+            "{\"id\": \"no-type\"}",
+            "not json",
+            FhirStub.resource("Patient", "bad1", 100),
+            FhirStub.resource("Patient", "p2", 100));
+
+    FhirBundleIngester.Result result = ingester.ingest(new StringReader(ndjson));
+
+    assertThat(result.getResources()).isEqualTo(2);
+    assertThat(result.getFailed()).isEqualTo(3);
+    assertThat(result.getRetriedEntries()).isEqualTo(0);
+    assertThat(result.getErrors()).hasSize(3);
+    assertThat(result.getErrors().get(0)).startsWith("line:2: no resourceType");
+    assertThat(result.getErrors().get(1)).startsWith("line:3: not a JSON object");
+    assertThat(result.getErrors().get(2)).startsWith("line:4: 400");
+    assertThat(result.getErrors().get(2)).contains("invalid resource bad1");
+    assertThat(stub.resources).containsExactly("Patient/p1", "Patient/p2");
+  }
+
+  @Test
+  public void testTransactionsAreRetriedWhole() throws Exception {
+    FhirBundleIngester ingester =
+        ingester(
+            FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE)
+                .setBundleType(BundleType.TRANSACTION)
+                .setMaxBundleEntries(2));
+    String ndjson =
+        String.join(
+            "\n",
+            FhirStub.resource("Patient", "p1", 100),
+            FhirStub.resource("Patient", "flaky1", 100),
+            FhirStub.resource("Patient", "p2", 100),
+            FhirStub.resource("Patient", "bad1", 100));
+
+    FhirBundleIngester.Result result = ingester.ingest(new StringReader(ndjson));
+
+    assertThat(result.getResources()).isEqualTo(2);
+    assertThat(result.getFailed()).isEqualTo(2);
+    assertThat(result.getRetriedEntries()).isEqualTo(2);
+    assertThat(stub.bundles)
+        .containsExactly(
+            Arrays.asList("p1", "flaky1"),
+            Arrays.asList("p1", "flaky1"),
+            Arrays.asList("p2", "bad1"));
+    // Nothing of the rejected transaction was written.
+    assertThat(stub.resources).containsExactly("Patient/p1", "Patient/flaky1");
+  }
+
+  @Test
+  public void testUnavailableStoreIsRetriedThenStopsTheLoad() throws Exception {
+    FhirBundleIngester ingester =
+        ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE).setMaxAttempts(3));
+    stub.failStatuses.addAll(Arrays.asList(503, 429));
+
+    FhirBundleIngester.Result result =
+        ingester.ingest(new StringReader(FhirStub.resource("Patient", "p1", 100)));
+
+    assertThat(result.getResources()).isEqualTo(1);
+    assertThat(result.getBundles()).isEqualTo(3);
+
+    stub.failStatuses.addAll(Arrays.asList(503, 503, 503));
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> ingester.ingest(new StringReader(FhirStub.resource("Patient", "p2", 100))));
+    assertThat(e).hasMessageThat().contains("failed after 3 attempts: 503");
+  }
+
+  @Test
+  public void testIngestsFilesInTurn() throws Exception {
+    FhirBundleIngester ingester =
+        ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE).setMaxBundleEntries(10));
+    Path patients = folder.newFile("Patient.ndjson").toPath();
+    Path observations = folder.newFile("Observation.ndjson").toPath();
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      lines.add(FhirStub.resource("Patient", "p" + i, 100));
+    }
+    Files.write(patients, lines, StandardCharsets.UTF_8);
+    Files.write(
+        observations,
+        Arrays.asList(
+            FhirStub.resource("Observation", "o1", 100),
+            FhirStub.resource("Observation", "bad1", 100)),
+        StandardCharsets.UTF_8);
+
+    FhirBundleIngester.Result result = ingester.ingest(Arrays.asList(patients, observations));
+
+    assertThat(result.getResources()).isEqualTo(26);
+    assertThat(result.getFailed()).isEqualTo(1);
+    assertThat(result.getBundles()).isEqualTo(4);
+    assertThat(result.getErrors()).hasSize(1);
+    assertThat(result.getErrors().get(0)).startsWith("Observation.ndjson:2: 400");
+  }
+
+  @Test
+  public void testIdsCanBeStrippedForStoresWithoutUpdateCreate() throws Exception {
+    stub.enableUpdateCreate = false;
+    String ndjson =
+        String.join(
+            "\n",
+            FhirStub.resource("Patient", "p1", 100),
+            FhirStub.resource("Patient", "p2", 100));
+
+    // Creating resources with their ids needs update as create on the store.
+    FhirBundleIngester.Result kept =
+        ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE))
+            .ingest(new StringReader(ndjson));
+    assertThat(kept.getResources()).isEqualTo(0);
+    assertThat(kept.getFailed()).isEqualTo(2);
+    assertThat(kept.getErrors().get(0)).contains("405");
+
+    FhirBundleIngester.Result stripped =
+        ingester(FhirBundleIngester.newBuilder(FhirStub.FHIR_STORE).setKeepIds(false))
+            .ingest(new StringReader(ndjson));
+    assertThat(stripped.getResources()).isEqualTo(2);
+    assertThat(stripped.getFailed()).isEqualTo(0);
+    assertThat(stub.bundles.get(1)).containsExactly("", "");
+    assertThat(stub.created.get()).isEqualTo(2);
+  }
+
+  private FhirBundleIngester ingester(FhirBundleIngester.Builder builder) throws IOException {
+    FhirBundleIngester ingester =
+        builder
+            .setRootUrl(stub.rootUrl())
+            .setCredentials(credentials)
+            .setMaxBundlesInFlight(3)
+            .setInitialRetryDelay(Duration.ofMillis(10))
+            .build();
+    ingesters.add(ingester);
+    return ingester;
+  }
+
+  private static class CountingCredentials extends GoogleCredentials {
+    final AtomicInteger refreshes = new AtomicInteger();
+
+    @Override
+    public AccessToken refreshAccessToken() {
+      return new AccessToken(
+          "token-" + refreshes.incrementAndGet(),
+          new Date(System.currentTimeMillis() + 3_600_000));
+    }
+  }
+}
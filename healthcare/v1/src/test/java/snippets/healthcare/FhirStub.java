@@ -0,0 +1,209 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package snippets.healthcare;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local FHIR endpoint for tests and benchmarks, executing batch and transaction bundles and
+ * single creates against resources kept in memory.
+ *
+ * <p>Resources whose id starts with {@code bad} are rejected. Those whose id starts with {@code
+ * flaky} fail with a transient error the first time they are written. Like a FHIR store with
+ * the default settings, creating a resource with {@code PUT} fails unless {@link
+ * #enableUpdateCreate} is set.
+ */
+class FhirStub implements AutoCloseable {
+  static final String FHIR_STORE =
+      "projects/project/locations/location/datasets/dataset/fhirStores/store";
+
+  static {
+    // Otherwise small responses on a kept alive connection wait for delayed acknowledgements.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  // The resources written, by type and id.
+  final Set<String> resources = ConcurrentHashMap.newKeySet();
+  final AtomicInteger created = new AtomicInteger();
+  final AtomicInteger maxInFlight = new AtomicInteger();
+  final List<String> authorizations = new CopyOnWriteArrayList<>();
+  // The ids of the entries of each bundle received, in order.
+  final List<List<String>> bundles = new CopyOnWriteArrayList<>();
+  final List<Integer> bundleBytes = new CopyOnWriteArrayList<>();
+  // The status of the responses to the next requests, before any bundle is executed.
+  final List<Integer> failStatuses = new CopyOnWriteArrayList<>();
+  volatile long latencyMillis;
+  volatile boolean enableUpdateCreate;
+
+  private final Set<String> failedOnce = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  FhirStub() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/v1/" + FHIR_STORE + "/fhir", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  String rootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  /** Returns a resource of about {@code size} bytes as a line of NDJSON. */
+  static String resource(String resourceType, String id, int size) {
+    StringBuilder line = new StringBuilder("{\"resourceType\":\"").append(resourceType).append('"');
+    if (id != null) {
+      line.append(",\"id\":\"").append(id).append('"');
+    }
+    line.append(",\"text\":{\"status\":\"generated\",\"div\":\"");
+    while (line.length() < size - 3) {
+      line.append('x');
+    }
+    return line.append("\"}}").toString();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    try {
+      authorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+      byte[] request = exchange.getRequestBody().readAllBytes();
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      Integer failStatus = failStatuses.isEmpty() ? null : failStatuses.remove(0);
+      if (failStatus != null) {
+        respond(exchange, failStatus, outcome("stub failure"));
+        return;
+      }
+      JsonObject body =
+          JsonParser.parseString(new String(request, StandardCharsets.UTF_8)).getAsJsonObject();
+      String path = exchange.getRequestURI().getPath();
+      if (!path.endsWith("/fhir")) {
+        // A single create, of the type named by the path.
+        resources.add(path.substring(path.lastIndexOf('/') + 1) + "/" + created.incrementAndGet());
+        respond(exchange, 201, body);
+        return;
+      }
+      bundleBytes.add(request.length);
+      execute(exchange, body);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      inFlight.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  private void execute(HttpExchange exchange, JsonObject bundle) throws IOException {
+    JsonArray entries = bundle.getAsJsonArray("entry");
+    List<String> ids = new ArrayList<>();
+    JsonArray results = new JsonArray();
+    int failedStatus = 0;
+    for (JsonElement element : entries) {
+      JsonObject resource = element.getAsJsonObject().getAsJsonObject("resource");
+      JsonObject request = element.getAsJsonObject().getAsJsonObject("request");
+      String id = resource.has("id") ? resource.get("id").getAsString() : "";
+      ids.add(id);
+      JsonObject response = new JsonObject();
+      if ("PUT".equals(request.get("method").getAsString())
+          && !enableUpdateCreate
+          && !resources.contains(request.get("url").getAsString())) {
+        response.addProperty("status", "405 Method Not Allowed");
+        response.add("outcome", outcome("update as create is disabled"));
+        failedStatus = 405;
+      } else if (id.startsWith("bad")) {
+        response.addProperty("status", "400 Bad Request");
+        response.add("outcome", outcome("invalid resource " + id));
+        failedStatus = 400;
+      } else if (id.startsWith("flaky") && failedOnce.add(id)) {
+        response.addProperty("status", "503 Service Unavailable");
+        failedStatus = failedStatus == 0 ? 503 : failedStatus;
+      } else {
+        response.addProperty("status", id.isEmpty() ? "201 Created" : "200 OK");
+      }
+      JsonObject result = new JsonObject();
+      result.add("response", response);
+      results.add(result);
+    }
+    bundles.add(ids);
+
+    boolean transaction = "transaction".equals(bundle.get("type").getAsString());
+    if (transaction && failedStatus != 0) {
+      // A transaction with a failed entry fails as a whole, with the status of that entry.
+      respond(exchange, failedStatus, outcome("transaction failed"));
+      return;
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      JsonObject response = results.get(i).getAsJsonObject().getAsJsonObject("response");
+      if (response.get("status").getAsString().startsWith("2")) {
+        String url =
+            entries.get(i).getAsJsonObject().getAsJsonObject("request").get("url").getAsString();
+        resources.add(ids.get(i).isEmpty() ? url + "/" + created.incrementAndGet() : url);
+      }
+    }
+    JsonObject response = new JsonObject();
+    response.addProperty("resourceType", "Bundle");
+    response.addProperty("type", transaction ? "transaction-response" : "batch-response");
+    response.add("entry", results);
+    respond(exchange, 200, response);
+  }
+
+  private static JsonObject outcome(String diagnostics) {
+    JsonObject issue = new JsonObject();
+    issue.addProperty("severity", "error");
+    issue.addProperty("diagnostics", diagnostics);
+    JsonArray issues = new JsonArray();
+    issues.add(issue);
+    JsonObject outcome = new JsonObject();
+    outcome.addProperty("resourceType", "OperationOutcome");
+    outcome.add("issue", issues);
+    return outcome;
+  }
+
+  private static void respond(HttpExchange exchange, int status, JsonObject body)
+      throws IOException {
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/fhir+json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
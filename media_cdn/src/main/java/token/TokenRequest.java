@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2024 Google LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package token;
+
+// [START mediacdn_dualtoken_token_request]
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import token.DualToken.Header;
+
+// The fields of a dual token, other than its signature. Every field is rendered once, when the
+// request is built, so signing the same request or many paths with it only has to add the path
+// and the signature.
+public final class TokenRequest {
+
+  // How the content a token grants access to is specified.
+  enum PathType {
+    FULL_PATH,
+    PATH_GLOBS,
+    URL_PREFIX
+  }
+
+  private final PathType pathType;
+  private final String path;
+  // The fields after the path, each preceded by '~', as they appear in the token.
+  private final String tokenSuffix;
+  // The same fields as they are signed; they differ from the token in the Headers field.
+  private final String signedSuffix;
+
+  private TokenRequest(Builder builder) {
+    this.pathType = builder.pathType;
+    this.path = builder.path;
+
+    StringBuilder token = new StringBuilder();
+    StringBuilder signed = new StringBuilder();
+    if (builder.startTime != null) {
+      appendBoth(token, signed, "~Starts=" + epochSeconds(builder.startTime));
+    }
+    Instant expirationTime = builder.expirationTime;
+    if (expirationTime == null) {
+      expirationTime = Instant.now().plus(1, ChronoUnit.HOURS);
+    }
+    appendBoth(token, signed, "~Expires=" + epochSeconds(expirationTime));
+    if (builder.sessionId != null) {
+      appendBoth(token, signed, "~SessionID=" + builder.sessionId);
+    }
+    if (builder.data != null) {
+      appendBoth(token, signed, "~Data=" + builder.data);
+    }
+    if (!builder.headers.isEmpty()) {
+      token.append("~Headers=");
+      signed.append("~Headers=");
+      for (int i = 0; i < builder.headers.size(); i++) {
+        Header header = builder.headers.get(i);
+        if (i > 0) {
+          token.append(',');
+          signed.append(',');
+        }
+        token.append(header.getName());
+        signed.append(header.getName()).append('=').append(header.getValue());
+      }
+    }
+    if (builder.ipRanges != null) {
+      appendBoth(
+          token,
+          signed,
+          "~IPRanges="
+              + DualToken.base64Encoder(builder.ipRanges.getBytes(StandardCharsets.US_ASCII)));
+    }
+    this.tokenSuffix = token.toString();
+    this.signedSuffix = signed.toString();
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  PathType getPathType() {
+    return pathType;
+  }
+
+  String getPath() {
+    return path;
+  }
+
+  String getTokenSuffix() {
+    return tokenSuffix;
+  }
+
+  String getSignedSuffix() {
+    return signedSuffix;
+  }
+
+  private static void appendBoth(StringBuilder token, StringBuilder signed, String field) {
+    token.append(field);
+    signed.append(field);
+  }
+
+  private static long epochSeconds(Instant instant) {
+    return ChronoUnit.SECONDS.between(Instant.EPOCH, instant);
+  }
+
+  public static final class Builder {
+
+    private PathType pathType;
+    private String path;
+    private Instant startTime;
+    private Instant expirationTime;
+    private String sessionId;
+    private String data;
+    private final List<Header> headers = new ArrayList<>();
+    private String ipRanges;
+
+    private Builder() {}
+
+    // A full path to sign, starting with the first '/'. For example: /path/to/content.mp4
+    public Builder setFullPath(String fullPath) {
+      return setPath(PathType.FULL_PATH, fullPath);
+    }
+
+    // A set of path glob strings delimited by ',' or '!'. For example: /tv/*!/film/*
+    public Builder setPathGlobs(String pathGlobs) {
+      return setPath(PathType.PATH_GLOBS, pathGlobs);
+    }
+
+    // The URL prefix and protocol to sign. For example: http://example.com/path/
+    public Builder setUrlPrefix(String urlPrefix) {
+      return setPath(PathType.URL_PREFIX, urlPrefix);
+    }
+
+    public Builder setStartTime(Instant startTime) {
+      this.startTime = startTime;
+      return this;
+    }
+
+    // If not set, an expiration time an hour after the request is built is used.
+    public Builder setExpirationTime(Instant expirationTime) {
+      this.expirationTime = expirationTime;
+      return this;
+    }
+
+    public Builder setSessionId(String sessionId) {
+      this.sessionId = sessionId;
+      return this;
+    }
+
+    public Builder setData(String data) {
+      this.data = data;
+      return this;
+    }
+
+    public Builder addHeader(Header header) {
+      headers.add(header);
+      return this;
+    }
+
+    public Builder addAllHeaders(List<Header> headers) {
+      this.headers.addAll(headers);
+      return this;
+    }
+
+    // A list of comma-separated IPv4 or IPv6 ranges, for example: 203.0.113.0/24,2001:db8::/32
+    public Builder setIpRanges(String ipRanges) {
+      this.ipRanges = ipRanges;
+      return this;
+    }
+
+    public TokenRequest build() {
+      if (pathType == null) {
+        throw new IllegalArgumentException(
+            "User Input Missing: One of `urlPrefix`, `fullPath` or `pathGlobs` must be specified");
+      }
+      return new TokenRequest(this);
+    }
+
+    private Builder setPath(PathType pathType, String path) {
+      this.pathType = pathType;
+      this.path = path;
+      return this;
+    }
+  }
+}
+// [END mediacdn_dualtoken_token_request]
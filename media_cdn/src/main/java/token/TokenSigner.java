@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2024 Google LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package token;
+
+// [START mediacdn_dualtoken_token_signer]
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+
+// Mints Media CDN dual tokens with one key. The key is decoded once, and each thread keeps its
+// own initialized signer and buffers, so a TokenSigner can be shared by any number of threads and
+// signing a token only hashes and encodes.
+public final class TokenSigner {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+
+  private enum Algorithm {
+    ED25519,
+    SHA256,
+    SHA1
+  }
+
+  private final Algorithm algorithm;
+  private final Ed25519PrivateKeyParameters ed25519Key;
+  private final SecretKeySpec hmacKey;
+  private final ThreadLocal<SigningState> state = ThreadLocal.withInitial(this::newState);
+
+  private TokenSigner(Algorithm algorithm, byte[] decodedKey) {
+    this.algorithm = algorithm;
+    if (algorithm == Algorithm.ED25519) {
+      this.ed25519Key = new Ed25519PrivateKeyParameters(decodedKey, 0);
+      this.hmacKey = null;
+    } else {
+      this.ed25519Key = null;
+      this.hmacKey =
+          new SecretKeySpec(decodedKey, algorithm == Algorithm.SHA256 ? "HmacSHA256" : "HmacSHA1");
+    }
+  }
+
+  // Creates a signer for a base64 encoded key. Algorithm can be one of sha1, sha256 or ed25519.
+  public static TokenSigner create(byte[] base64Key, String signatureAlgorithm)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    Algorithm algorithm;
+    try {
+      algorithm = Algorithm.valueOf(signatureAlgorithm.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          "Input Missing Error: `signatureAlgorithm` can only be one of `sha1`, `sha256` or "
+              + "`ed25519`");
+    }
+    TokenSigner signer = new TokenSigner(algorithm, Base64.getUrlDecoder().decode(base64Key));
+    if (signer.hmacKey != null) {
+      // Fails here, rather than on the first token, if the algorithm or key is unusable.
+      Mac.getInstance(signer.hmacKey.getAlgorithm()).init(signer.hmacKey);
+    }
+    return signer;
+  }
+
+  // Returns the signed token for request.
+  public String sign(TokenRequest request) {
+    SigningState state = this.state.get();
+    state.token.setLength(0);
+    sign(state, request, request.getPath(), state.token);
+    return state.token.toString();
+  }
+
+  // Appends the signed token for request to out, for callers assembling URLs in their own buffer.
+  public void sign(TokenRequest request, StringBuilder out) {
+    sign(state.get(), request, request.getPath(), out);
+  }
+
+  // Returns a signed token for each of paths, in the same order. Every token has the fields of
+  // template, with its path replaced by one of paths: a full path, path globs or URL prefix,
+  // whichever template has.
+  public List<String> signAll(TokenRequest template, List<String> paths) {
+    SigningState state = this.state.get();
+    List<String> tokens = new ArrayList<>(paths.size());
+    for (String path : paths) {
+      state.token.setLength(0);
+      sign(state, template, path, state.token);
+      tokens.add(state.token.toString());
+    }
+    return tokens;
+  }
+
+  private void sign(SigningState state, TokenRequest request, String path, StringBuilder out) {
+    StringBuilder signed = state.signed;
+    signed.setLength(0);
+    int start = out.length();
+    switch (request.getPathType()) {
+      case FULL_PATH:
+        out.append("FullPath");
+        signed.append("FullPath=").append(path);
+        break;
+      case PATH_GLOBS:
+        out.append("PathGlobs=").append(path.trim());
+        signed.append(out, start, out.length());
+        break;
+      case URL_PREFIX:
+        out.append("URLPrefix=");
+        appendBase64(state, path.getBytes(StandardCharsets.UTF_8), out);
+        signed.append(out, start, out.length());
+        break;
+      default:
+        throw new IllegalStateException("Unknown path type " + request.getPathType());
+    }
+    out.append(request.getTokenSuffix());
+    signed.append(request.getSignedSuffix());
+
+    int length = state.encode(signed);
+    if (algorithm == Algorithm.ED25519) {
+      state.ed25519.update(state.bytes, 0, length);
+      out.append("~Signature=");
+      appendBase64(state, state.ed25519.generateSignature(), out);
+    } else {
+      state.mac.update(state.bytes, 0, length);
+      out.append("~hmac=");
+      for (byte b : state.mac.doFinal()) {
+        out.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+      }
+    }
+  }
+
+  private static void appendBase64(SigningState state, byte[] value, StringBuilder out) {
+    int encodedLength = (value.length * 4 + 2) / 3;
+    state.ensureCapacity(encodedLength);
+    int written = BASE64.encode(value, state.encoded);
+    for (int i = 0; i < written; i++) {
+      out.append((char) state.encoded[i]);
+    }
+  }
+
+  private SigningState newState() {
+    SigningState state = new SigningState();
+    if (algorithm == Algorithm.ED25519) {
+      // Initializing derives the public key, which costs about as much as a signature.
+      state.ed25519 = new Ed25519Signer();
+      state.ed25519.init(true, ed25519Key);
+    } else {
+      try {
+        state.mac = Mac.getInstance(hmacKey.getAlgorithm());
+        state.mac.init(hmacKey);
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        // create() already initialized a Mac with the same algorithm and key.
+        throw new IllegalStateException(e);
+      }
+    }
+    return state;
+  }
+
+  // A thread's signer and the buffers reused for every token it signs.
+  private static final class SigningState {
+    Ed25519Signer ed25519;
+    Mac mac;
+    final StringBuilder token = new StringBuilder(256);
+    final StringBuilder signed = new StringBuilder(256);
+    byte[] bytes = new byte[256];
+    byte[] encoded = new byte[128];
+
+    void ensureCapacity(int encodedLength) {
+      if (encoded.length < encodedLength) {
+        encoded = new byte[Math.max(encodedLength, encoded.length * 2)];
+      }
+    }
+
+    // Encodes value as UTF-8 into bytes, returning the number of bytes.
+    int encode(CharSequence value) {
+      int length = value.length();
+      if (bytes.length < length) {
+        bytes = new byte[Math.max(length, bytes.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if (c >= 0x80) {
+          // Rare enough that going through a String is fine.
+          byte[] utf8 = value.toString().getBytes(StandardCharsets.UTF_8);
+          if (utf8.length > bytes.length) {
+            bytes = utf8;
+          } else {
+            System.arraycopy(utf8, 0, bytes, 0, utf8.length);
+          }
+          return utf8.length;
+        }
+        bytes[i] = (byte) c;
+      }
+      return length;
+    }
+  }
+}
+// [END mediacdn_dualtoken_token_signer]
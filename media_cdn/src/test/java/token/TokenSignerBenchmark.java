@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2024 Google LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package token;
+
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+Measures tokens signed per second with ed25519 and HMAC-SHA256 keys. createAndSign sets up the
+signer for every token, as DualToken.signToken does; sign and signAll reuse one TokenSigner. Pass
+-t to sign from several threads at once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenSignerBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  @Param({"ed25519", "sha256"})
+  String algorithm;
+
+  private byte[] key;
+  private TokenSigner signer;
+  private TokenRequest request;
+  private List<String> paths;
+
+  @Setup
+  public void setup() throws GeneralSecurityException {
+    key =
+        "ed25519".equals(algorithm)
+            ? "DJUcnLguVFKmVCFnWGubG1MZg7fWAnxacMjKDhVZMGI=".getBytes()
+            : "g_SlMILiIWKqsC6Z2L7gy0sReDOqtSrJrE7CXNr5Nl8=".getBytes();
+    signer = TokenSigner.create(key, algorithm);
+    request =
+        TokenRequest.newBuilder()
+            .setFullPath("/videos/episode-1/manifest.m3u8")
+            .setExpirationTime(Instant.now().plusSeconds(3600))
+            .setSessionId("session-1234")
+            .build();
+    paths = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      paths.add("/videos/episode-" + i + "/manifest.m3u8");
+    }
+  }
+
+  @Benchmark
+  public String createAndSign() throws GeneralSecurityException {
+    return TokenSigner.create(key, algorithm).sign(request);
+  }
+
+  @Benchmark
+  public String sign() {
+    return signer.sign(request);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public List<String> signAll() {
+    return signer.signAll(request, paths);
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(TokenSignerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2024 Google LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package token;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import token.DualToken.Header;
+
+@RunWith(JUnit4.class)
+public class TokenSignerTest {
+
+  private static final byte[] ED25519_KEY =
+      "DJUcnLguVFKmVCFnWGubG1MZg7fWAnxacMjKDhVZMGI=".getBytes();
+  private static final byte[] HMAC_KEY = "g_SlMILiIWKqsC6Z2L7gy0sReDOqtSrJrE7CXNr5Nl8=".getBytes();
+  private static final Instant EXPIRES_TIME = Instant.parse("2022-09-13T12:00:00Z");
+
+  @Test
+  public void signsAllFieldsWithEd25519() throws Exception {
+    TokenRequest request =
+        TokenRequest.newBuilder()
+            .setPathGlobs("/*")
+            .setStartTime(Instant.parse("2022-09-13T00:00:00Z"))
+            .setExpirationTime(EXPIRES_TIME)
+            .setSessionId("test-id")
+            .setData("test-data")
+            .addHeader(new Header("Foo", "bar"))
+            .addHeader(new Header("BAZ", "quux"))
+            .setIpRanges("203.0.113.0/24,2001:db8:4a7f:a732/64")
+            .build();
+    TokenSigner signer = TokenSigner.create(ED25519_KEY, "ed25519");
+
+    String expected =
+        "PathGlobs=/*~Starts=1663027200~Expires=1663070400~SessionID=test-id"
+            + "~Data=test-data~Headers=Foo,BAZ~IPRanges=MjAzLjAuMTEzLjAvMjQsMjAwMTpkYjg6NGE3Zj"
+            + "phNzMyLzY0~Signature=A7u67hveGxGvP8KBWZlUuH0IsqhS4a2lcsXwy3uc4X3zaVuw7LY-2FQT1Z"
+            + "F8UxkSFAsDS3_0LYnXwXB2XdepDg";
+    assertThat(signer.sign(request)).isEqualTo(expected);
+    // The reused signer and buffers must not carry anything over to the next token.
+    assertThat(signer.sign(request)).isEqualTo(expected);
+  }
+
+  @Test
+  public void signsAllWithTheTemplateFields() throws Exception {
+    TokenSigner signer = TokenSigner.create(HMAC_KEY, "sha256");
+    TokenRequest template =
+        TokenRequest.newBuilder().setFullPath("/unused").setExpirationTime(EXPIRES_TIME).build();
+
+    List<String> tokens =
+        signer.signAll(template, Arrays.asList("/example.m3u8", "/other.m3u8", "/example.m3u8"));
+
+    assertThat(tokens.get(0))
+        .isEqualTo(
+            "FullPath~Expires=1663070400~hmac=365b41fd77297371d890fc9a56e4e3d3b"
+                + "aa4c7afbd230a0e9a81c8e1bcab9420");
+    assertThat(tokens.get(1)).isNotEqualTo(tokens.get(0));
+    assertThat(tokens.get(2)).isEqualTo(tokens.get(0));
+  }
+
+  @Test
+  public void appendsToTheCallersBuffer() throws Exception {
+    TokenSigner signer = TokenSigner.create(HMAC_KEY, "sha1");
+    TokenRequest request =
+        TokenRequest.newBuilder()
+            .setUrlPrefix("http://10.20.30.40/")
+            .setExpirationTime(EXPIRES_TIME)
+            .build();
+
+    StringBuilder url = new StringBuilder("http://10.20.30.40/video.mp4?edge-cache-token=");
+    signer.sign(request, url);
+
+    assertThat(url.toString())
+        .isEqualTo(
+            "http://10.20.30.40/video.mp4?edge-cache-token="
+                + "URLPrefix=aHR0cDovLzEwLjIwLjMwLjQwLw~Expires=1663070400~hmac=6f"
+                + "5b4bb82536810d5ee111cba3e534d49c6ac3cb");
+  }
+
+  @Test
+  public void signsFromManyThreads() throws Exception {
+    TokenSigner signer = TokenSigner.create(ED25519_KEY, "ed25519");
+    TokenRequest request =
+        TokenRequest.newBuilder()
+            .setFullPath("/example.m3u8")
+            .setExpirationTime(EXPIRES_TIME)
+            .build();
+    String expected = signer.sign(request);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> tokens = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        tokens.add(executor.submit(() -> signer.sign(request)));
+      }
+      for (Future<String> token : tokens) {
+        assertThat(token.get()).isEqualTo(expected);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+// [START cloudrun_imageproc_gaussian_blur]
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// GaussianBlur approximates a Gaussian blur with three successive box blurs, the same way
+// `convert -blur 0xSIGMA` looks, without forking ImageMagick. Each box blur keeps a running sum
+// along the row or column, so the cost per pixel doesn't grow with sigma.
+final class GaussianBlur {
+
+  private static final int PASSES = 3;
+
+  private GaussianBlur() {}
+
+  // Returns a blurred copy of image. The copy has an alpha channel only if image has one.
+  static BufferedImage blur(BufferedImage image, double sigma) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    BufferedImage blurred =
+        new BufferedImage(
+            width,
+            height,
+            image.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = blurred.createGraphics();
+    graphics.drawImage(image, 0, 0, null);
+    graphics.dispose();
+
+    int[] pixels = ((DataBufferInt) blurred.getRaster().getDataBuffer()).getData();
+    int[] scratch = new int[pixels.length];
+    for (int radius : boxRadii(sigma)) {
+      // Blurs each row into scratch, then each column of scratch back into pixels.
+      boxBlur(pixels, scratch, height, width, 1, width, radius);
+      boxBlur(scratch, pixels, width, height, width, 1, radius);
+    }
+    return blurred;
+  }
+
+  // Returns the radii of the box blurs whose combination has the given standard deviation.
+  // See "Fast Almost-Gaussian Filtering" by Kovesi.
+  static int[] boxRadii(double sigma) {
+    double idealWidth = Math.sqrt(12 * sigma * sigma / PASSES + 1);
+    int lower = (int) Math.floor(idealWidth);
+    if (lower % 2 == 0) {
+      lower--;
+    }
+    int upper = lower + 2;
+    // The number of passes that use the lower width.
+    double idealLowerPasses =
+        (12 * sigma * sigma - PASSES * lower * lower - 4 * PASSES * lower - 3 * PASSES)
+            / (-4.0 * lower - 4);
+    long lowerPasses = Math.round(idealLowerPasses);
+    int[] radii = new int[PASSES];
+    for (int i = 0; i < PASSES; i++) {
+      radii[i] = ((i < lowerPasses ? lower : upper) - 1) / 2;
+    }
+    return radii;
+  }
+
+  // Box blurs each of lines lines of length pixels. Pixels of a line are step apart and lines
+  // are stride apart. Samples past either end of a line repeat the pixel at that end.
+  private static void boxBlur(
+      int[] in, int[] out, int lines, int length, int step, int stride, int radius) {
+    int window = 2 * radius + 1;
+    int half = window / 2;
+    for (int line = 0; line < lines; line++) {
+      int base = line * stride;
+      int a = 0;
+      int r = 0;
+      int g = 0;
+      int b = 0;
+      for (int i = -radius; i <= radius; i++) {
+        int pixel = in[base + clamp(i, length) * step];
+        a += pixel >>> 24;
+        r += (pixel >> 16) & 0xFF;
+        g += (pixel >> 8) & 0xFF;
+        b += pixel & 0xFF;
+      }
+      for (int i = 0; i < length; i++) {
+        out[base + i * step] =
+            ((a + half) / window) << 24
+                | ((r + half) / window) << 16
+                | ((g + half) / window) << 8
+                | ((b + half) / window);
+        int leaving = in[base + clamp(i - radius, length) * step];
+        int entering = in[base + clamp(i + radius + 1, length) * step];
+        a += (entering >>> 24) - (leaving >>> 24);
+        r += ((entering >> 16) & 0xFF) - ((leaving >> 16) & 0xFF);
+        g += ((entering >> 8) & 0xFF) - ((leaving >> 8) & 0xFF);
+        b += (entering & 0xFF) - (leaving & 0xFF);
+      }
+    }
+  }
+
+  private static int clamp(int index, int length) {
+    return Math.max(0, Math.min(index, length - 1));
+  }
+}
+// [END cloudrun_imageproc_gaussian_blur]
@@ -17,32 +17,91 @@
 package com.example.cloudrun;
 
 // [START cloudrun_imageproc_handler_setup]
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
-import com.google.cloud.vision.v1.AnnotateImageRequest;
 import com.google.cloud.vision.v1.AnnotateImageResponse;
-import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
-import com.google.cloud.vision.v1.Feature;
-import com.google.cloud.vision.v1.Feature.Type;
-import com.google.cloud.vision.v1.Image;
 import com.google.cloud.vision.v1.ImageAnnotatorClient;
-import com.google.cloud.vision.v1.ImageSource;
 import com.google.cloud.vision.v1.SafeSearchAnnotation;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 public class ImageMagick {
 
   private static final String BLURRED_BUCKET_NAME = System.getenv("BLURRED_BUCKET_NAME");
+  // Set BLUR_ENGINE to imagemagick to always blur with the convert command instead of in Java.
+  private static final boolean USE_IMAGEMAGICK =
+      "imagemagick".equals(System.getenv("BLUR_ENGINE"));
+  private static final double BLUR_SIGMA = 8;
+  // Uploads are sent in chunks of this size rather than buffered whole.
+  private static final int UPLOAD_CHUNK_SIZE = 1024 * 1024;
+  private static final int MAX_CONCURRENT_BATCHES = 4;
   private static Storage storage = StorageOptions.getDefaultInstance().getService();
+  // Blurring is CPU bound, so running more blurs at once than there are CPUs only adds memory.
+  private static final Semaphore blurSlots =
+      new Semaphore(Runtime.getRuntime().availableProcessors());
+  // Feeds images to ImageMagick, one thread per blur slot. The downloads block on I/O, so they
+  // are kept off the common pool.
+  private static final ExecutorService imageMagickDownloads =
+      Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          runnable -> {
+            Thread thread = new Thread(runnable, "imagemagick-download");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static SafeSearchBatcher safeSearch;
+
+  static {
+    // Decode and encode in memory; /tmp on Cloud Run is memory too, and slower to go through.
+    ImageIO.setUseCache(false);
+  }
+
+  // Returns the batcher shared by all requests, creating the Vision client on first use. See
+  // SafeSearchBatcher.java.
+  private static synchronized SafeSearchBatcher safeSearch() throws IOException {
+    if (safeSearch == null) {
+      ImageAnnotatorClient client = ImageAnnotatorClient.create();
+      SafeSearchBatcher batcher =
+          new SafeSearchBatcher(
+              requests -> client.batchAnnotateImages(requests).getResponsesList(),
+              MAX_CONCURRENT_BATCHES);
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(
+                  () -> {
+                    try {
+                      batcher.close();
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                    client.close();
+                  }));
+      safeSearch = batcher;
+    }
+    return safeSearch;
+  }
   // [END cloudrun_imageproc_handler_setup]
 
   // [START cloudrun_imageproc_handler_analyze]
@@ -50,87 +109,180 @@ public class ImageMagick {
   public static void blurOffensiveImages(JsonObject data) {
     String fileName = data.get("name").getAsString();
     String bucketName = data.get("bucket").getAsString();
-    BlobInfo blobInfo = BlobInfo.newBuilder(bucketName, fileName).build();
+    BlobInfo.Builder blobInfo = BlobInfo.newBuilder(bucketName, fileName);
+    // Storage notifications carry the content type, which saves fetching the metadata to blur.
+    JsonElement contentType = data.get("contentType");
+    if (contentType != null && contentType.isJsonPrimitive()) {
+      blobInfo.setContentType(contentType.getAsString());
+    }
     // Construct URI to GCS bucket and file.
     String gcsPath = String.format("gs://%s/%s", bucketName, fileName);
     System.out.println(String.format("Analyzing %s", fileName));
 
-    // Construct request.
-    List<AnnotateImageRequest> requests = new ArrayList<>();
-    ImageSource imgSource = ImageSource.newBuilder().setImageUri(gcsPath).build();
-    Image img = Image.newBuilder().setSource(imgSource).build();
-    Feature feature = Feature.newBuilder().setType(Type.SAFE_SEARCH_DETECTION).build();
-    AnnotateImageRequest request =
-        AnnotateImageRequest.newBuilder().addFeatures(feature).setImage(img).build();
-    requests.add(request);
-
-    // Send request to the Vision API.
-    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
-      BatchAnnotateImagesResponse response = client.batchAnnotateImages(requests);
-      List<AnnotateImageResponse> responses = response.getResponsesList();
-      for (AnnotateImageResponse res : responses) {
-        if (res.hasError()) {
-          System.out.println(String.format("Error: %s\n", res.getError().getMessage()));
-          return;
-        }
-        // Get Safe Search Annotations
-        SafeSearchAnnotation annotation = res.getSafeSearchAnnotation();
-        if (annotation.getAdultValue() == 5 || annotation.getViolenceValue() == 5) {
-          System.out.println(String.format("Detected %s as inappropriate.", fileName));
-          blur(blobInfo);
-        } else {
-          System.out.println(String.format("Detected %s as OK.", fileName));
-        }
-      }
+    // Send request to the Vision API, batched with those of concurrent requests.
+    AnnotateImageResponse res;
+    try {
+      res = safeSearch().annotate(gcsPath).get();
+    } catch (ExecutionException e) {
+      System.out.println(String.format("Error with Vision API: %s", e.getCause().getMessage()));
+      return;
     } catch (Exception e) {
       System.out.println(String.format("Error with Vision API: %s", e.getMessage()));
+      return;
+    }
+    if (res.hasError()) {
+      System.out.println(String.format("Error: %s\n", res.getError().getMessage()));
+      return;
+    }
+    // Get Safe Search Annotations
+    SafeSearchAnnotation annotation = res.getSafeSearchAnnotation();
+    if (annotation.getAdultValue() == 5 || annotation.getViolenceValue() == 5) {
+      System.out.println(String.format("Detected %s as inappropriate.", fileName));
+      try {
+        blur(blobInfo.build());
+      } catch (IOException e) {
+        System.out.println(String.format("Error blurring %s: %s", fileName, e.getMessage()));
+      }
+    } else {
+      System.out.println(String.format("Detected %s as OK.", fileName));
     }
   }
   // [END cloudrun_imageproc_handler_analyze]
 
   // [START cloudrun_imageproc_handler_blur]
-  // Blurs the file described by blobInfo using ImageMagick,
-  // and uploads it to the blurred bucket.
+  // Blurs the file described by blobInfo and uploads it to the blurred bucket. The image is
+  // streamed from and to Cloud Storage; it's blurred in Java when ImageIO can read and write its
+  // format, and by piping it through ImageMagick otherwise.
   public static void blur(BlobInfo blobInfo) throws IOException {
-    String bucketName = blobInfo.getBucket();
-    String fileName = blobInfo.getName();
-    // Download image
-    Blob blob = storage.get(BlobId.of(bucketName, fileName));
-    Path download = Paths.get("/tmp/", fileName);
-    blob.downloadTo(download);
+    BlobId source = BlobId.of(blobInfo.getBucket(), blobInfo.getName());
+    String contentType = blobInfo.getContentType();
+    if (contentType == null) {
+      Blob blob = storage.get(source);
+      if (blob == null) {
+        throw new IOException(
+            String.format("gs://%s/%s not found", source.getBucket(), source.getName()));
+      }
+      contentType = blob.getContentType();
+    }
+    BlobInfo blurredBlobInfo =
+        BlobInfo.newBuilder(BlobId.of(BLURRED_BUCKET_NAME, source.getName()))
+            .setContentType(contentType)
+            .build();
 
-    // Construct the command.
-    List<String> args = new ArrayList<>();
-    args.add("convert");
-    args.add(download.toString());
-    args.add("-blur");
-    args.add("0x8");
-    Path upload = Paths.get("/tmp/", "blurred-" + fileName);
-    args.add(upload.toString());
     try {
-      ProcessBuilder pb = new ProcessBuilder(args);
-      Process process = pb.start();
-      process.waitFor();
-    } catch (Exception e) {
-      System.out.println(String.format("Error: %s", e.getMessage()));
+      blurSlots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting to blur", e);
+    }
+    try {
+      if (USE_IMAGEMAGICK || !blurInJava(source, blurredBlobInfo)) {
+        blurWithImageMagick(source, blurredBlobInfo);
+      }
+    } finally {
+      blurSlots.release();
+    }
+    System.out.println(
+        String.format(
+            "Blurred image uploaded to: gs://%s/%s", BLURRED_BUCKET_NAME, source.getName()));
+  }
+
+  // Blurs source into target with GaussianBlur (see GaussianBlur.java). Returns false, without
+  // uploading anything, when ImageIO has no reader or writer for the format of the image.
+  private static boolean blurInJava(BlobId source, BlobInfo target) throws IOException {
+    BufferedImage blurred;
+    ImageWriter writer;
+    try (ReadChannel reader = storage.reader(source);
+        ImageInputStream in = ImageIO.createImageInputStream(Channels.newInputStream(reader))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return false;
+      }
+      ImageReader imageReader = readers.next();
+      try {
+        imageReader.setInput(in, true /* seekForwardOnly */);
+        BufferedImage image = imageReader.read(0);
+        blurred = GaussianBlur.blur(image, BLUR_SIGMA);
+        writer = ImageIO.getImageWriter(imageReader);
+      } finally {
+        imageReader.dispose();
+      }
+    }
+    if (writer == null || !writer.getOriginatingProvider().canEncodeImage(blurred)) {
+      return false;
     }
 
-    // Upload image to blurred bucket.
-    BlobId blurredBlobId = BlobId.of(BLURRED_BUCKET_NAME, fileName);
-    BlobInfo blurredBlobInfo =
-        BlobInfo.newBuilder(blurredBlobId).setContentType(blob.getContentType()).build();
     try {
-      byte[] blurredFile = Files.readAllBytes(upload);
-      Blob blurredBlob = storage.create(blurredBlobInfo, blurredFile);
-      System.out.println(
-          String.format("Blurred image uploaded to: gs://%s/%s", BLURRED_BUCKET_NAME, fileName));
-    } catch (Exception e) {
-      System.out.println(String.format("Error in upload: %s", e.getMessage()));
+      upload(
+          target,
+          out -> {
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+              writer.setOutput(ios);
+              writer.write(blurred);
+            }
+          });
+    } finally {
+      writer.dispose();
     }
+    return true;
+  }
+
+  // Blurs source into target by piping it through ImageMagick, without temporary files.
+  private static void blurWithImageMagick(BlobId source, BlobInfo target) throws IOException {
+    // Writing to "-" keeps the format of the input.
+    Process process =
+        new ProcessBuilder("convert", "-", "-blur", "0x" + (int) BLUR_SIGMA, "-")
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    CompletableFuture<Void> download =
+        CompletableFuture.runAsync(
+            () -> {
+              try (ReadChannel reader = storage.reader(source);
+                  InputStream in = Channels.newInputStream(reader);
+                  OutputStream stdin = process.getOutputStream()) {
+                in.transferTo(stdin);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            },
+            imageMagickDownloads);
+    try {
+      upload(
+          target,
+          out -> {
+            try (InputStream stdout = process.getInputStream()) {
+              stdout.transferTo(out);
+            }
+            download.join();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+              throw new IOException("convert exited with status " + exitCode);
+            }
+          });
+    } catch (RuntimeException e) {
+      throw new IOException("Error piping image through ImageMagick", e);
+    } finally {
+      process.destroy();
+    }
+  }
 
-    // Remove images from fileSystem
-    Files.delete(download);
-    Files.delete(upload);
+  private interface UploadWriter {
+    void write(OutputStream out) throws IOException, InterruptedException;
+  }
+
+  // Streams what uploadWriter writes to target. The upload is only finalized if uploadWriter
+  // succeeds, so a failure never leaves a truncated image in the bucket.
+  private static void upload(BlobInfo target, UploadWriter uploadWriter) throws IOException {
+    WriteChannel channel = storage.writer(target);
+    channel.setChunkSize(UPLOAD_CHUNK_SIZE);
+    OutputStream out = Channels.newOutputStream(channel);
+    try {
+      uploadWriter.write(out);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted uploading blurred image", e);
+    }
+    out.close();
   }
 }
 // [END cloudrun_imageproc_handler_blur]
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+// [START cloudrun_imageproc_safe_search_batcher]
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.Feature;
+import com.google.cloud.vision.v1.Feature.Type;
+import com.google.cloud.vision.v1.Image;
+import com.google.cloud.vision.v1.ImageSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+// SafeSearchBatcher coalesces the SafeSearch requests of concurrent Pub/Sub pushes into
+// batchAnnotateImages calls. A batch goes out as soon as a send slot is free, carrying whatever
+// queued up while the earlier batches were in flight, so a lone request never waits for company.
+class SafeSearchBatcher implements AutoCloseable {
+
+  // The most images the Vision API accepts in one batchAnnotateImages call.
+  static final int MAX_BATCH_SIZE = 16;
+
+  private static final Feature SAFE_SEARCH =
+      Feature.newBuilder().setType(Type.SAFE_SEARCH_DETECTION).build();
+
+  // Sends one batch of requests, returning the responses in the same order.
+  interface Annotator {
+    List<AnnotateImageResponse> annotate(List<AnnotateImageRequest> requests) throws Exception;
+  }
+
+  private static class Pending {
+    final AnnotateImageRequest request;
+    final CompletableFuture<AnnotateImageResponse> response = new CompletableFuture<>();
+
+    Pending(AnnotateImageRequest request) {
+      this.request = request;
+    }
+  }
+
+  private final Annotator annotator;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Semaphore sendSlots;
+  private final ExecutorService senders;
+  private final Thread dispatcher;
+  private volatile boolean closed;
+
+  SafeSearchBatcher(Annotator annotator, int maxConcurrentBatches) {
+    this.annotator = annotator;
+    this.sendSlots = new Semaphore(maxConcurrentBatches);
+    this.senders =
+        Executors.newFixedThreadPool(
+            maxConcurrentBatches,
+            r -> {
+              Thread thread = new Thread(r, "safe-search-sender");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.dispatcher = new Thread(this::dispatch, "safe-search-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  // Queues a SafeSearch request for the image at gcsUri.
+  CompletableFuture<AnnotateImageResponse> annotate(String gcsUri) {
+    ImageSource source = ImageSource.newBuilder().setImageUri(gcsUri).build();
+    AnnotateImageRequest request =
+        AnnotateImageRequest.newBuilder()
+            .addFeatures(SAFE_SEARCH)
+            .setImage(Image.newBuilder().setSource(source))
+            .build();
+    Pending pending = new Pending(request);
+    queue.add(pending);
+    // close() may have drained the queue before the add; nothing would pick this one up.
+    if (closed && queue.remove(pending)) {
+      pending.response.completeExceptionally(new IllegalStateException("Batcher is closed"));
+    }
+    return pending.response;
+  }
+
+  private void dispatch() {
+    try {
+      while (true) {
+        // Waiting for a slot before taking from the queue lets requests pile up into the next
+        // batch while all slots are busy.
+        sendSlots.acquire();
+        List<Pending> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        senders.execute(() -> send(batch));
+      }
+    } catch (InterruptedException e) {
+      // Closed.
+    }
+  }
+
+  private void send(List<Pending> batch) {
+    try {
+      List<AnnotateImageRequest> requests = new ArrayList<>(batch.size());
+      for (Pending pending : batch) {
+        requests.add(pending.request);
+      }
+      List<AnnotateImageResponse> responses = annotator.annotate(requests);
+      if (responses.size() != batch.size()) {
+        throw new IllegalStateException(
+            String.format("Sent %d images but got %d responses", batch.size(), responses.size()));
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).response.complete(responses.get(i));
+      }
+    } catch (Exception e) {
+      for (Pending pending : batch) {
+        pending.response.completeExceptionally(e);
+      }
+    } finally {
+      sendSlots.release();
+    }
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    closed = true;
+    dispatcher.interrupt();
+    dispatcher.join();
+    senders.shutdown();
+    List<Pending> abandoned = new ArrayList<>();
+    queue.drainTo(abandoned);
+    for (Pending pending : abandoned) {
+      pending.response.completeExceptionally(new IllegalStateException("Batcher is closed"));
+    }
+  }
+}
+// [END cloudrun_imageproc_safe_search_batcher]
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+
+public class GaussianBlurTests {
+
+  @Test
+  public void boxRadiiMatchSigma() {
+    // Three boxes of width w have a variance of 3 * (w * w - 1) / 12.
+    int[] radii = GaussianBlur.boxRadii(8);
+    double variance = 0;
+    for (int radius : radii) {
+      int width = 2 * radius + 1;
+      variance += (width * width - 1) / 12.0;
+    }
+    assertEquals(64, variance, 8);
+    assertArrayEquals(new int[] {7, 7, 7}, GaussianBlur.boxRadii(Math.sqrt(56)));
+  }
+
+  @Test
+  public void keepsFlatImagesUnchanged() {
+    BufferedImage image = new BufferedImage(50, 30, BufferedImage.TYPE_3BYTE_BGR);
+    for (int y = 0; y < 30; y++) {
+      for (int x = 0; x < 50; x++) {
+        image.setRGB(x, y, 0x336699);
+      }
+    }
+    BufferedImage blurred = GaussianBlur.blur(image, 8);
+    assertEquals(BufferedImage.TYPE_INT_RGB, blurred.getType());
+    for (int y = 0; y < 30; y++) {
+      for (int x = 0; x < 50; x++) {
+        assertEquals(0x336699, blurred.getRGB(x, y) & 0xFFFFFF);
+      }
+    }
+  }
+
+  @Test
+  public void spreadsSharpEdges() {
+    // Left half black, right half white.
+    BufferedImage image = new BufferedImage(100, 10, BufferedImage.TYPE_INT_ARGB);
+    for (int y = 0; y < 10; y++) {
+      for (int x = 0; x < 100; x++) {
+        image.setRGB(x, y, x < 50 ? 0xFF000000 : 0xFFFFFFFF);
+      }
+    }
+    BufferedImage blurred = GaussianBlur.blur(image, 8);
+    assertEquals(BufferedImage.TYPE_INT_ARGB, blurred.getType());
+    int previous = -1;
+    for (int x = 0; x < 100; x++) {
+      int pixel = blurred.getRGB(x, 5);
+      assertEquals(0xFF, pixel >>> 24);
+      int blue = pixel & 0xFF;
+      assertTrue("Not increasing at " + x, blue >= previous);
+      previous = blue;
+    }
+    int nearEdge = blurred.getRGB(48, 5) & 0xFF;
+    assertTrue("Edge not blurred: " + nearEdge, nearEdge > 50 && nearEdge < 128);
+    assertEquals(0, blurred.getRGB(0, 5) & 0xFF);
+    assertEquals(0xFF, blurred.getRGB(99, 5) & 0xFF);
+  }
+}
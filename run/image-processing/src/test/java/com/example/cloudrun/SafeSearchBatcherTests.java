@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ImageAnnotationContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SafeSearchBatcherTests {
+
+  @Test
+  public void coalescesConcurrentRequests() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    SafeSearchBatcher batcher =
+        new SafeSearchBatcher(
+            requests -> {
+              release.await();
+              batchSizes.add(requests.size());
+              return echo(requests);
+            },
+            1);
+
+    List<CompletableFuture<AnnotateImageResponse>> responses = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      responses.add(batcher.annotate("gs://bucket/image-" + i));
+    }
+    release.countDown();
+    for (int i = 0; i < 40; i++) {
+      AnnotateImageResponse response = responses.get(i).get(10, TimeUnit.SECONDS);
+      assertEquals("gs://bucket/image-" + i, response.getContext().getUri());
+    }
+    batcher.close();
+
+    // The first batch goes out alone at most; the rest queue up behind it.
+    assertTrue(batchSizes.toString(), batchSizes.size() <= 4);
+    for (int size : batchSizes) {
+      assertTrue(batchSizes.toString(), size <= SafeSearchBatcher.MAX_BATCH_SIZE);
+    }
+  }
+
+  @Test
+  public void failsEveryRequestOfAFailedBatch() throws Exception {
+    SafeSearchBatcher batcher =
+        new SafeSearchBatcher(
+            requests -> {
+              throw new IllegalStateException("quota exceeded");
+            },
+            2);
+    CompletableFuture<AnnotateImageResponse> response = batcher.annotate("gs://bucket/image");
+    try {
+      response.get(10, TimeUnit.SECONDS);
+      fail("Expected the request to fail");
+    } catch (ExecutionException e) {
+      assertEquals("quota exceeded", e.getCause().getMessage());
+    }
+    batcher.close();
+  }
+
+  private static List<AnnotateImageResponse> echo(List<AnnotateImageRequest> requests) {
+    List<AnnotateImageResponse> responses = new ArrayList<>();
+    for (AnnotateImageRequest request : requests) {
+      String uri = request.getImage().getSource().getImageUri();
+      responses.add(
+          AnnotateImageResponse.newBuilder()
+              .setContext(ImageAnnotationContext.newBuilder().setUri(uri))
+              .build());
+    }
+    return responses;
+  }
+}
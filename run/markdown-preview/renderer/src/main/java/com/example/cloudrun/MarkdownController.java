@@ -16,16 +16,13 @@
 
 package com.example.cloudrun;
 
-import java.util.Arrays;
-import java.util.List;
-import org.commonmark.Extension;
-import org.commonmark.ext.gfm.strikethrough.StrikethroughExtension;
-import org.commonmark.ext.gfm.tables.TablesExtension;
-import org.commonmark.node.Node;
-import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
-import org.owasp.html.PolicyFactory;
-import org.owasp.html.Sanitizers;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -33,28 +30,26 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 public class MarkdownController {
 
-  @PostMapping("/")
-  public String markdownRenderer(@RequestBody String payload) {
-    // Set up HTML renderer
-    // https://github.com/atlassian/commonmark-java#extensions
-    List<Extension> extensions =
-        Arrays.asList(TablesExtension.create(), StrikethroughExtension.create());
-    Parser parser = Parser.builder().build();
-    Node document = parser.parse(payload);
-    HtmlRenderer renderer = HtmlRenderer.builder().extensions(extensions).build();
-    // Convert Markdown to HTML
-    String converted = renderer.render(document);
+  private final MarkdownRenderer renderer;
 
-    // Use prepackaged policies to sanitize HTML. Cusomized and tighter standards
-    // are recommended.
-    PolicyFactory policy =
-        Sanitizers.FORMATTING
-            .and(Sanitizers.BLOCKS)
-            .and(Sanitizers.LINKS)
-            .and(Sanitizers.IMAGES)
-            .and(Sanitizers.TABLES);
-    String safeHtml = policy.sanitize(converted);
+  public MarkdownController(
+      @Value("${renderer.cache-bytes:33554432}") long cacheBytes,
+      @Value("${renderer.streaming-threshold:65536}") int streamingThreshold) {
+    this.renderer = new MarkdownRenderer(cacheBytes, streamingThreshold);
+  }
 
-    return safeHtml;
+  @PostMapping("/")
+  public void markdownRenderer(@RequestBody String payload, HttpServletResponse response)
+      throws IOException {
+    response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+    if (renderer.shouldStream(payload)) {
+      // Large documents are sent as they're sanitized instead of being cached.
+      renderer.render(payload, out);
+    } else {
+      out.write(renderer.render(payload));
+    }
+    out.flush();
   }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.commonmark.Extension;
+import org.commonmark.ext.gfm.strikethrough.StrikethroughExtension;
+import org.commonmark.ext.gfm.tables.TablesExtension;
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.owasp.html.Handler;
+import org.owasp.html.HtmlSanitizer;
+import org.owasp.html.HtmlStreamRenderer;
+import org.owasp.html.PolicyFactory;
+import org.owasp.html.Sanitizers;
+
+// MarkdownRenderer converts Markdown to sanitized HTML. The parser, renderer and policy are built
+// once; all three are immutable, so one MarkdownRenderer serves every request thread.
+public class MarkdownRenderer {
+
+  // https://github.com/atlassian/commonmark-java#extensions
+  private static final List<Extension> EXTENSIONS =
+      List.of(TablesExtension.create(), StrikethroughExtension.create());
+  private static final Parser PARSER = Parser.builder().extensions(EXTENSIONS).build();
+  private static final HtmlRenderer RENDERER =
+      HtmlRenderer.builder().extensions(EXTENSIONS).build();
+  // Use prepackaged policies to sanitize HTML. Cusomized and tighter standards
+  // are recommended.
+  private static final PolicyFactory POLICY =
+      Sanitizers.FORMATTING
+          .and(Sanitizers.BLOCKS)
+          .and(Sanitizers.LINKS)
+          .and(Sanitizers.IMAGES)
+          .and(Sanitizers.TABLES);
+
+  private final RenderCache cache;
+  private final int streamingThreshold;
+
+  // cacheBytes bounds the memory used by cached HTML; 0 disables the cache. Documents longer
+  // than streamingThreshold characters should be rendered with render(String, Appendable).
+  public MarkdownRenderer(long cacheBytes, int streamingThreshold) {
+    this.cache = new RenderCache(cacheBytes);
+    this.streamingThreshold = streamingThreshold;
+  }
+
+  // Returns whether markdown is large enough that it should be streamed rather than cached.
+  public boolean shouldStream(String markdown) {
+    return markdown.length() > streamingThreshold;
+  }
+
+  // Returns the sanitized HTML for markdown, from the cache when the same document was rendered
+  // recently.
+  public String render(String markdown) {
+    String key = contentHash(markdown);
+    String html = cache.get(key);
+    if (html == null) {
+      html = POLICY.sanitize(RENDERER.render(PARSER.parse(markdown)));
+      cache.put(key, html);
+    }
+    return html;
+  }
+
+  // Writes the sanitized HTML for markdown to out, one top-level block at a time, so neither the
+  // whole unsanitized nor the whole sanitized HTML is ever held in memory. Raw HTML that is
+  // opened in one block and closed in another is closed at the end of its block.
+  public void render(String markdown, Appendable out) throws IOException {
+    IOException[] writeFailure = new IOException[1];
+    HtmlSanitizer.Policy policy =
+        POLICY.apply(
+            HtmlStreamRenderer.create(
+                out,
+                e -> {
+                  if (writeFailure[0] == null) {
+                    writeFailure[0] = e;
+                  }
+                },
+                Handler.DO_NOTHING));
+    StringBuilder block = new StringBuilder();
+    for (Node node = PARSER.parse(markdown).getFirstChild(); node != null; node = node.getNext()) {
+      block.setLength(0);
+      RENDERER.render(node, block);
+      HtmlSanitizer.sanitize(block.toString(), policy);
+      if (writeFailure[0] != null) {
+        throw writeFailure[0];
+      }
+    }
+  }
+
+  private static String contentHash(String markdown) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(markdown.getBytes(StandardCharsets.UTF_8));
+      return Base64.getEncoder().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // RenderCache is an LRU map from content hash to HTML, bounded by the approximate number of
+  // bytes the strings take up rather than by entry count, since documents vary a lot in size.
+  private static class RenderCache {
+
+    // Rough per-entry cost of the map entry and the two String objects.
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    RenderCache(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized String get(String key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(String key, String html) {
+      long weight = weight(key, html);
+      // One entry may not take over more than an eighth of the cache.
+      if (weight > maxBytes / 8) {
+        return;
+      }
+      String previous = entries.put(key, html);
+      if (previous != null) {
+        bytes -= weight(key, previous);
+      }
+      bytes += weight;
+      Iterator<Map.Entry<String, String>> eldest = entries.entrySet().iterator();
+      while (bytes > maxBytes) {
+        Map.Entry<String, String> entry = eldest.next();
+        bytes -= weight(entry.getKey(), entry.getValue());
+        eldest.remove();
+      }
+    }
+
+    private static long weight(String key, String html) {
+      return 2L * (key.length() + html.length()) + ENTRY_OVERHEAD_BYTES;
+    }
+  }
+}
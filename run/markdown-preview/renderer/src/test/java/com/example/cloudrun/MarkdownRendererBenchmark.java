@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.commonmark.Extension;
+import org.commonmark.ext.gfm.strikethrough.StrikethroughExtension;
+import org.commonmark.ext.gfm.tables.TablesExtension;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.owasp.html.PolicyFactory;
+import org.owasp.html.Sanitizers;
+
+/*
+Compares building the render pipeline per request, as the controller used to, with the shared
+MarkdownRenderer: uncached, cached and streamed. Each operation renders one document, so the score
+is requests per second per thread. Pass -t to run with as many threads as the Cloud Run
+concurrency being considered, for example -t 8; the GC profiler reports bytes allocated per
+request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarkdownRendererBenchmark {
+
+  // Characters of Markdown; the large documents are above the default streaming threshold.
+  @Param({"1024", "262144"})
+  int size;
+
+  private String markdown;
+  private MarkdownRenderer uncached;
+  private MarkdownRenderer cached;
+
+  @Setup
+  public void setup() {
+    StringBuilder document = new StringBuilder();
+    for (int section = 0; document.length() < size; section++) {
+      document
+          .append("## Section ")
+          .append(section)
+          .append("\n\nSome **strong**, _emphasized_ and ~~struck~~ text with a ")
+          .append("[link](https://example.com/").append(section).append(").\n\n")
+          .append("| name | value |\n|------|-------|\n| a | 1 |\n| b | 2 |\n\n")
+          .append("* one\n* two\n\n")
+          .append("<a onblur=\"alert(secret)\" href=\"https://example.com\">raw</a>\n\n");
+    }
+    markdown = document.toString();
+    uncached = new MarkdownRenderer(0, Integer.MAX_VALUE);
+    cached = new MarkdownRenderer(64L << 20, Integer.MAX_VALUE);
+  }
+
+  @Benchmark
+  public String perRequestPipeline() {
+    List<Extension> extensions =
+        List.of(TablesExtension.create(), StrikethroughExtension.create());
+    Parser parser = Parser.builder().extensions(extensions).build();
+    HtmlRenderer renderer = HtmlRenderer.builder().extensions(extensions).build();
+    PolicyFactory policy =
+        Sanitizers.FORMATTING
+            .and(Sanitizers.BLOCKS)
+            .and(Sanitizers.LINKS)
+            .and(Sanitizers.IMAGES)
+            .and(Sanitizers.TABLES);
+    return policy.sanitize(renderer.render(parser.parse(markdown)));
+  }
+
+  @Benchmark
+  public String sharedPipeline() {
+    return uncached.render(markdown);
+  }
+
+  @Benchmark
+  public String cachedPipeline() {
+    return cached.render(markdown);
+  }
+
+  @Benchmark
+  public void streamedPipeline() throws IOException {
+    uncached.render(markdown, Writer.nullWriter());
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(MarkdownRendererBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.cloudrun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class MarkdownRendererTests {
+
+  private static final String DOCUMENT =
+      "# Title\n\n"
+          + "Some **strong** and ~~struck~~ text.\n\n"
+          + "| a | b |\n|---|---|\n| 1 | 2 |\n\n"
+          + "* one\n* two\n\n"
+          + "<a onblur=\"alert(secret)\" href=\"http://www.google.com\">Google</a>\n\n"
+          + "<script>alert('x')</script>\n";
+
+  @Test
+  public void cachesRenderedDocuments() {
+    MarkdownRenderer renderer = new MarkdownRenderer(1 << 20, 1 << 16);
+    String first = renderer.render(DOCUMENT);
+    assertSame(first, renderer.render(DOCUMENT));
+    assertTrue(first.contains("<table>"), first);
+    assertTrue(first.contains("<del>struck</del>"), first);
+    assertFalse(first.contains("script"), first);
+    assertFalse(first.contains("onblur"), first);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedDocuments() {
+    // Room for a handful of these small documents only.
+    MarkdownRenderer renderer = new MarkdownRenderer(2048, 1 << 16);
+    String first = renderer.render("first");
+    for (int i = 0; i < 100; i++) {
+      renderer.render("document " + i);
+    }
+    String again = renderer.render("first");
+    assertEquals(first, again);
+    assertNotSame(first, again);
+  }
+
+  @Test
+  public void doesNotCacheWhenDisabled() {
+    MarkdownRenderer renderer = new MarkdownRenderer(0, 1 << 16);
+    assertNotSame(renderer.render(DOCUMENT), renderer.render(DOCUMENT));
+  }
+
+  @Test
+  public void streamsTheSameHtml() throws Exception {
+    MarkdownRenderer renderer = new MarkdownRenderer(0, 16);
+    assertTrue(renderer.shouldStream(DOCUMENT));
+    StringBuilder streamed = new StringBuilder();
+    renderer.render(DOCUMENT, streamed);
+    assertEquals(renderer.render(DOCUMENT), streamed.toString());
+  }
+}
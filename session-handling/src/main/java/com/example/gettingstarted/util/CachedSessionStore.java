@@ -0,0 +1,274 @@
+/* Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.gettingstarted.util;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps session variables in memory in front of Firestore. Loads are served from the cache when
+ * possible, and saves only record the attributes that changed. Changes are written behind the
+ * request: all pending changes, coalesced per session, are flushed together in batched writes, and
+ * the changes of a batch that fails are retried on the next flush. Sessions that are only read have
+ * their last modified time refreshed now and then, so that they are not purged while in use.
+ * Sessions idle past the TTL are evicted from the cache, and stale session documents are purged in
+ * the background.
+ */
+public class CachedSessionStore {
+  private static final Logger logger = Logger.getLogger(CachedSessionStore.class.getName());
+  private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS");
+  private static final String LAST_MODIFIED = "lastModified";
+  // Firestore accepts at most 500 writes per batch.
+  private static final int MAX_BATCH_WRITES = 500;
+
+  private final Firestore firestore;
+  private final CollectionReference sessions;
+  private final long cacheTtlMillis;
+  private final long sessionMaxAgeHours;
+  // How old the last modified time of a session that is only read may get before it is refreshed.
+  private final Duration touchInterval;
+  private final Map<String, CachedSession> cache = new ConcurrentHashMap<>();
+  // Changed attributes per session waiting to be written. A removed attribute maps to
+  // FieldValue.delete().
+  private final Map<String, Map<String, Object>> pendingWrites = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "session-write-behind");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public CachedSessionStore(
+      Firestore firestore,
+      CollectionReference sessions,
+      long flushIntervalMillis,
+      long cacheTtlMillis,
+      long sessionMaxAgeHours) {
+    this.firestore = firestore;
+    this.sessions = sessions;
+    this.cacheTtlMillis = cacheTtlMillis;
+    this.sessionMaxAgeHours = sessionMaxAgeHours;
+    this.touchInterval = Duration.ofHours(sessionMaxAgeHours).dividedBy(4);
+    scheduler.scheduleWithFixedDelay(
+        this::flushAndEvict, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    scheduler.scheduleWithFixedDelay(this::purgeExpiredSessions, 0, 1, TimeUnit.HOURS);
+  }
+
+  // [START firestore_sessions_load_session_variables]
+  /** Returns a copy of the session variables, reading Firestore only on a cache miss. */
+  public Map<String, Object> load(String sessionId)
+      throws ExecutionException, InterruptedException {
+    CachedSession cached = cache.get(sessionId);
+    if (cached == null) {
+      DocumentSnapshot session = sessions.document(sessionId).get().get();
+      Map<String, Object> data = session.getData();
+      cached = new CachedSession(data == null ? new HashMap<>() : data);
+      // Another request may have loaded the session meanwhile; keep whichever came first.
+      CachedSession existing = cache.putIfAbsent(sessionId, cached);
+      if (existing != null) {
+        cached = existing;
+      }
+    }
+    synchronized (cached) {
+      cached.lastAccessMillis = System.currentTimeMillis();
+      Map<String, Object> attributes = new HashMap<>(cached.attributes);
+      attributes.remove(LAST_MODIFIED);
+      return attributes;
+    }
+  }
+  // [END firestore_sessions_load_session_variables]
+
+  /**
+   * Records the session variables after a request, queuing only those that changed. A session
+   * without changes is queued with none when its last modified time is getting old.
+   */
+  public void save(String sessionId, Map<String, Object> attributes) {
+    CachedSession cached = cache.computeIfAbsent(sessionId, id -> new CachedSession(null));
+    Map<String, Object> changes = new HashMap<>();
+    synchronized (cached) {
+      cached.lastAccessMillis = System.currentTimeMillis();
+      for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+        if (!sameValue(cached.attributes.get(entry.getKey()), entry.getValue())) {
+          changes.put(entry.getKey(), entry.getValue());
+        }
+      }
+      for (String name : cached.attributes.keySet()) {
+        if (!name.equals(LAST_MODIFIED) && !attributes.containsKey(name)) {
+          changes.put(name, FieldValue.delete());
+        }
+      }
+      if (changes.isEmpty() && modifiedSince(cached, LocalDateTime.now().minus(touchInterval))) {
+        return;
+      }
+      cached.attributes.putAll(attributes);
+      cached.attributes.keySet().removeIf(
+          name -> !name.equals(LAST_MODIFIED) && !attributes.containsKey(name));
+      // The flush writes the time it runs; this is near enough to not queue the session again.
+      cached.attributes.put(LAST_MODIFIED, dtf.format(LocalDateTime.now()));
+      // Queued under the lock, so that changes reach the queue in the order they were made.
+      queue(sessionId, changes);
+    }
+  }
+
+  /** Writes all pending changes and stops the background work. */
+  public void close() throws InterruptedException {
+    scheduler.shutdown();
+    scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    flush();
+  }
+
+  private void flushAndEvict() {
+    try {
+      flush();
+    } catch (RuntimeException | InterruptedException e) {
+      logger.log(Level.WARNING, "Failed to write sessions", e);
+    }
+    long now = System.currentTimeMillis();
+    cache.entrySet().removeIf(
+        entry ->
+            now - entry.getValue().lastAccessMillis > cacheTtlMillis
+                && !pendingWrites.containsKey(entry.getKey()));
+  }
+
+  // Writes the pending changes. The changes of a batch that fails are queued again, behind any
+  // made since, to be retried on the next flush.
+  void flush() throws InterruptedException {
+    List<ApiFuture<List<WriteResult>>> commits = new ArrayList<>();
+    List<Map<String, Map<String, Object>>> committedChanges = new ArrayList<>();
+    WriteBatch batch = firestore.batch();
+    Map<String, Map<String, Object>> batchChanges = new HashMap<>();
+    String lastModified = dtf.format(LocalDateTime.now());
+    Iterator<String> sessionIds = pendingWrites.keySet().iterator();
+    while (sessionIds.hasNext()) {
+      String sessionId = sessionIds.next();
+      Map<String, Object> changes = pendingWrites.remove(sessionId);
+      if (changes == null) {
+        continue;
+      }
+      changes.put(LAST_MODIFIED, lastModified);
+      batch.set(sessions.document(sessionId), changes, SetOptions.merge());
+      batchChanges.put(sessionId, changes);
+      if (batchChanges.size() == MAX_BATCH_WRITES) {
+        commits.add(batch.commit());
+        committedChanges.add(batchChanges);
+        batch = firestore.batch();
+        batchChanges = new HashMap<>();
+      }
+    }
+    if (!batchChanges.isEmpty()) {
+      commits.add(batch.commit());
+      committedChanges.add(batchChanges);
+    }
+    for (int i = 0; i < commits.size(); i++) {
+      try {
+        commits.get(i).get();
+      } catch (ExecutionException e) {
+        logger.log(Level.WARNING, "Failed to write a batch of sessions, will retry", e.getCause());
+        for (Map.Entry<String, Map<String, Object>> failed : committedChanges.get(i).entrySet()) {
+          pendingWrites.merge(
+              failed.getKey(), failed.getValue(), (since, older) -> merge(older, since));
+        }
+      }
+    }
+  }
+
+  // Later changes to the same attribute replace earlier ones that were not written yet.
+  private void queue(String sessionId, Map<String, Object> changes) {
+    pendingWrites.merge(sessionId, changes, CachedSessionStore::merge);
+  }
+
+  private static Map<String, Object> merge(
+      Map<String, Object> earlier, Map<String, Object> later) {
+    Map<String, Object> merged = new HashMap<>(earlier);
+    merged.putAll(later);
+    return merged;
+  }
+
+  // Deletes session documents unmodified for longer than the maximum age, a batch at a time.
+  private void purgeExpiredSessions() {
+    String cutoff = dtf.format(LocalDateTime.now().minusHours(sessionMaxAgeHours));
+    try {
+      while (true) {
+        List<QueryDocumentSnapshot> expired =
+            sessions
+                .whereLessThan(LAST_MODIFIED, cutoff)
+                .limit(MAX_BATCH_WRITES)
+                .get()
+                .get()
+                .getDocuments();
+        if (expired.isEmpty()) {
+          return;
+        }
+        WriteBatch batch = firestore.batch();
+        for (QueryDocumentSnapshot snapshot : expired) {
+          batch.delete(snapshot.getReference());
+          cache.remove(snapshot.getId());
+        }
+        batch.commit().get();
+        logger.info("Purged " + expired.size() + " expired sessions");
+      }
+    } catch (ExecutionException | InterruptedException e) {
+      logger.log(Level.WARNING, "Failed to purge expired sessions", e);
+    }
+  }
+
+  private static boolean modifiedSince(CachedSession cached, LocalDateTime time) {
+    Object lastModified = cached.attributes.get(LAST_MODIFIED);
+    return lastModified instanceof String
+        && ((String) lastModified).compareTo(dtf.format(time)) >= 0;
+  }
+
+  // Firestore reads whole numbers back as Long, so compare numbers by value.
+  private static boolean sameValue(Object cached, Object current) {
+    if (cached instanceof Number && current instanceof Number) {
+      return ((Number) cached).doubleValue() == ((Number) current).doubleValue();
+    }
+    return Objects.equals(cached, current);
+  }
+
+  private static class CachedSession {
+    private final Map<String, Object> attributes;
+    private long lastAccessMillis = System.currentTimeMillis();
+
+    private CachedSession(Map<String, Object> attributes) {
+      this.attributes = attributes == null ? new HashMap<>() : new HashMap<>(attributes);
+    }
+  }
+}
@@ -17,22 +17,16 @@ package com.example.gettingstarted.util;
 
 import com.example.gettingstarted.actions.HelloWorldServlet;
 import com.google.cloud.firestore.CollectionReference;
-import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
-import com.google.common.collect.Maps;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.SecureRandom;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -50,34 +44,39 @@ import javax.servlet.http.HttpSession;
     filterName = "FirestoreSessionFilter ",
     urlPatterns = {""})
 public class FirestoreSessionFilter implements Filter {
-  private static final SimpleDateFormat dtf = new SimpleDateFormat("yyyyMMddHHmmssSSS");
   private static final Logger logger = Logger.getLogger(HelloWorldServlet.class.getName());
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+  private static final long CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  private static final long SESSION_MAX_AGE_HOURS = 48;
   private static Firestore firestore;
   private static CollectionReference sessions;
+  private static CachedSessionStore sessionStore;
 
   // [START firestore_sessions_handling_init]
   @Override
   public void init(FilterConfig config) throws ServletException {
-    // Initialize local copy of datastore session variables.
+    // Initialize local copy of datastore session variables. Set FIRESTORE_EMULATOR_HOST to run
+    // against the Firestore emulator.
     firestore = FirestoreOptions.getDefaultInstance().getService();
     sessions = firestore.collection("sessions");
 
+    // Cache session variables in memory, write changes behind requests every second, and
+    // delete sessions unmodified for over two days in the background.
+    sessionStore =
+        new CachedSessionStore(
+            firestore, sessions, FLUSH_INTERVAL_MILLIS, CACHE_TTL_MILLIS, SESSION_MAX_AGE_HOURS);
+  }
+  // [END firestore_sessions_handling_init]
+
+  @Override
+  public void destroy() {
     try {
-      // Delete all sessions unmodified for over two days.
-      Calendar cal = Calendar.getInstance();
-      cal.setTime(new Date());
-      cal.add(Calendar.HOUR, -48);
-      Date twoDaysAgo = Calendar.getInstance().getTime();
-      QuerySnapshot sessionDocs =
-          sessions.whereLessThan("lastModified", dtf.format(twoDaysAgo)).get().get();
-      for (QueryDocumentSnapshot snapshot : sessionDocs.getDocuments()) {
-        snapshot.getReference().delete();
-      }
-    } catch (InterruptedException | ExecutionException e) {
-      throw new ServletException("Exception initializing FirestoreSessionFilter.", e);
+      // Write the changes still waiting to be flushed.
+      sessionStore.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
-  // [END firestore_sessions_handling_init]
 
   // [START firestore_sessions_handling_filter]
   @Override
@@ -96,8 +95,8 @@ public class FirestoreSessionFilter implements Filter {
     // identifier.
     String sessionId = getCookieValue(req, "bookshelfSessionId");
     if (sessionId.equals("")) {
-      String sessionNum = new BigInteger(130, new SecureRandom()).toString(32);
-      Cookie session = new Cookie("bookshelfSessionId", sessionNum);
+      sessionId = new BigInteger(130, new SecureRandom()).toString(32);
+      Cookie session = new Cookie("bookshelfSessionId", sessionId);
       session.setPath("/");
       resp.addCookie(session);
     }
@@ -105,7 +104,7 @@ public class FirestoreSessionFilter implements Filter {
     // session variables for request
     Map<String, Object> firestoreMap = null;
     try {
-      firestoreMap = loadSessionVariables(req);
+      firestoreMap = sessionStore.load(sessionId);
     } catch (ExecutionException | InterruptedException e) {
       throw new ServletException("Exception loading session variables.", e);
     }
@@ -127,7 +126,8 @@ public class FirestoreSessionFilter implements Filter {
     }
 
     logger.info("Saving data to " + sessionId + " with views: " + session.getAttribute("views"));
-    firestore.runTransaction((ob) -> sessions.document(sessionId).set(sessionMap));
+    // Only changed attributes are queued, and written to Firestore after the response.
+    sessionStore.save(sessionId, sessionMap);
   }
   // [END firestore_sessions_handling_filter]
 
@@ -142,34 +142,4 @@ public class FirestoreSessionFilter implements Filter {
     }
     return "";
   }
-
-  // [START firestore_sessions_load_session_variables]
-
-  /**
-   * Take an HttpServletRequest, and copy all of the current session variables over to it
-   *
-   * @param req Request from which to extract session.
-   * @return a map of strings containing all the session variables loaded or an empty map.
-   */
-  private Map<String, Object> loadSessionVariables(HttpServletRequest req)
-      throws ExecutionException, InterruptedException {
-    Map<String, Object> datastoreMap = new HashMap<>();
-    String sessionId = getCookieValue(req, "bookshelfSessionId");
-    if (sessionId.equals("")) {
-      return datastoreMap;
-    }
-
-    return firestore
-        .runTransaction(
-            (ob) -> {
-              DocumentSnapshot session = sessions.document(sessionId).get().get();
-              Map<String, Object> data = session.getData();
-              if (data == null) {
-                data = Maps.newHashMap();
-              }
-              return data;
-            })
-        .get();
-  }
-  // [END firestore_sessions_load_session_variables]
 }
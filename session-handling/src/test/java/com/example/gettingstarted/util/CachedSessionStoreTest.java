@@ -0,0 +1,236 @@
+/* Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.gettingstarted.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CachedSessionStore}, against a mocked Firestore. */
+@RunWith(JUnit4.class)
+public class CachedSessionStoreTest {
+  private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS");
+
+  // The session documents stored, and the writes of each committed batch, by session id.
+  private final Map<String, Map<String, Object>> documents = new HashMap<>();
+  private final List<Map<String, Map<String, Object>>> commits = new ArrayList<>();
+  // Failures for the next commits to return.
+  private final Queue<RuntimeException> commitFailures = new ArrayDeque<>();
+  private CachedSessionStore store;
+
+  @Before
+  public void setUp() {
+    CollectionReference sessions = mock(CollectionReference.class);
+    when(sessions.document(anyString())).thenAnswer(call -> document(call.getArgument(0)));
+    Query query = mock(Query.class);
+    QuerySnapshot expired = mock(QuerySnapshot.class);
+    when(expired.getDocuments()).thenReturn(Collections.emptyList());
+    when(sessions.whereLessThan(anyString(), any())).thenReturn(query);
+    when(query.limit(anyInt())).thenReturn(query);
+    when(query.get()).thenReturn(ApiFutures.immediateFuture(expired));
+
+    Firestore firestore = mock(Firestore.class);
+    when(firestore.batch()).thenAnswer(call -> batch());
+
+    // Flushes only when the tests ask.
+    store =
+        new CachedSessionStore(firestore, sessions, TimeUnit.HOURS.toMillis(1), 60_000, 48);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    store.close();
+  }
+
+  @Test
+  public void testOnlyChangedAttributesAreWritten() throws Exception {
+    documents.put("s1", session(LocalDateTime.now(), "views", 1L, "name", "Ada"));
+
+    Map<String, Object> attributes = store.load("s1");
+    assertThat(attributes).containsExactly("views", 1L, "name", "Ada");
+    // Whole numbers come back from Firestore as Long, so an Integer of the same value is no change.
+    store.save("s1", attributes("views", 1, "name", "Ada"));
+    store.flush();
+    assertThat(commits).isEmpty();
+
+    store.save("s1", attributes("views", 2, "name", "Ada"));
+    store.flush();
+    assertThat(commits).hasSize(1);
+    assertThat(commits.get(0).get("s1")).containsEntry("views", 2);
+    assertThat(commits.get(0).get("s1")).doesNotContainKey("name");
+    assertThat(commits.get(0).get("s1")).containsKey("lastModified");
+  }
+
+  @Test
+  public void testRemovedAttributesAreDeleted() throws Exception {
+    documents.put("s1", session(LocalDateTime.now(), "views", 1L, "name", "Ada"));
+
+    store.load("s1");
+    store.save("s1", attributes("views", 1L));
+    store.flush();
+
+    assertThat(commits).hasSize(1);
+    assertThat(commits.get(0).get("s1")).containsEntry("name", FieldValue.delete());
+    assertThat(commits.get(0).get("s1")).doesNotContainKey("views");
+    assertThat(store.load("s1")).containsExactly("views", 1L);
+  }
+
+  @Test
+  public void testChangesAreWrittenBehindInBatches() throws Exception {
+    store.save("s1", attributes("views", 1));
+    store.save("s1", attributes("views", 2, "name", "Ada"));
+    store.save("s2", attributes("views", 1));
+    assertThat(commits).isEmpty();
+
+    store.flush();
+
+    // Both sessions in one batch, with the latest changes of each.
+    assertThat(commits).hasSize(1);
+    assertThat(commits.get(0).keySet()).containsExactly("s1", "s2");
+    assertThat(commits.get(0).get("s1")).containsEntry("views", 2);
+    assertThat(commits.get(0).get("s1")).containsEntry("name", "Ada");
+    // Loads are served from the cache.
+    assertThat(store.load("s1")).containsExactly("views", 2, "name", "Ada");
+  }
+
+  @Test
+  public void testFailedWritesAreRetriedBehindNewerChanges() throws Exception {
+    store.save("s1", attributes("views", 1, "name", "Ada"));
+    commitFailures.add(new IllegalStateException("unavailable"));
+    store.flush();
+    assertThat(documents).isEmpty();
+
+    store.save("s1", attributes("views", 2, "name", "Ada"));
+    store.flush();
+
+    assertThat(commits).hasSize(2);
+    assertThat(documents.get("s1")).containsEntry("views", 2);
+    assertThat(documents.get("s1")).containsEntry("name", "Ada");
+  }
+
+  @Test
+  public void testSessionsOnlyReadAreKeptFromExpiring() throws Exception {
+    documents.put("recent", session(LocalDateTime.now().minusHours(1), "views", 1L));
+    documents.put("old", session(LocalDateTime.now().minusHours(13), "views", 1L));
+
+    store.save("recent", store.load("recent"));
+    store.save("old", store.load("old"));
+    store.flush();
+
+    assertThat(commits).hasSize(1);
+    assertThat(commits.get(0).keySet()).containsExactly("old");
+    assertThat(commits.get(0).get("old").keySet()).containsExactly("lastModified");
+    String lastModified = (String) documents.get("old").get("lastModified");
+    assertThat(lastModified).isAtLeast(dtf.format(LocalDateTime.now().minusMinutes(1)));
+
+    // Refreshed once, not on every request.
+    store.save("old", store.load("old"));
+    store.flush();
+    assertThat(commits).hasSize(1);
+  }
+
+  private DocumentReference document(String id) {
+    DocumentReference document = mock(DocumentReference.class);
+    when(document.getId()).thenReturn(id);
+    DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+    when(snapshot.getData()).thenAnswer(call -> documents.get(id));
+    when(document.get()).thenReturn(ApiFutures.immediateFuture(snapshot));
+    return document;
+  }
+
+  // A batch recording its writes, which it applies to the documents when committed.
+  private WriteBatch batch() {
+    WriteBatch batch = mock(WriteBatch.class);
+    Map<String, Map<String, Object>> writes = new HashMap<>();
+    when(batch.set(any(DocumentReference.class), anyMap(), any(SetOptions.class)))
+        .thenAnswer(
+            call -> {
+              DocumentReference document = call.getArgument(0);
+              writes.put(document.getId(), new HashMap<>(call.<Map<String, Object>>getArgument(1)));
+              return batch;
+            });
+    when(batch.commit())
+        .thenAnswer(
+            call -> {
+              commits.add(writes);
+              RuntimeException failure = commitFailures.poll();
+              if (failure != null) {
+                return ApiFutures.<List<WriteResult>>immediateFailedFuture(failure);
+              }
+              for (Map.Entry<String, Map<String, Object>> write : writes.entrySet()) {
+                Map<String, Object> document =
+                    documents.computeIfAbsent(write.getKey(), id -> new HashMap<>());
+                for (Map.Entry<String, Object> field : write.getValue().entrySet()) {
+                  if (FieldValue.delete().equals(field.getValue())) {
+                    document.remove(field.getKey());
+                  } else {
+                    document.put(field.getKey(), field.getValue());
+                  }
+                }
+              }
+              ApiFuture<List<WriteResult>> result =
+                  ApiFutures.immediateFuture(Collections.emptyList());
+              return result;
+            });
+    return batch;
+  }
+
+  private static Map<String, Object> session(LocalDateTime lastModified, Object... attributes) {
+    Map<String, Object> session = attributes(attributes);
+    session.put("lastModified", dtf.format(lastModified));
+    return session;
+  }
+
+  private static Map<String, Object> attributes(Object... namesAndValues) {
+    Map<String, Object> attributes = new HashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return attributes;
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.spanner.changestreams;
+
+// [START spanner_change_streams_sample_change_stream_reader]
+import com.example.spanner.changestreams.model.ChangeStreamRecord;
+import com.example.spanner.changestreams.model.ChildPartition;
+import com.example.spanner.changestreams.model.ChildPartitionsRecord;
+import com.example.spanner.changestreams.model.DataChangeRecord;
+import com.example.spanner.changestreams.model.HeartbeatRecord;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ChangeStreamReader reads every partition of a change stream concurrently, each on its own thread.
+ * It starts from the initial query and follows partition splits and merges until the end timestamp,
+ * pushing records to a {@link Listener} as they are read. Each partition token is queried once; a
+ * merged child partition is only queried once all of its parents have been read, so records for a
+ * key are still delivered in commit order. The watermark of every partition is kept so a reader can
+ * tell how far each one has progressed.
+ */
+public class ChangeStreamReader {
+
+  private static final long HEARTBEAT_MILLIS = 5000;
+
+  /** Receives change stream records as they are read. Called concurrently from many partitions. */
+  public interface Listener {
+
+    void onDataChangeRecord(String partitionToken, DataChangeRecord record);
+
+    default void onHeartbeatRecord(String partitionToken, HeartbeatRecord record) {}
+
+    default void onChildPartitionsRecord(String partitionToken, ChildPartitionsRecord record) {}
+  }
+
+  private final DatabaseClient dbClient;
+  private final String changeStreamName;
+  private final ChangeStreamRecordMapper changeStreamRecordMapper;
+  private final Listener listener;
+
+  // Tokens that were queried or are waiting for their parents, used to de-duplicate children
+  // reported by several parents.
+  private final Set<String> knownTokens = ConcurrentHashMap.newKeySet();
+  private final Set<String> finishedTokens = ConcurrentHashMap.newKeySet();
+  // Merged child partitions waiting for their parents to finish, keyed by token.
+  private final Map<String, PendingPartition> waitingPartitions = new HashMap<>();
+  private final Map<String, Timestamp> watermarks = new ConcurrentHashMap<>();
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+  private ExecutorService executor;
+  private Phaser activePartitions;
+  private Timestamp endTimestamp;
+
+  public ChangeStreamReader(DatabaseClient dbClient, String changeStreamName,
+      ChangeStreamRecordMapper changeStreamRecordMapper, Listener listener) {
+    this.dbClient = dbClient;
+    this.changeStreamName = changeStreamName;
+    this.changeStreamRecordMapper = changeStreamRecordMapper;
+    this.listener = listener;
+  }
+
+  /**
+   * Reads the change stream from start to end timestamp, returning once every partition has been
+   * read.
+   */
+  public void read(Timestamp startTimestamp, Timestamp endTimestamp) throws InterruptedException {
+    this.endTimestamp = endTimestamp;
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread =
+          new Thread(runnable, "change-stream-partition-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    // The reader itself is registered so the phaser does not terminate before the first partition.
+    activePartitions = new Phaser(1);
+    try {
+      // For initial query the partition token is null.
+      schedule(null, startTimestamp);
+      activePartitions.awaitAdvanceInterruptibly(activePartitions.arriveAndDeregister());
+    } finally {
+      executor.shutdownNow();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  /** Returns the latest timestamp each partition has been read up to. */
+  public Map<String, Timestamp> getWatermarks() {
+    return new HashMap<>(watermarks);
+  }
+
+  /**
+   * Returns the earliest watermark of the partitions still being read, which is the point up to
+   * which every change has been delivered, or null once all partitions are done.
+   */
+  public Timestamp getLowWatermark() {
+    Timestamp low = null;
+    for (Map.Entry<String, Timestamp> entry : watermarks.entrySet()) {
+      if (!finishedTokens.contains(entry.getKey())
+          && (low == null || entry.getValue().compareTo(low) < 0)) {
+        low = entry.getValue();
+      }
+    }
+    return low;
+  }
+
+  private void schedule(String partitionToken, Timestamp startTimestamp) {
+    activePartitions.register();
+    executor.execute(() -> {
+      try {
+        if (failure.get() == null) {
+          readPartition(partitionToken, startTimestamp);
+        }
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        if (partitionToken != null) {
+          finishedTokens.add(partitionToken);
+          scheduleReadyChildren();
+        }
+        activePartitions.arriveAndDeregister();
+      }
+    });
+  }
+
+  private void readPartition(String partitionToken, Timestamp startTimestamp) {
+    final String query =
+        String.format("SELECT * FROM READ_%s ("
+          + "start_timestamp => @startTimestamp,"
+          + "end_timestamp => @endTimestamp,"
+          + "partition_token => @partitionToken,"
+          + "heartbeat_milliseconds => @heartbeatMillis"
+          + ")", changeStreamName);
+
+    try (ResultSet resultSet =
+        dbClient
+          .singleUse()
+          .executeQuery(
+            Statement.newBuilder(query)
+              .bind("startTimestamp").to(startTimestamp)
+              .bind("endTimestamp").to(endTimestamp)
+              .bind("partitionToken").to(partitionToken)
+              .bind("heartbeatMillis").to(HEARTBEAT_MILLIS)
+              .build())) {
+      while (resultSet.next() && failure.get() == null) {
+        // Hand every record over as soon as it is parsed instead of collecting them.
+        for (ChangeStreamRecord record :
+            changeStreamRecordMapper.toChangeStreamRecords(resultSet.getCurrentRowAsStruct())) {
+          if (record instanceof DataChangeRecord) {
+            DataChangeRecord dataChangeRecord = (DataChangeRecord) record;
+            listener.onDataChangeRecord(partitionToken, dataChangeRecord);
+            checkpoint(partitionToken, dataChangeRecord.getCommitTimestamp());
+          } else if (record instanceof HeartbeatRecord) {
+            HeartbeatRecord heartbeatRecord = (HeartbeatRecord) record;
+            listener.onHeartbeatRecord(partitionToken, heartbeatRecord);
+            checkpoint(partitionToken, heartbeatRecord.getTimestamp());
+          } else if (record instanceof ChildPartitionsRecord) {
+            ChildPartitionsRecord childPartitionsRecord = (ChildPartitionsRecord) record;
+            listener.onChildPartitionsRecord(partitionToken, childPartitionsRecord);
+            checkpoint(partitionToken, childPartitionsRecord.getStartTimestamp());
+            addChildPartitions(childPartitionsRecord);
+          } else {
+            // We should never reach here.
+            throw new IllegalArgumentException("Unknown record type " + record.getClass());
+          }
+        }
+      }
+    }
+  }
+
+  private void checkpoint(String partitionToken, Timestamp timestamp) {
+    if (partitionToken != null) {
+      watermarks.merge(partitionToken, timestamp, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+    }
+  }
+
+  private void addChildPartitions(ChildPartitionsRecord record) {
+    for (ChildPartition childPartition : record.getChildPartitions()) {
+      // A merged partition is reported by each of its parents; only the first report counts.
+      if (knownTokens.add(childPartition.getToken())) {
+        synchronized (waitingPartitions) {
+          waitingPartitions.put(childPartition.getToken(),
+              new PendingPartition(childPartition, record.getStartTimestamp()));
+        }
+      }
+    }
+    scheduleReadyChildren();
+  }
+
+  // Starts every waiting partition whose parents have all been read. A parent this reader has not
+  // been told about yet is still being read too, by a partition that will report it later, so the
+  // child waits for it like any other parent.
+  private void scheduleReadyChildren() {
+    List<PendingPartition> ready = new ArrayList<>();
+    synchronized (waitingPartitions) {
+      waitingPartitions.values().removeIf(pending -> {
+        if (!finishedTokens.containsAll(pending.childPartition.getParentTokens())) {
+          return false;
+        }
+        ready.add(pending);
+        return true;
+      });
+    }
+    for (PendingPartition pending : ready) {
+      watermarks.putIfAbsent(pending.childPartition.getToken(), pending.startTimestamp);
+      schedule(pending.childPartition.getToken(), pending.startTimestamp);
+    }
+  }
+
+  private static class PendingPartition {
+    private final ChildPartition childPartition;
+    private final Timestamp startTimestamp;
+
+    private PendingPartition(ChildPartition childPartition, Timestamp startTimestamp) {
+      this.childPartition = childPartition;
+      this.startTimestamp = startTimestamp;
+    }
+  }
+}
+// [END spanner_change_streams_sample_change_stream_reader]
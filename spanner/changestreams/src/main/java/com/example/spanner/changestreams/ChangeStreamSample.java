@@ -18,8 +18,6 @@ package com.example.spanner.changestreams;
 
 // TODO(haikuo@google.com): we should remove the models and the mapper once the change stream
 //  connector code that includes these models are released into Beam repo.
-import com.example.spanner.changestreams.model.ChangeStreamRecord;
-import com.example.spanner.changestreams.model.ChildPartition;
 import com.example.spanner.changestreams.model.ChildPartitionsRecord;
 import com.example.spanner.changestreams.model.DataChangeRecord;
 import com.example.spanner.changestreams.model.HeartbeatRecord;
@@ -29,15 +27,11 @@ import com.google.cloud.spanner.DatabaseAdminClient;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
 import com.google.cloud.spanner.Mutation;
-import com.google.cloud.spanner.ResultSet;
 import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerOptions;
-import com.google.cloud.spanner.Statement;
 import com.google.common.collect.ImmutableList;
 import com.google.spanner.admin.database.v1.UpdateDatabaseDdlMetadata;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -99,7 +93,7 @@ public class ChangeStreamSample {
 
   // [START spanner_change_streams_sample_query_change_streams]
   public static void queryChangeStream(DatabaseClient dbClient, String tableName,
-                                       String changeStreamName) {
+                                       String changeStreamName) throws InterruptedException {
     // Insert test data into the table.
     System.out.println(
         String.format("Inserting rows "
@@ -117,28 +111,35 @@ public class ChangeStreamSample {
     final ChangeStreamRecordMapper changeStreamRecordMapper =
         new ChangeStreamRecordMapper();
 
-    // Execute an initial query to get partition tokens.
-    System.out.println("Executing change stream initial query.");
-    // For initial query the partition token is null.
-    List<ChangeStreamRecord> initialQueryRecords = executeChangeStreamQueryAndPrint(
-        dbClient, changeStreamName, startTimestamp, endTimestamp, null,
-        changeStreamRecordMapper);
-
-    System.out.println("Executing change stream partition queries.");
-    for (ChangeStreamRecord record : initialQueryRecords) {
-      // Executes a partition query to print data records that we just inserted.
-      if (record instanceof ChildPartitionsRecord) {
-        ChildPartitionsRecord childPartitionsRecord = (ChildPartitionsRecord) record;
-        for (ChildPartition childPartition : childPartitionsRecord.getChildPartitions()) {
-          executeChangeStreamQueryAndPrint(
-              dbClient, changeStreamName, childPartitionsRecord.getStartTimestamp(), endTimestamp,
-              childPartition.getToken(), changeStreamRecordMapper);
-        }
-      } else if (record instanceof DataChangeRecord) {
-        throw new IllegalArgumentException("Got unexpected DataChangeRecord from Change Streams "
-          + "initial query");
+    // Prints out records as soon as they are read from any partition.
+    final ChangeStreamReader.Listener listener = new ChangeStreamReader.Listener() {
+      @Override
+      public void onDataChangeRecord(String partitionToken, DataChangeRecord record) {
+        System.out.println("Received a DataChangeRecord: " + record);
       }
-    }
+
+      @Override
+      public void onHeartbeatRecord(String partitionToken, HeartbeatRecord record) {
+        System.out.println("Received a HeartbeatRecord: " + record);
+      }
+
+      @Override
+      public void onChildPartitionsRecord(String partitionToken, ChildPartitionsRecord record) {
+        System.out.println("Received a ChildPartitionsRecord: " + record);
+      }
+    };
+
+    // Executes the initial query to get partition tokens, then queries every partition
+    // concurrently, following splits and merges until the end timestamp. See
+    // ChangeStreamReader.java.
+    System.out.println("Executing change stream queries with: "
+        + "start_timestamp => " + startTimestamp
+        + ", end_timestamp => " + endTimestamp
+        + ", heartbeat_milliseconds => 5000");
+    final ChangeStreamReader reader = new ChangeStreamReader(
+        dbClient, changeStreamName, changeStreamRecordMapper, listener);
+    reader.read(startTimestamp, endTimestamp);
+    System.out.println("Finished reading partitions: " + reader.getWatermarks().keySet());
   }
 
   // Insert two rows into Singers table.
@@ -159,61 +160,6 @@ public class ChangeStreamSample {
     );
   }
 
-  // Execute a change stream query, return and print out the result records.
-  // For initial query, partitionToken is expected to be null.
-  public static List<ChangeStreamRecord> executeChangeStreamQueryAndPrint(
-      DatabaseClient dbClient, String changeStreamName, Timestamp startTimestamp,
-      Timestamp endTimestamp, String partitionToken,
-      ChangeStreamRecordMapper changeStreamRecordMapper) {
-    System.out.println("Executing a change stream query with: "
-        + "start_timestamp => " + startTimestamp
-        + ", end_timestamp => " + endTimestamp
-        + ", partition_token => " + partitionToken
-        + ", heartbeat_milliseconds => 5000");
-
-    final String query =
-        String.format("SELECT * FROM READ_%s ("
-          + "start_timestamp => @startTimestamp,"
-          + "end_timestamp => @endTimestamp,"
-          + "partition_token => @partitionToken,"
-          + "heartbeat_milliseconds => @heartbeatMillis"
-          + ")", changeStreamName);
-
-    final ResultSet resultSet =
-        dbClient
-          .singleUse()
-          .executeQuery(
-            Statement.newBuilder(query)
-              .bind("startTimestamp").to(startTimestamp)
-              .bind("endTimestamp").to(endTimestamp)
-              .bind("partitionToken").to(partitionToken)
-              .bind("heartbeatMillis").to(5000)
-              .build());
-
-    List<ChangeStreamRecord> result = new ArrayList<>();
-    while (resultSet.next()) {
-      // Parses result set into change stream result format.
-      final List<ChangeStreamRecord> records =
-          changeStreamRecordMapper.toChangeStreamRecords(resultSet.getCurrentRowAsStruct());
-
-      // Prints out all the query results.
-      for (final ChangeStreamRecord record : records) {
-        if (record instanceof DataChangeRecord) {
-          System.out.println("Received a DataChangeRecord: " + record);
-        } else if (record instanceof HeartbeatRecord) {
-          System.out.println("Received a HeartbeatRecord: " + record);
-        } else if (record instanceof ChildPartitionsRecord) {
-          System.out.println("Received a ChildPartitionsRecord: " + record);
-        } else {
-          // We should never reach here.
-          throw new IllegalArgumentException("Unknown record type " + record.getClass());
-        }
-      }
-      result.addAll(records);
-    }
-
-    return result;
-  }
   // [END spanner_change_streams_sample_query_change_streams]
 
   // [START spanner_change_streams_sample_drop_change_streams]
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.spanner.changestreams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.spanner.changestreams.model.ChangeStreamRecord;
+import com.example.spanner.changestreams.model.ChildPartition;
+import com.example.spanner.changestreams.model.ChildPartitionsRecord;
+import com.example.spanner.changestreams.model.DataChangeRecord;
+import com.example.spanner.changestreams.model.HeartbeatRecord;
+import com.example.spanner.changestreams.model.ModType;
+import com.example.spanner.changestreams.model.ValueCaptureType;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ReadContext;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+import com.google.cloud.spanner.Value;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for ChangeStreamReader, reading partitions from a fake database whose change stream
+ * queries return the records each test sets up.
+ */
+@RunWith(JUnit4.class)
+public class ChangeStreamReaderTest {
+
+  // The records each partition's query returns, one list per row. The initial query has a null
+  // token.
+  private final Map<String, List<List<ChangeStreamRecord>>> partitions = new HashMap<>();
+  // Run when a partition is queried, before its rows are returned.
+  private final Map<String, Runnable> onQuery = new HashMap<>();
+  // Every row of every partition, so a row's struct only has to hold its index.
+  private final List<List<ChangeStreamRecord>> rows =
+      Collections.synchronizedList(new ArrayList<>());
+  private final Map<String, CountDownLatch> finished = new ConcurrentHashMap<>();
+  private final Map<String, Timestamp> queryStartTimestamps = new ConcurrentHashMap<>();
+  private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+  // The watermarks seen whenever the listener gets a record of partition A.
+  private final List<Timestamp> watermarksOfA = Collections.synchronizedList(new ArrayList<>());
+  private final List<Timestamp> lowWatermarks = Collections.synchronizedList(new ArrayList<>());
+
+  @Test
+  public void testSplitPartitionsAreReadFromTheirStartTimestamp() throws Exception {
+    partitions.put(null, rows(children(ts(0), initial("A"), initial("B"))));
+    partitions.put("A", rows(data(ts(10)), children(ts(20), split("C", "A"), split("D", "A"))));
+    partitions.put("B", rows(heartbeat(ts(15))));
+    partitions.put("C", rows(data(ts(25))));
+    partitions.put("D", rows(heartbeat(ts(30))));
+
+    read();
+
+    assertEquals(
+        new HashSet<>(Arrays.asList("A", "B", "C", "D")), queryStartTimestamps.keySet());
+    assertEquals(ts(0), queryStartTimestamps.get("A"));
+    assertEquals(ts(20), queryStartTimestamps.get("C"));
+    assertEquals(ts(20), queryStartTimestamps.get("D"));
+    assertBefore("end A", "start C");
+    assertBefore("end A", "start D");
+    assertEquals(1, count("start C"));
+  }
+
+  @Test
+  public void testMergedPartitionIsReadOnceAfterEveryParentReportingIt() throws Exception {
+    partitions.put(null, rows(children(ts(0), initial("A"), initial("B"))));
+    partitions.put("A", rows(children(ts(20), merge("M", "A", "B"))));
+    partitions.put("B", rows(data(ts(15)), children(ts(20), merge("M", "A", "B"))));
+    partitions.put("M", rows(data(ts(25))));
+    // B reports the merge after A has finished.
+    onQuery.put("B", () -> await("A"));
+
+    read();
+
+    assertEquals(1, count("start M"));
+    assertBefore("end A", "start M");
+    assertBefore("end B", "start M");
+    assertBefore("data B " + ts(15), "data M " + ts(25));
+  }
+
+  @Test
+  public void testMergedPartitionWaitsForParentsNotReportedYet() throws Exception {
+    // M merges A and B, but B is only reported by X after A has finished and reported M.
+    partitions.put(null, rows(children(ts(0), initial("A"), initial("X"))));
+    partitions.put("A", rows(children(ts(20), merge("M", "A", "B"))));
+    partitions.put("X", rows(children(ts(10), split("B", "X"))));
+    partitions.put("B", rows(data(ts(15)), children(ts(20), merge("M", "A", "B"))));
+    partitions.put("M", rows(data(ts(25))));
+    onQuery.put(
+        "X",
+        () -> {
+          await("A");
+          // Leave time for M to be read too early, before B is known.
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+
+    read();
+
+    assertEquals(1, count("start M"));
+    assertBefore("end B", "start M");
+    assertBefore("data B " + ts(15), "data M " + ts(25));
+  }
+
+  @Test
+  public void testChildReportedTwiceIsReadOnce() throws Exception {
+    partitions.put(null, rows(children(ts(0), initial("A"))));
+    partitions.put(
+        "A", rows(children(ts(20), split("C", "A")), children(ts(20), split("C", "A"))));
+    partitions.put("C", rows(data(ts(25))));
+
+    read();
+
+    assertEquals(1, count("start C"));
+    assertEquals(1, count("data C " + ts(25)));
+  }
+
+  @Test
+  public void testWatermarksFollowEachPartition() throws Exception {
+    partitions.put(null, rows(children(ts(0), initial("A"))));
+    partitions.put(
+        "A",
+        rows(
+            heartbeat(ts(5)),
+            data(ts(10)),
+            heartbeat(ts(7)),
+            children(ts(20), split("C", "A"))));
+    partitions.put("C", Collections.emptyList());
+
+    ChangeStreamReader reader = reader();
+    reader.read(ts(0), ts(100));
+
+    // Each record is checkpointed once the listener has it, and a late heartbeat does not move the
+    // watermark back. While A is the only partition, its watermark is the low watermark.
+    assertEquals(Arrays.asList(ts(0), ts(5), ts(10)), watermarksOfA);
+    assertEquals(watermarksOfA, lowWatermarks);
+    Map<String, Timestamp> watermarks = reader.getWatermarks();
+    // A child partitions record moves its parent up to the children's start timestamp.
+    assertEquals(ts(20), watermarks.get("A"));
+    // A partition without records stays at its start timestamp.
+    assertEquals(ts(20), watermarks.get("C"));
+    assertFalse(watermarks.containsKey(null));
+    assertNull(reader.getLowWatermark());
+  }
+
+  private void read() throws InterruptedException {
+    reader().read(ts(0), ts(100));
+  }
+
+  private ChangeStreamReader reader() {
+    for (String token : partitions.keySet()) {
+      if (token != null) {
+        finished.put(token, new CountDownLatch(1));
+      }
+    }
+    ChangeStreamReader[] reader = new ChangeStreamReader[1];
+    ChangeStreamReader.Listener listener =
+        new ChangeStreamReader.Listener() {
+          @Override
+          public void onDataChangeRecord(String partitionToken, DataChangeRecord record) {
+            events.add("data " + partitionToken + " " + record.getCommitTimestamp());
+            recordWatermarks(partitionToken);
+          }
+
+          @Override
+          public void onHeartbeatRecord(String partitionToken, HeartbeatRecord record) {
+            recordWatermarks(partitionToken);
+          }
+
+          private void recordWatermarks(String partitionToken) {
+            if ("A".equals(partitionToken)) {
+              watermarksOfA.add(reader[0].getWatermarks().get("A"));
+              lowWatermarks.add(reader[0].getLowWatermark());
+            }
+          }
+        };
+    ChangeStreamRecordMapper mapper =
+        new ChangeStreamRecordMapper() {
+          @Override
+          public List<ChangeStreamRecord> toChangeStreamRecords(Struct row) {
+            return rows.get((int) row.getLong("row"));
+          }
+        };
+    reader[0] = new ChangeStreamReader(database(), "stream", mapper, listener);
+    return reader[0];
+  }
+
+  // A database whose change stream queries return the rows set up for the queried partition.
+  private DatabaseClient database() {
+    ReadContext readContext =
+        proxy(
+            ReadContext.class,
+            (method, args) -> {
+              if (!method.equals("executeQuery")) {
+                return null;
+              }
+              Map<String, Value> parameters = ((Statement) args[0]).getParameters();
+              Value tokenValue = parameters.get("partitionToken");
+              String token = tokenValue.isNull() ? null : tokenValue.getString();
+              if (token != null) {
+                events.add("start " + token);
+                queryStartTimestamps.put(token, parameters.get("startTimestamp").getTimestamp());
+              }
+              onQuery.getOrDefault(token, () -> { }).run();
+              return resultSet(token, partitions.get(token));
+            });
+    return proxy(DatabaseClient.class, (method, args) -> readContext);
+  }
+
+  private ResultSet resultSet(String token, List<List<ChangeStreamRecord>> partitionRows) {
+    Iterator<List<ChangeStreamRecord>> iterator = partitionRows.iterator();
+    Struct[] current = new Struct[1];
+    return proxy(
+        ResultSet.class,
+        (method, args) -> {
+          switch (method) {
+            case "next":
+              if (!iterator.hasNext()) {
+                return false;
+              }
+              int index;
+              synchronized (rows) {
+                rows.add(iterator.next());
+                index = rows.size() - 1;
+              }
+              current[0] = Struct.newBuilder().set("row").to(index).build();
+              return true;
+            case "getCurrentRowAsStruct":
+              return current[0];
+            case "close":
+              if (token != null) {
+                events.add("end " + token);
+                finished.get(token).countDown();
+              }
+              return null;
+            default:
+              throw new UnsupportedOperationException(method);
+          }
+        });
+  }
+
+  private interface Handler {
+    Object invoke(String method, Object[] args);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> handler.invoke(method.getName(), args));
+  }
+
+  // Waits for a partition to have been read.
+  private void await(String token) {
+    try {
+      assertTrue(finished.get(token).await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void assertBefore(String first, String second) {
+    List<String> seen = new ArrayList<>(events);
+    assertTrue(seen.toString(), seen.contains(first));
+    assertTrue(seen.toString(), seen.indexOf(first) < seen.indexOf(second));
+  }
+
+  private int count(String event) {
+    return Collections.frequency(new ArrayList<>(events), event);
+  }
+
+  @SafeVarargs
+  private static List<List<ChangeStreamRecord>> rows(List<ChangeStreamRecord>... rows) {
+    return Arrays.asList(rows);
+  }
+
+  private static List<ChangeStreamRecord> data(Timestamp commitTimestamp) {
+    return Collections.singletonList(
+        new DataChangeRecord(
+            commitTimestamp,
+            "transaction",
+            true,
+            "00000001",
+            "Singers",
+            Collections.emptyList(),
+            Collections.emptyList(),
+            ModType.INSERT,
+            ValueCaptureType.OLD_AND_NEW_VALUES,
+            1,
+            1));
+  }
+
+  private static List<ChangeStreamRecord> heartbeat(Timestamp timestamp) {
+    return Collections.singletonList(new HeartbeatRecord(timestamp));
+  }
+
+  private static List<ChangeStreamRecord> children(
+      Timestamp startTimestamp, ChildPartition... childPartitions) {
+    return Collections.singletonList(
+        new ChildPartitionsRecord(startTimestamp, "00000001", Arrays.asList(childPartitions)));
+  }
+
+  private static ChildPartition initial(String token) {
+    return new ChildPartition(token, new HashSet<>());
+  }
+
+  private static ChildPartition split(String token, String parentToken) {
+    return new ChildPartition(token, parentToken);
+  }
+
+  private static ChildPartition merge(String token, String... parentTokens) {
+    return new ChildPartition(token, new HashSet<>(Arrays.asList(parentTokens)));
+  }
+
+  private static Timestamp ts(int seconds) {
+    return Timestamp.ofTimeSecondsAndNanos(seconds, 0);
+  }
+}
@@ -17,21 +17,15 @@
 package com.example.spanner.jdbc;
 
 //[START spanner_jdbc_load_csv]
-import com.google.cloud.spanner.Mutation;
-import com.google.cloud.spanner.Mutation.WriteBuilder;
 import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerOptions;
-import com.google.cloud.spanner.Value;
-import com.google.cloud.spanner.jdbc.CloudSpannerJdbcConnection;
 import com.google.spanner.v1.TypeCode;
 import java.io.FileReader;
 import java.io.Reader;
-import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,6 +45,9 @@ class LoadCsvExample {
 
   static Boolean hasHeader = false;
   static Connection connection;
+  static String connectionUrl;
+  static int workers = StreamingCsvLoader.DEFAULT_WORKERS;
+  static int maxMutationsPerBatch = StreamingCsvLoader.DEFAULT_MAX_MUTATIONS_PER_BATCH;
   static Map<String, TypeCode> tableColumns = new LinkedHashMap<>();
 
   static void loadCsv() throws Exception {
@@ -78,14 +75,22 @@ class LoadCsvExample {
     opt.addOption("n", true, "String Representing Null Value");
     opt.addOption("d", true, "Character Separating Columns");
     opt.addOption("e", true, "Character To Escape");
+    opt.addOption("w", true, "Number Of Concurrent Writers");
+    opt.addOption("m", true, "Maximum Mutations Per Commit");
     CommandLineParser clParser = new DefaultParser();
     CommandLine cmd = clParser.parse(opt, optFlags);
+    workers = cmd.hasOption("w")
+        ? Integer.parseInt(cmd.getOptionValue("w"))
+        : StreamingCsvLoader.DEFAULT_WORKERS;
+    maxMutationsPerBatch = cmd.hasOption("m")
+        ? Integer.parseInt(cmd.getOptionValue("m"))
+        : StreamingCsvLoader.DEFAULT_MAX_MUTATIONS_PER_BATCH;
 
     try {
       // Initialize connection to Cloud Spanner
-      connection = DriverManager.getConnection(
-          String.format("jdbc:cloudspanner:/projects/%s/instances/%s/databases/%s",
-              projectId, instanceId, databaseId));
+      connectionUrl = String.format("jdbc:cloudspanner:/projects/%s/instances/%s/databases/%s",
+          projectId, instanceId, databaseId);
+      connection = DriverManager.getConnection(connectionUrl);
       parseTableColumns(tableName);
 
       try (
@@ -208,73 +213,17 @@ class LoadCsvExample {
     return parseFormat;
   }
 
-  /** Verifies that if file has a header, that the record is mapped to a column header name
-   * and that the record itself is not null **/
-  static boolean validHeaderField(CSVRecord record, String columnName) {
-    return hasHeader && record.isMapped(columnName) && record.get(columnName) != null;
-  }
-
-  /** Verifies that if the file has no header, that the record at the given index is not null **/
-  static boolean validNonHeaderField(CSVRecord record, int index) {
-    return !hasHeader && record.get(index) != null;
-  }
-
-  /** Write CSV file data to Spanner using JDBC Mutation API **/
+  /**
+   * Stream CSV file data into Spanner in bounded mutation batches using JDBC. The batching and
+   * parallel writes are in StreamingCsvLoader.java.
+   **/
   static void writeToSpanner(Iterable<CSVRecord> records, String tableName)
-      throws SQLException {
+      throws SQLException, InterruptedException {
     System.out.println("Writing data into table...");
-    List<Mutation> mutations = new ArrayList<>();
-    for (CSVRecord record : records) {
-      int index = 0;
-      WriteBuilder builder = Mutation.newInsertOrUpdateBuilder(tableName);
-      for (String columnName : tableColumns.keySet()) {
-        // Iterates through columns in order. Assumes in order columns when no headers provided.
-        TypeCode columnType = tableColumns.get(columnName);
-        String recordValue = null;
-        if (validHeaderField(record, columnName)) {
-          recordValue = record.get(columnName).trim();
-        } else if (validNonHeaderField(record, index)) {
-          recordValue = record.get(index).trim();
-          index++;
-        }
-        if (recordValue != null) {
-          switch (columnType) {
-            case STRING:
-              builder.set(columnName).to(recordValue);
-              break;
-            case BYTES:
-              builder.set(columnName).to(Byte.parseByte(recordValue));
-              break;
-            case INT64:
-              builder.set(columnName).to(Integer.parseInt(recordValue));
-              break;
-            case FLOAT64:
-              builder.set(columnName).to(Float.parseFloat(recordValue));
-              break;
-            case BOOL:
-              builder.set(columnName).to(Boolean.parseBoolean(recordValue));
-              break;
-            case NUMERIC:
-              builder.set(columnName).to(Value.numeric(BigDecimal.valueOf(
-                  Double.parseDouble(recordValue))));
-              break;
-            case DATE:
-              builder.set(columnName).to(com.google.cloud.Date.parseDate(recordValue));
-              break;
-            case TIMESTAMP:
-              builder.set(columnName).to(com.google.cloud.Timestamp.parseTimestamp(recordValue));
-              break;
-            default:
-              System.out.print("Invalid Type. This type is not supported.");
-          }
-        }
-      }
-      mutations.add(builder.build());
-    }
-    CloudSpannerJdbcConnection spannerConnection = connection
-        .unwrap(CloudSpannerJdbcConnection.class);
-    spannerConnection.write(mutations);
-    spannerConnection.close();
+    StreamingCsvLoader loader = new StreamingCsvLoader(
+        connectionUrl, tableName, tableColumns, hasHeader, workers, maxMutationsPerBatch,
+        StreamingCsvLoader.DEFAULT_MAX_BATCH_BYTES);
+    loader.load(records);
     System.out.println("Data successfully written into table.");
   }
 }
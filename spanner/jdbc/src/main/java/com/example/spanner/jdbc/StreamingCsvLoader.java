@@ -0,0 +1,284 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.spanner.jdbc;
+
+//[START spanner_jdbc_load_csv_streaming_loader]
+import com.google.cloud.ByteArray;
+import com.google.cloud.Date;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.Mutation.WriteBuilder;
+import com.google.cloud.spanner.Value;
+import com.google.cloud.spanner.ValueBinder;
+import com.google.cloud.spanner.jdbc.CloudSpannerJdbcConnection;
+import com.google.rpc.Code;
+import com.google.spanner.v1.TypeCode;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Streams CSV records into Spanner in bounded mutation batches. Records are read on the calling
+ * thread and cut into batches that stay under a byte and mutation budget; the batches are committed
+ * on a fixed pool of workers, each with its own JDBC connection. Reading blocks once too many
+ * batches are waiting to be committed, so memory use does not grow with the file size.
+ */
+class StreamingCsvLoader {
+
+  /** Spanner counts every column value written as one mutation. */
+  static final int DEFAULT_MAX_MUTATIONS_PER_BATCH = 20_000;
+  static final long DEFAULT_MAX_BATCH_BYTES = 4L * 1024 * 1024;
+  static final int DEFAULT_WORKERS = 4;
+  static final int MAX_ATTEMPTS = 5;
+  static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+  // Rough per-value overhead of a mutation on the wire, on top of the column name and value.
+  static final int CELL_OVERHEAD_BYTES = 16;
+
+  private final String connectionUrl;
+  private final String tableName;
+  private final boolean hasHeader;
+  private final String[] columnNames;
+  private final List<BiConsumer<ValueBinder<WriteBuilder>, String>> converters;
+  private final int workers;
+  private final int maxMutationsPerBatch;
+  private final long maxBatchBytes;
+
+  private final AtomicLong rowsWritten = new AtomicLong();
+  private final AtomicLong lastReportNanos = new AtomicLong();
+  // The first error that stopped a batch from being written, which stops the load.
+  private final AtomicReference<Exception> failure = new AtomicReference<>();
+  private long startNanos;
+
+  StreamingCsvLoader(
+      String connectionUrl,
+      String tableName,
+      Map<String, TypeCode> tableColumns,
+      boolean hasHeader,
+      int workers,
+      int maxMutationsPerBatch,
+      long maxBatchBytes) {
+    this.connectionUrl = connectionUrl;
+    this.tableName = tableName;
+    this.hasHeader = hasHeader;
+    this.workers = workers;
+    this.maxMutationsPerBatch = maxMutationsPerBatch;
+    this.maxBatchBytes = maxBatchBytes;
+    // Resolve the converter of every column once instead of switching on its type per cell.
+    this.columnNames = tableColumns.keySet().toArray(new String[0]);
+    this.converters = new ArrayList<>(columnNames.length);
+    for (String columnName : columnNames) {
+      converters.add(converterFor(tableColumns.get(columnName)));
+    }
+  }
+
+  /** Return the converter that parses a CSV value into a column of the given type. */
+  static BiConsumer<ValueBinder<WriteBuilder>, String> converterFor(TypeCode columnType) {
+    switch (columnType) {
+      case STRING:
+        return ValueBinder::to;
+      case BYTES:
+        return (binder, value) -> binder.to(ByteArray.fromBase64(value));
+      case INT64:
+        return (binder, value) -> binder.to(Long.parseLong(value));
+      case FLOAT64:
+        return (binder, value) -> binder.to(Double.parseDouble(value));
+      case BOOL:
+        return (binder, value) -> binder.to(Boolean.parseBoolean(value));
+      case NUMERIC:
+        return (binder, value) -> binder.to(Value.numeric(new BigDecimal(value)));
+      case DATE:
+        return (binder, value) -> binder.to(Date.parseDate(value));
+      case TIMESTAMP:
+        return (binder, value) -> binder.to(Timestamp.parseTimestamp(value));
+      default:
+        throw new IllegalArgumentException("Unsupported column data type: " + columnType);
+    }
+  }
+
+  /** Load all records, returning the number of rows written. */
+  long load(Iterable<CSVRecord> records) throws SQLException, InterruptedException {
+    startNanos = System.nanoTime();
+    lastReportNanos.set(startNanos);
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    // Each worker opens its own connection, as JDBC connections are not thread-safe.
+    ConcurrentLinkedQueue<Connection> connections = new ConcurrentLinkedQueue<>();
+    ThreadLocal<CloudSpannerJdbcConnection> workerConnection = new ThreadLocal<>();
+    // One batch per worker in flight plus one queued per worker, then reading blocks.
+    Semaphore pendingBatches = new Semaphore(workers * 2);
+    try {
+      List<Mutation> batch = new ArrayList<>();
+      long batchBytes = 0;
+      int batchMutations = 0;
+      for (CSVRecord record : records) {
+        if (failure.get() != null) {
+          break;
+        }
+        Mutation mutation = toMutation(record);
+        long mutationBytes = estimateBytes(record);
+        int mutationCells = columnNames.length;
+        if (!batch.isEmpty()
+            && (batchBytes + mutationBytes > maxBatchBytes
+                || batchMutations + mutationCells > maxMutationsPerBatch)) {
+          submit(pool, pendingBatches, batch, connections, workerConnection);
+          batch = new ArrayList<>();
+          batchBytes = 0;
+          batchMutations = 0;
+        }
+        batch.add(mutation);
+        batchBytes += mutationBytes;
+        batchMutations += mutationCells;
+      }
+      if (!batch.isEmpty() && failure.get() == null) {
+        submit(pool, pendingBatches, batch, connections, workerConnection);
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      for (Connection connection : connections) {
+        connection.close();
+      }
+    }
+    Exception e = failure.get();
+    if (e instanceof SQLException) {
+      throw (SQLException) e;
+    } else if (e instanceof InterruptedException) {
+      throw (InterruptedException) e;
+    } else if (e != null) {
+      throw (RuntimeException) e;
+    }
+    reportProgress(true);
+    return rowsWritten.get();
+  }
+
+  private void submit(
+      ExecutorService pool,
+      Semaphore pendingBatches,
+      List<Mutation> batch,
+      ConcurrentLinkedQueue<Connection> connections,
+      ThreadLocal<CloudSpannerJdbcConnection> workerConnection)
+      throws InterruptedException {
+    pendingBatches.acquire();
+    pool.execute(
+        () -> {
+          try {
+            CloudSpannerJdbcConnection connection = workerConnection.get();
+            if (connection == null) {
+              Connection jdbcConnection = DriverManager.getConnection(connectionUrl);
+              connections.add(jdbcConnection);
+              connection = jdbcConnection.unwrap(CloudSpannerJdbcConnection.class);
+              workerConnection.set(connection);
+            }
+            writeWithRetry(connection, batch);
+            rowsWritten.addAndGet(batch.size());
+            reportProgress(false);
+          } catch (SQLException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+          } catch (InterruptedException e) {
+            // The batch may not have been written, so the load cannot succeed.
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+          } finally {
+            pendingBatches.release();
+          }
+        });
+  }
+
+  /** Commit a batch, retrying transient errors with exponential backoff. */
+  private static void writeWithRetry(CloudSpannerJdbcConnection connection, List<Mutation> batch)
+      throws SQLException, InterruptedException {
+    long backoffMillis = 100;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        // In autocommit mode every write is committed in its own transaction.
+        connection.write(batch);
+        return;
+      } catch (SQLException e) {
+        if (attempt >= MAX_ATTEMPTS || !isRetryable(e)) {
+          throw e;
+        }
+        Thread.sleep(backoffMillis);
+        backoffMillis *= 2;
+      }
+    }
+  }
+
+  private static boolean isRetryable(SQLException e) {
+    // The Spanner JDBC driver reports the gRPC status code as the vendor error code.
+    Code code = Code.forNumber(e.getErrorCode());
+    return code == Code.ABORTED
+        || code == Code.UNAVAILABLE
+        || code == Code.DEADLINE_EXCEEDED
+        || code == Code.RESOURCE_EXHAUSTED;
+  }
+
+  private Mutation toMutation(CSVRecord record) {
+    WriteBuilder builder = Mutation.newInsertOrUpdateBuilder(tableName);
+    for (int i = 0; i < columnNames.length; i++) {
+      String recordValue = valueOf(record, i);
+      if (recordValue != null) {
+        converters.get(i).accept(builder.set(columnNames[i]), recordValue.trim());
+      }
+    }
+    return builder.build();
+  }
+
+  /** Return the CSV value of a column, by header name or by position when there is no header. */
+  private String valueOf(CSVRecord record, int column) {
+    if (hasHeader) {
+      return record.isMapped(columnNames[column]) ? record.get(columnNames[column]) : null;
+    }
+    return column < record.size() ? record.get(column) : null;
+  }
+
+  private long estimateBytes(CSVRecord record) {
+    long bytes = 0;
+    for (int i = 0; i < columnNames.length; i++) {
+      String recordValue = valueOf(record, i);
+      bytes += columnNames[i].length() + CELL_OVERHEAD_BYTES;
+      if (recordValue != null) {
+        bytes += recordValue.length();
+      }
+    }
+    return bytes;
+  }
+
+  private void reportProgress(boolean done) {
+    long now = System.nanoTime();
+    long last = lastReportNanos.get();
+    if (!done
+        && (now - last < PROGRESS_INTERVAL_NANOS || !lastReportNanos.compareAndSet(last, now))) {
+      return;
+    }
+    long rows = rowsWritten.get();
+    double seconds = Math.max(now - startNanos, 1) / 1e9;
+    System.out.printf("%d rows written (%.0f rows/s)%n", rows, rows / seconds);
+  }
+}
+//[END spanner_jdbc_load_csv_streaming_loader]
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.spanner.jdbc;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.jdbc.CloudSpannerJdbcConnection;
+import com.google.rpc.Code;
+import com.google.spanner.v1.TypeCode;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamingCsvLoader}, writing to mocked JDBC connections. */
+@RunWith(JUnit4.class)
+public class StreamingCsvLoaderTest {
+  private static final String URL = "jdbc:csvloadertest:";
+
+  private final List<List<Mutation>> batches = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger closed = new AtomicInteger();
+  // The errors the next writes fail with, in turn.
+  private final Queue<Exception> writeFailures = new ConcurrentLinkedQueue<>();
+  private volatile boolean interruptFailedWrites;
+  private Driver driver;
+
+  @Before
+  public void setUp() throws SQLException {
+    driver = new MockDriver();
+    DriverManager.registerDriver(driver);
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    DriverManager.deregisterDriver(driver);
+  }
+
+  @Test
+  public void testRecordsAreWrittenInBatchesUnderTheMutationLimit() throws Exception {
+    // Two columns, so five rows per batch of at most ten mutations.
+    StreamingCsvLoader loader = loader(2, 10);
+
+    long rows = loader.load(records(23));
+
+    assertThat(rows).isEqualTo(23);
+    assertThat(batches).hasSize(5);
+    int written = 0;
+    for (List<Mutation> batch : batches) {
+      assertThat(batch.size()).isAtMost(5);
+      written += batch.size();
+    }
+    assertThat(written).isEqualTo(23);
+    // A connection per worker, all closed once the load is done.
+    assertThat(connections.get()).isAtMost(2);
+    assertThat(closed.get()).isEqualTo(connections.get());
+  }
+
+  @Test
+  public void testTransientErrorsAreRetried() throws Exception {
+    writeFailures.add(new SQLException("aborted", "", Code.ABORTED_VALUE));
+
+    long rows = loader(1, 10).load(records(5));
+
+    assertThat(rows).isEqualTo(5);
+    assertThat(batches).hasSize(1);
+  }
+
+  @Test
+  public void testSqlErrorFailsTheLoad() throws Exception {
+    SQLException error = new SQLException("permission denied", "", Code.PERMISSION_DENIED_VALUE);
+    writeFailures.add(error);
+
+    SQLException e = assertThrows(SQLException.class, () -> loader(1, 10).load(records(1000)));
+
+    assertThat((Throwable) e).isSameInstanceAs(error);
+    // Reading stopped soon after the failure rather than going through the whole file.
+    assertThat(batches.size()).isLessThan(50);
+  }
+
+  @Test
+  public void testRuntimeErrorFailsTheLoad() throws Exception {
+    writeFailures.add(new IllegalStateException("session pool closed"));
+
+    IllegalStateException e =
+        assertThrows(IllegalStateException.class, () -> loader(1, 10).load(records(1000)));
+
+    assertThat(e).hasMessageThat().isEqualTo("session pool closed");
+    assertThat(batches.size()).isLessThan(50);
+    assertThat(closed.get()).isEqualTo(connections.get());
+  }
+
+  @Test
+  public void testInterruptedWriteFailsTheLoad() throws Exception {
+    // The worker is interrupted while it backs off before retrying.
+    writeFailures.add(new SQLException("aborted", "", Code.ABORTED_VALUE));
+    interruptFailedWrites = true;
+
+    assertThrows(InterruptedException.class, () -> loader(1, 10).load(records(1000)));
+  }
+
+  private StreamingCsvLoader loader(int workers, int maxMutationsPerBatch) {
+    Map<String, TypeCode> columns = new LinkedHashMap<>();
+    columns.put("SingerId", TypeCode.INT64);
+    columns.put("Name", TypeCode.STRING);
+    return new StreamingCsvLoader(
+        URL,
+        "Singers",
+        columns,
+        false,
+        workers,
+        maxMutationsPerBatch,
+        StreamingCsvLoader.DEFAULT_MAX_BATCH_BYTES);
+  }
+
+  private static Iterable<CSVRecord> records(int count) throws Exception {
+    StringBuilder csv = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      csv.append(i).append(",Singer ").append(i).append('\n');
+    }
+    return CSVParser.parse(csv.toString(), CSVFormat.DEFAULT);
+  }
+
+  // Writes through a connection that records its batches, or fails as the test asks.
+  private void write(List<Mutation> batch) throws Exception {
+    Exception failure = writeFailures.poll();
+    if (failure != null) {
+      if (interruptFailedWrites) {
+        Thread.currentThread().interrupt();
+      }
+      throw failure;
+    }
+    batches.add(batch);
+  }
+
+  private CloudSpannerJdbcConnection connection() {
+    connections.incrementAndGet();
+    return (CloudSpannerJdbcConnection)
+        Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {CloudSpannerJdbcConnection.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "unwrap":
+                  return proxy;
+                case "write":
+                  List<Mutation> batch = new ArrayList<>();
+                  for (Mutation mutation : (Iterable<Mutation>) args[0]) {
+                    batch.add(mutation);
+                  }
+                  write(batch);
+                  return null;
+                case "close":
+                  closed.incrementAndGet();
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  private class MockDriver implements Driver {
+    @Override
+    public Connection connect(String url, Properties info) {
+      return acceptsURL(url) ? connection() : null;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+      return url.startsWith(URL);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+      return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+      return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+      return Logger.getLogger(getClass().getName());
+    }
+  }
+}
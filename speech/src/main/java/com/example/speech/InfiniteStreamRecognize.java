@@ -30,15 +30,20 @@ import com.google.cloud.speech.v1p1beta1.StreamingRecognizeRequest;
 import com.google.cloud.speech.v1p1beta1.StreamingRecognizeResponse;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.DataLine.Info;
+import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
 
 public class InfiniteStreamRecognize {
@@ -49,22 +54,14 @@ public class InfiniteStreamRecognize {
   public static final String GREEN = "\033[0;32m";
   public static final String YELLOW = "\033[0;33m";
 
-  // Creating shared object
-  private static volatile BlockingQueue<byte[]> sharedQueue = new LinkedBlockingQueue<byte[]>();
-  private static TargetDataLine targetDataLine;
-  private static int BYTES_PER_BUFFER = 6400; // buffer size in bytes
-
-  private static int restartCounter = 0;
-  private static ArrayList<ByteString> audioInput = new ArrayList<ByteString>();
-  private static ArrayList<ByteString> lastAudioInput = new ArrayList<ByteString>();
-  private static int resultEndTimeInMS = 0;
-  private static int isFinalEndTime = 0;
-  private static int finalRequestEndTime = 0;
-  private static boolean newStream = true;
-  private static double bridgingOffset = 0;
-  private static boolean lastTranscriptWasFinal = false;
-  private static StreamController referenceToStreamController;
-  private static ByteString tempByteString;
+  private static final int SAMPLE_RATE_HERTZ = 16000;
+  // LINEAR16 mono: two bytes per sample.
+  private static final int BYTES_PER_MS = SAMPLE_RATE_HERTZ * 2 / 1000;
+  private static final int BYTES_PER_BUFFER = 6400; // buffer size in bytes, 200ms of audio
+  // The longest unfinalized tail kept for bridging into the next stream, in buffers (60s).
+  private static final int MAX_TAIL_BUFFERS = 60000 * BYTES_PER_MS / BYTES_PER_BUFFER;
+  // How many captured buffers may wait to be sent before capture blocks.
+  private static final int MAX_QUEUED_BUFFERS = 50;
 
   public static void main(String... args) {
     InfiniteStreamRecognizeOptions options = InfiniteStreamRecognizeOptions.fromFlags(args);
@@ -75,7 +72,14 @@ public class InfiniteStreamRecognize {
     }
 
     try {
-      infiniteStreamingRecognize(options.langCode);
+      if (options.inputFile != null) {
+        try (InputStream in = new FileInputStream(options.inputFile)) {
+          infiniteStreamingRecognize(
+              options.langCode, new InputStreamAudioSource(in, options.realTime));
+        }
+      } else {
+        infiniteStreamingRecognize(options.langCode);
+      }
     } catch (Exception e) {
       System.out.println("Exception caught: " + e);
     }
@@ -93,208 +97,352 @@ public class InfiniteStreamRecognize {
                 - TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(millis))));
   }
 
-  /** Performs infinite streaming speech recognition */
+  /** Performs infinite streaming speech recognition on the microphone */
   public static void infiniteStreamingRecognize(String languageCode) throws Exception {
+    infiniteStreamingRecognize(languageCode, new MicrophoneAudioSource());
+  }
 
-    // Microphone Input buffering
-    class MicBuffer implements Runnable {
+  /** Performs infinite streaming speech recognition on 16kHz LINEAR16 mono audio */
+  public static void infiniteStreamingRecognize(String languageCode, AudioSource audioSource)
+      throws Exception {
+    try (SpeechClient client = SpeechClient.create()) {
+      new StreamingSession(client, languageCode, audioSource).run();
+    }
+  }
 
-      @Override
-      public void run() {
-        System.out.println(YELLOW);
-        System.out.println("Start speaking...Press Ctrl-C to stop");
-        targetDataLine.start();
-        byte[] data = new byte[BYTES_PER_BUFFER];
-        while (targetDataLine.isOpen()) {
-          try {
-            int numBytesRead = targetDataLine.read(data, 0, data.length);
-            if ((numBytesRead <= 0) && (targetDataLine.isOpen())) {
-              continue;
+  /** A source of 16kHz, 16 bit, mono, little-endian audio */
+  public interface AudioSource {
+
+    void start() throws IOException;
+
+    /** Reads up to buffer.length bytes, returning the number read or -1 at the end of audio. */
+    int read(byte[] buffer) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  /** Captures audio from the microphone. */
+  public static class MicrophoneAudioSource implements AudioSource {
+    private TargetDataLine targetDataLine;
+
+    @Override
+    public void start() throws IOException {
+      // SampleRate:16000Hz, SampleSizeInBits: 16, Number of channels: 1, Signed: true,
+      // bigEndian: false
+      AudioFormat audioFormat = new AudioFormat(SAMPLE_RATE_HERTZ, 16, 1, true, false);
+      DataLine.Info targetInfo =
+          new Info(
+              TargetDataLine.class,
+              audioFormat); // Set the system information to read from the microphone audio
+      // stream
+
+      if (!AudioSystem.isLineSupported(targetInfo)) {
+        throw new IOException("Microphone not supported");
+      }
+      try {
+        // Target data line captures the audio stream the microphone produces.
+        targetDataLine = (TargetDataLine) AudioSystem.getLine(targetInfo);
+        targetDataLine.open(audioFormat);
+      } catch (LineUnavailableException e) {
+        throw new IOException(e);
+      }
+      System.out.println(YELLOW);
+      System.out.println("Start speaking...Press Ctrl-C to stop");
+      targetDataLine.start();
+    }
+
+    @Override
+    public int read(byte[] buffer) {
+      return targetDataLine.isOpen() ? targetDataLine.read(buffer, 0, buffer.length) : -1;
+    }
+
+    @Override
+    public void close() {
+      targetDataLine.close();
+    }
+  }
+
+  /** Reads audio from a stream, such as a raw audio file, optionally paced at real time. */
+  public static class InputStreamAudioSource implements AudioSource {
+    private final InputStream in;
+    private final boolean realTime;
+    private long startNanos;
+    private long bytesRead;
+
+    public InputStreamAudioSource(InputStream in, boolean realTime) {
+      this.in = in;
+      this.realTime = realTime;
+    }
+
+    @Override
+    public void start() {
+      startNanos = System.nanoTime();
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+      int n = in.read(buffer);
+      if (n > 0) {
+        bytesRead += n;
+        if (realTime) {
+          // Do not get ahead of the time this much audio takes to play.
+          long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+          long aheadMillis = bytesRead / BYTES_PER_MS - elapsedMillis;
+          if (aheadMillis > 0) {
+            try {
+              Thread.sleep(aheadMillis);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return -1;
             }
-            sharedQueue.put(data.clone());
-          } catch (InterruptedException e) {
-            System.out.println("Microphone input buffering interrupted : " + e.getMessage());
           }
         }
       }
+      return n;
     }
 
-    // Creating microphone input buffer thread
-    MicBuffer micrunnable = new MicBuffer();
-    Thread micThread = new Thread(micrunnable);
-    ResponseObserver<StreamingRecognizeResponse> responseObserver = null;
-    try (SpeechClient client = SpeechClient.create()) {
-      ClientStream<StreamingRecognizeRequest> clientStream;
-      responseObserver =
-          new ResponseObserver<StreamingRecognizeResponse>() {
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
 
-            ArrayList<StreamingRecognizeResponse> responses = new ArrayList<>();
+  /**
+   * The audio sent since the last final result, kept to be resent to the next stream. Chunks are
+   * stored by reference in a fixed ring; the oldest is dropped once the ring is full.
+   */
+  static class AudioRingBuffer {
+    private final ByteString[] chunks;
+    private final long[] endMillis;
+    private int head;
+    private int size;
+
+    AudioRingBuffer(int capacity) {
+      chunks = new ByteString[capacity];
+      endMillis = new long[capacity];
+    }
 
-            public void onStart(StreamController controller) {
-              referenceToStreamController = controller;
-            }
+    /** Adds a chunk that ends at the given audio time. */
+    synchronized void add(ByteString chunk, long chunkEndMillis) {
+      int tail = (head + size) % chunks.length;
+      chunks[tail] = chunk;
+      endMillis[tail] = chunkEndMillis;
+      if (size == chunks.length) {
+        head = (head + 1) % chunks.length;
+      } else {
+        size++;
+      }
+    }
 
-            public void onResponse(StreamingRecognizeResponse response) {
-              responses.add(response);
-              StreamingRecognitionResult result = response.getResultsList().get(0);
-              Duration resultEndTime = result.getResultEndTime();
-              resultEndTimeInMS =
-                  (int)
-                      ((resultEndTime.getSeconds() * 1000) + (resultEndTime.getNanos() / 1000000));
-              double correctedTime =
-                  resultEndTimeInMS - bridgingOffset + (STREAMING_LIMIT * restartCounter);
-
-              SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
-              if (result.getIsFinal()) {
-                System.out.print(GREEN);
-                System.out.print("\033[2K\r");
-                System.out.printf(
-                    "%s: %s [confidence: %.2f]\n",
-                    convertMillisToDate(correctedTime),
-                    alternative.getTranscript(),
-                    alternative.getConfidence());
-                isFinalEndTime = resultEndTimeInMS;
-                lastTranscriptWasFinal = true;
-              } else {
-                System.out.print(RED);
-                System.out.print("\033[2K\r");
-                System.out.printf(
-                    "%s: %s", convertMillisToDate(correctedTime), alternative.getTranscript());
-                lastTranscriptWasFinal = false;
-              }
-            }
+    /** Drops every chunk that ends at or before the given audio time. */
+    synchronized void finalizeUntil(long audioMillis) {
+      while (size > 0 && endMillis[head] <= audioMillis) {
+        chunks[head] = null;
+        head = (head + 1) % chunks.length;
+        size--;
+      }
+    }
 
-            public void onComplete() {}
+    /** Returns the audio time the kept chunks start at, or the given time if there are none. */
+    synchronized long startMillis(long audioMillis) {
+      if (size == 0) {
+        return audioMillis;
+      }
+      return endMillis[head] - chunks[head].size() / BYTES_PER_MS;
+    }
 
-            public void onError(Throwable t) {}
-          };
-      clientStream = client.streamingRecognizeCallable().splitCall(responseObserver);
+    /** Returns the kept chunks, oldest first. */
+    synchronized ByteString[] snapshot() {
+      ByteString[] result = new ByteString[size];
+      for (int i = 0; i < size; i++) {
+        result[i] = chunks[(head + i) % chunks.length];
+      }
+      return result;
+    }
+  }
 
+  /**
+   * One recognition session over an audio source. All state lives in the session, so several
+   * sessions can run in the same JVM. Streams are restarted before the API's streaming limit,
+   * resending the unfinalized audio so no speech is lost across the restart.
+   */
+  public static class StreamingSession {
+    // Marks the end of the audio source in the capture queue.
+    private static final ByteString END_OF_AUDIO = ByteString.EMPTY;
+
+    private final SpeechClient client;
+    private final StreamingRecognitionConfig streamingRecognitionConfig;
+    private final AudioSource audioSource;
+    private final BlockingQueue<ByteString> capturedAudio =
+        new ArrayBlockingQueue<>(MAX_QUEUED_BUFFERS);
+    private final AudioRingBuffer unfinalizedAudio = new AudioRingBuffer(MAX_TAIL_BUFFERS);
+
+    // Total audio captured and sent, in ms since the session started.
+    private long sentAudioMillis;
+    private volatile boolean lastTranscriptWasFinal = true;
+
+    public StreamingSession(SpeechClient client, String languageCode, AudioSource audioSource) {
+      this.client = client;
+      this.audioSource = audioSource;
       RecognitionConfig recognitionConfig =
           RecognitionConfig.newBuilder()
               .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
               .setLanguageCode(languageCode)
-              .setSampleRateHertz(16000)
+              .setSampleRateHertz(SAMPLE_RATE_HERTZ)
               .build();
-
-      StreamingRecognitionConfig streamingRecognitionConfig =
+      this.streamingRecognitionConfig =
           StreamingRecognitionConfig.newBuilder()
               .setConfig(recognitionConfig)
               .setInterimResults(true)
               .build();
+    }
 
-      StreamingRecognizeRequest request =
-          StreamingRecognizeRequest.newBuilder()
-              .setStreamingConfig(streamingRecognitionConfig)
-              .build(); // The first request in a streaming call has to be a config
-
-      clientStream.send(request);
+    /** Streams the audio source until it ends. */
+    public void run() throws Exception {
+      audioSource.start();
+      Thread captureThread = new Thread(this::capture, "audio-capture");
+      captureThread.setDaemon(true);
+      captureThread.start();
 
       try {
-        // SampleRate:16000Hz, SampleSizeInBits: 16, Number of channels: 1, Signed: true,
-        // bigEndian: false
-        AudioFormat audioFormat = new AudioFormat(16000, 16, 1, true, false);
-        DataLine.Info targetInfo =
-            new Info(
-                TargetDataLine.class,
-                audioFormat); // Set the system information to read from the microphone audio
-        // stream
-
-        if (!AudioSystem.isLineSupported(targetInfo)) {
-          System.out.println("Microphone not supported");
-          System.exit(0);
-        }
-        // Target data line captures the audio stream the microphone produces.
-        targetDataLine = (TargetDataLine) AudioSystem.getLine(targetInfo);
-        targetDataLine.open(audioFormat);
-        micThread.start();
-
-        long startTime = System.currentTimeMillis();
-
+        RecognizeStream stream = startStream();
         while (true) {
-
-          long estimatedTime = System.currentTimeMillis() - startTime;
-
-          if (estimatedTime >= STREAMING_LIMIT) {
-
-            clientStream.closeSend();
-            referenceToStreamController.cancel(); // remove Observer
-
-            if (resultEndTimeInMS > 0) {
-              finalRequestEndTime = isFinalEndTime;
-            }
-            resultEndTimeInMS = 0;
-
-            lastAudioInput = null;
-            lastAudioInput = audioInput;
-            audioInput = new ArrayList<ByteString>();
-
-            restartCounter++;
-
+          ByteString chunk = capturedAudio.take();
+          if (chunk == END_OF_AUDIO) {
+            break;
+          }
+          // Restart when either the connection or the audio sent on it nears the limit.
+          if (System.currentTimeMillis() - stream.startTime >= STREAMING_LIMIT
+              || sentAudioMillis - stream.startMillis >= STREAMING_LIMIT) {
+            stream.close();
             if (!lastTranscriptWasFinal) {
               System.out.print('\n');
             }
+            System.out.println(YELLOW);
+            System.out.printf("%d: RESTARTING REQUEST\n", sentAudioMillis);
+            stream = startStream();
+          }
+          stream.clientStream.send(
+              StreamingRecognizeRequest.newBuilder().setAudioContent(chunk).build());
+          sentAudioMillis += chunk.size() / BYTES_PER_MS;
+          unfinalizedAudio.add(chunk, sentAudioMillis);
+        }
+        // Wait for the results of the last audio before returning.
+        stream.clientStream.closeSend();
+        stream.completed.await(STREAMING_LIMIT, TimeUnit.MILLISECONDS);
+      } finally {
+        audioSource.close();
+        captureThread.interrupt();
+      }
+    }
 
-            newStream = true;
-
-            clientStream = client.streamingRecognizeCallable().splitCall(responseObserver);
+    // Reads the audio source into the capture queue. Every buffer is freshly allocated and wrapped
+    // without copying, as it is referenced by the request and the unfinalized tail.
+    private void capture() {
+      try {
+        while (true) {
+          byte[] data = new byte[BYTES_PER_BUFFER];
+          int numBytesRead = audioSource.read(data);
+          if (numBytesRead < 0) {
+            break;
+          }
+          if (numBytesRead > 0) {
+            capturedAudio.put(UnsafeByteOperations.unsafeWrap(data, 0, numBytesRead));
+          }
+        }
+      } catch (IOException e) {
+        System.out.println("Audio capture failed : " + e.getMessage());
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        capturedAudio.put(END_OF_AUDIO);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
 
-            request =
-                StreamingRecognizeRequest.newBuilder()
-                    .setStreamingConfig(streamingRecognitionConfig)
-                    .build();
+    // Opens a new stream and resends the audio the previous stream had not finalized.
+    private RecognizeStream startStream() {
+      ByteString[] bridgingAudio = unfinalizedAudio.snapshot();
+      long streamStartMillis = unfinalizedAudio.startMillis(sentAudioMillis);
+      RecognizeStream stream = new RecognizeStream(streamStartMillis);
+      stream.clientStream = client.streamingRecognizeCallable().splitCall(stream);
+      // The first request in a streaming call has to be a config
+      stream.clientStream.send(
+          StreamingRecognizeRequest.newBuilder()
+              .setStreamingConfig(streamingRecognitionConfig)
+              .build());
+      for (ByteString chunk : bridgingAudio) {
+        stream.clientStream.send(
+            StreamingRecognizeRequest.newBuilder().setAudioContent(chunk).build());
+      }
+      return stream;
+    }
 
-            System.out.println(YELLOW);
-            System.out.printf("%d: RESTARTING REQUEST\n", restartCounter * STREAMING_LIMIT);
-
-            startTime = System.currentTimeMillis();
-
-          } else {
-
-            if ((newStream) && (lastAudioInput.size() > 0)) {
-              // if this is the first audio from a new request
-              // calculate amount of unfinalized audio from last request
-              // resend the audio to the speech client before incoming audio
-              double chunkTime = STREAMING_LIMIT / lastAudioInput.size();
-              // ms length of each chunk in previous request audio arrayList
-              if (chunkTime != 0) {
-                if (bridgingOffset < 0) {
-                  // bridging Offset accounts for time of resent audio
-                  // calculated from last request
-                  bridgingOffset = 0;
-                }
-                if (bridgingOffset > finalRequestEndTime) {
-                  bridgingOffset = finalRequestEndTime;
-                }
-                int chunksFromMs =
-                    (int) Math.floor((finalRequestEndTime - bridgingOffset) / chunkTime);
-                // chunks from MS is number of chunks to resend
-                bridgingOffset =
-                    (int) Math.floor((lastAudioInput.size() - chunksFromMs) * chunkTime);
-                // set bridging offset for next request
-                for (int i = chunksFromMs; i < lastAudioInput.size(); i++) {
-                  request =
-                      StreamingRecognizeRequest.newBuilder()
-                          .setAudioContent(lastAudioInput.get(i))
-                          .build();
-                  clientStream.send(request);
-                }
-              }
-              newStream = false;
-            }
+    /** A single streaming call, whose result times are relative to where its audio started. */
+    private class RecognizeStream implements ResponseObserver<StreamingRecognizeResponse> {
+      private final long startMillis;
+      private final long startTime = System.currentTimeMillis();
+      private final CountDownLatch completed = new CountDownLatch(1);
+      private ClientStream<StreamingRecognizeRequest> clientStream;
+      private StreamController controller;
 
-            tempByteString = ByteString.copyFrom(sharedQueue.take());
+      RecognizeStream(long startMillis) {
+        this.startMillis = startMillis;
+      }
 
-            request =
-                StreamingRecognizeRequest.newBuilder().setAudioContent(tempByteString).build();
+      void close() {
+        clientStream.closeSend();
+        if (controller != null) {
+          controller.cancel(); // remove Observer
+        }
+      }
 
-            audioInput.add(tempByteString);
-          }
+      @Override
+      public void onStart(StreamController controller) {
+        this.controller = controller;
+      }
 
-          clientStream.send(request);
+      @Override
+      public void onResponse(StreamingRecognizeResponse response) {
+        if (response.getResultsCount() == 0) {
+          return;
+        }
+        StreamingRecognitionResult result = response.getResultsList().get(0);
+        Duration resultEndTime = result.getResultEndTime();
+        long correctedTime =
+            startMillis + resultEndTime.getSeconds() * 1000 + resultEndTime.getNanos() / 1000000;
+
+        SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
+        if (result.getIsFinal()) {
+          System.out.print(GREEN);
+          System.out.print("\033[2K\r");
+          System.out.printf(
+              "%s: %s [confidence: %.2f]\n",
+              convertMillisToDate(correctedTime),
+              alternative.getTranscript(),
+              alternative.getConfidence());
+          // Audio up to here will not need to be resent to the next stream.
+          unfinalizedAudio.finalizeUntil(correctedTime);
+          lastTranscriptWasFinal = true;
+        } else {
+          System.out.print(RED);
+          System.out.print("\033[2K\r");
+          System.out.printf(
+              "%s: %s", convertMillisToDate(correctedTime), alternative.getTranscript());
+          lastTranscriptWasFinal = false;
         }
-      } catch (Exception e) {
-        System.out.println(e);
+      }
+
+      @Override
+      public void onComplete() {
+        completed.countDown();
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        completed.countDown();
       }
     }
   }
@@ -25,6 +25,8 @@ import org.apache.commons.cli.ParseException;
 
 public class InfiniteStreamRecognizeOptions {
   String langCode = "en-US"; // by default english US
+  String inputFile = null; // by default the microphone
+  boolean realTime = true; // send file audio no faster than it plays
 
   /** Construct an InfiniteStreamRecognizeOptions class from command line flags. */
   public static InfiniteStreamRecognizeOptions fromFlags(String[] args) {
@@ -36,6 +38,18 @@ public class InfiniteStreamRecognizeOptions {
             .hasArg()
             .desc("Language code")
             .build());
+    options.addOption(
+        Option.builder()
+            .type(String.class)
+            .longOpt("input_file")
+            .hasArg()
+            .desc("Raw 16kHz LINEAR16 mono audio file to recognize instead of the microphone")
+            .build());
+    options.addOption(
+        Option.builder()
+            .longOpt("no_real_time")
+            .desc("Send the input file as fast as possible instead of at real time")
+            .build());
 
     CommandLineParser parser = new DefaultParser();
     CommandLine commandLine;
@@ -46,6 +60,10 @@ public class InfiniteStreamRecognizeOptions {
       if (commandLine.hasOption("lang_code")) {
         res.langCode = commandLine.getOptionValue("lang_code");
       }
+      if (commandLine.hasOption("input_file")) {
+        res.inputFile = commandLine.getOptionValue("input_file");
+      }
+      res.realTime = !commandLine.hasOption("no_real_time");
       return res;
     } catch (ParseException e) {
       System.err.println(e.getMessage());
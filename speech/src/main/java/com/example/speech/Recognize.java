@@ -16,12 +16,12 @@
 
 package com.example.speech;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.longrunning.OperationFuture;
 import com.google.api.gax.longrunning.OperationTimedPollAlgorithm;
 import com.google.api.gax.retrying.RetrySettings;
 import com.google.api.gax.retrying.TimedRetryAlgorithm;
-import com.google.api.gax.rpc.ApiStreamObserver;
-import com.google.api.gax.rpc.BidiStreamingCallable;
 import com.google.api.gax.rpc.ClientStream;
 import com.google.api.gax.rpc.ResponseObserver;
 import com.google.api.gax.rpc.StreamController;
@@ -40,13 +40,13 @@ import com.google.cloud.speech.v1.StreamingRecognitionResult;
 import com.google.cloud.speech.v1.StreamingRecognizeRequest;
 import com.google.cloud.speech.v1.StreamingRecognizeResponse;
 import com.google.cloud.speech.v1.WordInfo;
-import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -68,6 +68,7 @@ public class Recognize {
               + "\tsyncrecognize | asyncrecognize | streamrecognize | micstreamrecognize \n"
               + "\t| wordoffsets | auto-punctuation | stream-punctuation \n"
               + "\t| enhanced-model | model-selection | multi-channel\n"
+              + "\t| streamrecognize-files (followed by several paths)\n"
               + "Path:\n\tA file path (ex: ./resources/audio.raw) or a URI "
               + "for a Cloud Storage resource (gs://...)\n",
           Recognize.class.getCanonicalName());
@@ -105,6 +106,8 @@ public class Recognize {
       } else {
         transcribeFileWithAutomaticPunctuation(path);
       }
+    } else if (command.equals("streamrecognize-files")) {
+      streamingRecognizeFiles(Arrays.copyOfRange(args, 1, args.length));
     } else if (command.equals("stream-punctuation")) {
       streamingTranscribeWithAutomaticPunctuation(path);
     } else if (command.equals("enhanced-model")) {
@@ -391,7 +394,6 @@ public class Recognize {
    */
   public static void streamingRecognizeFile(String fileName) throws Exception, IOException {
     Path path = Paths.get(fileName);
-    byte[] data = Files.readAllBytes(path);
 
     // Instantiates a client with GOOGLE_APPLICATION_CREDENTIALS
     try (SpeechClient speech = SpeechClient.create()) {
@@ -407,64 +409,26 @@ public class Recognize {
       StreamingRecognitionConfig config =
           StreamingRecognitionConfig.newBuilder().setConfig(recConfig).build();
 
-      class ResponseApiStreamingObserver<T> implements ApiStreamObserver<T> {
-        private final SettableFuture<List<T>> future = SettableFuture.create();
-        private final List<T> messages = new java.util.ArrayList<T>();
-
-        @Override
-        public void onNext(T message) {
-          messages.add(message);
-        }
-
-        @Override
-        public void onError(Throwable t) {
-          future.setException(t);
-        }
-
-        @Override
-        public void onCompleted() {
-          future.set(messages);
-        }
-
-        // Returns the SettableFuture object to get received messages / exceptions.
-        public SettableFuture<List<T>> future() {
-          return future;
-        }
-      }
-
-      ResponseApiStreamingObserver<StreamingRecognizeResponse> responseObserver =
-          new ResponseApiStreamingObserver<>();
-
-      BidiStreamingCallable<StreamingRecognizeRequest, StreamingRecognizeResponse> callable =
-          speech.streamingRecognizeCallable();
-
-      ApiStreamObserver<StreamingRecognizeRequest> requestObserver =
-          callable.bidiStreamingCall(responseObserver);
-
-      // The first request must **only** contain the audio configuration:
-      requestObserver.onNext(
-          StreamingRecognizeRequest.newBuilder().setStreamingConfig(config).build());
-
-      // Subsequent requests must **only** contain the audio data.
-      requestObserver.onNext(
-          StreamingRecognizeRequest.newBuilder()
-              .setAudioContent(ByteString.copyFrom(data))
-              .build());
-
-      // Mark transmission as completed after sending the data.
-      requestObserver.onCompleted();
-
-      List<StreamingRecognizeResponse> responses = responseObserver.future().get();
-
-      for (StreamingRecognizeResponse response : responses) {
-        // For streaming recognize, the results list has one is_final result (if available) followed
-        // by a number of in-progress results (if iterim_results is true) for subsequent utterances.
-        // Just print the first result here.
-        StreamingRecognitionResult result = response.getResultsList().get(0);
-        // There can be several alternative transcripts for a given chunk of speech. Just use the
-        // first (most likely) one here.
-        SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
-        System.out.printf("Transcript : %s\n", alternative.getTranscript());
+      // Send the file in 100 ms chunks at the pace the audio plays, as a microphone would, without
+      // reading it into memory, and print each transcript as it arrives. See
+      // StreamingFileRecognizer.java.
+      try (StreamingFileRecognizer recognizer = new StreamingFileRecognizer(speech, config)) {
+        recognizer
+            .recognize(
+                path,
+                response -> {
+                  // For streaming recognize, the results list has one is_final result (if
+                  // available) followed by a number of in-progress results (if iterim_results is
+                  // true) for subsequent utterances. Just print the first result here.
+                  if (response.getResultsCount() > 0) {
+                    StreamingRecognitionResult result = response.getResults(0);
+                    // There can be several alternative transcripts for a given chunk of speech.
+                    // Just use the first (most likely) one here.
+                    SpeechRecognitionAlternative alternative = result.getAlternatives(0);
+                    System.out.printf("Transcript : %s\n", alternative.getTranscript());
+                  }
+                })
+            .get();
       }
     }
   }
@@ -560,7 +524,6 @@ public class Recognize {
    */
   public static void streamingTranscribeWithAutomaticPunctuation(String fileName) throws Exception {
     Path path = Paths.get(fileName);
-    byte[] data = Files.readAllBytes(path);
 
     // Instantiates a client with GOOGLE_APPLICATION_CREDENTIALS
     try (SpeechClient speech = SpeechClient.create()) {
@@ -578,68 +541,73 @@ public class Recognize {
       StreamingRecognitionConfig config =
           StreamingRecognitionConfig.newBuilder().setConfig(recConfig).build();
 
-      class ResponseApiStreamingObserver<T> implements ApiStreamObserver<T> {
-        private final SettableFuture<List<T>> future = SettableFuture.create();
-        private final List<T> messages = new java.util.ArrayList<T>();
-
-        @Override
-        public void onNext(T message) {
-          messages.add(message);
-        }
-
-        @Override
-        public void onError(Throwable t) {
-          future.setException(t);
-        }
-
-        @Override
-        public void onCompleted() {
-          future.set(messages);
-        }
-
-        // Returns the SettableFuture object to get received messages / exceptions.
-        public SettableFuture<List<T>> future() {
-          return future;
-        }
+      // Send the file in 100 ms chunks at the pace the audio plays, as a microphone would, without
+      // reading it into memory, and print each transcript as it arrives. See
+      // StreamingFileRecognizer.java.
+      try (StreamingFileRecognizer recognizer = new StreamingFileRecognizer(speech, config)) {
+        recognizer
+            .recognize(
+                path,
+                response -> {
+                  // For streaming recognize, the results list has one is_final result (if
+                  // available) followed by a number of in-progress results (if iterim_results is
+                  // true) for subsequent utterances. Just print the first result here.
+                  if (response.getResultsCount() > 0) {
+                    StreamingRecognitionResult result = response.getResults(0);
+                    // There can be several alternative transcripts for a given chunk of speech.
+                    // Just use the first (most likely) one here.
+                    SpeechRecognitionAlternative alternative = result.getAlternatives(0);
+                    System.out.printf("Transcript : %s\n", alternative.getTranscript());
+                  }
+                })
+            .get();
       }
+    }
+  }
+  // [END speech_stream_recognize_punctuation]
 
-      ResponseApiStreamingObserver<StreamingRecognizeResponse> responseObserver =
-          new ResponseApiStreamingObserver<>();
-
-      BidiStreamingCallable<StreamingRecognizeRequest, StreamingRecognizeResponse> callable =
-          speech.streamingRecognizeCallable();
-
-      ApiStreamObserver<StreamingRecognizeRequest> requestObserver =
-          callable.bidiStreamingCall(responseObserver);
-
-      // The first request must **only** contain the audio configuration:
-      requestObserver.onNext(
-          StreamingRecognizeRequest.newBuilder().setStreamingConfig(config).build());
-
-      // Subsequent requests must **only** contain the audio data.
-      requestObserver.onNext(
-          StreamingRecognizeRequest.newBuilder()
-              .setAudioContent(ByteString.copyFrom(data))
-              .build());
-
-      // Mark transmission as completed after sending the data.
-      requestObserver.onCompleted();
+  // [START speech_transcribe_streaming_files]
+  /**
+   * Performs streaming speech recognition on several raw PCM audio files at once, sharing a client.
+   *
+   * @param fileNames the paths to the PCM audio files to transcribe.
+   */
+  public static void streamingRecognizeFiles(String... fileNames) throws Exception {
+    // Instantiates a client with GOOGLE_APPLICATION_CREDENTIALS
+    try (SpeechClient speech = SpeechClient.create()) {
 
-      List<StreamingRecognizeResponse> responses = responseObserver.future().get();
+      // Configure request with local raw PCM audio
+      RecognitionConfig recConfig =
+          RecognitionConfig.newBuilder()
+              .setEncoding(AudioEncoding.LINEAR16)
+              .setLanguageCode("en-US")
+              .setSampleRateHertz(16000)
+              .build();
+      StreamingRecognitionConfig config =
+          StreamingRecognitionConfig.newBuilder().setConfig(recConfig).build();
 
-      for (StreamingRecognizeResponse response : responses) {
-        // For streaming recognize, the results list has one is_final result (if available) followed
-        // by a number of in-progress results (if iterim_results is true) for subsequent utterances.
-        // Just print the first result here.
-        StreamingRecognitionResult result = response.getResultsList().get(0);
-        // There can be several alternative transcripts for a given chunk of speech. Just use the
-        // first (most likely) one here.
-        SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
-        System.out.printf("Transcript : %s\n", alternative.getTranscript());
+      // Each file is streamed over the one client, all at once, and its transcripts are printed
+      // as they arrive.
+      try (StreamingFileRecognizer recognizer = new StreamingFileRecognizer(speech, config)) {
+        List<ApiFuture<Void>> done = new ArrayList<>();
+        for (String fileName : fileNames) {
+          done.add(
+              recognizer.recognize(
+                  Paths.get(fileName),
+                  response -> {
+                    for (StreamingRecognitionResult result : response.getResultsList()) {
+                      if (result.getIsFinal() && result.getAlternativesCount() > 0) {
+                        System.out.printf(
+                            "%s: %s\n", fileName, result.getAlternatives(0).getTranscript());
+                      }
+                    }
+                  }));
+        }
+        ApiFutures.allAsList(done).get();
       }
     }
   }
-  // [END speech_stream_recognize_punctuation]
+  // [END speech_transcribe_streaming_files]
 
   // [START speech_transcribe_streaming_mic]
   /** Performs microphone streaming speech recognition with a duration of 1 minute. */
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+// [START speech_streaming_file_recognizer]
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Streams audio files to the Speech-to-Text API for recognition, as a microphone would, without
+ * reading them into memory.
+ *
+ * <p>Each file is memory-mapped and sent in chunks of a fixed duration, each wrapping its part of
+ * the mapping rather than a copy. Chunks are sent at the pace the audio plays, or a multiple of it,
+ * and responses are passed to a callback as they arrive. Sending is scheduled on a few threads
+ * shared by all files, rather than a thread sleeping for each, so many files can be recognized at
+ * once on one {@link SpeechClient}.
+ *
+ * <p>Only uncompressed audio can be paced, as its duration follows from its size. A stream is
+ * limited to about five minutes of audio; {@link InfiniteStreamRecognize} restarts streams to go on
+ * for longer.
+ */
+public class StreamingFileRecognizer implements AutoCloseable {
+
+  public static final Duration DEFAULT_CHUNK_DURATION = Duration.ofMillis(100);
+  // The audio of a streaming request is limited to 25 KB.
+  static final int MAX_CHUNK_BYTES = 25000;
+  // How long to wait before trying again to send when the stream is not ready for more.
+  private static final long SEND_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final SpeechClient speech;
+  private final StreamingRecognizeRequest configRequest;
+  private final long bytesPerSecond;
+  private final int chunkBytes;
+  private final double speedup;
+  private final ScheduledExecutorService scheduler;
+  private final Set<FileStream> streams = ConcurrentHashMap.newKeySet();
+
+  /** Creates a recognizer sending 100 ms chunks at the pace the audio plays. */
+  public StreamingFileRecognizer(SpeechClient speech, StreamingRecognitionConfig config) {
+    this(speech, config, DEFAULT_CHUNK_DURATION, 1);
+  }
+
+  /**
+   * Creates a recognizer sending chunks of {@code chunkDuration} of audio, {@code speedup} times
+   * faster than the audio plays. A speedup of {@link Double#POSITIVE_INFINITY} sends the audio as
+   * fast as the stream accepts it. The client isn't closed by the recognizer.
+   */
+  public StreamingFileRecognizer(
+      SpeechClient speech,
+      StreamingRecognitionConfig config,
+      Duration chunkDuration,
+      double speedup) {
+    if (!(speedup > 0)) {
+      throw new IllegalArgumentException("speedup must be positive");
+    }
+    RecognitionConfig recognitionConfig = config.getConfig();
+    int bytesPerSample;
+    switch (recognitionConfig.getEncoding()) {
+      case LINEAR16:
+        bytesPerSample = 2;
+        break;
+      case MULAW:
+        bytesPerSample = 1;
+        break;
+      default:
+        throw new IllegalArgumentException(
+            "Only LINEAR16 and MULAW audio can be paced, not " + recognitionConfig.getEncoding());
+    }
+    if (recognitionConfig.getSampleRateHertz() <= 0) {
+      throw new IllegalArgumentException("The sample rate must be set to pace the audio");
+    }
+    int bytesPerFrame = bytesPerSample * Math.max(1, recognitionConfig.getAudioChannelCount());
+    this.speech = speech;
+    this.configRequest = StreamingRecognizeRequest.newBuilder().setStreamingConfig(config).build();
+    this.bytesPerSecond = (long) recognitionConfig.getSampleRateHertz() * bytesPerFrame;
+    // Whole frames, so that no sample is split between chunks.
+    long frames = bytesPerSecond * chunkDuration.toNanos() / TimeUnit.SECONDS.toNanos(1)
+        / bytesPerFrame;
+    this.chunkBytes = (int) Math.max(1, frames) * bytesPerFrame;
+    if (chunkBytes > MAX_CHUNK_BYTES) {
+      throw new IllegalArgumentException(
+          String.format(
+              "A chunk of %d ms is %d bytes, more than a request can hold",
+              chunkDuration.toMillis(), chunkBytes));
+    }
+    this.speedup = speedup;
+
+    AtomicInteger threads = new AtomicInteger();
+    this.scheduler =
+        Executors.newScheduledThreadPool(
+            2,
+            runnable -> {
+              Thread thread = new Thread(runnable, "streaming-file-" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Starts recognizing the audio file, passing each response to {@code onResponse} as it arrives.
+   * The returned future completes once the last response has been passed on, or fails with the
+   * error that ended the stream. Cancelling it cancels the stream.
+   */
+  public ApiFuture<Void> recognize(Path file, Consumer<StreamingRecognizeResponse> onResponse)
+      throws IOException {
+    ByteBuffer audio;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // The mapping stays valid once the channel is closed.
+      audio = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    FileStream stream = new FileStream(audio, onResponse);
+    stream.start();
+    return stream.done;
+  }
+
+  /** Stops sending audio; the streams of files not yet sent in full fail. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    for (FileStream stream : streams) {
+      stream.fail(new IllegalStateException("The recognizer is closed"));
+    }
+  }
+
+  // Sends the audio of a file in chunks, each when it is due, and passes on the responses.
+  private class FileStream implements ResponseObserver<StreamingRecognizeResponse>, Runnable {
+    final SettableApiFuture<Void> done = SettableApiFuture.create();
+    private final ByteBuffer audio;
+    private final Consumer<StreamingRecognizeResponse> onResponse;
+    private volatile StreamController controller;
+    private ClientStream<StreamingRecognizeRequest> requests;
+    private long startNanos;
+
+    FileStream(ByteBuffer audio, Consumer<StreamingRecognizeResponse> onResponse) {
+      this.audio = audio;
+      this.onResponse = onResponse;
+    }
+
+    void start() {
+      requests = speech.streamingRecognizeCallable().splitCall(this);
+      streams.add(this);
+      done.addListener(
+          () -> {
+            streams.remove(this);
+            if (done.isCancelled() && controller != null) {
+              controller.cancel();
+            }
+          },
+          MoreExecutors.directExecutor());
+      // The first request must only contain the configuration, and the others only audio.
+      requests.send(configRequest);
+      startNanos = System.nanoTime();
+      schedule(0);
+    }
+
+    // Sends the chunks that are due, then schedules itself for the next one.
+    @Override
+    public void run() {
+      try {
+        while (!done.isDone() && audio.hasRemaining()) {
+          long dueNanos = startNanos + playNanos(audio.position());
+          long waitNanos = dueNanos - System.nanoTime();
+          if (waitNanos > 0) {
+            schedule(waitNanos);
+            return;
+          }
+          if (!requests.isSendReady()) {
+            schedule(SEND_RETRY_NANOS);
+            return;
+          }
+          ByteBuffer chunk = audio.slice();
+          chunk.limit(Math.min(chunkBytes, chunk.remaining()));
+          audio.position(audio.position() + chunk.limit());
+          requests.send(
+              StreamingRecognizeRequest.newBuilder()
+                  .setAudioContent(UnsafeByteOperations.unsafeWrap(chunk))
+                  .build());
+        }
+        if (!done.isDone()) {
+          requests.closeSend();
+        }
+      } catch (RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    void fail(RuntimeException e) {
+      if (done.setException(e)) {
+        requests.closeSendWithError(e);
+      }
+    }
+
+    // Returns how long the audio before the offset takes to play, at the speedup.
+    private long playNanos(long offset) {
+      if (Double.isInfinite(speedup)) {
+        return 0;
+      }
+      return (long) (offset * 1e9 / bytesPerSecond / speedup);
+    }
+
+    private void schedule(long delayNanos) {
+      try {
+        scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        fail(new IllegalStateException("The recognizer is closed", e));
+      }
+    }
+
+    @Override
+    public void onStart(StreamController controller) {
+      this.controller = controller;
+    }
+
+    @Override
+    public void onResponse(StreamingRecognizeResponse response) {
+      try {
+        onResponse.accept(response);
+      } catch (RuntimeException e) {
+        // Stop the stream rather than pass on responses after one was missed.
+        done.setException(e);
+        controller.cancel();
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      done.setException(t);
+    }
+
+    @Override
+    public void onComplete() {
+      done.set(null);
+    }
+  }
+}
+// [END speech_streaming_file_recognizer]
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2024 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.speech;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.BidiStreamingCallable;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ClientStreamReadyObserver;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.RecognitionConfig.AudioEncoding;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.cloud.speech.v1.stub.SpeechStub;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamingFileRecognizer}, against a fake streaming recognition call. */
+@RunWith(JUnit4.class)
+public class StreamingFileRecognizerTest {
+  // 16 kHz 16-bit mono, as in the samples.
+  private static final int BYTES_PER_SECOND = 32000;
+  private static final StreamingRecognitionConfig CONFIG =
+      StreamingRecognitionConfig.newBuilder()
+          .setConfig(
+              RecognitionConfig.newBuilder()
+                  .setEncoding(AudioEncoding.LINEAR16)
+                  .setLanguageCode("en-US")
+                  .setSampleRateHertz(16000))
+          .build();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<FakeStream> streams = new CopyOnWriteArrayList<>();
+  private SpeechClient speech;
+
+  @Before
+  public void setUp() {
+    speech = SpeechClient.create(new FakeSpeechStub());
+  }
+
+  @After
+  public void tearDown() {
+    speech.close();
+  }
+
+  @Test
+  public void testSendsChunksAtThePaceOfTheAudio() throws Exception {
+    byte[] audio = audio(BYTES_PER_SECOND + 1000, 1);
+    Path file = write(audio);
+    List<String> transcripts = new CopyOnWriteArrayList<>();
+
+    try (StreamingFileRecognizer recognizer =
+        new StreamingFileRecognizer(speech, CONFIG, Duration.ofMillis(100), 4)) {
+      long start = System.nanoTime();
+      recognizer
+          .recognize(
+              file,
+              response ->
+                  transcripts.add(response.getResults(0).getAlternatives(0).getTranscript()))
+          .get(10, TimeUnit.SECONDS);
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      // 1 s of audio at 4 times its pace; the last chunk is due after 250 ms.
+      assertThat(elapsedMillis).isAtLeast(240L);
+      assertThat(elapsedMillis).isLessThan(2000L);
+    }
+
+    FakeStream stream = streams.get(0);
+    assertThat(stream.config).isEqualTo(CONFIG);
+    List<Integer> sizes = new ArrayList<>();
+    for (ByteString chunk : stream.chunks) {
+      sizes.add(chunk.size());
+    }
+    assertThat(sizes).hasSize(11);
+    assertThat(sizes.subList(0, 10)).containsExactlyElementsIn(nCopies(10, 3200));
+    assertThat(sizes.get(10)).isEqualTo(1000);
+    assertThat(stream.audio()).isEqualTo(audio);
+    // Each chunk is sent a quarter of its duration after the one before it.
+    long firstMillis = stream.sentNanos.get(0) / 1000000;
+    long lastMillis = stream.sentNanos.get(10) / 1000000;
+    assertThat(lastMillis - firstMillis).isAtLeast(240L);
+    // Each response was passed on as it arrived.
+    assertThat(transcripts).hasSize(12);
+    assertThat(transcripts.get(0)).isEqualTo("chunk 1");
+    assertThat(transcripts.get(11)).isEqualTo("end");
+    assertThat(stream.closed).isTrue();
+  }
+
+  @Test
+  public void testFilesShareTheClient() throws Exception {
+    List<byte[]> audios = new ArrayList<>();
+    List<ApiFuture<Void>> done = new ArrayList<>();
+    List<AtomicInteger> responses = new ArrayList<>();
+    try (StreamingFileRecognizer recognizer =
+        new StreamingFileRecognizer(
+            speech, CONFIG, Duration.ofMillis(200), Double.POSITIVE_INFINITY)) {
+      for (int i = 0; i < 20; i++) {
+        byte[] audio = audio(BYTES_PER_SECOND * 3 + i * 2, i);
+        audios.add(audio);
+        AtomicInteger count = new AtomicInteger();
+        responses.add(count);
+        done.add(recognizer.recognize(write(audio), response -> count.incrementAndGet()));
+      }
+      ApiFutures.allAsList(done).get(10, TimeUnit.SECONDS);
+    }
+
+    assertThat(streams).hasSize(20);
+    for (int i = 0; i < 20; i++) {
+      FakeStream stream = streams.get(i);
+      assertThat(stream.audio()).isEqualTo(audios.get(i));
+      // 3 s in 200 ms chunks, and a chunk with what is left.
+      int chunks = i == 0 ? 15 : 16;
+      assertThat(stream.chunks).hasSize(chunks);
+      assertThat(responses.get(i).get()).isEqualTo(chunks + 1);
+    }
+  }
+
+  @Test
+  public void testFailingCallbackCancelsTheStream() throws Exception {
+    Path file = write(audio(BYTES_PER_SECOND, 1));
+    try (StreamingFileRecognizer recognizer = new StreamingFileRecognizer(speech, CONFIG)) {
+      ApiFuture<Void> done =
+          recognizer.recognize(
+              file,
+              response -> {
+                throw new IllegalStateException("no more");
+              });
+
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> done.get(10, TimeUnit.SECONDS));
+      assertThat(e).hasCauseThat().hasMessageThat().isEqualTo("no more");
+    }
+    assertThat(streams.get(0).cancelled).isTrue();
+    // Nothing more is sent once the stream is cancelled.
+    assertThat(streams.get(0).chunks).hasSize(1);
+  }
+
+  @Test
+  public void testCancellingCancelsTheStream() throws Exception {
+    Path file = write(audio(BYTES_PER_SECOND * 10, 1));
+    try (StreamingFileRecognizer recognizer = new StreamingFileRecognizer(speech, CONFIG)) {
+      ApiFuture<Void> done = recognizer.recognize(file, response -> { });
+
+      done.cancel(true);
+
+      assertThat(streams.get(0).cancelled).isTrue();
+      assertThrows(CancellationException.class, done::get);
+    }
+  }
+
+  @Test
+  public void testClosingFailsStreamsInProgress() throws Exception {
+    Path file = write(audio(BYTES_PER_SECOND * 10, 1));
+    ApiFuture<Void> done;
+    try (StreamingFileRecognizer recognizer = new StreamingFileRecognizer(speech, CONFIG)) {
+      done = recognizer.recognize(file, response -> { });
+    }
+
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> done.get(10, TimeUnit.SECONDS));
+    assertThat(e).hasCauseThat().isInstanceOf(IllegalStateException.class);
+    assertThat(streams.get(0).closedWithError).isTrue();
+  }
+
+  @Test
+  public void testRejectsAudioThatCannotBePacedOrSent() {
+    StreamingRecognitionConfig flac =
+        CONFIG.toBuilder()
+            .setConfig(CONFIG.getConfig().toBuilder().setEncoding(AudioEncoding.FLAC))
+            .build();
+    assertThrows(
+        IllegalArgumentException.class, () -> new StreamingFileRecognizer(speech, flac));
+    // A second of 16 kHz audio is more than a request can hold.
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new StreamingFileRecognizer(speech, CONFIG, Duration.ofSeconds(1), 1));
+  }
+
+  private Path write(byte[] audio) throws IOException {
+    Path file = folder.newFile().toPath();
+    Files.write(file, audio);
+    return file;
+  }
+
+  private static byte[] audio(int size, long seed) {
+    byte[] audio = new byte[size];
+    new Random(seed).nextBytes(audio);
+    return audio;
+  }
+
+  private static List<Integer> nCopies(int n, int value) {
+    List<Integer> copies = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      copies.add(value);
+    }
+    return copies;
+  }
+
+  private static StreamingRecognizeResponse response(String transcript) {
+    return StreamingRecognizeResponse.newBuilder()
+        .addResults(
+            StreamingRecognitionResult.newBuilder()
+                .addAlternatives(
+                    SpeechRecognitionAlternative.newBuilder().setTranscript(transcript)))
+        .build();
+  }
+
+  // Records what is sent on a stream, and answers each chunk of audio and the end of the audio.
+  private static class FakeStream
+      implements ClientStream<StreamingRecognizeRequest>, StreamController {
+    final List<ByteString> chunks = new CopyOnWriteArrayList<>();
+    final List<Long> sentNanos = new CopyOnWriteArrayList<>();
+    final ResponseObserver<StreamingRecognizeResponse> responses;
+    volatile StreamingRecognitionConfig config;
+    volatile boolean closed;
+    volatile boolean closedWithError;
+    volatile boolean cancelled;
+
+    FakeStream(ResponseObserver<StreamingRecognizeResponse> responses) {
+      this.responses = responses;
+      responses.onStart(this);
+    }
+
+    @Override
+    public void send(StreamingRecognizeRequest request) {
+      if (request.hasStreamingConfig()) {
+        config = request.getStreamingConfig();
+        return;
+      }
+      sentNanos.add(System.nanoTime());
+      // Keep a copy, as the request may wrap memory that goes away.
+      chunks.add(ByteString.copyFrom(request.getAudioContent().toByteArray()));
+      responses.onResponse(response("chunk " + chunks.size()));
+    }
+
+    @Override
+    public void closeSend() {
+      closed = true;
+      responses.onResponse(response("end"));
+      responses.onComplete();
+    }
+
+    @Override
+    public void closeSendWithError(Throwable t) {
+      closedWithError = true;
+      responses.onError(t);
+    }
+
+    @Override
+    public boolean isSendReady() {
+      return true;
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      responses.onError(new CancellationException("cancelled"));
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {}
+
+    @Override
+    public void request(int count) {}
+
+    byte[] audio() throws IOException {
+      ByteArrayOutputStream audio = new ByteArrayOutputStream();
+      for (ByteString chunk : chunks) {
+        chunk.writeTo(audio);
+      }
+      return audio.toByteArray();
+    }
+  }
+
+  private class FakeSpeechStub extends SpeechStub {
+    @Override
+    public BidiStreamingCallable<StreamingRecognizeRequest, StreamingRecognizeResponse>
+        streamingRecognizeCallable() {
+      return new BidiStreamingCallable<StreamingRecognizeRequest, StreamingRecognizeResponse>() {
+        @Override
+        public ClientStream<StreamingRecognizeRequest> internalCall(
+            ResponseObserver<StreamingRecognizeResponse> responseObserver,
+            ClientStreamReadyObserver<StreamingRecognizeRequest> onReady,
+            ApiCallContext context) {
+          FakeStream stream = new FakeStream(responseObserver);
+          streams.add(stream);
+          return stream;
+        }
+      };
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public void shutdownNow() {}
+
+    @Override
+    public boolean awaitTermination(long duration, TimeUnit unit) {
+      return true;
+    }
+  }
+}